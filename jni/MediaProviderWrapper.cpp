@@ -16,6 +16,7 @@
 
 #include "MediaProviderWrapper.h"
 #include "libfuse_jni/ReaddirHelper.h"
+#include "libfuse_jni/UpcallMetrics.h"
 
 #include <android-base/logging.h>
 #include <android-base/properties.h>
@@ -40,6 +41,10 @@ constexpr const char* kPropRedactionEnabled = "persist.sys.fuse.redaction-enable
 constexpr uid_t ROOT_UID = 0;
 constexpr uid_t SHELL_UID = 2000;
 
+// Upper bound on the number of inserts or deletes applied in one MediaProvider transaction, to
+// bound the time the database is locked for writing.
+constexpr size_t kMaxFileOpBatchSize = 64;
+
 // These need to stay in sync with MediaProvider.java's DIRECTORY_ACCESS_FOR_* constants.
 enum DirectoryAccessRequestType {
     kReadDirectoryRequest = 1,
@@ -76,26 +81,59 @@ static jfieldID CacheField(JNIEnv* env, jclass clazz, const char field_name[], c
     return fid;
 }
 
-int insertFileInternal(JNIEnv* env, jobject media_provider_object, jmethodID mid_insert_file,
-                       const string& path, uid_t uid) {
-    ScopedLocalRef<jstring> j_path(env, env->NewStringUTF(path.c_str()));
-    int res = env->CallIntMethod(media_provider_object, mid_insert_file, j_path.get(), uid);
+/**
+ * Applies |requests| through |mid_file_op| one at a time if there is only one of them, otherwise
+ * through the batched |mid_file_ops| variant in a single upcall.
+ */
+void applyFileOpsInternal(JNIEnv* env, jobject media_provider_object, jmethodID mid_file_op,
+                          jmethodID mid_file_ops,
+                          const std::vector<FileOpBatcher::Request*>& requests) {
+    if (requests.size() == 1) {
+        FileOpBatcher::Request* request = requests[0];
+        ScopedLocalRef<jstring> j_path(env, env->NewStringUTF(request->path.c_str()));
+        request->result = env->CallIntMethod(media_provider_object, mid_file_op, j_path.get(),
+                                             request->uid);
+        if (CheckForJniException(env)) {
+            request->result = EFAULT;
+        }
+        return;
+    }
 
+    const jsize count = requests.size();
+    ScopedLocalRef<jclass> string_class(env, env->FindClass("java/lang/String"));
+    ScopedLocalRef<jobjectArray> j_paths(env,
+                                         env->NewObjectArray(count, string_class.get(), nullptr));
+    ScopedLocalRef<jintArray> j_uids(env, env->NewIntArray(count));
     if (CheckForJniException(env)) {
-        return EFAULT;
+        for (FileOpBatcher::Request* request : requests) {
+            request->result = EFAULT;
+        }
+        return;
     }
-    return res;
-}
 
-int deleteFileInternal(JNIEnv* env, jobject media_provider_object, jmethodID mid_delete_file,
-                       const string& path, uid_t uid) {
-    ScopedLocalRef<jstring> j_path(env, env->NewStringUTF(path.c_str()));
-    int res = env->CallIntMethod(media_provider_object, mid_delete_file, j_path.get(), uid);
+    std::vector<jint> uids(count);
+    for (jsize i = 0; i < count; i++) {
+        ScopedLocalRef<jstring> j_path(env, env->NewStringUTF(requests[i]->path.c_str()));
+        env->SetObjectArrayElement(j_paths.get(), i, j_path.get());
+        uids[i] = requests[i]->uid;
+    }
+    env->SetIntArrayRegion(j_uids.get(), 0, count, uids.data());
 
-    if (CheckForJniException(env)) {
-        return EFAULT;
+    ScopedLocalRef<jintArray> j_results(
+            env, static_cast<jintArray>(env->CallObjectMethod(media_provider_object, mid_file_ops,
+                                                              j_paths.get(), j_uids.get())));
+    if (CheckForJniException(env) || j_results.get() == nullptr ||
+        env->GetArrayLength(j_results.get()) != count) {
+        for (FileOpBatcher::Request* request : requests) {
+            request->result = EFAULT;
+        }
+        return;
+    }
+
+    ScopedIntArrayRO results(env, j_results.get());
+    for (jsize i = 0; i < count; i++) {
+        requests[i]->result = results[i];
     }
-    return res;
 }
 
 int isDirAccessAllowedInternal(JNIEnv* env, jobject media_provider_object,
@@ -198,6 +236,50 @@ void onFileCreatedInternal(JNIEnv* env, jobject media_provider_object,
 /******************************* Public API Implementation *******************************/
 /*****************************************************************************************/
 
+int FileOpBatcher::Submit(const string& path, uid_t uid) {
+    Request request(path, uid);
+    std::unique_lock<std::mutex> lock(lock_);
+    // Stays in |queues_| as long as |request| isn't done
+    Queue& queue = queues_[uid];
+    queue.requests.push_back(&request);
+
+    while (!request.done) {
+        if (queue.applying) {
+            // Another thread is applying a batch of this uid, our request is either part of it or
+            // will be applied in the next batch.
+            cv_.wait(lock);
+            continue;
+        }
+
+        queue.applying = true;
+        std::vector<Request*> batch;
+        if (queue.requests.size() <= max_batch_size_) {
+            batch.swap(queue.requests);
+        } else {
+            batch.assign(queue.requests.begin(), queue.requests.begin() + max_batch_size_);
+            queue.requests.erase(queue.requests.begin(),
+                                 queue.requests.begin() + max_batch_size_);
+        }
+        lock.unlock();
+
+        apply_(batch);
+
+        lock.lock();
+        for (Request* r : batch) {
+            r->done = true;
+        }
+        queue.applying = false;
+        cv_.notify_all();
+    }
+
+    // |queue| may have been removed by another thread once our request was done
+    auto it = queues_.find(uid);
+    if (it != queues_.end() && it->second.requests.empty() && !it->second.applying) {
+        queues_.erase(it);
+    }
+    return request.result;
+}
+
 JavaVM* MediaProviderWrapper::gJavaVm = nullptr;
 pthread_key_t MediaProviderWrapper::gJniEnvKey;
 
@@ -223,7 +305,9 @@ MediaProviderWrapper::MediaProviderWrapper(JNIEnv* env, jobject media_provider)
 
     // Cache methods - Before calling a method, make sure you cache it here
     mid_insert_file_ = CacheMethod(env, "insertFileIfNecessary", "(Ljava/lang/String;I)I");
+    mid_insert_files_ = CacheMethod(env, "insertFilesIfNecessary", "([Ljava/lang/String;[I)[I");
     mid_delete_file_ = CacheMethod(env, "deleteFile", "(Ljava/lang/String;I)I");
+    mid_delete_files_ = CacheMethod(env, "deleteFiles", "([Ljava/lang/String;[I)[I");
     mid_on_file_open_ = CacheMethod(env, "onFileOpen",
                                     "(Ljava/lang/String;Ljava/lang/String;IIIZZZ)Lcom/android/"
                                     "providers/media/FileOpenResult;");
@@ -271,6 +355,19 @@ MediaProviderWrapper::MediaProviderWrapper(JNIEnv* env, jobject media_provider)
     fid_file_open_redaction_ranges_ =
             CacheField(env, file_open_result_class_, "redactionRanges", "[J");
     fid_file_open_fd_ = CacheField(env, file_open_result_class_, "nativeFd", "I");
+
+    insert_batcher_ = std::make_unique<FileOpBatcher>(
+            [this](const std::vector<FileOpBatcher::Request*>& requests) {
+                applyFileOpsInternal(MaybeAttachCurrentThread(), media_provider_object_,
+                                     mid_insert_file_, mid_insert_files_, requests);
+            },
+            kMaxFileOpBatchSize);
+    delete_batcher_ = std::make_unique<FileOpBatcher>(
+            [this](const std::vector<FileOpBatcher::Request*>& requests) {
+                applyFileOpsInternal(MaybeAttachCurrentThread(), media_provider_object_,
+                                     mid_delete_file_, mid_delete_files_, requests);
+            },
+            kMaxFileOpBatchSize);
 }
 
 MediaProviderWrapper::~MediaProviderWrapper() {
@@ -284,8 +381,8 @@ int MediaProviderWrapper::InsertFile(const string& path, uid_t uid) {
         return 0;
     }
 
-    JNIEnv* env = MaybeAttachCurrentThread();
-    return insertFileInternal(env, media_provider_object_, mid_insert_file_, path, uid);
+    ScopedUpcallTimer timer(Upcall::kInsertFile);
+    return insert_batcher_->Submit(path, uid);
 }
 
 int MediaProviderWrapper::DeleteFile(const string& path, uid_t uid) {
@@ -294,8 +391,8 @@ int MediaProviderWrapper::DeleteFile(const string& path, uid_t uid) {
         return res;
     }
 
-    JNIEnv* env = MaybeAttachCurrentThread();
-    return deleteFileInternal(env, media_provider_object_, mid_delete_file_, path, uid);
+    ScopedUpcallTimer timer(Upcall::kDeleteFile);
+    return delete_batcher_->Submit(path, uid);
 }
 
 std::unique_ptr<FileOpenResult> MediaProviderWrapper::OnFileOpen(const string& path,
@@ -309,6 +406,7 @@ std::unique_ptr<FileOpenResult> MediaProviderWrapper::OnFileOpen(const string& p
                                                 new RedactionInfo());
     }
 
+    ScopedUpcallTimer timer(Upcall::kOnFileOpen);
     ScopedLocalRef<jstring> j_path(env, env->NewStringUTF(path.c_str()));
     ScopedLocalRef<jstring> j_io_path(env, env->NewStringUTF(io_path.c_str()));
     ScopedLocalRef<jobject> j_res_file_open_object(
@@ -355,6 +453,7 @@ int MediaProviderWrapper::IsCreatingDirAllowed(const string& path, uid_t uid) {
         return 0;
     }
 
+    ScopedUpcallTimer timer(Upcall::kIsDirAccessAllowed);
     JNIEnv* env = MaybeAttachCurrentThread();
     return isDirAccessAllowedInternal(env, media_provider_object_, mid_is_diraccess_allowed_, path,
                                       uid, kCreateDirectoryRequest);
@@ -365,6 +464,7 @@ int MediaProviderWrapper::IsDeletingDirAllowed(const string& path, uid_t uid) {
         return 0;
     }
 
+    ScopedUpcallTimer timer(Upcall::kIsDirAccessAllowed);
     JNIEnv* env = MaybeAttachCurrentThread();
     return isDirAccessAllowedInternal(env, media_provider_object_, mid_is_diraccess_allowed_, path,
                                       uid, kDeleteDirectoryRequest);
@@ -379,6 +479,7 @@ std::vector<std::shared_ptr<DirectoryEntry>> MediaProviderWrapper::GetDirectoryE
         return res;
     }
 
+    ScopedUpcallTimer timer(Upcall::kGetDirectoryEntries);
     JNIEnv* env = MaybeAttachCurrentThread();
     res = getFilesInDirectoryInternal(env, media_provider_object_, mid_get_files_in_dir_, uid, path);
 
@@ -399,6 +500,7 @@ int MediaProviderWrapper::IsOpendirAllowed(const string& path, uid_t uid, bool f
         return 0;
     }
 
+    ScopedUpcallTimer timer(Upcall::kIsDirAccessAllowed);
     JNIEnv* env = MaybeAttachCurrentThread();
     return isDirAccessAllowedInternal(env, media_provider_object_, mid_is_diraccess_allowed_, path,
                                       uid,
@@ -410,6 +512,7 @@ bool MediaProviderWrapper::isUidAllowedAccessToDataOrObbPath(uid_t uid, const st
         return true;
     }
 
+    ScopedUpcallTimer timer(Upcall::kIsUidAllowedAccessToDataOrObbPath);
     JNIEnv* env = MaybeAttachCurrentThread();
     return isUidAllowedAccessToDataOrObbPathInternal(
             env, media_provider_object_, mid_is_uid_allowed_access_to_data_or_obb_path_, uid, path);
@@ -424,17 +527,20 @@ int MediaProviderWrapper::Rename(const string& old_path, const string& new_path,
         return res;
     }
 
+    ScopedUpcallTimer timer(Upcall::kRename);
     JNIEnv* env = MaybeAttachCurrentThread();
     return renameInternal(env, media_provider_object_, mid_rename_, old_path, new_path, uid);
 }
 
 void MediaProviderWrapper::OnFileCreated(const string& path) {
+    ScopedUpcallTimer timer(Upcall::kOnFileCreated);
     JNIEnv* env = MaybeAttachCurrentThread();
 
     return onFileCreatedInternal(env, media_provider_object_, mid_on_file_created_, path);
 }
 
 bool MediaProviderWrapper::ShouldAllowLookup(uid_t uid, int path_user_id) {
+    ScopedUpcallTimer timer(Upcall::kShouldAllowLookup);
     JNIEnv* env = MaybeAttachCurrentThread();
 
     bool res = env->CallBooleanMethod(media_provider_object_, mid_should_allow_lookup_, uid,
@@ -447,6 +553,7 @@ bool MediaProviderWrapper::ShouldAllowLookup(uid_t uid, int path_user_id) {
 }
 
 bool MediaProviderWrapper::IsAppCloneUser(uid_t userId) {
+    ScopedUpcallTimer timer(Upcall::kIsAppCloneUser);
     JNIEnv* env = MaybeAttachCurrentThread();
 
     bool res = env->CallBooleanMethod(media_provider_object_, mid_is_app_clone_user_, userId);
@@ -459,6 +566,7 @@ bool MediaProviderWrapper::IsAppCloneUser(uid_t userId) {
 
 std::unique_ptr<FileLookupResult> MediaProviderWrapper::FileLookup(const std::string& path,
                                                                    uid_t uid, pid_t tid) {
+    ScopedUpcallTimer timer(Upcall::kFileLookup);
     JNIEnv* env = MaybeAttachCurrentThread();
 
     ScopedLocalRef<jstring> j_path(env, env->NewStringUTF(path.c_str()));
@@ -493,6 +601,7 @@ std::unique_ptr<FileLookupResult> MediaProviderWrapper::FileLookup(const std::st
 bool MediaProviderWrapper::Transform(const std::string& src, const std::string& dst, int transforms,
                                      int transforms_reason, uid_t read_uid, uid_t open_uid,
                                      uid_t transforms_uid) {
+    ScopedUpcallTimer timer(Upcall::kTransform);
     JNIEnv* env = MaybeAttachCurrentThread();
 
     ScopedLocalRef<jstring> j_src(env, env->NewStringUTF(src.c_str()));
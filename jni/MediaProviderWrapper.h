@@ -29,6 +29,8 @@
 #include <queue>
 #include <string>
 #include <thread>
+#include <unordered_map>
+#include <vector>
 
 #include "libfuse_jni/ReaddirHelper.h"
 #include "libfuse_jni/RedactionInfo.h"
@@ -83,6 +85,55 @@ struct FileLookupResult {
     const std::string io_path;
 };
 
+/**
+ * Coalesces concurrent requests of the same kind (e.g. file inserts) from FUSE threads into
+ * batches.
+ *
+ * Requests are queued per uid, so the requests of one app never wait behind a batch of another
+ * app. The first thread to submit a request for a uid applies everything that is queued for that
+ * uid at that point. Requests of the uid submitted while a batch is being applied are queued and
+ * applied together in the next batch by one of the waiting threads. A lone request is applied
+ * right away, so there is no added latency when there is no contention. Every thread still waits
+ * for and returns the result of its own request.
+ */
+class FileOpBatcher final {
+  public:
+    struct Request {
+        Request(const std::string& path, uid_t uid) : path(path), uid(uid) {}
+
+        const std::string& path;
+        const uid_t uid;
+        int result = 0;
+        bool done = false;
+    };
+
+    /** Applies the given requests and sets the result of each of them */
+    using ApplyFunction = std::function<void(const std::vector<Request*>&)>;
+
+    FileOpBatcher(ApplyFunction apply, size_t max_batch_size)
+        : apply_(std::move(apply)), max_batch_size_(max_batch_size) {}
+
+    /**
+     * Queues a request for |path| on behalf of |uid| and blocks until it has been applied.
+     *
+     * @return result of the request as set by the ApplyFunction
+     */
+    int Submit(const std::string& path, uid_t uid);
+
+  private:
+    struct Queue {
+        std::vector<Request*> requests;
+        bool applying = false;
+    };
+
+    const ApplyFunction apply_;
+    const size_t max_batch_size_;
+    std::mutex lock_;
+    std::condition_variable cv_;
+    /** Queued requests by uid, removed once they are all applied **/
+    std::unordered_map<uid_t, Queue> queues_;
+};
+
 /**
  * Class that wraps MediaProvider.java and all of the needed JNI calls to make
  * interaction with MediaProvider easier.
@@ -261,7 +312,9 @@ class MediaProviderWrapper final {
     jobject media_provider_object_;
     /** Cached MediaProvider method IDs **/
     jmethodID mid_insert_file_;
+    jmethodID mid_insert_files_;
     jmethodID mid_delete_file_;
+    jmethodID mid_delete_files_;
     jmethodID mid_on_file_open_;
     jmethodID mid_scan_file_;
     jmethodID mid_is_diraccess_allowed_;
@@ -286,6 +339,9 @@ class MediaProviderWrapper final {
     jfieldID fid_file_open_transforms_uid_;
     jfieldID fid_file_open_redaction_ranges_;
     jfieldID fid_file_open_fd_;
+    /** Batches concurrent file inserts and deletes into a single upcall **/
+    std::unique_ptr<FileOpBatcher> insert_batcher_;
+    std::unique_ptr<FileOpBatcher> delete_batcher_;
 
     /**
      * Auxiliary for caching MediaProvider methods.
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "libfuse_jni/UpcallMetrics.h"
+
+#include <atomic>
+
+namespace mediaprovider {
+namespace fuse {
+namespace {
+
+constexpr int kUpcallCount = static_cast<int>(Upcall::kCount);
+
+struct UpcallHistogram {
+    std::atomic<int64_t> buckets[kUpcallLatencyBucketCount];
+    std::atomic<int64_t> total_latency_us;
+};
+
+// Zero initialized, since it has static storage duration
+UpcallHistogram gHistograms[kUpcallCount];
+
+}  // namespace
+
+int UpcallMetrics::BucketFor(uint64_t latency_us) {
+    if (latency_us < 2) {
+        return 0;
+    }
+    const int bucket = 63 - __builtin_clzll(latency_us);
+    return bucket < kUpcallLatencyBucketCount ? bucket : kUpcallLatencyBucketCount - 1;
+}
+
+void UpcallMetrics::Record(Upcall upcall, uint64_t latency_us) {
+    UpcallHistogram& histogram = gHistograms[static_cast<int>(upcall)];
+    histogram.buckets[BucketFor(latency_us)].fetch_add(1, std::memory_order_relaxed);
+    histogram.total_latency_us.fetch_add(latency_us, std::memory_order_relaxed);
+}
+
+std::vector<int64_t> UpcallMetrics::Snapshot() {
+    std::vector<int64_t> snapshot;
+    snapshot.reserve(kUpcallCount * (kUpcallLatencyBucketCount + 1));
+    for (const UpcallHistogram& histogram : gHistograms) {
+        for (const std::atomic<int64_t>& bucket : histogram.buckets) {
+            snapshot.push_back(bucket.load(std::memory_order_relaxed));
+        }
+        snapshot.push_back(histogram.total_latency_us.load(std::memory_order_relaxed));
+    }
+    return snapshot;
+}
+
+}  // namespace fuse
+}  // namespace mediaprovider
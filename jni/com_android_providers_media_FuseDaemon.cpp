@@ -24,6 +24,7 @@
 
 #include "FuseDaemon.h"
 #include "MediaProviderWrapper.h"
+#include "libfuse_jni/UpcallMetrics.h"
 #include "android-base/logging.h"
 #include "android-base/unique_fd.h"
 
@@ -182,6 +183,17 @@ bool com_android_providers_media_FuseDaemon_is_fuse_thread(JNIEnv* env, jclass c
     return pthread_getspecific(fuse::MediaProviderWrapper::gJniEnvKey) != nullptr;
 }
 
+jlongArray com_android_providers_media_FuseDaemon_get_upcall_latency_histograms(JNIEnv* env,
+                                                                              jclass clazz) {
+    const std::vector<int64_t> snapshot = fuse::UpcallMetrics::Snapshot();
+    jlongArray histograms = env->NewLongArray(snapshot.size());
+    if (histograms) {
+        env->SetLongArrayRegion(histograms, 0, snapshot.size(),
+                                reinterpret_cast<const jlong*>(snapshot.data()));
+    }
+    return histograms;
+}
+
 const JNINativeMethod methods[] = {
         {"native_new", "(Lcom/android/providers/media/MediaProvider;)J",
          reinterpret_cast<void*>(com_android_providers_media_FuseDaemon_new)},
@@ -195,6 +207,9 @@ const JNINativeMethod methods[] = {
          reinterpret_cast<void*>(com_android_providers_media_FuseDaemon_uses_fuse_passthrough)},
         {"native_is_fuse_thread", "()Z",
          reinterpret_cast<void*>(com_android_providers_media_FuseDaemon_is_fuse_thread)},
+        {"native_get_upcall_latency_histograms", "()[J",
+         reinterpret_cast<void*>(
+                 com_android_providers_media_FuseDaemon_get_upcall_latency_histograms)},
         {"native_is_started", "(J)Z",
          reinterpret_cast<void*>(com_android_providers_media_FuseDaemon_is_started)},
         {"native_invalidate_fuse_dentry_cache", "(JLjava/lang/String;)V",
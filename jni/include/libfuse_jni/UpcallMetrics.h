@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef MEDIA_PROVIDER_FUSE_UPCALL_METRICS_H
+#define MEDIA_PROVIDER_FUSE_UPCALL_METRICS_H
+
+#include <chrono>
+#include <cstdint>
+#include <vector>
+
+namespace mediaprovider {
+namespace fuse {
+
+/**
+ * MediaProvider upcalls made by MediaProviderWrapper. These need to stay in sync with the
+ * UPCALL_* constants in FuseUpcallMetrics.java.
+ */
+enum class Upcall : int {
+    kInsertFile = 0,
+    kDeleteFile = 1,
+    kOnFileOpen = 2,
+    kIsDirAccessAllowed = 3,
+    kGetDirectoryEntries = 4,
+    kRename = 5,
+    kIsUidAllowedAccessToDataOrObbPath = 6,
+    kOnFileCreated = 7,
+    kShouldAllowLookup = 8,
+    kIsAppCloneUser = 9,
+    kFileLookup = 10,
+    kTransform = 11,
+    kCount = 12,
+};
+
+/**
+ * Number of latency buckets per upcall. Bucket 0 counts latencies below 2us, bucket i counts
+ * latencies in [2^i, 2^(i+1)) us and the last bucket also counts everything above that. Needs to
+ * stay in sync with LATENCY_BUCKET_COUNT in FuseUpcallMetrics.java.
+ */
+constexpr int kUpcallLatencyBucketCount = 24;
+
+/**
+ * Process wide latency histograms of MediaProvider upcalls, recorded without locks so they can be
+ * updated from any FUSE thread.
+ */
+class UpcallMetrics final {
+  public:
+    /** Records one |upcall| that took |latency_us| microseconds */
+    static void Record(Upcall upcall, uint64_t latency_us);
+
+    /**
+     * Returns the histograms of all upcalls, in upcall order. Each upcall takes
+     * kUpcallLatencyBucketCount bucket counts followed by the total latency in microseconds.
+     */
+    static std::vector<int64_t> Snapshot();
+
+    /** Returns the bucket |latency_us| is counted in */
+    static int BucketFor(uint64_t latency_us);
+};
+
+/** Records the time between its construction and destruction as latency of an upcall */
+class ScopedUpcallTimer final {
+  public:
+    explicit ScopedUpcallTimer(Upcall upcall)
+        : upcall_(upcall), start_(std::chrono::steady_clock::now()) {}
+
+    ~ScopedUpcallTimer() {
+        const auto elapsed = std::chrono::steady_clock::now() - start_;
+        UpcallMetrics::Record(
+                upcall_, std::chrono::duration_cast<std::chrono::microseconds>(elapsed).count());
+    }
+
+    ScopedUpcallTimer(const ScopedUpcallTimer&) = delete;
+    ScopedUpcallTimer& operator=(const ScopedUpcallTimer&) = delete;
+
+  private:
+    const Upcall upcall_;
+    const std::chrono::steady_clock::time_point start_;
+};
+
+}  // namespace fuse
+}  // namespace mediaprovider
+
+#endif  // MEDIA_PROVIDER_FUSE_UPCALL_METRICS_H
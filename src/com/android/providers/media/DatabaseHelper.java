@@ -1051,6 +1051,8 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
         db.execSQL("CREATE TABLE log (time DATETIME, message TEXT)");
         db.execSQL("CREATE TABLE deleted_media (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
                 + "old_id INTEGER UNIQUE, generation_modified INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE pending_thumbnail_deletions (_id INTEGER PRIMARY KEY,"
+                + "volume_name TEXT NOT NULL)");
 
         if (isExternal()) {
             db.execSQL("CREATE TABLE audio_playlists_map (_id INTEGER PRIMARY KEY,"
@@ -1544,6 +1546,12 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 + " BEGIN SELECT _UPDATE(" + updateArg + "); END");
         db.execSQL("CREATE TRIGGER files_delete AFTER DELETE ON files"
                 + " BEGIN SELECT _DELETE(" + deleteArg + "); END");
+        // Remembers the thumbnails to delete, in case the process dies before it gets to them
+        db.execSQL("CREATE TRIGGER files_delete_thumbnails AFTER DELETE ON files"
+                + " WHEN old.media_type IN (" + FileColumns.MEDIA_TYPE_IMAGE + ","
+                + FileColumns.MEDIA_TYPE_AUDIO + "," + FileColumns.MEDIA_TYPE_VIDEO + ")"
+                + " BEGIN INSERT OR REPLACE INTO pending_thumbnail_deletions"
+                + " VALUES (old._id, old.volume_name); END");
     }
 
     private static void makePristineIndexes(SQLiteDatabase db) {
@@ -1808,6 +1816,11 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                         + "old_id INTEGER UNIQUE, generation_modified INTEGER NOT NULL)");
     }
 
+    private static void updateAddPendingThumbnailDeletionsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE pending_thumbnail_deletions (_id INTEGER PRIMARY KEY,"
+                + "volume_name TEXT NOT NULL)");
+    }
+
     private void updateUserId(SQLiteDatabase db) {
         db.execSQL(String.format(Locale.ROOT,
                 "ALTER TABLE files ADD COLUMN _user_id INTEGER DEFAULT %d;",
@@ -1877,7 +1890,7 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
     static final int VERSION_S = 1209;
     // Leave some gaps in database version tagging to allow S schema changes
     // to go independent of T schema changes.
-    static final int VERSION_T = 1307;
+    static final int VERSION_T = 1308;
     public static final int VERSION_LATEST = VERSION_T;
 
     /**
@@ -2074,6 +2087,9 @@ public class DatabaseHelper extends SQLiteOpenHelper implements AutoCloseable {
                 // This is to ensure Animated Webp files are tagged
                 updateSpecialFormatToNotDetected(db);
             }
+            if (fromVersion < 1308) {
+                updateAddPendingThumbnailDeletionsTable(db);
+            }
 
             // If this is the legacy database, it's not worth recomputing data
             // values locally, since they'll be recomputed after the migration
@@ -17,6 +17,7 @@
 package com.android.providers.media;
 
 import static android.Manifest.permission.ACCESS_MEDIA_LOCATION;
+import static android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
 import static android.app.AppOpsManager.permissionToOp;
 import static android.app.PendingIntent.FLAG_CANCEL_CURRENT;
 import static android.app.PendingIntent.FLAG_IMMUTABLE;
@@ -69,6 +70,18 @@ import static com.android.providers.media.LocalCallingIdentity.PERMISSION_WRITE_
 import static com.android.providers.media.LocalCallingIdentity.PERMISSION_WRITE_IMAGES;
 import static com.android.providers.media.LocalCallingIdentity.PERMISSION_WRITE_VIDEO;
 import static com.android.providers.media.PickerUriResolver.getMediaUri;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_DELETE_FILE;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_FILE_LOOKUP;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_GET_DIRECTORY_ENTRIES;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_INSERT_FILE;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_IS_APP_CLONE_USER;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_IS_DIR_ACCESS_ALLOWED;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_IS_UID_ALLOWED_ACCESS_TO_DATA_OR_OBB_PATH;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_ON_FILE_CREATED;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_ON_FILE_OPEN;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_RENAME;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_SHOULD_ALLOW_LOOKUP;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_TRANSFORM;
 import static com.android.providers.media.scan.MediaScanner.REASON_DEMAND;
 import static com.android.providers.media.scan.MediaScanner.REASON_IDLE;
 import static com.android.providers.media.util.DatabaseUtils.bindList;
@@ -107,6 +120,7 @@ import static com.android.providers.media.util.SyntheticPathUtils.isRedactedPath
 import static com.android.providers.media.util.SyntheticPathUtils.isSyntheticPath;
 
 import android.annotation.IntDef;
+import android.app.ActivityManager;
 import android.app.AppOpsManager;
 import android.app.AppOpsManager.OnOpActiveChangedListener;
 import android.app.AppOpsManager.OnOpChangedListener;
@@ -147,14 +161,17 @@ import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Point;
 import android.graphics.drawable.Icon;
 import android.icu.util.ULocale;
 import android.media.ExifInterface;
 import android.media.ThumbnailUtils;
 import android.mtp.MtpConstants;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Binder.ProxyTransactListener;
 import android.os.Build;
@@ -165,6 +182,7 @@ import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.OnCloseListener;
 import android.os.Parcelable;
+import android.os.PowerManager;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -224,6 +242,7 @@ import com.android.providers.media.DatabaseHelper.OnLegacyMigrationListener;
 import com.android.providers.media.dao.FileRow;
 import com.android.providers.media.fuse.ExternalStorageServiceImpl;
 import com.android.providers.media.fuse.FuseDaemon;
+import com.android.providers.media.metrics.FuseUpcallMetrics;
 import com.android.providers.media.metrics.PulledMetrics;
 import com.android.providers.media.photopicker.PickerDataLayer;
 import com.android.providers.media.photopicker.PickerSyncController;
@@ -269,6 +288,7 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -282,6 +302,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
@@ -377,6 +398,20 @@ public class MediaProvider extends ContentProvider {
      */
     private static final int IDLE_MAINTENANCE_ROWS_LIMIT = 1000;
 
+    // Sizes of the micro and mini thumbnails, stored next to the full size ones
+    private static final int[] SMALL_THUMB_SIZES = {96, 256};
+    private static final Bitmap.CompressFormat[] THUMBNAIL_FORMATS = {
+            Bitmap.CompressFormat.JPEG, Bitmap.CompressFormat.WEBP_LOSSY };
+    private static final String THUMBNAIL_FORMAT_KEY = "thumbnail_format";
+    private static final String THUMBNAIL_CACHE_MAX_SIZE_MB_KEY = "thumbnail_cache_max_size_mb";
+    private static final int MAX_THUMBNAIL_CACHE_SIZE_MB = 512;
+
+    private static final String EAGER_THUMBNAILS_KEY = "eager_thumbnails";
+    private static final String EAGER_THUMBNAILS_MAX_COUNT_KEY = "eager_thumbnails_max_count";
+    private static final int EAGER_THUMBNAILS_MAX_COUNT = 200;
+    // Below this battery level thumbnails are only generated eagerly while charging
+    private static final int EAGER_THUMBNAILS_MIN_BATTERY_PERCENT = 30;
+
     /**
      * Where clause to match pending files from FUSE. Pending files from FUSE will not have
      * PATTERN_PENDING_FILEPATH_FOR_SQL pattern.
@@ -475,12 +510,33 @@ public class MediaProvider extends ContentProvider {
     }
 
     /**
-     * Frees any cache held by MediaProvider.
+     * Frees any cache held by MediaProvider on a storage device.
      *
+     * @param volumeUuid uuid of the storage device which needs free space
      * @param bytes number of bytes which need to be freed
      */
-    public void freeCache(long bytes) {
-        mTranscodeHelper.freeCache(bytes);
+    public void freeCache(@NonNull UUID volumeUuid, long bytes) {
+        final long freedBytes = mTranscodeHelper.freeCache(volumeUuid, bytes);
+        if (freedBytes >= bytes) {
+            return;
+        }
+
+        // Only evict thumbnails once transcoded files are gone, since they are much more likely
+        // to be needed again soon
+        final List<File> volumePaths = new ArrayList<>();
+        for (MediaVolume volume : mVolumeCache.getExternalVolumes()) {
+            final File path = volume.getPath();
+            if (path == null) {
+                continue;
+            }
+            final StorageVolume storageVolume = mStorageManager.getStorageVolume(path);
+            if (storageVolume != null && volumeUuid.equals(storageVolume.getStorageUuid())) {
+                volumePaths.add(path);
+            }
+        }
+        final long freedThumbnailBytes = mThumbnailCache.free(bytes - freedBytes, volumePaths);
+        Log.i(TAG, "Freed " + freedThumbnailBytes + " of " + (bytes - freedBytes)
+                + " requested bytes from thumbnail cache");
     }
 
     public void onAnrDelayStarted(@NonNull String packageName, int uid, int tid, int reason) {
@@ -494,6 +550,7 @@ public class MediaProvider extends ContentProvider {
     private PackageManager mPackageManager;
     private DevicePolicyManager mDevicePolicyManager;
     private UserManager mUserManager;
+    private ActivityManager mActivityManager;
     private PickerUriResolver mPickerUriResolver;
 
     private UserCache mUserCache;
@@ -502,6 +559,7 @@ public class MediaProvider extends ContentProvider {
     private int mExternalStorageAuthorityAppId;
     private int mDownloadsAuthorityAppId;
     private Size mThumbSize;
+    private Bitmap.CompressFormat mThumbnailFormat;
 
     /**
      * Map from UID to cached {@link LocalCallingIdentity}. Values are only
@@ -620,6 +678,7 @@ public class MediaProvider extends ContentProvider {
                     String pkg = uri != null ? uri.getSchemeSpecificPart() : null;
                     if (pkg != null) {
                         invalidateLocalCallingIdentityCache(pkg, "package " + intent.getAction());
+                        mTranscodeHelper.onPackageChanged(pkg);
                         if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
                             mUserCache.invalidateWorkProfileOwnerApps(pkg);
                             mPickerSyncController.notifyPackageRemoval(pkg);
@@ -1052,12 +1111,20 @@ public class MediaProvider extends ContentProvider {
         mPackageManager = context.getPackageManager();
         mDevicePolicyManager = context.getSystemService(DevicePolicyManager.class);
         mUserManager = context.getSystemService(UserManager.class);
+        mActivityManager = context.getSystemService(ActivityManager.class);
         mVolumeCache = new VolumeCache(context, mUserCache);
 
         // Reasonable thumbnail size is half of the smallest screen edge width
         final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
         final int thumbSize = Math.min(metrics.widthPixels, metrics.heightPixels) / 2;
         mThumbSize = new Size(thumbSize, thumbSize);
+        mThumbnailFormat = parseThumbnailFormat(
+                getStringDeviceConfig(THUMBNAIL_FORMAT_KEY, /* default */ "jpeg"));
+        mThumbnailCache = new ThumbnailCache(getThumbnailCacheMaxSizeBytes(),
+                this::getThumbnailDirectories, this::deleteAndInvalidate,
+                BackgroundThread.getExecutor());
+        addOnPropertiesChangedListener(properties ->
+                mThumbnailCache.setMaxVolumeSizeBytes(getThumbnailCacheMaxSizeBytes()));
 
         mMediaScanner = new ModernMediaScanner(context);
 
@@ -1265,9 +1332,10 @@ public class MediaProvider extends ContentProvider {
         }
 
         // Delete any stale thumbnails
-        final int staleThumbnails = mExternalDatabase.runWithTransaction((db) -> {
-            return pruneThumbnails(db, signal);
-        });
+        final int pendingThumbnails = deletePendingThumbnails(mExternalDatabase, signal)
+                + deletePendingThumbnails(mInternalDatabase, signal);
+        Log.d(TAG, "Deleted " + pendingThumbnails + " thumbnails of deleted media");
+        final int staleThumbnails = pruneThumbnails(signal);
         Log.d(TAG, "Pruned " + staleThumbnails + " unknown thumbnails");
 
         // Finished orphaning any content whose package no longer exists
@@ -1295,6 +1363,109 @@ public class MediaProvider extends ContentProvider {
         final long durationMillis = (SystemClock.elapsedRealtime() - startTime);
         Metrics.logIdleMaintenance(MediaStore.VOLUME_EXTERNAL, itemCount,
                 durationMillis, staleThumbnails, deletedExpiredMedia);
+
+        // Lowest priority, so it can't delay the cleanup above or use up the idle window first
+        for (MediaVolume volume : mVolumeCache.getExternalVolumes()) {
+            signal.throwIfCanceled();
+            generateNewThumbnails(volume, signal);
+        }
+    }
+
+    /**
+     * Generates the thumbnails of the images and videos added to {@code volume} since the last
+     * call, so that showing them for the first time doesn't have to wait for it. Only does
+     * anything when enabled, and stops after a budget of thumbnails or when the device is low on
+     * battery or getting hot.
+     */
+    public void generateNewThumbnails(@NonNull MediaVolume volume,
+            @NonNull CancellationSignal signal) {
+        if (!getBooleanDeviceConfig(EAGER_THUMBNAILS_KEY, false)
+                || volume.isExternallyManaged()) {
+            return;
+        }
+
+        final String volumeName = volume.getName();
+        // Like the default folders, the primary volume may be handled for multiple users
+        final String suffix = MediaStore.VOLUME_EXTERNAL_PRIMARY.equals(volumeName)
+                ? volume.getId() : volumeName;
+        final String key = "eager_thumbnails_generation_" + suffix;
+        // The last item done within its generation, so that a generation cut short by the budget
+        // is picked up where it stopped
+        final String idKey = "eager_thumbnails_id_" + suffix;
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+        final long currentGeneration = mExternalDatabase.runWithoutTransaction((db) -> {
+            return DatabaseHelper.getGeneration(db);
+        });
+        final long lastGeneration = prefs.getLong(key, -1);
+        final long lastId = prefs.getLong(idKey, Long.MAX_VALUE);
+        if (lastGeneration < 0 || lastGeneration > currentGeneration) {
+            // First time, or the database was recreated since; only media added from now on
+            prefs.edit().putLong(key, currentGeneration).putLong(idKey, Long.MAX_VALUE).apply();
+            return;
+        }
+
+        final UserHandle user = (volume.getUser() != null) ? volume.getUser()
+                : UserHandle.of(sUserId);
+        final int maxCount = getIntDeviceConfig(EAGER_THUMBNAILS_MAX_COUNT_KEY,
+                EAGER_THUMBNAILS_MAX_COUNT);
+        final String selection = MediaColumns.VOLUME_NAME + "=? AND "
+                + FileColumns._USER_ID + "=? AND "
+                + FileColumns.MEDIA_TYPE + " IN (" + FileColumns.MEDIA_TYPE_IMAGE + ","
+                + FileColumns.MEDIA_TYPE_VIDEO + ") AND "
+                + "(" + MediaColumns.GENERATION_ADDED + ">? OR ("
+                + MediaColumns.GENERATION_ADDED + "=? AND " + FileColumns._ID + ">?)) AND "
+                + MediaColumns.IS_PENDING + "=0 AND " + MediaColumns.IS_TRASHED + "=0";
+        final String[] selectionArgs = new String[] { volumeName,
+                String.valueOf(user.getIdentifier()), String.valueOf(lastGeneration),
+                String.valueOf(lastGeneration), String.valueOf(lastId) };
+
+        long generation = lastGeneration;
+        long lastDoneId = lastId;
+        int count = 0;
+        final LocalCallingIdentity token = clearLocalCallingIdentity(
+                LocalCallingIdentity.fromSelfAsUser(getContext(), user));
+        try (Cursor c = mExternalDatabase.runWithoutTransaction((db) -> {
+            return db.query("files", new String[] { FileColumns._ID, FileColumns.MEDIA_TYPE,
+                    MediaColumns.GENERATION_ADDED }, selection, selectionArgs, null, null,
+                    MediaColumns.GENERATION_ADDED + "," + FileColumns._ID,
+                    String.valueOf(maxCount));
+        })) {
+            while (c.moveToNext() && canGenerateThumbnailsInBackground()) {
+                signal.throwIfCanceled();
+
+                final long id = c.getLong(0);
+                final boolean isImage = c.getInt(1) == FileColumns.MEDIA_TYPE_IMAGE;
+                final Uri uri = isImage
+                        ? MediaStore.Images.Media.getContentUri(volumeName, id)
+                        : MediaStore.Video.Media.getContentUri(volumeName, id);
+                final Thumbnailer thumbnailer = isImage ? mImageThumbnailer : mVideoThumbnailer;
+                try (ParcelFileDescriptor pfd = thumbnailer.ensureThumbnail(uri, mThumbSize,
+                        /* isForeground */ () -> false, signal)) {
+                    count++;
+                } catch (IOException e) {
+                    // Not worth retrying, it will be generated on demand if possible
+                    Log.w(TAG, "Failed to generate thumbnail for " + uri, e);
+                }
+                generation = c.getLong(2);
+                lastDoneId = id;
+            }
+        } finally {
+            restoreLocalCallingIdentity(token);
+            prefs.edit().putLong(key, generation).putLong(idKey, lastDoneId).apply();
+            Log.d(TAG, "Generated " + count + " new thumbnails on " + volumeName);
+        }
+    }
+
+    private boolean canGenerateThumbnailsInBackground() {
+        final PowerManager powerManager = getContext().getSystemService(PowerManager.class);
+        if (powerManager.isPowerSaveMode()
+                || powerManager.getCurrentThermalStatus() >= PowerManager.THERMAL_STATUS_MODERATE) {
+            return false;
+        }
+        final BatteryManager batteryManager = getContext().getSystemService(BatteryManager.class);
+        return batteryManager.isCharging()
+                || batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY)
+                        >= EAGER_THUMBNAILS_MIN_BATTERY_PERCENT;
     }
 
     /**
@@ -1712,12 +1883,17 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public void onFileCreatedForFuse(String path) {
-        // Make sure we update the quota type of the file
-        BackgroundThread.getExecutor().execute(() -> {
-            File file = new File(path);
-            int mediaType = MimeUtils.resolveMediaType(MimeUtils.resolveMimeType(file));
-            updateQuotaTypeForFileInternal(file, mediaType);
-        });
+        final long startTime = FuseUpcallMetrics.startUpcall();
+        try {
+            // Make sure we update the quota type of the file
+            BackgroundThread.getExecutor().execute(() -> {
+                File file = new File(path);
+                int mediaType = MimeUtils.resolveMediaType(MimeUtils.resolveMimeType(file));
+                updateQuotaTypeForFileInternal(file, mediaType);
+            });
+        } finally {
+            FuseUpcallMetrics.endUpcall(UPCALL_ON_FILE_CREATED, startTime);
+        }
     }
 
     private boolean isAppCloneUserPair(int userId1, int userId2) {
@@ -1754,6 +1930,15 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public boolean isAppCloneUserForFuse(int userId) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
+        try {
+            return isAppCloneUserInternal(userId);
+        } finally {
+            FuseUpcallMetrics.endUpcall(UPCALL_IS_APP_CLONE_USER, startTime);
+        }
+    }
+
+    private boolean isAppCloneUserInternal(int userId) {
         if (!isCrossUserEnabled()) {
             Log.d(TAG, "CrossUser not enabled.");
             return false;
@@ -1775,6 +1960,15 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public boolean shouldAllowLookupForFuse(int uid, int pathUserId) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
+        try {
+            return shouldAllowLookupInternal(uid, pathUserId);
+        } finally {
+            FuseUpcallMetrics.endUpcall(UPCALL_SHOULD_ALLOW_LOOKUP, startTime);
+        }
+    }
+
+    private boolean shouldAllowLookupInternal(int uid, int pathUserId) {
         int callingUserId = uidToUserId(uid);
         if (!isCrossUserEnabled()) {
             Log.d(TAG, "CrossUser not enabled. Users: " + callingUserId + " and " + pathUserId);
@@ -1828,6 +2022,17 @@ public class MediaProvider extends ContentProvider {
     @Keep
     public boolean transformForFuse(String src, String dst, int transforms, int transformsReason,
             int readUid, int openUid, int mediaCapabilitiesUid) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
+        try {
+            return transformInternal(src, dst, transforms, transformsReason, readUid, openUid,
+                    mediaCapabilitiesUid);
+        } finally {
+            FuseUpcallMetrics.endUpcall(UPCALL_TRANSFORM, startTime);
+        }
+    }
+
+    private boolean transformInternal(String src, String dst, int transforms,
+            int transformsReason, int readUid, int openUid, int mediaCapabilitiesUid) {
         if ((transforms & FLAG_TRANSFORM_TRANSCODING) != 0) {
             if (mTranscodeHelper.isTranscodeFileCached(src, dst)) {
                 Log.d(TAG, "Using transcode cache for " + src);
@@ -1877,6 +2082,15 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public FileLookupResult onFileLookupForFuse(String path, int uid, int tid) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
+        try {
+            return onFileLookupInternal(path, uid, tid);
+        } finally {
+            FuseUpcallMetrics.endUpcall(UPCALL_FILE_LOOKUP, startTime);
+        }
+    }
+
+    private FileLookupResult onFileLookupInternal(String path, int uid, int tid) {
         uid = getBinderUidForFuse(uid, tid);
         final int userId = uidToUserId(uid);
 
@@ -2451,6 +2665,7 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public String[] getFilesInDirectoryForFuse(String path, int uid) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
         final LocalCallingIdentity token =
                 clearLocalCallingIdentity(getCachedCallingIdentityForFuse(uid));
         PulledMetrics.logFileAccessViaFuse(getCallingUidOrSelf(), path);
@@ -2510,6 +2725,7 @@ public class MediaProvider extends ContentProvider {
             return fileNamesList.toArray(new String[fileNamesList.size()]);
         } finally {
             restoreLocalCallingIdentity(token);
+            FuseUpcallMetrics.endUpcall(UPCALL_GET_DIRECTORY_ENTRIES, startTime);
         }
     }
 
@@ -2725,15 +2941,16 @@ public class MediaProvider extends ContentProvider {
         final String selection = FileColumns.DATA + " LIKE ? ESCAPE '\\'"
                 + " and mime_type not like 'null'";
         final String[] selectionArgs = new String[] {DatabaseUtils.escapeForLike(oldPath) + "/%"};
+        // Every matching path starts with "oldPath/", so the relative path of a file is the
+        // remainder after that prefix.
+        final int prefixLength = oldPath.length() + 1;
         ArrayList<String> fileList = new ArrayList<>();
 
         final LocalCallingIdentity token = clearLocalCallingIdentity();
         try (final Cursor c = query(FileUtils.getContentUriForPath(oldPath),
                 new String[] {MediaColumns.DATA}, selection, selectionArgs, null)) {
             while (c.moveToNext()) {
-                String filePath = c.getString(0);
-                filePath = filePath.replaceFirst(Pattern.quote(oldPath + "/"), "");
-                fileList.add(filePath);
+                fileList.add(c.getString(0).substring(prefixLength));
             }
         } finally {
             restoreLocalCallingIdentity(token);
@@ -2765,25 +2982,11 @@ public class MediaProvider extends ContentProvider {
             return getAllFilesForRenameDirectory(oldPath);
         }
 
-        final int countAllFilesInDirectory;
         final String selection = FileColumns.DATA + " LIKE ? ESCAPE '\\'"
                 + " and mime_type not like 'null'";
         final String[] selectionArgs = new String[] {DatabaseUtils.escapeForLike(oldPath) + "/%"};
 
         final Uri uriOldPath = FileUtils.getContentUriForPath(oldPath);
-
-        final LocalCallingIdentity token = clearLocalCallingIdentity();
-        try (final Cursor c = query(uriOldPath, new String[] {MediaColumns._ID}, selection,
-                selectionArgs, null)) {
-            // get actual number of files in the given directory.
-            countAllFilesInDirectory = c.getCount();
-        } finally {
-            restoreLocalCallingIdentity(token);
-        }
-
-        final SQLiteQueryBuilder qb = getQueryBuilder(TYPE_UPDATE,
-                matchUri(uriOldPath, isCallingPackageAllowedHidden()), uriOldPath, Bundle.EMPTY,
-                null);
         final DatabaseHelper helper;
         try {
             helper = getDatabaseForUri(uriOldPath);
@@ -2792,20 +2995,38 @@ public class MediaProvider extends ContentProvider {
                     + oldPath);
         }
 
+        // Instead of comparing the number of all files in the directory with the number of files
+        // visible to an update query of the calling package, select all files once and evaluate
+        // the write permission of the calling package for each of them as a column.
+        final SQLiteQueryBuilder qbForUpdate = getQueryBuilder(TYPE_UPDATE,
+                matchUri(uriOldPath, isCallingPackageAllowedHidden()), uriOldPath, Bundle.EMPTY,
+                null);
+        final String writableClause = qbForUpdate.computeWhere(null);
+        final SQLiteQueryBuilder qbForQuery;
+        final LocalCallingIdentity token = clearLocalCallingIdentity();
+        try {
+            qbForQuery = getQueryBuilder(TYPE_QUERY,
+                    matchUri(uriOldPath, isCallingPackageAllowedHidden()), uriOldPath,
+                    Bundle.EMPTY, null);
+        } finally {
+            restoreLocalCallingIdentity(token);
+        }
+        final String sql = "SELECT " + MediaColumns.DATA + "," + MediaColumns.MIME_TYPE + ","
+                + (writableClause == null ? "1" : writableClause)
+                + " FROM " + qbForQuery.getTables()
+                + " WHERE " + qbForQuery.computeWhere(selection);
+
+        final int prefixLength = oldPath.length() + 1;
         ArrayList<String> fileList = new ArrayList<>();
-        final String[] projection = {MediaColumns.DATA, MediaColumns.MIME_TYPE};
-        try (Cursor c = qb.query(helper, projection, selection, selectionArgs, null, null, null,
-                null, null)) {
-            // Check if the calling package has write permission to all files in the given
-            // directory. If calling package has write permission to all files in the directory, the
-            // query with update uri should return same number of files as previous query.
-            if (c.getCount() != countAllFilesInDirectory) {
-                throw new IllegalArgumentException("Calling package doesn't have write permission "
-                        + " to rename one or more files in " + oldPath);
-            }
-            while(c.moveToNext()) {
-                String filePath = c.getString(0);
-                filePath = filePath.replaceFirst(Pattern.quote(oldPath + "/"), "");
+        try (Cursor c = helper.runWithoutTransaction((db) -> {
+            return db.rawQuery(sql, selectionArgs);
+        })) {
+            while (c.moveToNext()) {
+                final String filePath = c.getString(0).substring(prefixLength);
+                if (c.getInt(2) == 0) {
+                    throw new IllegalArgumentException("Calling package doesn't have write "
+                            + "permission to rename " + oldPath + "/" + filePath);
+                }
 
                 final String mimeType = c.getString(1);
                 if (!isMimeTypeSupportedInPath(newPath + "/" + filePath, mimeType)) {
@@ -2880,16 +3101,19 @@ public class MediaProvider extends ContentProvider {
                     getIncludedDefaultDirectories());
             final boolean wasHidden = FileUtils.shouldDirBeHidden(new File(oldPath));
             final boolean isHidden = FileUtils.shouldDirBeHidden(new File(newPath));
-            for (String filePath : fileList) {
-                final String newFilePath = newPath + "/" + filePath;
-                final String mimeType = MimeUtils.resolveMimeType(new File(newFilePath));
-                if(!updateDatabaseForFuseRename(helper, oldPath + "/" + filePath, newFilePath,
-                        getContentValuesForFuseRename(newFilePath, mimeType, wasHidden, isHidden,
-                                /* isSameMimeType */ true),
-                        qbExtras)) {
-                    Log.e(TAG, "Calling package doesn't have write permission to rename file.");
-                    return OsConstants.EPERM;
-                }
+            final boolean updated;
+            if (wasHidden && !isHidden) {
+                // Files moving out of a hidden directory need their media type resolved again
+                // and have to be marked for rescan, which is only possible on a per file basis.
+                updated = updateDatabaseForFuseRenameFiles(helper, oldPath, newPath, fileList,
+                        wasHidden, isHidden, qbExtras);
+            } else {
+                updated = updateDatabaseForFuseRenameDirectory(helper, oldPath, newPath,
+                        fileList, wasHidden, isHidden, qbExtras);
+            }
+            if (!updated) {
+                Log.e(TAG, "Calling package doesn't have write permission to rename file.");
+                return OsConstants.EPERM;
             }
 
             // Rename the directory in lower file system.
@@ -2907,6 +3131,116 @@ public class MediaProvider extends ContentProvider {
         return 0;
     }
 
+    /**
+     * Updates database entries of the given files in {@code oldPath} one file at a time.
+     */
+    private boolean updateDatabaseForFuseRenameFiles(@NonNull DatabaseHelper helper,
+            @NonNull String oldPath, @NonNull String newPath, @NonNull List<String> fileList,
+            boolean wasHidden, boolean isHidden, @NonNull Bundle qbExtras) {
+        for (String filePath : fileList) {
+            final String newFilePath = newPath + "/" + filePath;
+            final String mimeType = MimeUtils.resolveMimeType(new File(newFilePath));
+            if (!updateDatabaseForFuseRename(helper, oldPath + "/" + filePath, newFilePath,
+                    getContentValuesForFuseRename(newFilePath, mimeType, wasHidden, isHidden,
+                            /* isSameMimeType */ true),
+                    qbExtras)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Updates database entries of the given files in {@code oldPath} with one set based
+     * {@code UPDATE} per parent directory.
+     * <p>
+     * Renaming a directory doesn't change display names, so mime type, pending and trashed state
+     * of every file stay the same. Only {@code _data}, {@code volume_name}, {@code relative_path}
+     * and bucket columns change, and all but {@code _data} are shared by files in the same parent
+     * directory. Files in a directory that conflicts with an existing database entry fall back to
+     * {@link #updateDatabaseForFuseRenameFiles}.
+     *
+     * @return {@code true} if the database entry of each file in {@code fileList} was updated.
+     */
+    private boolean updateDatabaseForFuseRenameDirectory(@NonNull DatabaseHelper helper,
+            @NonNull String oldPath, @NonNull String newPath, @NonNull List<String> fileList,
+            boolean wasHidden, boolean isHidden, @NonNull Bundle qbExtras) {
+        final ArrayMap<String, ArrayList<String>> filesByParent = new ArrayMap<>();
+        for (String filePath : fileList) {
+            final String parent = filePath.substring(0, filePath.lastIndexOf('/') + 1);
+            ArrayList<String> files = filesByParent.get(parent);
+            if (files == null) {
+                files = new ArrayList<>();
+                filesByParent.put(parent, files);
+            }
+            files.add(filePath);
+        }
+
+        for (int i = 0; i < filesByParent.size(); i++) {
+            final String oldParent = oldPath + "/" + filesByParent.keyAt(i);
+            final ArrayList<String> files = filesByParent.valueAt(i);
+
+            // All files in the same parent directory share these values, so compute them once
+            // from the first file.
+            final ContentValues values = new ContentValues();
+            values.put(MediaColumns.DATA, newPath + "/" + files.get(0));
+            FileUtils.computeValuesFromData(values, isFuseThread());
+            final String newFilePath = values.getAsString(MediaColumns.DATA);
+            final String newParent = newFilePath.substring(0, newFilePath.lastIndexOf('/') + 1);
+
+            // _data has NOCASE collation, so the range below matches the same rows as
+            // "_data LIKE oldParent%" while still being served by the _data index.
+            final String sql = "UPDATE files SET "
+                    + MediaColumns.DATA + "=?||substr(_data,length(?)+1),"
+                    + MediaColumns.VOLUME_NAME + "=?,"
+                    + MediaColumns.RELATIVE_PATH + "=?,"
+                    + MediaColumns.BUCKET_ID + "=?,"
+                    + MediaColumns.BUCKET_DISPLAY_NAME + "=?,"
+                    + (isHidden ? FileColumns.MEDIA_TYPE + "=" + FileColumns.MEDIA_TYPE_NONE + ","
+                            : "")
+                    + MediaColumns.GENERATION_MODIFIED + "=("
+                    + DatabaseHelper.CURRENT_GENERATION_CLAUSE + "),"
+                    + MediaColumns._ID + "=ifnull(_GET_ID(?||substr(_data,length(?)+1)),_id)"
+                    + " WHERE " + MediaColumns.DATA + ">=? AND " + MediaColumns.DATA + "<?"
+                    + " AND instr(substr(_data,length(?)+1),'/')=0"
+                    + " AND mime_type NOT LIKE 'null'";
+            final Object[] bindArgs = new Object[] {
+                    newParent, oldParent,
+                    values.getAsString(MediaColumns.VOLUME_NAME),
+                    values.getAsString(MediaColumns.RELATIVE_PATH),
+                    values.getAsInteger(MediaColumns.BUCKET_ID),
+                    values.getAsString(MediaColumns.BUCKET_DISPLAY_NAME),
+                    newParent, oldParent,
+                    oldParent, oldParent.substring(0, oldParent.length() - 1) + '0',
+                    oldParent
+            };
+
+            final int count;
+            try {
+                count = helper.runWithTransaction((db) -> {
+                    return DatabaseUtils.executeUpdateDelete(db, sql, bindArgs);
+                });
+            } catch (SQLiteConstraintException e) {
+                Log.w(TAG, "Database update failed while renaming " + oldParent
+                        + ", retrying per file", e);
+                if (!updateDatabaseForFuseRenameFiles(helper, oldPath, newPath, files, wasHidden,
+                        isHidden, qbExtras)) {
+                    return false;
+                }
+                continue;
+            }
+            // The range can also match rows that weren't visible while building the file list,
+            // e.g. pending files of other apps. Those files move along with the directory too.
+            if (count < files.size()) {
+                // Directory contents changed after the file list was built.
+                Log.e(TAG, "Expected to update " + files.size() + " files in " + oldParent
+                        + " but updated " + count);
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Rename a file from {@code oldPath} to {@code newPath}.
      *
@@ -3046,6 +3380,7 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public int renameForFuse(String oldPath, String newPath, int uid) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
         final String errorMessage = "Rename " + oldPath + " to " + newPath + " failed. ";
         final LocalCallingIdentity token =
                 clearLocalCallingIdentity(getCachedCallingIdentityForFuse(uid));
@@ -3138,6 +3473,7 @@ public class MediaProvider extends ContentProvider {
             }
         } finally {
             restoreLocalCallingIdentity(token);
+            FuseUpcallMetrics.endUpcall(UPCALL_RENAME, startTime);
         }
     }
 
@@ -6630,20 +6966,57 @@ public class MediaProvider extends ContentProvider {
         return collationName;
     }
 
-    private int pruneThumbnails(@NonNull SQLiteDatabase db, @NonNull CancellationSignal signal) {
-        int prunedCount = 0;
+    /**
+     * Deletes the thumbnails of media whose deletion was recorded by the
+     * {@code files_delete_thumbnails} trigger but never handled, e.g. because the process died
+     * before getting to it.
+     */
+    private int deletePendingThumbnails(@NonNull DatabaseHelper helper,
+            @NonNull CancellationSignal signal) {
+        int deletedCount = 0;
+        while (true) {
+            signal.throwIfCanceled();
 
-        // Determine all known media items
-        final LongArray knownIds = new LongArray();
-        try (Cursor c = db.query(true, "files", new String[] { BaseColumns._ID },
-                null, null, null, null, null, null, signal)) {
-            while (c.moveToNext()) {
-                knownIds.add(c.getLong(0));
+            final LongArray ids = new LongArray();
+            final List<String> volumeNames = new ArrayList<>();
+            try (Cursor c = helper.runWithoutTransaction((db) -> {
+                return db.query("pending_thumbnail_deletions",
+                        new String[] { BaseColumns._ID, MediaColumns.VOLUME_NAME }, null, null,
+                        null, null, null, String.valueOf(IDLE_MAINTENANCE_ROWS_LIMIT));
+            })) {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                    volumeNames.add(c.getString(1));
+                }
+            }
+            if (ids.size() == 0) {
+                return deletedCount;
             }
+
+            final StringBuilder idList = new StringBuilder();
+            for (int i = 0; i < ids.size(); i++) {
+                invalidateThumbnails(MediaStore.Files.getContentUri(volumeNames.get(i),
+                        ids.get(i)));
+                idList.append(i > 0 ? "," : "").append(ids.get(i));
+                deletedCount++;
+            }
+
+            // Even if the volume is gone, so the batch can't come back
+            helper.runWithTransaction((db) -> {
+                db.execSQL("DELETE FROM pending_thumbnail_deletions WHERE _id IN (" + idList
+                        + ")");
+                return null;
+            });
         }
+    }
 
-        final long[] knownIdsRaw = knownIds.toArray();
-        Arrays.sort(knownIdsRaw);
+    /**
+     * Deletes thumbnails of media that no longer exists, a page of thumbnails at a time with no
+     * long running transaction. When cancelled, the next call resumes where it stopped.
+     */
+    private int pruneThumbnails(@NonNull CancellationSignal signal) {
+        int prunedCount = 0;
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
 
         for (MediaVolume volume : mVolumeCache.getExternalVolumes()) {
             final List<File> thumbDirs;
@@ -6659,35 +7032,115 @@ public class MediaProvider extends ContentProvider {
                 // Possibly bail before digging into each directory
                 signal.throwIfCanceled();
 
+                final String key = "thumbnail_prune_position_" + thumbDir.getPath();
+                final long startId = prefs.getLong(key, -1);
+
                 final File[] files = thumbDir.listFiles();
+                final List<Pair<Long, File>> thumbs = new ArrayList<>();
                 for (File thumbFile : (files != null) ? files : new File[0]) {
                     if (Objects.equals(thumbFile.getName(), FILE_DATABASE_UUID)) continue;
-                    final String name = FileUtils.extractFileName(thumbFile.getName());
-                    try {
-                        final long id = Long.parseLong(name);
-                        if (Arrays.binarySearch(knownIdsRaw, id) >= 0) {
+                    final long id = parseThumbnailId(thumbFile);
+                    if (id < 0) {
+                        Log.v(TAG, "Deleting unknown file " + thumbFile);
+                        deleteAndInvalidate(thumbFile);
+                        prunedCount++;
+                    } else if (id > startId) {
+                        thumbs.add(Pair.create(id, thumbFile));
+                    }
+                }
+                thumbs.sort(Comparator.comparingLong(thumb -> thumb.first));
+
+                for (int i = 0; i < thumbs.size(); i += IDLE_MAINTENANCE_ROWS_LIMIT) {
+                    signal.throwIfCanceled();
+
+                    final List<Pair<Long, File>> page = thumbs.subList(i,
+                            Math.min(i + IDLE_MAINTENANCE_ROWS_LIMIT, thumbs.size()));
+                    final long[] knownIds = queryKnownIds(page, signal);
+                    for (Pair<Long, File> thumb : page) {
+                        if (Arrays.binarySearch(knownIds, thumb.first) >= 0) {
                             // Thumbnail belongs to known media, keep it
                             continue;
                         }
-                    } catch (NumberFormatException e) {
+                        Log.v(TAG, "Deleting stale thumbnail " + thumb.second);
+                        deleteAndInvalidate(thumb.second);
+                        prunedCount++;
                     }
-
-                    Log.v(TAG, "Deleting stale thumbnail " + thumbFile);
-                    deleteAndInvalidate(thumbFile);
-                    prunedCount++;
+                    prefs.edit().putLong(key, page.get(page.size() - 1).first).apply();
                 }
+
+                // Went through the whole directory, start over next time
+                prefs.edit().remove(key).apply();
             }
         }
 
         // Also delete stale items from legacy tables
-        db.execSQL("delete from thumbnails "
-                + "where image_id not in (select _id from images)");
-        db.execSQL("delete from videothumbnails "
-                + "where video_id not in (select _id from video)");
+        prunedCount += deleteInBatches(mExternalDatabase, "thumbnails",
+                "image_id NOT IN (SELECT _id FROM images)", signal);
+        prunedCount += deleteInBatches(mExternalDatabase, "videothumbnails",
+                "video_id NOT IN (SELECT _id FROM video)", signal);
 
         return prunedCount;
     }
 
+    /** Returns the id of the media a thumbnail belongs to, or -1 if it's not a thumbnail. */
+    private static long parseThumbnailId(File thumbFile) {
+        final String name = FileUtils.extractFileName(thumbFile.getName());
+        // Smaller tiers are named <id>_<size>
+        final int tierIndex = name.indexOf('_');
+        try {
+            return Long.parseLong(tierIndex >= 0 ? name.substring(0, tierIndex) : name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the sorted ids of {@code thumbs} that belong to existing media. */
+    private long[] queryKnownIds(List<Pair<Long, File>> thumbs,
+            @NonNull CancellationSignal signal) {
+        final StringBuilder ids = new StringBuilder();
+        for (Pair<Long, File> thumb : thumbs) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(thumb.first);
+        }
+
+        final LongArray knownIds = new LongArray();
+        try (Cursor c = mExternalDatabase.runWithoutTransaction((db) -> {
+            return db.query(false, "files", new String[] { BaseColumns._ID },
+                    BaseColumns._ID + " IN (" + ids + ")", null, null, null, null, null, signal);
+        })) {
+            while (c.moveToNext()) {
+                knownIds.add(c.getLong(0));
+            }
+        }
+        final long[] knownIdsRaw = knownIds.toArray();
+        Arrays.sort(knownIdsRaw);
+        return knownIdsRaw;
+    }
+
+    /**
+     * Deletes the rows of {@code table} matching {@code where} in batches, each in its own
+     * transaction.
+     */
+    private static int deleteInBatches(@NonNull DatabaseHelper helper, @NonNull String table,
+            @NonNull String where, @NonNull CancellationSignal signal) {
+        final String sql = "DELETE FROM " + table + " WHERE _id IN (SELECT _id FROM " + table
+                + " WHERE " + where + " LIMIT " + IDLE_MAINTENANCE_ROWS_LIMIT + ")";
+        int deletedCount = 0;
+        int batchCount;
+        do {
+            signal.throwIfCanceled();
+            batchCount = helper.runWithTransaction((db) -> {
+                try (SQLiteStatement statement = db.compileStatement(sql)) {
+                    return statement.executeUpdateDelete();
+                }
+            });
+            deletedCount += batchCount;
+        } while (batchCount > 0);
+        return deletedCount;
+    }
+
     abstract class Thumbnailer {
         final String directoryName;
 
@@ -6695,36 +7148,93 @@ public class MediaProvider extends ContentProvider {
             this.directoryName = directoryName;
         }
 
-        private File getThumbnailFile(Uri uri) throws IOException {
-            final String volumeName = resolveVolumeName(uri);
-            final File volumePath = getVolumePath(volumeName);
-            return FileUtils.buildPath(volumePath, directoryName,
-                    DIRECTORY_THUMBNAILS, ContentUris.parseId(uri) + ".jpg");
+        private File getThumbnailVolumePath(Uri uri) throws IOException {
+            return getVolumePath(resolveVolumeName(uri));
+        }
+
+        private File getThumbnailDirectory(File volumePath) {
+            return FileUtils.buildPath(volumePath, directoryName, DIRECTORY_THUMBNAILS);
         }
 
-        public abstract Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal)
+        /**
+         * Returns the file of the thumbnail of {@code uri} in the given size, named like
+         * {@code <id>.jpg} for the full size and {@code <id>_<size>.jpg} for smaller tiers.
+         */
+        private File getThumbnailFile(File thumbDir, Uri uri, Size size, String extension) {
+            return new File(thumbDir,
+                    getThumbnailFileName(ContentUris.parseId(uri), size, mThumbSize, extension));
+        }
+
+        public abstract Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
                 throws IOException;
 
-        public ParcelFileDescriptor ensureThumbnail(Uri uri, CancellationSignal signal)
-                throws IOException {
+        /** Returns the existing thumbnail of {@code uri} opened for reading, if any. */
+        @Nullable
+        public ParcelFileDescriptor openThumbnail(Uri uri, Size size) throws IOException {
+            final File volumePath = getThumbnailVolumePath(uri);
+            final File thumbFile = getThumbnailFile(getThumbnailDirectory(volumePath), uri, size,
+                    getThumbnailExtension(mThumbnailFormat));
+            try {
+                final ParcelFileDescriptor pfd = mThumbnailFdCache.open(thumbFile);
+                mThumbnailCache.onHit(volumePath, thumbFile);
+                return pfd;
+            } catch (FileNotFoundException ignored) {
+                return null;
+            }
+        }
+
+        /**
+         * @param isForeground whether the thumbnail is requested by a foreground app, only
+         *                     checked when the thumbnail has to be generated
+         */
+        public ParcelFileDescriptor ensureThumbnail(Uri uri, Size size,
+                BooleanSupplier isForeground, CancellationSignal signal) throws IOException {
             // First attempt to fast-path by opening the thumbnail; if it
             // doesn't exist we fall through to create it below
-            final File thumbFile = getThumbnailFile(uri);
+            final File volumePath = getThumbnailVolumePath(uri);
+            final File thumbFile = getThumbnailFile(getThumbnailDirectory(volumePath), uri, size,
+                    getThumbnailExtension(mThumbnailFormat));
             try {
-                return FileUtils.openSafely(thumbFile,
-                        ParcelFileDescriptor.MODE_READ_ONLY);
+                final ParcelFileDescriptor pfd = mThumbnailFdCache.open(thumbFile);
+                mThumbnailCache.onHit(volumePath, thumbFile);
+                return pfd;
             } catch (FileNotFoundException ignored) {
             }
+            mThumbnailCache.onMiss();
 
+            // Threads racing for the same thumbnail share a single generation, which runs on
+            // a worker thread as the identity of the thread that started it
+            final ThumbnailFdCache.PendingOpen pending = mThumbnailFdCache.startOpen(thumbFile);
+            try {
+                final LocalCallingIdentity identity = mCallingIdentity.get();
+                final ParcelFileDescriptor pfd = mThumbnailGenerator.generate(
+                        thumbFile.getPath(), isForeground.getAsBoolean(), signal,
+                        generateSignal -> {
+                            final LocalCallingIdentity token =
+                                    clearLocalCallingIdentity(identity);
+                            try {
+                                return generateThumbnail(uri, size, volumePath, thumbFile,
+                                        generateSignal);
+                            } finally {
+                                restoreLocalCallingIdentity(token);
+                            }
+                        });
+                mThumbnailFdCache.put(pending, pfd);
+                return pfd;
+            } finally {
+                mThumbnailFdCache.finishOpen(pending);
+            }
+        }
+
+        private ParcelFileDescriptor generateThumbnail(Uri uri, Size size, File volumePath,
+                File thumbFile, CancellationSignal signal) throws IOException {
+            final long startTime = SystemClock.elapsedRealtime();
             final File thumbDir = thumbFile.getParentFile();
             thumbDir.mkdirs();
 
-            // When multiple threads race for the same thumbnail, the second
-            // thread could return a file with a thumbnail still in
-            // progress. We could add heavy per-ID locking to mitigate this
-            // rare race condition, but it's simpler to have both threads
-            // generate the same thumbnail using temporary files and rename
-            // them into place once finished.
+            // The thumbnail could still be invalidated while it is generated, so
+            // generate it into a temporary file and rename it into place once
+            // finished.
             final File thumbTempFile = File.createTempFile("thumb", null, thumbDir);
 
             ParcelFileDescriptor thumbWrite = null;
@@ -6739,8 +7249,10 @@ public class MediaProvider extends ContentProvider {
                 thumbRead = FileUtils.openSafely(thumbTempFile,
                         ParcelFileDescriptor.MODE_READ_ONLY);
 
-                final Bitmap thumbnail = getThumbnailBitmap(uri, signal);
-                thumbnail.compress(Bitmap.CompressFormat.JPEG, 90,
+                final Bitmap thumbnail = size.equals(mThumbSize)
+                        ? getThumbnailBitmap(uri, size, signal)
+                        : getThumbnailTierBitmap(uri, size, thumbDir, signal);
+                thumbnail.compress(mThumbnailFormat, getThumbnailQuality(mThumbnailFormat),
                         new FileOutputStream(thumbWrite.getFileDescriptor()));
 
                 try {
@@ -6749,6 +7261,8 @@ public class MediaProvider extends ContentProvider {
                 } catch (ErrnoException e) {
                     e.rethrowAsIOException();
                 }
+                mThumbnailCache.onGenerated(volumePath, thumbFile, directoryName,
+                        SystemClock.elapsedRealtime() - startTime);
 
                 // Everything above went peachy, so return a duplicate of our
                 // already-opened read FD to keep our finally logic below simple
@@ -6759,41 +7273,171 @@ public class MediaProvider extends ContentProvider {
                 // remaining temporary file and close all our local FDs
                 FileUtils.closeQuietly(thumbWrite);
                 FileUtils.closeQuietly(thumbRead);
-                deleteAndInvalidate(thumbTempFile);
+                // The temporary file is never cached, only FUSE has to forget it
+                thumbTempFile.delete();
+                invalidateFuseDentry(thumbTempFile);
+            }
+        }
+
+        /**
+         * Returns the thumbnail of {@code uri} for the smaller tier {@code size}. Thumbnails only
+         * fit within their size, so the tier is scaled down from the full size thumbnail until its
+         * short side covers the tier size instead.
+         */
+        private Bitmap getThumbnailTierBitmap(Uri uri, Size size, File thumbDir,
+                CancellationSignal signal) throws IOException {
+            // Cheaper to scale down from the full size thumbnail, when it's already there
+            final File fullThumbFile = getThumbnailFile(thumbDir, uri, mThumbSize,
+                    getThumbnailExtension(mThumbnailFormat));
+            final Bitmap full = fullThumbFile.exists()
+                    ? ThumbnailUtils.createImageThumbnail(fullThumbFile, mThumbSize, signal)
+                    : getThumbnailBitmap(uri, mThumbSize, signal);
+
+            final Size tierSize = getThumbnailTierSize(full.getWidth(), full.getHeight(), size);
+            if (tierSize.getWidth() == full.getWidth()
+                    && tierSize.getHeight() == full.getHeight()) {
+                return full;
             }
+            final Bitmap tier = Bitmap.createScaledBitmap(full, tierSize.getWidth(),
+                    tierSize.getHeight(), /* filter */ true);
+            full.recycle();
+            return tier;
         }
 
         public void invalidateThumbnail(Uri uri) throws IOException {
-            deleteAndInvalidate(getThumbnailFile(uri));
+            // Thumbnails may have been generated in any format before a change of configuration
+            final File thumbDir = getThumbnailDirectory(getThumbnailVolumePath(uri));
+            for (Size size : getThumbnailSizes()) {
+                for (Bitmap.CompressFormat format : THUMBNAIL_FORMATS) {
+                    final File thumbFile = getThumbnailFile(thumbDir, uri, size,
+                            getThumbnailExtension(format));
+                    if (thumbFile.exists()) {
+                        deleteAndInvalidate(thumbFile);
+                    }
+                }
+            }
+        }
+    }
+
+    private final ThumbnailGenerator mThumbnailGenerator = new ThumbnailGenerator();
+    private final ThumbnailFdCache mThumbnailFdCache = new ThumbnailFdCache();
+    private ThumbnailCache mThumbnailCache;
+
+    private long getThumbnailCacheMaxSizeBytes() {
+        return getIntDeviceConfig(THUMBNAIL_CACHE_MAX_SIZE_MB_KEY, MAX_THUMBNAIL_CACHE_SIZE_MB)
+                * 1024L * 1024L;
+    }
+
+    /**
+     * Returns the name of the thumbnail of item {@code id} in {@code size}, full size thumbnails
+     * keep the name they had before thumbnails came in multiple sizes.
+     */
+    @VisibleForTesting
+    static String getThumbnailFileName(long id, Size size, Size fullSize, String extension) {
+        final String tier = size.equals(fullSize) ? "" : "_" + size.getWidth();
+        return id + tier + extension;
+    }
+
+    private List<Size> getThumbnailSizes() {
+        return getThumbnailSizes(mThumbSize);
+    }
+
+    /** Returns the sizes thumbnails are stored in, from smallest to {@code fullSize} */
+    @VisibleForTesting
+    static List<Size> getThumbnailSizes(Size fullSize) {
+        final List<Size> sizes = new ArrayList<>();
+        for (int size : SMALL_THUMB_SIZES) {
+            if (size < fullSize.getWidth()) {
+                sizes.add(new Size(size, size));
+            }
+        }
+        sizes.add(fullSize);
+        return sizes;
+    }
+
+    /**
+     * Returns the smallest thumbnail size that covers {@code requested}, so small grid cells
+     * don't have to load and scale down the full size thumbnail. The short side of the thumbnails
+     * of smaller tiers covers their size, see {@link #getThumbnailTierSize}.
+     */
+    @VisibleForTesting
+    static Size getThumbnailSize(@Nullable Point requested, Size fullSize) {
+        if (requested == null) {
+            return fullSize;
+        }
+        final int requestedSize = Math.max(requested.x, requested.y);
+        for (Size size : getThumbnailSizes(fullSize)) {
+            if (requestedSize <= size.getWidth()) {
+                return size;
+            }
         }
+        return fullSize;
+    }
+
+    /**
+     * Returns the size a thumbnail of {@code width} by {@code height} is scaled to for the smaller
+     * tier {@code tier}: its short side covers the tier, so that center-cropped grid cells of the
+     * tier size don't upscale it. Thumbnails are never scaled up.
+     */
+    @VisibleForTesting
+    static Size getThumbnailTierSize(int width, int height, Size tier) {
+        final float scale = Math.min(1f, (float) tier.getWidth() / Math.min(width, height));
+        return new Size(Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)));
+    }
+
+    @VisibleForTesting
+    static Bitmap.CompressFormat parseThumbnailFormat(String format) {
+        return "webp".equalsIgnoreCase(format) ? Bitmap.CompressFormat.WEBP_LOSSY
+                : Bitmap.CompressFormat.JPEG;
+    }
+
+    @VisibleForTesting
+    static String getThumbnailExtension(Bitmap.CompressFormat format) {
+        return format == Bitmap.CompressFormat.WEBP_LOSSY ? ".webp" : ".jpg";
+    }
+
+    @VisibleForTesting
+    static int getThumbnailQuality(Bitmap.CompressFormat format) {
+        return format == Bitmap.CompressFormat.WEBP_LOSSY ? 80 : 90;
+    }
+
+    private boolean isUidForeground(int uid) {
+        return mActivityManager.getUidImportance(uid) == IMPORTANCE_FOREGROUND;
     }
 
     private Thumbnailer mAudioThumbnailer = new Thumbnailer(Environment.DIRECTORY_MUSIC) {
         @Override
-        public Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal) throws IOException {
-            return ThumbnailUtils.createAudioThumbnail(queryForDataFile(uri, signal),
-                    mThumbSize, signal);
+        public Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
+                throws IOException {
+            return ThumbnailUtils.createAudioThumbnail(queryForDataFile(uri, signal), size,
+                    signal);
         }
     };
 
     private Thumbnailer mVideoThumbnailer = new Thumbnailer(Environment.DIRECTORY_MOVIES) {
         @Override
-        public Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal) throws IOException {
-            return ThumbnailUtils.createVideoThumbnail(queryForDataFile(uri, signal),
-                    mThumbSize, signal);
+        public Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
+                throws IOException {
+            return ThumbnailUtils.createVideoThumbnail(queryForDataFile(uri, signal), size,
+                    signal);
         }
     };
 
     private Thumbnailer mImageThumbnailer = new Thumbnailer(Environment.DIRECTORY_PICTURES) {
         @Override
-        public Bitmap getThumbnailBitmap(Uri uri, CancellationSignal signal) throws IOException {
-            return ThumbnailUtils.createImageThumbnail(queryForDataFile(uri, signal),
-                    mThumbSize, signal);
+        public Bitmap getThumbnailBitmap(Uri uri, Size size, CancellationSignal signal)
+                throws IOException {
+            return ThumbnailUtils.createImageThumbnail(queryForDataFile(uri, signal), size,
+                    signal);
         }
     };
 
     private List<File> getThumbnailDirectories(MediaVolume volume) throws FileNotFoundException {
-        final File volumePath = volume.getPath();
+        return getThumbnailDirectories(volume.getPath());
+    }
+
+    private List<File> getThumbnailDirectories(File volumePath) {
         return Arrays.asList(
                 FileUtils.buildPath(volumePath, Environment.DIRECTORY_MUSIC, DIRECTORY_THUMBNAILS),
                 FileUtils.buildPath(volumePath, Environment.DIRECTORY_MOVIES, DIRECTORY_THUMBNAILS),
@@ -6840,6 +7484,8 @@ public class MediaProvider extends ContentProvider {
 
             db.execSQL("delete from thumbnails where image_id=?", new String[] { idString });
             db.execSQL("delete from videothumbnails where video_id=?", new String[] { idString });
+            db.execSQL("delete from pending_thumbnail_deletions where _id=?",
+                    new String[] { idString });
             return null;
         });
     }
@@ -7945,7 +8591,8 @@ public class MediaProvider extends ContentProvider {
 
         // Offer thumbnail of media, when requested
         if (wantsThumb) {
-            final ParcelFileDescriptor pfd = ensureThumbnail(uri, signal);
+            final Point size = opts.getParcelable(ContentResolver.EXTRA_SIZE);
+            final ParcelFileDescriptor pfd = ensureThumbnail(uri, size, signal);
             return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
         }
 
@@ -7956,8 +8603,18 @@ public class MediaProvider extends ContentProvider {
 
     private ParcelFileDescriptor ensureThumbnail(Uri uri, CancellationSignal signal)
             throws FileNotFoundException {
+        return ensureThumbnail(uri, /* requestedSize */ null, signal);
+    }
+
+    private ParcelFileDescriptor ensureThumbnail(Uri uri, @Nullable Point requestedSize,
+            CancellationSignal signal) throws FileNotFoundException {
         final boolean allowHidden = isCallingPackageAllowedHidden();
         final int match = matchUri(uri, allowHidden);
+        // Only looked up when a thumbnail has to be generated, so existing thumbnails are served
+        // without a binder call. The uid is read before the calling identity is cleared below
+        final int callingUid = mCallingIdentity.get().uid;
+        final BooleanSupplier isForeground = () -> isUidForeground(callingUid);
+        final Size size = getThumbnailSize(requestedSize, mThumbSize);
 
         Trace.beginSection("ensureThumbnail");
         final LocalCallingIdentity token = clearLocalCallingIdentity();
@@ -7972,29 +8629,43 @@ public class MediaProvider extends ContentProvider {
                         if (c.moveToFirst()) {
                             final long audioId = c.getLong(0);
                             final Uri targetUri = ContentUris.withAppendedId(baseUri, audioId);
-                            return mAudioThumbnailer.ensureThumbnail(targetUri, signal);
+                            return mAudioThumbnailer.ensureThumbnail(targetUri, size,
+                                    isForeground, signal);
                         } else {
                             throw new FileNotFoundException("No media for album " + uri);
                         }
                     }
                 }
                 case AUDIO_MEDIA_ID:
-                    return mAudioThumbnailer.ensureThumbnail(uri, signal);
+                    return mAudioThumbnailer.ensureThumbnail(uri, size, isForeground, signal);
                 case VIDEO_MEDIA_ID:
-                    return mVideoThumbnailer.ensureThumbnail(uri, signal);
+                    return mVideoThumbnailer.ensureThumbnail(uri, size, isForeground, signal);
                 case IMAGES_MEDIA_ID:
-                    return mImageThumbnailer.ensureThumbnail(uri, signal);
+                    return mImageThumbnailer.ensureThumbnail(uri, size, isForeground, signal);
                 case FILES_ID:
                 case DOWNLOADS_ID: {
+                    // Ids are unique across media types, so an existing thumbnail can be served
+                    // without looking up the type of the item in the database
+                    for (Thumbnailer thumbnailer : new Thumbnailer[] {
+                            mImageThumbnailer, mVideoThumbnailer, mAudioThumbnailer }) {
+                        final ParcelFileDescriptor pfd = thumbnailer.openThumbnail(uri, size);
+                        if (pfd != null) {
+                            return pfd;
+                        }
+                    }
+
                     // When item is referenced in a generic way, resolve to actual type
                     final int mediaType = MimeUtils.resolveMediaType(getType(uri));
                     switch (mediaType) {
                         case FileColumns.MEDIA_TYPE_AUDIO:
-                            return mAudioThumbnailer.ensureThumbnail(uri, signal);
+                            return mAudioThumbnailer.ensureThumbnail(uri, size, isForeground,
+                                    signal);
                         case FileColumns.MEDIA_TYPE_VIDEO:
-                            return mVideoThumbnailer.ensureThumbnail(uri, signal);
+                            return mVideoThumbnailer.ensureThumbnail(uri, size, isForeground,
+                                    signal);
                         case FileColumns.MEDIA_TYPE_IMAGE:
-                            return mImageThumbnailer.ensureThumbnail(uri, signal);
+                            return mImageThumbnailer.ensureThumbnail(uri, size, isForeground,
+                                    signal);
                         default:
                             throw new FileNotFoundException();
                     }
@@ -8413,13 +9084,21 @@ public class MediaProvider extends ContentProvider {
     private void deleteAndInvalidate(@NonNull File file) {
         file.delete();
         invalidateFuseDentry(file);
+        mThumbnailFdCache.invalidate(file);
+        mThumbnailCache.onDeleted(file);
     }
 
     private void deleteIfAllowed(Uri uri, Bundle extras, String path) {
         try {
             final File file = new File(path).getCanonicalFile();
             checkAccess(uri, extras, file, true);
-            deleteAndInvalidate(file);
+            final List<File> batchDeletions = mFuseBatchDeletions.get();
+            if (batchDeletions != null) {
+                // Deleted once the FUSE batch committed
+                batchDeletions.add(file);
+            } else {
+                deleteAndInvalidate(file);
+            }
         } catch (Exception e) {
             Log.e(TAG, "Couldn't delete " + path, e);
         }
@@ -8938,6 +9617,7 @@ public class MediaProvider extends ContentProvider {
     @Keep
     public FileOpenResult onFileOpenForFuse(String path, String ioPath, int uid, int tid,
             int transformsReason, boolean forWrite, boolean redact, boolean logTransformsMetrics) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
         final LocalCallingIdentity token =
                 clearLocalCallingIdentity(getCachedCallingIdentityForFuse(uid));
 
@@ -9042,6 +9722,7 @@ public class MediaProvider extends ContentProvider {
                 notifyTranscodeHelperOnFileOpen(path, ioPath, originalUid, transformsReason);
             }
             restoreLocalCallingIdentity(token);
+            FuseUpcallMetrics.endUpcall(UPCALL_ON_FILE_OPEN, startTime);
         }
     }
 
@@ -9242,6 +9923,7 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public int insertFileIfNecessaryForFuse(@NonNull String path, int uid) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
         final LocalCallingIdentity token =
                 clearLocalCallingIdentity(getCachedCallingIdentityForFuse(uid));
         PulledMetrics.logFileAccessViaFuse(getCallingUidOrSelf(), path);
@@ -9320,6 +10002,7 @@ public class MediaProvider extends ContentProvider {
             return OsConstants.EPERM;
         } finally {
             restoreLocalCallingIdentity(token);
+            FuseUpcallMetrics.endUpcall(UPCALL_INSERT_FILE, startTime);
         }
     }
 
@@ -9368,6 +10051,7 @@ public class MediaProvider extends ContentProvider {
      */
     @Keep
     public int deleteFileForFuse(@NonNull String path, int uid) throws IOException {
+        final long startTime = FuseUpcallMetrics.startUpcall();
         final LocalCallingIdentity token =
                 clearLocalCallingIdentity(getCachedCallingIdentityForFuse(uid));
         PulledMetrics.logFileAccessViaFuse(getCallingUidOrSelf(), path);
@@ -9409,9 +10093,155 @@ public class MediaProvider extends ContentProvider {
             return OsConstants.EPERM;
         } finally {
             restoreLocalCallingIdentity(token);
+            FuseUpcallMetrics.endUpcall(UPCALL_DELETE_FILE, startTime);
+        }
+    }
+
+    /**
+     * Batched variant of {@link #insertFileIfNecessaryForFuse(String, int)}. The files of each
+     * database are inserted in a single transaction, so that change notifications and background
+     * work are dispatched once for the whole batch.
+     *
+     * @param paths the paths of the files
+     * @param uids UIDs of the apps requesting to create the files, one for each path
+     * @return the result of {@link #insertFileIfNecessaryForFuse(String, int)} for each path, in
+     * the same order as {@code paths}
+     *
+     * Called from JNI in jni/MediaProviderWrapper.cpp
+     */
+    @Keep
+    public int[] insertFilesIfNecessaryForFuse(@NonNull String[] paths, @NonNull int[] uids) {
+        return applyBatchForFuse(paths, uids, this::insertFileIfNecessaryForFuse);
+    }
+
+    /**
+     * Batched variant of {@link #deleteFileForFuse(String, int)}. The files of each database are
+     * deleted in a single transaction, so that change notifications and background work are
+     * dispatched once for the whole batch.
+     *
+     * @param paths the paths of the files
+     * @param uids UIDs of the apps requesting to delete the files, one for each path
+     * @return the result of {@link #deleteFileForFuse(String, int)} for each path, in the same
+     * order as {@code paths}
+     *
+     * Called from JNI in jni/MediaProviderWrapper.cpp
+     */
+    @Keep
+    public int[] deleteFilesForFuse(@NonNull String[] paths, @NonNull int[] uids) {
+        return applyBatchForFuse(paths, uids, this::deleteFileForFuse);
+    }
+
+    // Files to delete once the FUSE batch applied by this thread committed
+    private final ThreadLocal<List<File>> mFuseBatchDeletions = new ThreadLocal<>();
+
+    private interface FuseFileOperation {
+        int apply(@NonNull String path, int uid) throws IOException;
+    }
+
+    private int[] applyBatchForFuse(@NonNull String[] paths, @NonNull int[] uids,
+            @NonNull FuseFileOperation op) {
+        if (paths.length != uids.length) {
+            throw new IllegalArgumentException("Each path needs a matching uid");
+        }
+        final int[] results = new int[paths.length];
+
+        // Files on different volumes may live in different databases
+        final Map<DatabaseHelper, List<Integer>> batches = new ArrayMap<>();
+        final List<Integer> unresolved = new ArrayList<>();
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                final DatabaseHelper helper =
+                        getDatabaseForUri(FileUtils.getContentUriForPath(paths[i]));
+                batches.computeIfAbsent(helper, k -> new ArrayList<>()).add(i);
+            } catch (VolumeNotFoundException e) {
+                unresolved.add(i);
+            }
+        }
+
+        Trace.beginSection("applyBatchForFuse");
+        try {
+            for (int i : unresolved) {
+                // Let each operation report its own error
+                results[i] = applyForFuse(op, paths[i], uids[i]);
+            }
+            for (Map.Entry<DatabaseHelper, List<Integer>> batch : batches.entrySet()) {
+                applyBatchForFuse(batch.getKey(), batch.getValue(), paths, uids, op, results);
+            }
+        } finally {
+            Trace.endSection();
+        }
+        return results;
+    }
+
+    /**
+     * Applies the operations at {@code indexes} in a single transaction of {@code helper}. Each
+     * operation runs in its own savepoint, so a failing one is rolled back without affecting the
+     * others. Files are only deleted once the transaction committed, so that a rollback never
+     * leaves rows behind that point at deleted files.
+     */
+    private void applyBatchForFuse(@NonNull DatabaseHelper helper, @NonNull List<Integer> indexes,
+            @NonNull String[] paths, @NonNull int[] uids, @NonNull FuseFileOperation op,
+            @NonNull int[] results) {
+        final List<File> deletions = new ArrayList<>();
+        boolean successful = false;
+        helper.beginTransaction();
+        try {
+            for (int i : indexes) {
+                execSqlForFuse(helper, "SAVEPOINT fuse_op");
+                final List<File> opDeletions = new ArrayList<>();
+                mFuseBatchDeletions.set(opDeletions);
+                try {
+                    results[i] = op.apply(paths[i], uids[i]);
+                    deletions.addAll(opDeletions);
+                } catch (Exception e) {
+                    // Same result as an exception thrown from a single operation through JNI
+                    Log.e(TAG, "FUSE operation failed for " + paths[i], e);
+                    results[i] = OsConstants.EFAULT;
+                    execSqlForFuse(helper, "ROLLBACK TO fuse_op");
+                } finally {
+                    mFuseBatchDeletions.remove();
+                }
+                execSqlForFuse(helper, "RELEASE fuse_op");
+            }
+            helper.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            try {
+                helper.endTransaction();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to commit FUSE batch", e);
+                successful = false;
+            }
+        }
+
+        if (!successful) {
+            // Nothing of the batch was applied
+            for (int i : indexes) {
+                results[i] = OsConstants.EFAULT;
+            }
+            return;
+        }
+        for (File file : deletions) {
+            deleteAndInvalidate(file);
+        }
+    }
+
+    private int applyForFuse(@NonNull FuseFileOperation op, @NonNull String path, int uid) {
+        try {
+            return op.apply(path, uid);
+        } catch (Exception e) {
+            Log.e(TAG, "FUSE operation failed for " + path, e);
+            return OsConstants.EFAULT;
         }
     }
 
+    private static void execSqlForFuse(@NonNull DatabaseHelper helper, @NonNull String sql) {
+        helper.runWithTransaction((db) -> {
+            db.execSQL(sql);
+            return null;
+        });
+    }
+
     // These need to stay in sync with MediaProviderWrapper.cpp's DirectoryAccessRequestType enum
     @IntDef(flag = true, prefix = { "DIRECTORY_ACCESS_FOR_" }, value = {
             DIRECTORY_ACCESS_FOR_READ,
@@ -9454,6 +10284,7 @@ public class MediaProvider extends ContentProvider {
     @Keep
     public int isDirAccessAllowedForFuse(@NonNull String path, int uid,
             @DirectoryAccessType int accessType) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
         Preconditions.checkArgumentInRange(accessType, 1, DIRECTORY_ACCESS_FOR_DELETE,
                 "accessType");
 
@@ -9525,11 +10356,13 @@ public class MediaProvider extends ContentProvider {
             return 0;
         } finally {
             restoreLocalCallingIdentity(token);
+            FuseUpcallMetrics.endUpcall(UPCALL_IS_DIR_ACCESS_ALLOWED, startTime);
         }
     }
 
     @Keep
     public boolean isUidAllowedAccessToDataOrObbPathForFuse(int uid, String path) {
+        final long startTime = FuseUpcallMetrics.startUpcall();
         final LocalCallingIdentity token =
                 clearLocalCallingIdentity(getCachedCallingIdentityForFuse(uid));
         try {
@@ -9537,6 +10370,8 @@ public class MediaProvider extends ContentProvider {
                     extractRelativePathWithDisplayName(path));
         } finally {
             restoreLocalCallingIdentity(token);
+            FuseUpcallMetrics.endUpcall(
+                    UPCALL_IS_UID_ALLOWED_ACCESS_TO_DATA_OR_OBB_PATH, startTime);
         }
     }
 
@@ -10275,6 +11110,9 @@ public class MediaProvider extends ContentProvider {
         synchronized (mAttachedVolumes) {
             mAttachedVolumes.remove(volume);
         }
+        if (volume.getPath() != null) {
+            mThumbnailCache.onVolumeDetached(volume.getPath());
+        }
 
         final ContentResolver resolver = getContext().getContentResolver();
         final Uri uri = getBaseContentUri(volumeName);
@@ -10657,7 +11495,7 @@ public class MediaProvider extends ContentProvider {
 
     @Override
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
-        writer.println("mThumbSize=" + mThumbSize);
+        writer.println("mThumbSize=" + mThumbSize + " mThumbnailFormat=" + mThumbnailFormat);
         synchronized (mAttachedVolumes) {
             writer.println("mAttachedVolumes=" + mAttachedVolumes);
         }
@@ -10672,6 +11510,14 @@ public class MediaProvider extends ContentProvider {
         mTranscodeHelper.dump(writer);
         writer.println();
 
+        mThumbnailGenerator.dump(writer);
+        mThumbnailFdCache.dump(writer);
+        mThumbnailCache.dump(writer);
+        writer.println();
+
+        FuseUpcallMetrics.dump(writer);
+        writer.println();
+
         Logging.dumpPersistent(writer);
     }
 }
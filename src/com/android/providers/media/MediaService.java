@@ -17,6 +17,7 @@
 package com.android.providers.media;
 
 import static com.android.providers.media.scan.MediaScanner.REASON_DEMAND;
+import static com.android.providers.media.scan.MediaScanner.REASON_IDLE;
 import static com.android.providers.media.scan.MediaScanner.REASON_MOUNTED;
 import static com.android.providers.media.util.Logging.TAG;
 
@@ -27,6 +28,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.os.storage.StorageVolume;
@@ -215,6 +217,15 @@ public class MediaService extends JobIntentService {
                         new Intent(Intent.ACTION_MEDIA_SCANNER_FINISHED, broadcastUri), owner);
             }
         }
+
+        // Idle maintenance generates them itself, where it can be stopped
+        if (!MediaStore.VOLUME_INTERNAL.equals(volumeName) && reason != REASON_IDLE) {
+            try (ContentProviderClient cpc = context.getContentResolver()
+                    .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+                ((MediaProvider) cpc.getLocalContentProvider()).generateNewThumbnails(volume,
+                        new CancellationSignal());
+            }
+        }
     }
 
     private static Uri onScanFile(Context context, Uri uri) throws IOException {
@@ -27,6 +27,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
@@ -40,11 +41,15 @@ import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.providers.media.photopicker.data.PickerDbFacade;
+import com.android.providers.media.photopicker.data.PickerThumbnailCache;
 import com.android.providers.media.photopicker.data.model.UserId;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Utility class for Picker Uris, it handles (includes permission checks, incoming args
@@ -113,6 +118,11 @@ public class PickerUriResolver {
             throw new FileNotFoundException("No item at " + uri);
         }
         if (canHandleUriInUser(uri)) {
+            if (isCloudThumbnailRequest(uri, opts)) {
+                return new AssetFileDescriptor(
+                        openCloudThumbnail(resolver, uri, mimeTypeFilter, opts, signal), 0,
+                        AssetFileDescriptor.UNKNOWN_LENGTH);
+            }
             return new AssetFileDescriptor(openPickerFile(uri), 0,
                     AssetFileDescriptor.UNKNOWN_LENGTH);
         }
@@ -190,6 +200,51 @@ public class PickerUriResolver {
                 + CloudMediaProviderContract.URI_PATH_SURFACE_CONTROLLER);
     }
 
+    private boolean isCloudThumbnailRequest(Uri uri, Bundle opts) {
+        return opts != null && opts.getBoolean(CloudMediaProviderContract.EXTRA_PREVIEW_THUMBNAIL)
+                && opts.getBoolean(CloudMediaProviderContract.EXTRA_MEDIASTORE_THUMB)
+                && Objects.equals(unwrapProviderUri(uri).getHost(), mDbFacade.getCloudProvider());
+    }
+
+    /**
+     * Returns the thumbnail of the cloud media at {@code uri} from the thumbnail cache, fetching
+     * and caching it on a miss.
+     */
+    private ParcelFileDescriptor openCloudThumbnail(ContentResolver resolver, Uri uri,
+            String mimeTypeFilter, Bundle opts, CancellationSignal signal)
+            throws FileNotFoundException {
+        final Uri providerUri = unwrapProviderUri(uri);
+        final String authority = providerUri.getHost();
+        final String mediaId = providerUri.getLastPathSegment();
+        final PickerThumbnailCache cache = mDbFacade.getThumbnailCache();
+        final int sizeBucket = PickerThumbnailCache.getSizeBucket(
+                opts.getParcelable(ContentResolver.EXTRA_SIZE));
+
+        final ParcelFileDescriptor cached = cache.get(authority, mediaId, sizeBucket);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Fetch the thumbnail at the bucket size, so it serves every request of that bucket
+        final long generation = cache.getGeneration();
+        final Bundle providerOpts = new Bundle(opts);
+        providerOpts.putParcelable(ContentResolver.EXTRA_SIZE, new Point(sizeBucket, sizeBucket));
+        try (AssetFileDescriptor afd = resolver.openTypedAssetFile(providerUri, mimeTypeFilter,
+                providerOpts, signal)) {
+            if (afd == null) {
+                throw new FileNotFoundException("No thumbnail for uri: " + uri);
+            }
+            try (InputStream in = afd.createInputStream()) {
+                return cache.put(authority, mediaId, sizeBucket, in, generation);
+            }
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to cache thumbnail for uri: " + uri, e);
+            throw new FileNotFoundException("Failed to open thumbnail for uri: " + uri);
+        }
+    }
+
     private ParcelFileDescriptor openPickerFile(Uri uri) throws FileNotFoundException {
         final File file = getPickerFileFromUri(uri);
         if (file == null) {
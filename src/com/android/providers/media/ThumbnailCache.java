@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.Pair;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps the thumbnails of each volume within a size budget by evicting the least recently used
+ * thumbnails first, and keeps statistics on how often thumbnails are reused or generated.
+ *
+ * <p>The thumbnails of a volume are only listed once the volume is first used, without holding the
+ * lock, and in the background when it's first used by a generated thumbnail. The last modified
+ * time of the thumbnails keeps their recency across restarts, it's only updated once per
+ * {@link #TOUCH_INTERVAL_MS} to keep hits cheap.
+ */
+final class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    @VisibleForTesting
+    static final long TOUCH_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    // Returns the thumbnail directories of a volume
+    private final Function<File, List<File>> mGetDirectories;
+    // Deletes an evicted thumbnail
+    private final Consumer<File> mOnEvict;
+    // Lists the thumbnails of volumes first used by a generated thumbnail
+    private final Executor mLoadExecutor;
+
+    private final Object mLock = new Object();
+    // By volume path
+    @GuardedBy("mLock")
+    private final ArrayMap<File, Volume> mVolumes = new ArrayMap<>();
+    // Thumbnails generated on the volumes being listed by mLoadExecutor, by volume path
+    @GuardedBy("mLock")
+    private final Map<File, Map<File, Entry>> mLoadingVolumes = new ArrayMap<>();
+    // By media type
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Latency> mGenerateLatencies = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mMaxVolumeSizeBytes;
+
+    @GuardedBy("mLock")
+    private long mHitCount;
+    @GuardedBy("mLock")
+    private long mMissCount;
+    @GuardedBy("mLock")
+    private long mEvictionCount;
+    @GuardedBy("mLock")
+    private long mEvictedBytes;
+
+    private static final class Volume {
+        // Thumbnails, least recently used first
+        final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(
+                /* initialCapacity */ 16, /* loadFactor */ 0.75f, /* accessOrder */ true);
+        long sizeBytes;
+    }
+
+    private static final class Entry {
+        final long sizeBytes;
+        long lastAccessMs;
+
+        Entry(long sizeBytes, long lastAccessMs) {
+            this.sizeBytes = sizeBytes;
+            this.lastAccessMs = lastAccessMs;
+        }
+    }
+
+    private static final class Latency {
+        long count;
+        long totalMs;
+        long maxMs;
+
+        @Override
+        public String toString() {
+            return "count=" + count + " avgMs=" + (count > 0 ? totalMs / count : 0)
+                    + " maxMs=" + maxMs;
+        }
+    }
+
+    ThumbnailCache(long maxVolumeSizeBytes, @NonNull Function<File, List<File>> getDirectories,
+            @NonNull Consumer<File> onEvict, @NonNull Executor loadExecutor) {
+        mMaxVolumeSizeBytes = maxVolumeSizeBytes;
+        mGetDirectories = getDirectories;
+        mOnEvict = onEvict;
+        mLoadExecutor = loadExecutor;
+    }
+
+    void setMaxVolumeSizeBytes(long maxVolumeSizeBytes) {
+        synchronized (mLock) {
+            mMaxVolumeSizeBytes = maxVolumeSizeBytes;
+        }
+    }
+
+    /** Records that the existing thumbnail {@code file} on {@code volumePath} was used. */
+    void onHit(@NonNull File volumePath, @NonNull File file) {
+        final long now = System.currentTimeMillis();
+        boolean touch = false;
+        synchronized (mLock) {
+            mHitCount++;
+            // Not worth listing the thumbnails of the volume just to note the access
+            final Volume volume = mVolumes.get(volumePath);
+            final Entry entry = volume != null ? volume.entries.get(file) : null;
+            if (entry != null && now - entry.lastAccessMs >= TOUCH_INTERVAL_MS) {
+                entry.lastAccessMs = now;
+                touch = true;
+            }
+        }
+        if (touch) {
+            file.setLastModified(now);
+        }
+    }
+
+    /** Records that a thumbnail had to be generated. */
+    void onMiss() {
+        synchronized (mLock) {
+            mMissCount++;
+        }
+    }
+
+    /**
+     * Adds the freshly generated thumbnail {@code file} on {@code volumePath} to the cache,
+     * evicting other thumbnails of the volume if it grew over its budget. If the thumbnails of the
+     * volume aren't listed yet, they are listed in the background instead, including
+     * {@code file}.
+     *
+     * @param mediaType the type of media the thumbnail was generated from
+     * @param durationMs how long generating the thumbnail took
+     */
+    void onGenerated(@NonNull File volumePath, @NonNull File file, @NonNull String mediaType,
+            long durationMs) {
+        final long sizeBytes = file.length();
+        final List<File> evicted;
+        synchronized (mLock) {
+            Latency latency = mGenerateLatencies.get(mediaType);
+            if (latency == null) {
+                latency = new Latency();
+                mGenerateLatencies.put(mediaType, latency);
+            }
+            latency.count++;
+            latency.totalMs += durationMs;
+            latency.maxMs = Math.max(latency.maxMs, durationMs);
+
+            final Volume volume = mVolumes.get(volumePath);
+            if (volume == null) {
+                Map<File, Entry> generated = mLoadingVolumes.get(volumePath);
+                final boolean isLoading = generated != null;
+                if (!isLoading) {
+                    generated = new LinkedHashMap<>();
+                    mLoadingVolumes.put(volumePath, generated);
+                }
+                // The listing may have passed the file already
+                generated.put(file, new Entry(sizeBytes, System.currentTimeMillis()));
+                if (!isLoading) {
+                    mLoadExecutor.execute(() -> loadInBackground(volumePath));
+                }
+                return;
+            }
+            removeLocked(volume, file);
+            volume.entries.put(file, new Entry(sizeBytes, System.currentTimeMillis()));
+            volume.sizeBytes += sizeBytes;
+            evicted = new ArrayList<>();
+            while (volume.sizeBytes > mMaxVolumeSizeBytes && volume.entries.size() > 1) {
+                evictEldestLocked(volume, evicted);
+            }
+        }
+        evict(evicted);
+    }
+
+    /** Forgets the thumbnails of the volume at {@code volumePath}, which was detached. */
+    void onVolumeDetached(@NonNull File volumePath) {
+        synchronized (mLock) {
+            mVolumes.remove(volumePath);
+            // Drops the result of a listing in progress
+            mLoadingVolumes.remove(volumePath);
+        }
+    }
+
+    /** Forgets the thumbnail {@code file}, which was deleted. */
+    void onDeleted(@NonNull File file) {
+        synchronized (mLock) {
+            for (int i = 0; i < mVolumes.size(); i++) {
+                removeLocked(mVolumes.valueAt(i), file);
+            }
+            for (Map<File, Entry> generated : mLoadingVolumes.values()) {
+                generated.remove(file);
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used thumbnails across {@code volumePaths} until {@code bytes}
+     * are freed or nothing is left to evict.
+     *
+     * @return the number of bytes freed
+     */
+    long free(long bytes, @NonNull Collection<File> volumePaths) {
+        final List<Volume> volumes = new ArrayList<>();
+        for (File volumePath : volumePaths) {
+            volumes.add(getVolume(volumePath));
+        }
+        final List<File> evicted = new ArrayList<>();
+        synchronized (mLock) {
+            while (bytes > 0) {
+                // The volume with the least recently used thumbnail of them all
+                Volume next = null;
+                long nextAccessMs = Long.MAX_VALUE;
+                for (Volume volume : volumes) {
+                    final Iterator<Entry> it = volume.entries.values().iterator();
+                    if (it.hasNext()) {
+                        final long accessMs = it.next().lastAccessMs;
+                        if (accessMs < nextAccessMs) {
+                            next = volume;
+                            nextAccessMs = accessMs;
+                        }
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                bytes -= evictEldestLocked(next, evicted);
+            }
+        }
+        return evict(evicted);
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("thumbnailCache: maxVolumeSize=" + mMaxVolumeSizeBytes
+                    + " hits=" + mHitCount + " misses=" + mMissCount
+                    + " evictions=" + mEvictionCount + " evictedBytes=" + mEvictedBytes);
+            for (int i = 0; i < mVolumes.size(); i++) {
+                final Volume volume = mVolumes.valueAt(i);
+                writer.println("  " + mVolumes.keyAt(i) + ": size=" + volume.sizeBytes
+                        + " files=" + volume.entries.size());
+            }
+            for (int i = 0; i < mGenerateLatencies.size(); i++) {
+                writer.println("  generate " + mGenerateLatencies.keyAt(i) + ": "
+                        + mGenerateLatencies.valueAt(i));
+            }
+        }
+    }
+
+    @VisibleForTesting
+    long getSizeBytes(@NonNull File volumePath) {
+        final Volume volume = getVolume(volumePath);
+        synchronized (mLock) {
+            return volume.sizeBytes;
+        }
+    }
+
+    /**
+     * Removes the least recently used entry of {@code volume} from the cache and adds its file to
+     * {@code evicted}, to be deleted by {@link #evict}.
+     *
+     * @return the size of the entry
+     */
+    @GuardedBy("mLock")
+    private long evictEldestLocked(Volume volume, List<File> evicted) {
+        final Iterator<Map.Entry<File, Entry>> it = volume.entries.entrySet().iterator();
+        final Map.Entry<File, Entry> eldest = it.next();
+        it.remove();
+        final long sizeBytes = eldest.getValue().sizeBytes;
+        volume.sizeBytes -= sizeBytes;
+        mEvictedBytes += sizeBytes;
+        mEvictionCount++;
+        evicted.add(eldest.getKey());
+        return sizeBytes;
+    }
+
+    private long evict(List<File> files) {
+        if (files.isEmpty()) {
+            return 0;
+        }
+
+        long freedBytes = 0;
+        for (File file : files) {
+            synchronized (mLock) {
+                if (isCachedLocked(file)) {
+                    // Generated again since it was selected
+                    continue;
+                }
+            }
+            final long sizeBytes = file.length();
+            mOnEvict.accept(file);
+            if (!file.exists()) {
+                freedBytes += sizeBytes;
+            }
+        }
+        Log.i(TAG, "Evicted " + files.size() + " thumbnails, freed " + freedBytes + " bytes");
+        return freedBytes;
+    }
+
+    @GuardedBy("mLock")
+    private boolean isCachedLocked(File file) {
+        for (int i = 0; i < mVolumes.size(); i++) {
+            if (mVolumes.valueAt(i).entries.containsKey(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the volume at {@code volumePath}, listing its thumbnails if it's new. */
+    private Volume getVolume(File volumePath) {
+        synchronized (mLock) {
+            final Volume volume = mVolumes.get(volumePath);
+            if (volume != null) {
+                return volume;
+            }
+        }
+
+        final Volume loaded = load(volumePath);
+        synchronized (mLock) {
+            final Volume volume = mVolumes.get(volumePath);
+            if (volume != null) {
+                // Listed by someone else meanwhile
+                return volume;
+            }
+            mVolumes.put(volumePath, loaded);
+            return loaded;
+        }
+    }
+
+    private void loadInBackground(File volumePath) {
+        final Volume loaded = load(volumePath);
+        synchronized (mLock) {
+            final Map<File, Entry> generated = mLoadingVolumes.remove(volumePath);
+            if (generated == null || mVolumes.containsKey(volumePath)) {
+                // Detached or listed by someone else meanwhile
+                return;
+            }
+            for (Map.Entry<File, Entry> entry : generated.entrySet()) {
+                removeLocked(loaded, entry.getKey());
+                loaded.entries.put(entry.getKey(), entry.getValue());
+                loaded.sizeBytes += entry.getValue().sizeBytes;
+            }
+            mVolumes.put(volumePath, loaded);
+        }
+    }
+
+    /** Lists the thumbnails of the volume at {@code volumePath}, without holding the lock. */
+    private Volume load(File volumePath) {
+        final List<Pair<File, Entry>> files = new ArrayList<>();
+        for (File dir : mGetDirectories.apply(volumePath)) {
+            final File[] dirFiles = dir.listFiles();
+            if (dirFiles == null) {
+                continue;
+            }
+            for (File file : dirFiles) {
+                // Skip the database uuid and thumbnails that are still being generated
+                if (file.isFile() && !file.getName().startsWith(".")
+                        && !file.getName().endsWith(".tmp")) {
+                    // Stat each file once, sorting compares the recorded times
+                    files.add(Pair.create(file, new Entry(file.length(), file.lastModified())));
+                }
+            }
+        }
+        files.sort(Comparator.comparingLong(file -> file.second.lastAccessMs));
+
+        final Volume volume = new Volume();
+        for (Pair<File, Entry> file : files) {
+            volume.entries.put(file.first, file.second);
+            volume.sizeBytes += file.second.sizeBytes;
+        }
+        return volume;
+    }
+
+    @GuardedBy("mLock")
+    private void removeLocked(Volume volume, File file) {
+        final Entry entry = volume.entries.remove(file);
+        if (entry != null) {
+            volume.sizeBytes -= entry.sizeBytes;
+        }
+    }
+}
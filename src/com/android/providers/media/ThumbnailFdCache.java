@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.ArraySet;
+import android.util.LruCache;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.media.util.FileUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+
+/**
+ * Keeps recently served thumbnails open for a short while, so that scrolling back and forth
+ * through a grid doesn't look up and open the same thumbnail files over and over.
+ *
+ * <p>Every caller gets its own descriptor reopened from the cached one, with its own file offset.
+ * Entries expire after {@link #MAX_AGE_MS} and must be invalidated when their file is deleted.
+ * A descriptor opened before its file was invalidated isn't cached, since it may be open on the
+ * deleted file.
+ */
+final class ThumbnailFdCache {
+    @VisibleForTesting
+    static final long MAX_AGE_MS = 5000;
+    private static final int MAX_SIZE = 64;
+
+    private final LruCache<File, Entry> mEntries = new LruCache<File, Entry>(MAX_SIZE) {
+        @Override
+        protected void entryRemoved(boolean evicted, File key, Entry oldValue, Entry newValue) {
+            FileUtils.closeQuietly(oldValue.pfd);
+        }
+    };
+    // Opens and generations in progress, marked when their file is invalidated meanwhile
+    @GuardedBy("mEntries")
+    private final ArraySet<PendingOpen> mPendingOpens = new ArraySet<>();
+
+    private static final class Entry {
+        final ParcelFileDescriptor pfd;
+        final long openedAtMs;
+
+        Entry(ParcelFileDescriptor pfd, long openedAtMs) {
+            this.pfd = pfd;
+            this.openedAtMs = openedAtMs;
+        }
+    }
+
+    /** An open or generation of a thumbnail file in progress, see {@link #startOpen}. */
+    static final class PendingOpen {
+        final File file;
+        // Guarded by mEntries of the cache that started it
+        boolean invalidated;
+
+        PendingOpen(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Returns the cached thumbnail {@code file} reopened for reading, or {@code null} if it's
+     * not cached.
+     */
+    @Nullable
+    ParcelFileDescriptor get(@NonNull File file) {
+        // Reopen with the lock held, so the cached descriptor can't be closed meanwhile
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(file);
+            if (entry == null) {
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - entry.openedAtMs > MAX_AGE_MS) {
+                mEntries.remove(file);
+                return null;
+            }
+            try {
+                return FileUtils.reopenReadOnly(entry.pfd);
+            } catch (FileNotFoundException e) {
+                mEntries.remove(file);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Opens the thumbnail {@code file} for reading, from the cache if possible, and caches it.
+     */
+    @NonNull
+    ParcelFileDescriptor open(@NonNull File file) throws FileNotFoundException {
+        final ParcelFileDescriptor cached = get(file);
+        if (cached != null) {
+            return cached;
+        }
+
+        final PendingOpen pending = startOpen(file);
+        try {
+            final ParcelFileDescriptor pfd = FileUtils.openSafely(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+            put(pending, pfd);
+            return pfd;
+        } finally {
+            finishOpen(pending);
+        }
+    }
+
+    /**
+     * Starts tracking invalidations of {@code file}, before it's opened or generated. The result
+     * is passed to {@link #put} and must be passed to {@link #finishOpen} once done.
+     */
+    @NonNull
+    PendingOpen startOpen(@NonNull File file) {
+        final PendingOpen pending = new PendingOpen(file);
+        synchronized (mEntries) {
+            mPendingOpens.add(pending);
+        }
+        return pending;
+    }
+
+    void finishOpen(@NonNull PendingOpen pending) {
+        synchronized (mEntries) {
+            mPendingOpens.remove(pending);
+        }
+    }
+
+    /**
+     * Caches the thumbnail file of {@code pending} that {@code pfd} was opened on, unless the file
+     * was invalidated since {@link #startOpen}.
+     */
+    void put(@NonNull PendingOpen pending, @NonNull ParcelFileDescriptor pfd) {
+        final ParcelFileDescriptor cached;
+        try {
+            cached = FileUtils.reopenReadOnly(pfd);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        synchronized (mEntries) {
+            if (pending.invalidated) {
+                FileUtils.closeQuietly(cached);
+                return;
+            }
+            mEntries.put(pending.file, new Entry(cached, SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /** Drops {@code file} from the cache, e.g. because it was deleted. */
+    void invalidate(@NonNull File file) {
+        synchronized (mEntries) {
+            for (int i = 0; i < mPendingOpens.size(); i++) {
+                final PendingOpen pending = mPendingOpens.valueAt(i);
+                if (pending.file.equals(file)) {
+                    pending.invalidated = true;
+                }
+            }
+            mEntries.remove(file);
+        }
+    }
+
+    void invalidateAll() {
+        synchronized (mEntries) {
+            for (int i = 0; i < mPendingOpens.size(); i++) {
+                mPendingOpens.valueAt(i).invalidated = true;
+            }
+            mEntries.evictAll();
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mEntries) {
+            writer.println("thumbnailFdCache: size=" + mEntries.size() + " hits="
+                    + mEntries.hitCount() + " misses=" + mEntries.missCount());
+        }
+    }
+}
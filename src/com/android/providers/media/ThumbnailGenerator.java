@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.util.ArrayMap;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.media.util.FileUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates thumbnails on a bounded pool of worker threads, so that callers racing for the same
+ * thumbnail share a single generation instead of each decoding and compressing it.
+ *
+ * <p>Jobs of foreground callers run before those of background callers, and a job is cancelled
+ * once every caller waiting for it cancelled.
+ */
+final class ThumbnailGenerator {
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    /** Generates a thumbnail and returns it opened for reading */
+    interface Task {
+        @NonNull
+        ParcelFileDescriptor run(@NonNull CancellationSignal signal) throws IOException;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Object mLock = new Object();
+    // Jobs by key, from when they are queued until they finished
+    @GuardedBy("mLock")
+    private final Map<String, Job> mJobs = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<>((a, b) -> {
+        if (a.isForeground != b.isForeground) {
+            return a.isForeground ? -1 : 1;
+        }
+        return Long.compare(a.sequence, b.sequence);
+    });
+    @GuardedBy("mLock")
+    private long mSequence;
+    @GuardedBy("mLock")
+    private long mSharedCount;
+
+    private static final class Job {
+        final String key;
+        final Task task;
+        final long sequence;
+        final CancellationSignal signal = new CancellationSignal();
+        final CompletableFuture<ParcelFileDescriptor> result = new CompletableFuture<>();
+        boolean isForeground;
+        int waiterCount;
+
+        Job(String key, Task task, long sequence, boolean isForeground) {
+            this.key = key;
+            this.task = task;
+            this.sequence = sequence;
+            this.isForeground = isForeground;
+        }
+    }
+
+    ThumbnailGenerator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    @VisibleForTesting
+    ThumbnailGenerator(int threadCount) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "ThumbnailGenerator"));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs {@code task} to generate the thumbnail identified by {@code key}, or joins the job
+     * already generating it, and blocks until it finished.
+     *
+     * @return the thumbnail opened for reading
+     * @throws OperationCanceledException if {@code signal} was cancelled while waiting
+     */
+    @NonNull
+    ParcelFileDescriptor generate(@NonNull String key, boolean isForeground,
+            @Nullable CancellationSignal signal, @NonNull Task task) throws IOException {
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+
+        final Job job;
+        synchronized (mLock) {
+            Job existing = mJobs.get(key);
+            if (existing == null) {
+                existing = new Job(key, task, mSequence++, isForeground);
+                mJobs.put(key, existing);
+                mQueue.add(existing);
+                mExecutor.execute(this::runNextJob);
+            } else {
+                mSharedCount++;
+                if (isForeground && !existing.isForeground && mQueue.remove(existing)) {
+                    // Still queued, move it ahead of the background jobs
+                    existing.isForeground = true;
+                    mQueue.add(existing);
+                }
+            }
+            existing.waiterCount++;
+            job = existing;
+        }
+
+        // Cancelling our view of the result wakes us up without affecting the other waiters
+        final CompletableFuture<ParcelFileDescriptor> result = job.result.thenApply(pfd -> pfd);
+        if (signal != null) {
+            signal.setOnCancelListener(() -> result.cancel(false));
+        }
+        try {
+            // Every waiter gets its own file offset
+            return FileUtils.reopenReadOnly(result.get());
+        } catch (CancellationException e) {
+            throw new OperationCanceledException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            if (signal != null) {
+                signal.setOnCancelListener(null);
+            }
+            leave(job);
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("thumbnailGenerator: jobs=" + mJobs.size() + " queued=" + mQueue.size()
+                    + " shared=" + mSharedCount);
+        }
+    }
+
+    private void runNextJob() {
+        final Job job;
+        synchronized (mLock) {
+            // Every queued job posts one of these, but cancelled jobs leave the queue early
+            job = mQueue.poll();
+            if (job == null) {
+                return;
+            }
+        }
+
+        ParcelFileDescriptor pfd = null;
+        Throwable error = null;
+        try {
+            pfd = job.task.run(job.signal);
+        } catch (Throwable t) {
+            error = t;
+        }
+
+        synchronized (mLock) {
+            // Complete it with the lock held, so no new waiter can join a job that is closed
+            if (error != null) {
+                job.result.completeExceptionally(error);
+            } else {
+                job.result.complete(pfd);
+            }
+            if (mJobs.get(job.key) == job) {
+                mJobs.remove(job.key);
+            }
+            if (job.waiterCount == 0) {
+                closeResult(job);
+            }
+        }
+    }
+
+    private void leave(Job job) {
+        synchronized (mLock) {
+            if (--job.waiterCount > 0) {
+                return;
+            }
+            if (job.result.isDone()) {
+                closeResult(job);
+                return;
+            }
+
+            // Nobody wants the thumbnail anymore
+            job.signal.cancel();
+            mQueue.remove(job);
+            if (mJobs.get(job.key) == job) {
+                mJobs.remove(job.key);
+            }
+        }
+    }
+
+    private static void closeResult(Job job) {
+        if (job.result.isDone() && !job.result.isCompletedExceptionally()) {
+            FileUtils.closeQuietly(job.result.join());
+        }
+    }
+}
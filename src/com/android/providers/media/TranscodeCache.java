@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the transcode cache directory within a size budget by evicting the least recently used
+ * transcoded files first.
+ *
+ * <p>Files are named after the row id of the file they were transcoded from. Files of rows with an
+ * active transcoding session are pinned and never evicted, and neither are files used within the
+ * last {@link #MIN_IDLE_MS}, since a FUSE lookup that found one cached may still be about to open
+ * it. The last modified time of the files keeps their recency across restarts.
+ */
+final class TranscodeCache {
+    private static final String TAG = "TranscodeCache";
+
+    @VisibleForTesting
+    static final long MIN_IDLE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final File mDirectory;
+    // Called with the row ids of the files about to be evicted, before they are deleted
+    private final Consumer<List<Long>> mOnEvict;
+
+    private final Object mLock = new Object();
+    // Cached files by row id, least recently used first
+    @GuardedBy("mLock")
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>(
+            /* initialCapacity */ 16, /* loadFactor */ 0.75f, /* accessOrder */ true);
+    // Active transcoding sessions by row id
+    @GuardedBy("mLock")
+    private final Map<Long, Integer> mPinCounts = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private long mMaxSizeBytes;
+    @GuardedBy("mLock")
+    private long mSizeBytes;
+    @GuardedBy("mLock")
+    private boolean mIsLoaded;
+
+    @GuardedBy("mLock")
+    private long mHitCount;
+    @GuardedBy("mLock")
+    private long mMissCount;
+    @GuardedBy("mLock")
+    private long mEvictionCount;
+    @GuardedBy("mLock")
+    private long mEvictedBytes;
+
+    private static final class Entry {
+        final long sizeBytes;
+        long lastAccessMs;
+
+        Entry(long sizeBytes, long lastAccessMs) {
+            this.sizeBytes = sizeBytes;
+            this.lastAccessMs = lastAccessMs;
+        }
+    }
+
+    TranscodeCache(@NonNull File directory, long maxSizeBytes,
+            @NonNull Consumer<List<Long>> onEvict) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mOnEvict = onEvict;
+    }
+
+    void setMaxSizeBytes(long maxSizeBytes) {
+        synchronized (mLock) {
+            mMaxSizeBytes = maxSizeBytes;
+        }
+    }
+
+    /** Prevents the file of {@code rowId} from being evicted until {@link #unpin} is called. */
+    void pin(long rowId) {
+        synchronized (mLock) {
+            final Integer count = mPinCounts.get(rowId);
+            mPinCounts.put(rowId, count == null ? 1 : count + 1);
+        }
+    }
+
+    void unpin(long rowId) {
+        synchronized (mLock) {
+            final Integer count = mPinCounts.get(rowId);
+            if (count == null || count <= 1) {
+                mPinCounts.remove(rowId);
+            } else {
+                mPinCounts.put(rowId, count - 1);
+            }
+        }
+    }
+
+    /** Records that the cached file of {@code rowId} was used instead of transcoding again. */
+    void onHit(long rowId) {
+        final long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            loadLocked();
+            mHitCount++;
+            final Entry entry = mEntries.get(rowId);
+            if (entry != null) {
+                entry.lastAccessMs = now;
+            }
+        }
+        getFile(rowId).setLastModified(now);
+    }
+
+    /** Records that a file had to be transcoded. */
+    void onMiss() {
+        synchronized (mLock) {
+            mMissCount++;
+        }
+    }
+
+    /**
+     * Adds the freshly transcoded file of {@code rowId} to the cache, evicting other files if the
+     * cache grew over its budget.
+     */
+    void onTranscoded(long rowId) {
+        final long sizeBytes = getSizeOnDisk(getFile(rowId));
+        final List<Long> evicted;
+        synchronized (mLock) {
+            loadLocked();
+            removeLocked(rowId);
+            mEntries.put(rowId, new Entry(sizeBytes, System.currentTimeMillis()));
+            mSizeBytes += sizeBytes;
+            evicted = selectEvictionsLocked(mSizeBytes - mMaxSizeBytes);
+        }
+        evict(evicted);
+    }
+
+    /** Deletes the file of {@code rowId}, e.g. because its row was deleted. */
+    boolean remove(long rowId) {
+        synchronized (mLock) {
+            removeLocked(rowId);
+        }
+        return getFile(rowId).delete();
+    }
+
+    /**
+     * Evicts least recently used files until {@code bytes} are freed or nothing else can be
+     * evicted.
+     *
+     * @return the number of bytes freed
+     */
+    long free(long bytes) {
+        final List<Long> evicted;
+        synchronized (mLock) {
+            loadLocked();
+            evicted = selectEvictionsLocked(bytes);
+        }
+        return evict(evicted);
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("transcodeCache: size=" + mSizeBytes + " maxSize=" + mMaxSizeBytes
+                    + " files=" + mEntries.size() + " pinned=" + mPinCounts.keySet()
+                    + " hits=" + mHitCount + " misses=" + mMissCount
+                    + " evictions=" + mEvictionCount + " evictedBytes=" + mEvictedBytes);
+        }
+    }
+
+    @VisibleForTesting
+    long getSizeBytes() {
+        synchronized (mLock) {
+            loadLocked();
+            return mSizeBytes;
+        }
+    }
+
+    /**
+     * Removes least recently used unpinned and idle entries worth at least {@code bytes} from the
+     * cache and returns their row ids, their files are deleted by {@link #evict}.
+     */
+    @GuardedBy("mLock")
+    private List<Long> selectEvictionsLocked(long bytes) {
+        final List<Long> rowIds = new ArrayList<>();
+        final long idleBeforeMs = System.currentTimeMillis() - MIN_IDLE_MS;
+        final Iterator<Map.Entry<Long, Entry>> it = mEntries.entrySet().iterator();
+        while (bytes > 0 && it.hasNext()) {
+            final Map.Entry<Long, Entry> entry = it.next();
+            if (entry.getValue().lastAccessMs > idleBeforeMs) {
+                // Everything after this was used more recently as well
+                break;
+            }
+            if (mPinCounts.containsKey(entry.getKey())) {
+                continue;
+            }
+
+            rowIds.add(entry.getKey());
+            bytes -= entry.getValue().sizeBytes;
+            mSizeBytes -= entry.getValue().sizeBytes;
+            mEvictedBytes += entry.getValue().sizeBytes;
+            mEvictionCount++;
+            it.remove();
+        }
+        return rowIds;
+    }
+
+    private long evict(List<Long> rowIds) {
+        if (rowIds.isEmpty()) {
+            return 0;
+        }
+
+        // Mark the rows as not transcoded first, so no new reader is sent to a deleted file
+        mOnEvict.accept(rowIds);
+
+        long freedBytes = 0;
+        synchronized (mLock) {
+            for (long rowId : rowIds) {
+                if (mPinCounts.containsKey(rowId) || mEntries.containsKey(rowId)) {
+                    // Transcoding again or transcoded again since it was selected
+                    continue;
+                }
+                final File file = getFile(rowId);
+                final long sizeBytes = getSizeOnDisk(file);
+                if (file.delete()) {
+                    freedBytes += sizeBytes;
+                }
+            }
+        }
+        Log.i(TAG, "Evicted " + rowIds.size() + " transcoded files, freed " + freedBytes
+                + " bytes");
+        return freedBytes;
+    }
+
+    @GuardedBy("mLock")
+    private void loadLocked() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            final long rowId;
+            try {
+                rowId = Long.parseLong(file.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final long sizeBytes = getSizeOnDisk(file);
+            mEntries.put(rowId, new Entry(sizeBytes, file.lastModified()));
+            mSizeBytes += sizeBytes;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeLocked(long rowId) {
+        final Entry entry = mEntries.remove(rowId);
+        if (entry != null) {
+            mSizeBytes -= entry.sizeBytes;
+        }
+    }
+
+    private File getFile(long rowId) {
+        return new File(mDirectory, String.valueOf(rowId));
+    }
+
+    /** Transcode files start out sparse, so count the blocks they use rather than their length */
+    private static long getSizeOnDisk(File file) {
+        try {
+            return Os.stat(file.getPath()).st_blocks * 512;
+        } catch (ErrnoException e) {
+            return file.length();
+        }
+    }
+}
@@ -20,10 +20,11 @@ import android.net.Uri;
 import android.os.Bundle;
 import java.io.PrintWriter;
 import java.util.List;
+import java.util.UUID;
 
 /** Interface over MediaTranscodeManager access */
 public interface TranscodeHelper {
-    public void freeCache(long bytes);
+    public long freeCache(UUID volumeUuid, long bytes);
 
     public void onAnrDelayStarted(String packageName, int uid, int tid, int reason);
 
@@ -39,6 +40,8 @@ public interface TranscodeHelper {
 
     public void onFileOpen(String path, String ioPath, int uid, int transformsReason);
 
+    public void onPackageChanged(String packageName);
+
     public boolean isTranscodeFileCached(String path, String transcodePath);
 
     public boolean deleteCachedTranscodeFile(long rowId);
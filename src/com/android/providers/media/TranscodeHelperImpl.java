@@ -76,10 +76,15 @@ import android.provider.MediaStore;
 import android.provider.MediaStore.Files.FileColumns;
 import android.provider.MediaStore.MediaColumns;
 import android.provider.MediaStore.Video.VideoColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LongSparseArray;
+import android.util.LruCache;
 import android.util.Pair;
 import android.util.SparseArray;
 import android.widget.Toast;
@@ -120,7 +125,11 @@ import java.util.Set;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -139,14 +148,33 @@ public class TranscodeHelperImpl implements TranscodeHelper {
     private static final String TRANSCODE_DEFAULT_SYS_PROP_KEY =
             "persist.sys.fuse.transcode_default";
     private static final String TRANSCODE_DEFAULT_DEVICE_CONFIG_KEY = "transcode_default";
+    private static final String TRANSCODE_SPECULATIVE_SYS_PROP_KEY =
+            "persist.sys.fuse.transcode_speculative";
+    private static final String TRANSCODE_SPECULATIVE_DEVICE_CONFIG_KEY = "transcode_speculative";
     private static final String TRANSCODE_USER_CONTROL_SYS_PROP_KEY =
             "persist.sys.fuse.transcode_user_control";
     private static final String TRANSCODE_COMPAT_MANIFEST_KEY = "transcode_compat_manifest";
     private static final String TRANSCODE_COMPAT_STALE_KEY = "transcode_compat_stale";
     private static final String TRANSCODE_MAX_DURATION_MS_KEY = "transcode_max_duration_ms";
+    private static final String TRANSCODE_CACHE_MAX_SIZE_MB_KEY = "transcode_cache_max_size_mb";
+    private static final String TRANSCODE_MAX_CONCURRENT_SESSIONS_KEY =
+            "transcode_max_concurrent_sessions";
 
     private static final int MY_UID = android.os.Process.myUid();
     private static final int MAX_TRANSCODE_DURATION_MS = (int) TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_TRANSCODE_CACHE_SIZE_MB = 1024;
+    private static final int MAX_CONCURRENT_TRANSCODE_SESSIONS = 2;
+    private static final int MAX_CACHED_FILE_TRANSCODE_INFO_COUNT = 256;
+    private static final int NO_DECISION = -1;
+    // Speculative transcodes of newly published videos beyond this are dropped
+    @VisibleForTesting
+    static final int MAX_PENDING_SPECULATIVE_TRANSCODE_COUNT = 4;
+
+    // Runs speculative transcodes one at a time, so they don't crowd out the transcodes apps are
+    // waiting on
+    private static final ExecutorService sSpeculativeTranscodeExecutor =
+            Executors.newSingleThreadExecutor(
+                    runnable -> new Thread(runnable, "SpeculativeTranscode"));
 
     // Whether the device has HDR plugin for transcoding HDR to SDR video.
     private boolean mHasHdrPlugin = false;
@@ -232,6 +260,8 @@ public class TranscodeHelperImpl implements TranscodeHelper {
     private final StorageManager mStorageManager;
     private final ActivityManager mActivityManager;
     private final File mTranscodeDirectory;
+    private final TranscodeCache mTranscodeCache;
+    private final TranscodeScheduler mTranscodeScheduler;
     private final List<String> mSupportedRelativePaths;
     @GuardedBy("mLock")
     private UUID mTranscodeVolumeUuid;
@@ -239,6 +269,10 @@ public class TranscodeHelperImpl implements TranscodeHelper {
     @GuardedBy("mLock")
     private final Map<String, StorageTranscodingSession> mStorageTranscodingSessions =
             new ArrayMap<>();
+    // Files waiting for a free slot to start their transcoding session. Other requests for these
+    // files join that session once it's started instead of waiting for slots of their own
+    @GuardedBy("mLock")
+    private final Set<String> mTranscodeSlotWaits = new ArraySet<>();
 
     // These are for dumping purpose only.
     // We keep these separately because the probability of getting cancelled and error'ed sessions
@@ -256,12 +290,24 @@ public class TranscodeHelperImpl implements TranscodeHelper {
 
     private final TranscodeUiNotifier mTranscodingUiNotifier;
     private final TranscodeDenialController mTranscodeDenialController;
+    private final int mMaxTranscodeDurationMs;
+    private final AtomicInteger mPendingSpeculativeTranscodeCount = new AtomicInteger();
     private final SessionTiming mSessionTiming;
     @GuardedBy("mLock")
     private final Map<String, Integer> mAppCompatMediaCapabilities = new ArrayMap<>();
     @GuardedBy("mLock")
     private boolean mIsTranscodeEnabled;
 
+    // Media format flags and duration of recently opened files, valid as long as the file isn't
+    // modified
+    private final LruCache<String, FileTranscodeInfo> mFileTranscodeInfos =
+            new LruCache<>(MAX_CACHED_FILE_TRANSCODE_INFO_COUNT);
+    // Transcoding decisions from app manifests and the compat manifest by uid and file flags
+    @GuardedBy("mLock")
+    private final LongSparseArray<Integer> mManifestTranscodeDecisions = new LongSparseArray<>();
+    @GuardedBy("mLock")
+    private int mManifestTranscodeDecisionsGeneration;
+
     private static final String[] TRANSCODE_CACHE_INFO_PROJECTION =
             {FileColumns._ID, FileColumns._TRANSCODE_STATUS};
     private static final String TRANSCODE_WHERE_CLAUSE =
@@ -276,14 +322,18 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         mTranscodeDirectory = new File("/storage/emulated/" + UserHandle.myUserId(),
                 DIRECTORY_TRANSCODE);
         mTranscodeDirectory.mkdirs();
+        mTranscodeCache = new TranscodeCache(mTranscodeDirectory, getTranscodeCacheMaxSizeBytes(),
+                this::resetTranscodeStatus);
+        mTranscodeScheduler = new TranscodeScheduler(getMaxConcurrentTranscodeSessions(),
+                uid -> mActivityManager.getUidImportance(uid) == IMPORTANCE_FOREGROUND);
         mSessionTiming = new SessionTiming();
         mTranscodingUiNotifier = new TranscodeUiNotifier(context, mSessionTiming);
         mIsTranscodeEnabled = isTranscodeEnabled();
-        int maxTranscodeDurationMs =
+        mMaxTranscodeDurationMs =
                 mMediaProvider.getIntDeviceConfig(TRANSCODE_MAX_DURATION_MS_KEY,
                         MAX_TRANSCODE_DURATION_MS);
         mTranscodeDenialController = new TranscodeDenialController(mActivityManager,
-                mTranscodingUiNotifier, maxTranscodeDurationMs);
+                mTranscodingUiNotifier, mMaxTranscodeDurationMs);
         mSupportedRelativePaths = verifySupportedRelativePaths(StringUtils.getStringArrayConfig(
                         mContext, R.array.config_supported_transcoding_relative_paths));
         mHasHdrPlugin = hasHDRPlugin();
@@ -291,7 +341,16 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         parseTranscodeCompatManifest();
         // The storage namespace is a boot namespace so we actually don't expect this to be changed
         // after boot, but it is useful for tests
-        mMediaProvider.addOnPropertiesChangedListener(properties -> parseTranscodeCompatManifest());
+        mMediaProvider.addOnPropertiesChangedListener(properties -> {
+            parseTranscodeCompatManifest();
+            mTranscodeCache.setMaxSizeBytes(getTranscodeCacheMaxSizeBytes());
+            mTranscodeScheduler.setMaxConcurrency(getMaxConcurrentTranscodeSessions());
+        });
+    }
+
+    private long getTranscodeCacheMaxSizeBytes() {
+        return mMediaProvider.getIntDeviceConfig(TRANSCODE_CACHE_MAX_SIZE_MB_KEY,
+                MAX_TRANSCODE_CACHE_SIZE_MB) * 1024L * 1024L;
     }
 
     private boolean hasHDRPlugin() {
@@ -343,20 +402,17 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         return matcher.matches();
     }
 
-    public void freeCache(long bytes) {
-        File[] files = mTranscodeDirectory.listFiles();
-        for (File file : files) {
-            if (bytes <= 0) {
-                return;
-            }
-            if (file.exists() && file.isFile()) {
-                long size = file.length();
-                boolean deleted = file.delete();
-                if (deleted) {
-                    bytes -= size;
-                }
-            }
+    public long freeCache(UUID volumeUuid, long bytes) {
+        final UUID transcodeVolumeUuid = getTranscodeVolumeUuid();
+        if (transcodeVolumeUuid != null && !transcodeVolumeUuid.equals(volumeUuid)) {
+            // Transcoded files are on another storage device
+            return 0;
         }
+
+        final long freedBytes = mTranscodeCache.free(bytes);
+        Log.i(TAG, "Freed " + freedBytes + " of " + bytes
+                + " requested bytes from transcode cache");
+        return freedBytes;
     }
 
     private UUID getTranscodeVolumeUuid() {
@@ -386,6 +442,17 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         return new File(mTranscodeDirectory, String.valueOf(rowId)).getAbsolutePath();
     }
 
+    /**
+     * @return row id the transcode file at {@code transcodePath} belongs to, or -1 if it isn't a
+     * transcode file
+     */
+    private static long getTranscodeRowId(@NonNull String transcodePath) {
+        if (!isTranscodeFile(transcodePath)) {
+            return -1;
+        }
+        return Long.parseLong(new File(transcodePath).getName());
+    }
+
     public void onAnrDelayStarted(String packageName, int uid, int tid, int reason) {
         if (!isTranscodeEnabled()) {
             return;
@@ -480,12 +547,33 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         TranscodingSession transcodingSession = null;
         CountDownLatch latch = null;
         long startTime = SystemClock.elapsedRealtime();
+        // Waiting for a slot and waiting for the session both count against the timeout
+        final long deadlineMs = startTime
+                + TimeUnit.SECONDS.toMillis(getTranscodeTimeoutSeconds(src));
         boolean result = false;
         int errorCode = TranscodingSession.ERROR_SERVICE_DIED;
         int failureReason = TRANSCODING_DATA__FAILURE_CAUSE__TRANSCODING_SERVICE_ERROR;
 
+        // Keep the transcode file from being evicted while it is being written
+        final long rowId = getTranscodeRowId(dst);
+        mTranscodeCache.pin(rowId);
+        mTranscodeCache.onMiss();
+        TranscodeScheduler.Slot slot = null;
         try {
+            try {
+                slot = awaitTranscodeSlot(uid, src, deadlineMs);
+            } catch (TimeoutException e) {
+                failureReason = TRANSCODING_DATA__FAILURE_CAUSE__TRANSCODING_CLIENT_TIMEOUT;
+                throw new IllegalStateException("Timed out waiting to transcode " + src, e);
+            }
+
             synchronized (mLock) {
+                if (slot != null) {
+                    // Either the session is started below, or the requests waiting to join it
+                    // need to wait for a slot themselves
+                    mTranscodeSlotWaits.remove(src);
+                    mLock.notifyAll();
+                }
                 storageSession = mStorageTranscodingSessions.get(src);
                 if (storageSession == null) {
                     latch = new CountDownLatch(1);
@@ -512,12 +600,16 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                 storageSession.addBlockedUid(uid);
             }
 
-            failureReason = waitTranscodingResult(uid, src, transcodingSession, latch);
+            failureReason = waitTranscodingResult(uid, src, transcodingSession, latch,
+                    deadlineMs);
             errorCode = transcodingSession.getErrorCode();
             result = failureReason == TRANSCODING_DATA__FAILURE_CAUSE__CAUSE_UNKNOWN;
 
             if (result) {
                 updateTranscodeStatus(src, TRANSCODE_COMPLETE);
+                if (rowId != -1) {
+                    mTranscodeCache.onTranscoded(rowId);
+                }
             } else {
                 logEvent("Transcoding failed for " + src + ". session: ", transcodingSession);
                 // Attempt to workaround potential media transcoding deadlock
@@ -525,6 +617,10 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                 transcodingSession.cancel();
             }
         } finally {
+            if (slot != null) {
+                mTranscodeScheduler.release(slot);
+            }
+            mTranscodeCache.unpin(rowId);
             if (storageSession == null) {
                 Log.w(TAG, "Failed to create a StorageTranscodingSession");
                 // We were unable to even queue the request. Which means the media service is
@@ -549,6 +645,61 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         return result;
     }
 
+    /**
+     * Waits until {@code uid} may start a transcoding session for {@code src}, unless a session
+     * for it is already started or about to be started by someone else.
+     *
+     * @return the slot to start the session with, or {@code null} if the session for {@code src}
+     * is started and should be joined instead
+     * @throws TimeoutException if the session couldn't start before {@code deadlineMs}
+     */
+    @Nullable
+    private TranscodeScheduler.Slot awaitTranscodeSlot(int uid, String src, long deadlineMs)
+            throws TimeoutException {
+        try {
+            synchronized (mLock) {
+                while (!mTranscodeSlotWaits.add(src)) {
+                    // Someone else is waiting for a slot to transcode the same file
+                    final long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+                    if (remainingMs <= 0) {
+                        throw new TimeoutException();
+                    }
+                    mLock.wait(remainingMs);
+                }
+                if (mStorageTranscodingSessions.containsKey(src)) {
+                    mTranscodeSlotWaits.remove(src);
+                    return null;
+                }
+            }
+
+            TranscodeScheduler.Slot slot = null;
+            try {
+                slot = mTranscodeScheduler.acquire(uid,
+                        deadlineMs - SystemClock.elapsedRealtime());
+            } finally {
+                if (slot == null) {
+                    synchronized (mLock) {
+                        // Let the next request for the file wait for a slot
+                        mTranscodeSlotWaits.remove(src);
+                        mLock.notifyAll();
+                    }
+                }
+            }
+            if (slot == null) {
+                throw new TimeoutException();
+            }
+            return slot;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException();
+        }
+    }
+
+    private int getMaxConcurrentTranscodeSessions() {
+        return mMediaProvider.getIntDeviceConfig(TRANSCODE_MAX_CONCURRENT_SESSIONS_KEY,
+                MAX_CONCURRENT_TRANSCODE_SESSIONS);
+    }
+
     /**
      * Returns IO path for a {@code path} and {@code uid}
      *
@@ -699,6 +850,51 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         }
         // App compat didn't have enough information to make decision, continue
 
+        final int manifestResult = getManifestTranscodeDecision(uid, fileFlags);
+        if (manifestResult != NO_DECISION) {
+            return manifestResult;
+        }
+
+        // TODO: Need to add transcode_default as flags
+        if (shouldTranscodeDefault()) {
+            logVerbose("Default behavior should transcode");
+            return MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__SYSTEM_DEFAULT;
+        } else {
+            logVerbose("Default behavior should not transcode");
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the transcoding decision for files with {@code fileFlags} from the manifests of the
+     * packages of {@code uid} and the transcode compat manifest, or {@link #NO_DECISION}.
+     *
+     * <p>Decisions are cached until a package is added or removed or the compat manifest is
+     * parsed again.
+     */
+    @VisibleForTesting
+    int getManifestTranscodeDecision(int uid, int fileFlags) {
+        final long key = ((long) uid << 32) | fileFlags;
+        final int generation;
+        synchronized (mLock) {
+            final Integer decision = mManifestTranscodeDecisions.get(key);
+            if (decision != null) {
+                return decision;
+            }
+            generation = mManifestTranscodeDecisionsGeneration;
+        }
+
+        final int decision = checkManifestsTranscodeDecision(uid, fileFlags);
+        synchronized (mLock) {
+            // Don't cache a decision made from a manifest that has been invalidated since
+            if (generation == mManifestTranscodeDecisionsGeneration) {
+                mManifestTranscodeDecisions.put(key, decision);
+            }
+        }
+        return decision;
+    }
+
+    private int checkManifestsTranscodeDecision(int uid, int fileFlags) {
         // If we are here then the file supports HEVC, so we only check if the package is in the
         // mAppCompatCapabilities.  If it's there, we will respect that value.
         LocalCallingIdentity identity = mMediaProvider.getCachedCallingIdentityForTranscoding(uid);
@@ -738,14 +934,18 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                 }
             }
         }
+        return NO_DECISION;
+    }
 
-        // TODO: Need to add transcode_default as flags
-        if (shouldTranscodeDefault()) {
-            logVerbose("Default behavior should transcode");
-            return MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__SYSTEM_DEFAULT;
-        } else {
-            logVerbose("Default behavior should not transcode");
-            return 0;
+    /** Called when {@code packageName} is added or removed */
+    public void onPackageChanged(String packageName) {
+        invalidateManifestTranscodeDecisions();
+    }
+
+    private void invalidateManifestTranscodeDecisions() {
+        synchronized (mLock) {
+            mManifestTranscodeDecisions.clear();
+            mManifestTranscodeDecisionsGeneration++;
         }
     }
 
@@ -801,7 +1001,37 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         return Optional.empty();
     }
 
-    private Pair<Integer, Long> getFileFlagsAndDurationMs(String path) {
+    @VisibleForTesting
+    Pair<Integer, Long> getFileFlagsAndDurationMs(String path) {
+        final StructStat stat;
+        try {
+            stat = Os.stat(path);
+        } catch (ErrnoException e) {
+            final Pair<Integer, Long> result = queryFileFlagsAndDurationMs(path);
+            return result == null ? Pair.create(0, 0L) : result;
+        }
+
+        final FileTranscodeInfo cached = mFileTranscodeInfos.get(path);
+        if (cached != null && cached.isValid(stat)) {
+            return cached.flagsAndDurationMs;
+        }
+
+        final Pair<Integer, Long> result = queryFileFlagsAndDurationMs(path);
+        if (result == null) {
+            // Not cached, the row may only be missing until the file is scanned or published
+            return Pair.create(0, 0L);
+        }
+        mFileTranscodeInfos.put(path, new FileTranscodeInfo(stat, result));
+        return result;
+    }
+
+    /**
+     * @return media format flags and duration of the file at {@code path}, or {@code null} if it
+     * has no database row
+     */
+    @VisibleForTesting
+    @Nullable
+    Pair<Integer, Long> queryFileFlagsAndDurationMs(String path) {
         final String[] projection = new String[] {
             FileColumns._VIDEO_CODEC_TYPE,
             VideoColumns.COLOR_STANDARD,
@@ -812,7 +1042,7 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         try (Cursor cursor = queryFileForTranscode(path, projection)) {
             if (cursor == null || !cursor.moveToNext()) {
                 logVerbose("Couldn't find database row");
-                return Pair.create(0, 0L);
+                return null;
             }
 
             int result = 0;
@@ -1033,6 +1263,8 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                 },
                 null, null, null)) {
             if (supportsTranscode(c.getString(3))) {
+                // The file may have been looked up before it was published
+                mFileTranscodeInfos.remove(c.getString(3));
                 if (isHevc(c.getString(0))) {
                     MediaProviderStatsLog.write(
                             TRANSCODING_DATA,
@@ -1050,6 +1282,7 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                             TRANSCODING_DATA__FAILURE_CAUSE__CAUSE_UNKNOWN,
                             TranscodingSession.ERROR_NONE);
 
+                    maybeScheduleSpeculativeTranscode(c.getString(3));
                 } else {
                     MediaProviderStatsLog.write(
                             TRANSCODING_DATA,
@@ -1073,6 +1306,117 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         }
     }
 
+    /**
+     * Transcodes the newly published video at {@code path} in the background if an installed app
+     * on the transcode compat manifest would need it transcoded, so that the first app opening it
+     * reads it from the transcode cache instead of blocking until it is transcoded.
+     */
+    private void maybeScheduleSpeculativeTranscode(String path) {
+        if (!isSpeculativeTranscodeEnabled()) {
+            return;
+        }
+
+        final Pair<Integer, Long> result = getFileFlagsAndDurationMs(path);
+        final String packageName = getSpeculativeTranscodePackage(result.first, result.second);
+        if (packageName == null) {
+            return;
+        }
+
+        if (!tryAddPendingSpeculativeTranscode()) {
+            Log.i(TAG, "Too many pending speculative transcodes, skipping " + path);
+            return;
+        }
+
+        Log.i(TAG, "Scheduling speculative transcode of " + path + " for " + packageName);
+        sSpeculativeTranscodeExecutor.execute(() -> {
+            try {
+                speculativeTranscode(path);
+            } finally {
+                removePendingSpeculativeTranscode();
+            }
+        });
+    }
+
+    /**
+     * @return an installed package which would need a video with {@code fileFlags} and
+     * {@code durationMs} transcoded, or {@code null} if the video shouldn't be transcoded
+     * speculatively
+     */
+    @VisibleForTesting
+    @Nullable
+    String getSpeculativeTranscodePackage(int fileFlags, long durationMs) {
+        if (fileFlags == 0 || durationMs > mMaxTranscodeDurationMs) {
+            return null;
+        }
+        return findInstalledPackageNeedingTranscoding(fileFlags);
+    }
+
+    /**
+     * @return {@code true} if a speculative transcode can be queued, {@code false} if
+     * {@link #MAX_PENDING_SPECULATIVE_TRANSCODE_COUNT} are already pending
+     */
+    @VisibleForTesting
+    boolean tryAddPendingSpeculativeTranscode() {
+        if (mPendingSpeculativeTranscodeCount.incrementAndGet()
+                > MAX_PENDING_SPECULATIVE_TRANSCODE_COUNT) {
+            mPendingSpeculativeTranscodeCount.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    void removePendingSpeculativeTranscode() {
+        mPendingSpeculativeTranscodeCount.decrementAndGet();
+    }
+
+    private void speculativeTranscode(String path) {
+        if (getTranscodeCacheInfoFromDB(path).second == TRANSCODE_COMPLETE) {
+            // An app opened it in the meantime
+            return;
+        }
+
+        final String transcodePath = prepareIoPath(path, MY_UID);
+        if (!isTranscodeFile(transcodePath)) {
+            Log.w(TAG, "Unable to prepare speculative transcode of " + path);
+            return;
+        }
+
+        // Transcoding on behalf of MediaProvider ranks the session behind those of foreground
+        // apps in the transcoding service
+        transcode(path, transcodePath, MY_UID,
+                MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__SYSTEM_CONFIG);
+    }
+
+    /**
+     * @return an installed package on the transcode compat manifest which needs files with
+     * {@code fileFlags} transcoded, or {@code null} if there is none
+     */
+    @Nullable
+    private String findInstalledPackageNeedingTranscoding(int fileFlags) {
+        final Map<String, Integer> appCompatMediaCapabilities = new ArrayMap<>();
+        synchronized (mLock) {
+            appCompatMediaCapabilities.putAll(mAppCompatMediaCapabilities);
+        }
+
+        for (Map.Entry<String, Integer> entry : appCompatMediaCapabilities.entrySet()) {
+            final int supportedFlags = entry.getValue();
+            final int unsupportedFlags = ~supportedFlags & MEDIA_FORMAT_FLAG_MASK;
+            if (!checkAppMediaSupport(supportedFlags, unsupportedFlags, fileFlags,
+                    "speculative").orElse(false)) {
+                continue;
+            }
+
+            try {
+                mPackageManager.getApplicationInfo(entry.getKey(), /* flags */ 0);
+                return entry.getKey();
+            } catch (PackageManager.NameNotFoundException e) {
+                // Not installed
+            }
+        }
+        return null;
+    }
+
     public void onFileOpen(String path, String ioPath, int uid, int transformsReason) {
         if (!isTranscodeEnabled()) {
             return;
@@ -1151,6 +1495,7 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                     new File(transcodePath).exists();
             if (result) {
                 logEvent("Transcode cache hit: " + path, null /* session */);
+                mTranscodeCache.onHit(rowId);
             }
             return result;
         }
@@ -1246,7 +1591,7 @@ public class TranscodeHelperImpl implements TranscodeHelper {
      * otherwise indicates failure.
      */
     private int waitTranscodingResult(int uid, String src, TranscodingSession session,
-            CountDownLatch latch) {
+            CountDownLatch latch, long deadlineMs) {
         UUID uuid = getTranscodeVolumeUuid();
         try {
             if (uuid != null) {
@@ -1255,13 +1600,13 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                         StorageManager.APP_IO_BLOCKED_REASON_TRANSCODING);
             }
 
-            int timeout = getTranscodeTimeoutSeconds(src);
+            long timeoutMs = Math.max(deadlineMs - SystemClock.elapsedRealtime(), 0);
 
             String waitStartLog = "Transcoding wait start: " + src + ". Uid: " + uid + ". Timeout: "
-                    + timeout + "s";
+                    + timeoutMs + "ms";
             logEvent(waitStartLog, session);
 
-            boolean latchResult = latch.await(timeout, TimeUnit.SECONDS);
+            boolean latchResult = latch.await(timeoutMs, TimeUnit.MILLISECONDS);
             int sessionResult = session.getResult();
             boolean transcodeResult = sessionResult == TranscodingSession.RESULT_SUCCESS;
 
@@ -1345,7 +1690,30 @@ public class TranscodeHelperImpl implements TranscodeHelper {
     }
 
     public boolean deleteCachedTranscodeFile(long rowId) {
-        return new File(mTranscodeDirectory, String.valueOf(rowId)).delete();
+        return mTranscodeCache.remove(rowId);
+    }
+
+    /**
+     * Marks the rows of the transcode files about to be evicted as not transcoded, in a single
+     * update so that none of them is left marked as transcoded once its file is gone.
+     */
+    private void resetTranscodeStatus(List<Long> rowIds) {
+        final Uri uri = FileUtils.getContentUriForPath(mTranscodeDirectory.getPath());
+        // TODO(b/170465810): Replace this with matchUri when the code is refactored.
+        final int match = MediaProvider.FILES;
+        final SQLiteQueryBuilder qb = mMediaProvider.getQueryBuilderForTranscoding(TYPE_UPDATE,
+                match, uri, Bundle.EMPTY, null);
+        final String where = FileColumns._ID + " IN (" + TextUtils.join(",", rowIds) + ") AND "
+                + FileColumns._TRANSCODE_STATUS + "=" + TRANSCODE_COMPLETE;
+
+        ContentValues values = new ContentValues();
+        values.put(FileColumns._TRANSCODE_STATUS, TRANSCODE_EMPTY);
+        try {
+            qb.update(getDatabaseHelperForUri(uri), values, where, null);
+        } catch (IllegalStateException e) {
+            // The files are still evicted, their rows are fixed up by prepareIoPath
+            Log.w(TAG, "Failed to reset transcode status of evicted files", e);
+        }
     }
 
     private DatabaseHelper getDatabaseHelperForUri(Uri uri) {
@@ -1386,6 +1754,11 @@ public class TranscodeHelperImpl implements TranscodeHelper {
                 TRANSCODE_ENABLED_DEVICE_CONFIG_KEY, true /* defaultValue */);
     }
 
+    private boolean isSpeculativeTranscodeEnabled() {
+        return getBooleanProperty(TRANSCODE_SPECULATIVE_SYS_PROP_KEY,
+                TRANSCODE_SPECULATIVE_DEVICE_CONFIG_KEY, false /* defaultValue */);
+    }
+
     private boolean shouldTranscodeDefault() {
         return getBooleanProperty(TRANSCODE_DEFAULT_SYS_PROP_KEY,
                 TRANSCODE_DEFAULT_DEVICE_CONFIG_KEY, false /* defaultValue */);
@@ -1410,6 +1783,7 @@ public class TranscodeHelperImpl implements TranscodeHelper {
             // Clear the transcode_compat manifest before parsing. If transcode is disabled,
             // nothing will be parsed, effectively leaving the compat manifest empty.
             mAppCompatMediaCapabilities.clear();
+            invalidateManifestTranscodeDecisions();
             if (!mIsTranscodeEnabled) {
                 return;
             }
@@ -1529,14 +1903,19 @@ public class TranscodeHelperImpl implements TranscodeHelper {
     public void dump(PrintWriter writer) {
         writer.println("isTranscodeEnabled=" + isTranscodeEnabled());
         writer.println("shouldTranscodeDefault=" + shouldTranscodeDefault());
+        writer.println("isSpeculativeTranscodeEnabled=" + isSpeculativeTranscodeEnabled());
+        writer.println("mPendingSpeculativeTranscodeCount=" + mPendingSpeculativeTranscodeCount);
 
         synchronized (mLock) {
             writer.println("mAppCompatMediaCapabilities=" + mAppCompatMediaCapabilities);
+            writer.println("mManifestTranscodeDecisions=" + mManifestTranscodeDecisions);
             writer.println("mStorageTranscodingSessions=" + mStorageTranscodingSessions);
             writer.println("mSupportedTranscodingRelativePaths=" + mSupportedRelativePaths);
             writer.println("mHasHdrPlugin=" + mHasHdrPlugin);
             dumpFinishedSessions(writer);
         }
+        mTranscodeCache.dump(writer);
+        mTranscodeScheduler.dump(writer);
     }
 
     public List<String> getSupportedRelativePaths() {
@@ -1914,6 +2293,26 @@ public class TranscodeHelperImpl implements TranscodeHelper {
         }
     }
 
+    private static final class FileTranscodeInfo {
+        final long sizeBytes;
+        final long modifiedTimeNs;
+        final Pair<Integer, Long> flagsAndDurationMs;
+
+        FileTranscodeInfo(StructStat stat, Pair<Integer, Long> flagsAndDurationMs) {
+            this.sizeBytes = stat.st_size;
+            this.modifiedTimeNs = getModifiedTimeNs(stat);
+            this.flagsAndDurationMs = flagsAndDurationMs;
+        }
+
+        boolean isValid(StructStat stat) {
+            return sizeBytes == stat.st_size && modifiedTimeNs == getModifiedTimeNs(stat);
+        }
+
+        private static long getModifiedTimeNs(StructStat stat) {
+            return TimeUnit.SECONDS.toNanos(stat.st_mtim.tv_sec) + stat.st_mtim.tv_nsec;
+        }
+    }
+
     private static final class SessionTiming {
         // This should be accessed only in foreground thread.
         private final SparseArray<Long> mSessionStartTimes = new SparseArray<>();
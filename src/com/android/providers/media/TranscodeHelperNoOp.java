@@ -22,12 +22,15 @@ import java.io.PrintWriter;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * No-op transcode helper to avoid loading MediaTranscodeManager classes in Android R
  */
 public class TranscodeHelperNoOp implements TranscodeHelper {
-    public void freeCache(long bytes) {}
+    public long freeCache(UUID volumeUuid, long bytes) {
+        return 0;
+    }
 
     public void onAnrDelayStarted(String packageName, int uid, int tid, int reason) {}
 
@@ -51,6 +54,8 @@ public class TranscodeHelperNoOp implements TranscodeHelper {
 
     public void onFileOpen(String path, String ioPath, int uid, int transformsReason) {}
 
+    public void onPackageChanged(String packageName) {}
+
     public boolean isTranscodeFileCached(String path, String transcodePath) {
         return false;
     }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Limits how many transcoding sessions run at once and decides which waiting uid starts the next
+ * one.
+ *
+ * <p>Waiting foreground uids go first. Otherwise the uid with the fewest running sessions goes
+ * first, then the uid that started a session least recently, so one app opening many videos
+ * doesn't starve the others. The waiters of a uid go in arrival order.
+ */
+final class TranscodeScheduler {
+    private static final long[] HISTOGRAM_BOUNDS_MS =
+            {10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000};
+
+    private final IntPredicate mIsForeground;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private int mMaxConcurrency;
+    @GuardedBy("mLock")
+    private int mRunningCount;
+    @GuardedBy("mLock")
+    private final SparseIntArray mRunningCountByUid = new SparseIntArray();
+    // Sequence number of the last session started by each uid
+    @GuardedBy("mLock")
+    private final SparseLongArray mLastStartByUid = new SparseLongArray();
+    @GuardedBy("mLock")
+    private long mStartCount;
+    // In arrival order
+    @GuardedBy("mLock")
+    private final List<Waiter> mWaiters = new ArrayList<>();
+    @GuardedBy("mLock")
+    private final Histogram mQueueWaitHistogram = new Histogram();
+    @GuardedBy("mLock")
+    private final Histogram mTranscodeTimeHistogram = new Histogram();
+
+    /** A running transcoding session, to be passed to {@link #release} once it finished */
+    static final class Slot {
+        final int uid;
+        final long startTimeMs;
+
+        private Slot(int uid, long startTimeMs) {
+            this.uid = uid;
+            this.startTimeMs = startTimeMs;
+        }
+    }
+
+    private static final class Waiter {
+        final int uid;
+        final boolean isForeground;
+
+        Waiter(int uid, boolean isForeground) {
+            this.uid = uid;
+            this.isForeground = isForeground;
+        }
+    }
+
+    TranscodeScheduler(int maxConcurrency, @NonNull IntPredicate isForeground) {
+        mMaxConcurrency = maxConcurrency;
+        mIsForeground = isForeground;
+    }
+
+    void setMaxConcurrency(int maxConcurrency) {
+        synchronized (mLock) {
+            mMaxConcurrency = maxConcurrency;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until {@code uid} may start a transcoding session.
+     *
+     * @return the slot of the session, or {@code null} if it couldn't start within
+     * {@code timeoutMs}
+     */
+    @Nullable
+    Slot acquire(int uid, long timeoutMs) throws InterruptedException {
+        final Waiter waiter = new Waiter(uid, mIsForeground.test(uid));
+        final long waitStartMs = SystemClock.elapsedRealtime();
+        final long deadlineMs = waitStartMs + timeoutMs;
+
+        synchronized (mLock) {
+            mWaiters.add(waiter);
+            try {
+                while (mRunningCount >= Math.max(mMaxConcurrency, 1)
+                        || getNextWaiterLocked() != waiter) {
+                    final long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+                    if (remainingMs <= 0) {
+                        return null;
+                    }
+                    mLock.wait(remainingMs);
+                }
+            } finally {
+                mWaiters.remove(waiter);
+                // Whether it started or gave up, the next waiter may be able to start now
+                mLock.notifyAll();
+            }
+
+            final long nowMs = SystemClock.elapsedRealtime();
+            mRunningCount++;
+            mRunningCountByUid.put(uid, mRunningCountByUid.get(uid) + 1);
+            mLastStartByUid.put(uid, ++mStartCount);
+            mQueueWaitHistogram.add(nowMs - waitStartMs);
+            return new Slot(uid, nowMs);
+        }
+    }
+
+    /** Releases the {@code slot} of a finished session, letting the next waiter start one. */
+    void release(@NonNull Slot slot) {
+        synchronized (mLock) {
+            mRunningCount--;
+            final int uidRunningCount = mRunningCountByUid.get(slot.uid) - 1;
+            if (uidRunningCount > 0) {
+                mRunningCountByUid.put(slot.uid, uidRunningCount);
+            } else {
+                mRunningCountByUid.delete(slot.uid);
+            }
+            mTranscodeTimeHistogram.add(SystemClock.elapsedRealtime() - slot.startTimeMs);
+            mLock.notifyAll();
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("transcodeScheduler: maxConcurrency=" + mMaxConcurrency
+                    + " running=" + mRunningCount + " waiting=" + mWaiters.size());
+            writer.println("  queueWaitMs=" + mQueueWaitHistogram);
+            writer.println("  transcodeTimeMs=" + mTranscodeTimeHistogram);
+        }
+    }
+
+    @VisibleForTesting
+    int getWaiterCount() {
+        synchronized (mLock) {
+            return mWaiters.size();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Waiter getNextWaiterLocked() {
+        Waiter next = null;
+        for (Waiter waiter : mWaiters) {
+            if (next == null || isBeforeLocked(waiter, next)) {
+                next = waiter;
+            }
+        }
+        return next;
+    }
+
+    /** Returns whether {@code waiter} goes before {@code other}, which arrived earlier. */
+    @GuardedBy("mLock")
+    private boolean isBeforeLocked(Waiter waiter, Waiter other) {
+        if (waiter.isForeground != other.isForeground) {
+            return waiter.isForeground;
+        }
+        final int runningCount = mRunningCountByUid.get(waiter.uid);
+        final int otherRunningCount = mRunningCountByUid.get(other.uid);
+        if (runningCount != otherRunningCount) {
+            return runningCount < otherRunningCount;
+        }
+        return mLastStartByUid.get(waiter.uid) < mLastStartByUid.get(other.uid);
+    }
+
+    /** Counts of durations in exponentially growing buckets */
+    private static final class Histogram {
+        private final long[] mCounts = new long[HISTOGRAM_BOUNDS_MS.length + 1];
+
+        void add(long durationMs) {
+            int bucket = 0;
+            while (bucket < HISTOGRAM_BOUNDS_MS.length
+                    && durationMs > HISTOGRAM_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < mCounts.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(i < HISTOGRAM_BOUNDS_MS.length
+                        ? "<=" + HISTOGRAM_BOUNDS_MS[i]
+                        : ">" + HISTOGRAM_BOUNDS_MS[i - 1]);
+                sb.append(": ").append(mCounts[i]);
+            }
+            return sb.append("}").toString();
+        }
+    }
+}
@@ -146,8 +146,8 @@ public final class ExternalStorageServiceImpl extends ExternalStorageService {
     public void onFreeCache(@NonNull UUID volumeUuid, @BytesLong long bytes) throws IOException {
         Objects.requireNonNull(volumeUuid);
 
-        Log.i(TAG, "Free cache requested for " + bytes + " bytes");
-        getMediaProvider().freeCache(bytes);
+        Log.i(TAG, "Free cache requested for " + bytes + " bytes on " + volumeUuid);
+        getMediaProvider().freeCache(volumeUuid, bytes);
     }
 
     @Override
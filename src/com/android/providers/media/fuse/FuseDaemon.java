@@ -221,4 +221,5 @@ public final class FuseDaemon extends Thread {
     private native FdAccessResult native_check_fd_access(long daemon, int fd, int uid);
     private native void native_initialize_device_id(long daemon, String path);
     public static native boolean native_is_fuse_thread();
+    public static native long[] native_get_upcall_latency_histograms();
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.metrics;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects storage accesses made via FUSE without blocking the FUSE threads.
+ *
+ * <p>Every thread appends its accesses to its own single producer ring buffer, which takes no
+ * lock and does no string parsing. The buffers are drained on a background thread, which is
+ * where the accesses get attributed and aggregated.
+ */
+final class FuseAccessLog {
+    /** Receives the drained accesses. */
+    interface AccessConsumer {
+        void onAccess(int uid, @NonNull String path);
+    }
+
+    // Needs to be a power of two
+    @VisibleForTesting
+    static final int RING_CAPACITY = 256;
+
+    private final CopyOnWriteArrayList<Ring> mRings = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Ring> mThreadRing = ThreadLocal.withInitial(() -> {
+        final Ring ring = new Ring(Thread.currentThread());
+        mRings.add(ring);
+        return ring;
+    });
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    private final Executor mDrainExecutor;
+    private final AccessConsumer mConsumer;
+
+    FuseAccessLog(@NonNull Executor drainExecutor, @NonNull AccessConsumer consumer) {
+        mDrainExecutor = drainExecutor;
+        mConsumer = consumer;
+    }
+
+    /**
+     * Appends an access to {@code path} by {@code uid} to the ring buffer of the calling thread.
+     * The access is dropped if the ring buffer is full, since the background thread is behind.
+     */
+    void append(int uid, @NonNull String path) {
+        final Ring ring = mThreadRing.get();
+        ring.offer(uid, path);
+
+        if (ring.size() >= RING_CAPACITY / 2 && mDrainScheduled.compareAndSet(false, true)) {
+            mDrainExecutor.execute(this::drain);
+        }
+    }
+
+    /** Passes all the accesses appended so far to the {@link AccessConsumer}. */
+    synchronized void drain() {
+        mDrainScheduled.set(false);
+        for (Ring ring : mRings) {
+            // Once the owner is gone nothing can be appended anymore, so check it first
+            final boolean ownerAlive = ring.isOwnerAlive();
+            ring.drainTo(mConsumer);
+            if (!ownerAlive) {
+                mRings.remove(ring);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getRingCount() {
+        return mRings.size();
+    }
+
+    /**
+     * Ring buffer with a single producer, its owner thread, and a single consumer, the thread
+     * calling {@link #drain()}.
+     */
+    private static final class Ring {
+        private final WeakReference<Thread> mOwner;
+        private final int[] mUids = new int[RING_CAPACITY];
+        private final String[] mPaths = new String[RING_CAPACITY];
+
+        // Only advanced by the owner thread
+        private final AtomicLong mTail = new AtomicLong();
+        // Only advanced by the draining thread
+        private final AtomicLong mHead = new AtomicLong();
+
+        Ring(Thread owner) {
+            mOwner = new WeakReference<>(owner);
+        }
+
+        boolean offer(int uid, String path) {
+            final long tail = mTail.get();
+            if (tail - mHead.get() >= RING_CAPACITY) {
+                return false;
+            }
+
+            final int index = (int) (tail & (RING_CAPACITY - 1));
+            mUids[index] = uid;
+            mPaths[index] = path;
+            mTail.lazySet(tail + 1);
+            return true;
+        }
+
+        int size() {
+            return (int) (mTail.get() - mHead.get());
+        }
+
+        void drainTo(AccessConsumer consumer) {
+            final long tail = mTail.get();
+            long head = mHead.get();
+            for (; head < tail; head++) {
+                final int index = (int) (head & (RING_CAPACITY - 1));
+                final String path = mPaths[index];
+                mPaths[index] = null;
+                consumer.onAccess(mUids[index], path);
+            }
+            mHead.lazySet(head);
+        }
+
+        boolean isOwnerAlive() {
+            final Thread owner = mOwner.get();
+            return owner != null && owner.isAlive();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.metrics;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.providers.media.fuse.FuseDaemon;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the MediaProvider upcalls made by the FUSE daemon.
+ *
+ * <p>Every upcall is recorded twice: natively in {@code MediaProviderWrapper}, which includes the
+ * JNI overhead, and in the {@code *ForFuse} methods of {@code MediaProvider}. Both sides are
+ * updated without locks so recording doesn't add contention to the FUSE threads.
+ */
+public final class FuseUpcallMetrics {
+    private static final String TAG = "FuseUpcallMetrics";
+
+    // These need to stay in sync with the Upcall enum in jni/include/libfuse_jni/UpcallMetrics.h
+    public static final int UPCALL_INSERT_FILE = 0;
+    public static final int UPCALL_DELETE_FILE = 1;
+    public static final int UPCALL_ON_FILE_OPEN = 2;
+    public static final int UPCALL_IS_DIR_ACCESS_ALLOWED = 3;
+    public static final int UPCALL_GET_DIRECTORY_ENTRIES = 4;
+    public static final int UPCALL_RENAME = 5;
+    public static final int UPCALL_IS_UID_ALLOWED_ACCESS_TO_DATA_OR_OBB_PATH = 6;
+    public static final int UPCALL_ON_FILE_CREATED = 7;
+    public static final int UPCALL_SHOULD_ALLOW_LOOKUP = 8;
+    public static final int UPCALL_IS_APP_CLONE_USER = 9;
+    public static final int UPCALL_FILE_LOOKUP = 10;
+    public static final int UPCALL_TRANSFORM = 11;
+
+    @VisibleForTesting
+    static final int UPCALL_COUNT = 12;
+
+    /**
+     * Bucket 0 counts latencies below 2us, bucket i counts latencies in [2^i, 2^(i+1)) us and the
+     * last bucket also counts everything above that. Needs to stay in sync with
+     * kUpcallLatencyBucketCount in jni/include/libfuse_jni/UpcallMetrics.h
+     */
+    @VisibleForTesting
+    static final int LATENCY_BUCKET_COUNT = 24;
+
+    // Bucket counts followed by the total latency in microseconds
+    private static final int HISTOGRAM_SIZE = LATENCY_BUCKET_COUNT + 1;
+
+    private static final String[] UPCALL_NAMES = {
+            "insertFile",
+            "deleteFile",
+            "onFileOpen",
+            "isDirAccessAllowed",
+            "getDirectoryEntries",
+            "rename",
+            "isUidAllowedAccessToDataOrObbPath",
+            "onFileCreated",
+            "shouldAllowLookup",
+            "isAppCloneUser",
+            "fileLookup",
+            "transform",
+    };
+
+    private static final AtomicLongArray sJavaHistograms =
+            new AtomicLongArray(UPCALL_COUNT * HISTOGRAM_SIZE);
+
+    private FuseUpcallMetrics() {}
+
+    /** Returns the start time to pass to {@link #endUpcall(int, long)}. */
+    public static long startUpcall() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /** Records the latency of the {@code upcall} that started at {@code startTime}. */
+    public static void endUpcall(int upcall, long startTime) {
+        recordJavaLatency(upcall,
+                TimeUnit.NANOSECONDS.toMicros(SystemClock.elapsedRealtimeNanos() - startTime));
+    }
+
+    @VisibleForTesting
+    static void recordJavaLatency(int upcall, long latencyMicros) {
+        final int offset = upcall * HISTOGRAM_SIZE;
+        sJavaHistograms.incrementAndGet(offset + getBucket(latencyMicros));
+        sJavaHistograms.addAndGet(offset + LATENCY_BUCKET_COUNT, latencyMicros);
+    }
+
+    @VisibleForTesting
+    static int getBucket(long latencyMicros) {
+        if (latencyMicros < 2) {
+            return 0;
+        }
+        final int bucket = 63 - Long.numberOfLeadingZeros(latencyMicros);
+        return Math.min(bucket, LATENCY_BUCKET_COUNT - 1);
+    }
+
+    /** Returns the exclusive upper bound in microseconds of the given {@code bucket}. */
+    @VisibleForTesting
+    static long getBucketUpperBoundMicros(int bucket) {
+        return bucket == LATENCY_BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << (bucket + 1);
+    }
+
+    /**
+     * Returns the upper bound in microseconds of the bucket containing the given
+     * {@code percentile} of the upcalls in the histogram at {@code offset}.
+     */
+    @VisibleForTesting
+    static long getPercentileUpperBoundMicros(long[] histograms, int offset, int percentile) {
+        final long count = getCount(histograms, offset);
+        final long target = (count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKET_COUNT; i++) {
+            seen += histograms[offset + i];
+            if (seen >= target) {
+                return getBucketUpperBoundMicros(i);
+            }
+        }
+        return getBucketUpperBoundMicros(LATENCY_BUCKET_COUNT - 1);
+    }
+
+    @VisibleForTesting
+    static long[] getJavaHistograms() {
+        final long[] histograms = new long[sJavaHistograms.length()];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = sJavaHistograms.get(i);
+        }
+        return histograms;
+    }
+
+    @Nullable
+    private static long[] getNativeHistograms() {
+        final long[] histograms = FuseDaemon.native_get_upcall_latency_histograms();
+        if (histograms == null || histograms.length != UPCALL_COUNT * HISTOGRAM_SIZE) {
+            Log.w(TAG, "Unexpected native upcall histograms");
+            return null;
+        }
+        return histograms;
+    }
+
+    private static long getCount(long[] histograms, int offset) {
+        long count = 0;
+        for (int i = 0; i < LATENCY_BUCKET_COUNT; i++) {
+            count += histograms[offset + i];
+        }
+        return count;
+    }
+
+    /** Dumps the upcall latencies recorded since MediaProvider started. */
+    public static void dump(@NonNull PrintWriter writer) {
+        final long[] javaHistograms = getJavaHistograms();
+        final long[] nativeHistograms = getNativeHistograms();
+
+        writer.println("FUSE upcall latencies:");
+        for (int upcall = 0; upcall < UPCALL_COUNT; upcall++) {
+            final int offset = upcall * HISTOGRAM_SIZE;
+            writer.println("  " + UPCALL_NAMES[upcall] + ":");
+            if (nativeHistograms != null) {
+                writer.println("    native " + formatHistogram(nativeHistograms, offset));
+            }
+            writer.println("    java " + formatHistogram(javaHistograms, offset));
+        }
+    }
+
+    private static String formatHistogram(long[] histograms, int offset) {
+        final long count = getCount(histograms, offset);
+        if (count == 0) {
+            return "count=0";
+        }
+        return "count=" + count
+                + " avgUs=" + histograms[offset + LATENCY_BUCKET_COUNT] / count
+                + " p50Us<" + getPercentileUpperBoundMicros(histograms, offset, 50)
+                + " p90Us<" + getPercentileUpperBoundMicros(histograms, offset, 90)
+                + " p99Us<" + getPercentileUpperBoundMicros(histograms, offset, 99);
+    }
+}
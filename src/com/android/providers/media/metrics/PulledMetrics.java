@@ -40,6 +40,9 @@ public class PulledMetrics {
 
     private static final StorageAccessMetrics storageAccessMetrics = new StorageAccessMetrics();
 
+    private static final FuseAccessLog fuseAccessLog = new FuseAccessLog(
+            BackgroundThread.getExecutor(), storageAccessMetrics::logAccessViaFuse);
+
     private static boolean isInitialized = false;
 
     public static void initialize(Context context) {
@@ -98,9 +101,7 @@ public class PulledMetrics {
         if (!FuseDaemon.native_is_fuse_thread()) {
             return;
         }
-        BackgroundThread.getExecutor().execute(() -> {
-            storageAccessMetrics.logAccessViaFuse(uid, file);
-        });
+        fuseAccessLog.append(uid, file);
     }
 
     /**
@@ -140,6 +141,7 @@ public class PulledMetrics {
                 case TRANSCODING_DATA:
                     return TranscodeMetrics.pullStatsEvents();
                 case GENERAL_EXTERNAL_STORAGE_ACCESS_STATS:
+                    fuseAccessLog.drain();
                     return storageAccessMetrics.pullStatsEvents();
                 default:
                     return null;
@@ -84,7 +84,8 @@ class StorageAccessMetrics {
     /**
      * Logs the storage access and attributes it to the given {@code uid}.
      *
-     * <p>Should only be called from a FUSE thread.
+     * <p>Should only be called for accesses made from a FUSE thread, after they are drained from
+     * {@link FuseAccessLog}.
      */
     void logAccessViaFuse(int uid, @NonNull String file) {
         // We don't log the access if it's MediaProvider accessing.
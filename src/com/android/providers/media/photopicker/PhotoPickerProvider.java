@@ -105,7 +105,8 @@ public class PhotoPickerProvider extends CloudMediaProvider {
 
         final LocalCallingIdentity token = mMediaProvider.clearLocalCallingIdentity();
         try {
-            return mMediaProvider.openTypedAssetFile(fromMediaId(mediaId), mimeTypeFilter, opts);
+            return mMediaProvider.openTypedAssetFile(fromMediaId(mediaId), mimeTypeFilter, opts,
+                    signal);
         } finally {
             mMediaProvider.restoreLocalCallingIdentity(token);
         }
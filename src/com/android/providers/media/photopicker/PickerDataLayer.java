@@ -66,10 +66,11 @@ public class PickerDataLayer {
         // favorites and video are tagged in the media table and are not a part of
         // album_media.
         if (TextUtils.isEmpty(albumId) || isMergedAlbum(queryExtras)) {
-            // Refresh the 'media' table
-            mSyncController.syncAllMedia();
+            // Serve the 'media' table as is and refresh it in the background. The picker is
+            // notified of PICKER_INTERNAL_URI changes if the refresh changes it
+            mSyncController.requestSyncAllMedia();
 
-            if (TextUtils.isEmpty(albumId)) {
+            if (TextUtils.isEmpty(albumId) && !queryExtras.isNextPage()) {
                 // Notify that the picker is launched in case there's any pending UI notification
                 mSyncController.notifyPickerLaunch();
             }
@@ -81,8 +82,11 @@ public class PickerDataLayer {
         } else {
             // The album type here can only be local or cloud because merged categories like,
             // Favorites and Videos would hit the first condition.
-            // Refresh the 'album_media' table
-            mSyncController.syncAlbumMedia(albumId, isLocal(authority));
+            // Refresh the 'album_media' table. The next pages are served from the 'album_media'
+            // synced for the first page, so that they continue where the previous page stopped
+            if (!queryExtras.isNextPage()) {
+                mSyncController.syncAlbumMedia(albumId, isLocal(authority));
+            }
 
             // Fetch album specific media for local or cloud from 'album_media' table
             return mDbFacade.queryAlbumMediaForUi(queryExtras.toQueryFilter(), authority);
@@ -100,8 +104,9 @@ public class PickerDataLayer {
     }
 
     public Cursor fetchAlbums(Bundle queryArgs) {
-        // Refresh the 'media' table so that 'merged' albums (Favorites and Videos) are up to date
-        mSyncController.syncAllMedia();
+        // Refresh the 'media' table in the background so that 'merged' albums (Favorites and
+        // Videos) are brought up to date
+        mSyncController.requestSyncAllMedia();
 
         final String cloudProvider = mDbFacade.getCloudProvider();
         final CloudProviderQueryExtras queryExtras
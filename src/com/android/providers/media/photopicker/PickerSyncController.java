@@ -23,6 +23,7 @@ import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.EXTRA_SYNC_GENERATION;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
 
+import static com.android.providers.media.PickerUriResolver.PICKER_INTERNAL_URI;
 import static com.android.providers.media.PickerUriResolver.getDeletedMediaUri;
 import static com.android.providers.media.PickerUriResolver.getMediaCollectionInfoUri;
 import static com.android.providers.media.PickerUriResolver.getMediaUri;
@@ -40,6 +41,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.provider.CloudMediaProvider;
 import android.provider.CloudMediaProviderContract;
@@ -49,6 +51,7 @@ import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.GuardedBy;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.modules.utils.BackgroundThread;
@@ -65,6 +68,15 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Syncs the local and currently enabled cloud {@link CloudMediaProvider} instances on the device
@@ -82,26 +94,62 @@ public class PickerSyncController {
     private static final String PREFS_KEY_CLOUD_PREFIX = "cloud_provider:";
     private static final String PREFS_KEY_LOCAL_PREFIX = "local_provider:";
 
+    // Position of an interrupted media sync, updated after every page written to the picker db
+    private static final String PREFS_KEY_RESUME_AUTHORITY = "resume_authority";
+    private static final String PREFS_KEY_RESUME_MEDIA_COLLECTION_ID =
+            "resume_media_collection_id";
+    private static final String PREFS_KEY_RESUME_LAST_MEDIA_SYNC_GENERATION =
+            "resume_last_media_sync_generation";
+    private static final String PREFS_KEY_RESUME_SYNC_GENERATION = "resume_sync_generation";
+    private static final String PREFS_KEY_RESUME_IS_REMOVING_MEDIA = "resume_is_removing_media";
+    private static final String PREFS_KEY_RESUME_PAGE_TOKEN = "resume_page_token";
+    private static final String PREFS_KEY_RESUME_FAILURE_COUNT = "resume_failure_count";
+
     private static final String PICKER_USER_PREFS_FILE_NAME = "picker_user_prefs";
     public static final String PICKER_SYNC_PREFS_FILE_NAME = "picker_sync_prefs";
     public static final String LOCAL_PICKER_PROVIDER_AUTHORITY =
             "com.android.providers.media.photopicker";
 
+    // Picker requests to sync all media are dropped within this interval of the last sync
+    private static final long SYNC_ALL_MEDIA_MIN_INTERVAL_MS = 5000;
+
+    // An interrupted sync is resumed until it fails this many times, then the media is reset
+    private static final int SYNC_RESUME_MAX_FAILURE_COUNT = 3;
+
+    // Number of pages fetched ahead of the page being written to the picker db in a paged sync
+    private static final int PAGED_SYNC_PREFETCH_PAGE_COUNT = 2;
+    private static final long PAGED_SYNC_PREFETCH_WAIT_MS = 100;
+    private static final Object PAGED_SYNC_END_OF_PAGES = new Object();
+
+    // Fetches the pages of paged syncs from the providers. Syncs write to the picker db on their
+    // own thread, since the db transaction is bound to it
+    private static final ExecutorService sPagedSyncFetchExecutor = Executors.newCachedThreadPool(
+            runnable -> new Thread(runnable, "PickerPagedSyncFetch"));
+
+    // Syncs the local provider while the syncing thread syncs the cloud provider
+    private static final ExecutorService sLocalSyncExecutor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(runnable, "PickerLocalSync"));
+
     private static final int SYNC_TYPE_NONE = 0;
     private static final int SYNC_TYPE_MEDIA_INCREMENTAL = 1;
     private static final int SYNC_TYPE_MEDIA_FULL = 2;
     private static final int SYNC_TYPE_MEDIA_RESET = 3;
+    private static final int SYNC_TYPE_MEDIA_RESUME = 4;
 
     @IntDef(flag = false, prefix = { "SYNC_TYPE_" }, value = {
                 SYNC_TYPE_NONE,
             SYNC_TYPE_MEDIA_INCREMENTAL,
             SYNC_TYPE_MEDIA_FULL,
             SYNC_TYPE_MEDIA_RESET,
+            SYNC_TYPE_MEDIA_RESUME,
     })
     @Retention(RetentionPolicy.SOURCE)
     private @interface SyncType {}
 
     private final Object mLock = new Object();
+    // Serializes the syncs of the cloud provider. Unlike mLock, it's held for the whole sync, so
+    // it's never taken to switch the cloud provider. Always acquired before mLock
+    private final Object mCloudSyncLock = new Object();
     private final PickerDbFacade mDbFacade;
     private final Context mContext;
     private final SharedPreferences mSyncPrefs;
@@ -110,10 +158,13 @@ public class PickerSyncController {
     private final long mSyncDelayMs;
     private final Runnable mSyncAllMediaCallback;
     private final Set<String> mAllowedCloudProviders;
+    private final AtomicBoolean mSyncAllMediaRequested = new AtomicBoolean();
 
     @GuardedBy("mLock")
     private CloudProviderInfo mCloudProviderInfo;
 
+    private volatile long mLastSyncAllMediaStartMs = -SYNC_ALL_MEDIA_MIN_INTERVAL_MS;
+
     public PickerSyncController(Context context, PickerDbFacade dbFacade,
             String localProvider, String allowedCloudProviders, long syncDelayMs) {
         mContext = context;
@@ -124,7 +175,7 @@ public class PickerSyncController {
         mDbFacade = dbFacade;
         mLocalProvider = localProvider;
         mSyncDelayMs = syncDelayMs;
-        mSyncAllMediaCallback = this::syncAllMedia;
+        mSyncAllMediaCallback = () -> syncAllMediaAndNotify(/* resetAlbumMedia */ true);
 
         final String cachedAuthority = mUserPrefs.getString(
                 PREFS_KEY_CLOUD_PROVIDER_AUTHORITY, null);
@@ -149,18 +200,89 @@ public class PickerSyncController {
      * Syncs the local and currently enabled cloud {@link CloudMediaProvider} instances
      */
     public void syncAllMedia() {
-        syncAllMediaFromProvider(mLocalProvider, /* retryOnFailure */ true);
+        syncAllMedia(/* resetAlbumMedia */ true);
+    }
 
-        synchronized (mLock) {
-            final String cloudProvider = mCloudProviderInfo.authority;
+    /**
+     * Syncs the local and currently enabled cloud {@link CloudMediaProvider} instances in the
+     * background, without waiting for the sync to finish.
+     *
+     * The request is dropped if a requested sync is already pending, or if the last sync started
+     * less than {@link #SYNC_ALL_MEDIA_MIN_INTERVAL_MS} ago. Observers of
+     * {@link com.android.providers.media.PickerUriResolver#PICKER_INTERNAL_URI} are notified if
+     * the sync changes the picker db.
+     */
+    public void requestSyncAllMedia() {
+        if (SystemClock.elapsedRealtime() - mLastSyncAllMediaStartMs
+                < SYNC_ALL_MEDIA_MIN_INTERVAL_MS) {
+            return;
+        }
+
+        if (mSyncAllMediaRequested.compareAndSet(false, true)) {
+            BackgroundThread.getExecutor().execute(() -> {
+                mSyncAllMediaRequested.set(false);
+                // Don't reset album_media, the picker might be showing an album while we sync.
+                // album_media is synced again every time an album is opened anyway.
+                syncAllMediaAndNotify(/* resetAlbumMedia */ false);
+            });
+        }
+    }
+
+    private void syncAllMediaAndNotify(boolean resetAlbumMedia) {
+        if (syncAllMedia(resetAlbumMedia)) {
+            mContext.getContentResolver().notifyChange(PICKER_INTERNAL_URI, /* observer */ null);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the sync might have changed the media visible in the picker db,
+     * {@code false} otherwise
+     */
+    @VisibleForTesting
+    boolean syncAllMedia(boolean resetAlbumMedia) {
+        mLastSyncAllMediaStartMs = SystemClock.elapsedRealtime();
+
+        // The local sync is mostly disk bound and the cloud sync mostly IPC bound, so run them
+        // concurrently. Their db writes are still serialized by the db transactions
+        final Future<Boolean> localSync = sLocalSyncExecutor.submit(
+                () -> syncAllMediaFromProvider(mLocalProvider, /* retryOnFailure */ true));
+
+        final String cloudProvider;
+        boolean changed;
+        synchronized (mCloudSyncLock) {
+            cloudProvider = getCloudProvider();
+            changed = syncAllMediaFromProvider(cloudProvider, /* retryOnFailure */ true);
+        }
+        changed |= waitForLocalSync(localSync);
+
+        if (resetAlbumMedia) {
+            synchronized (mCloudSyncLock) {
+                // Reset the album_media table every time we sync all media
+                resetAlbumMedia(cloudProvider);
+            }
+        }
 
-            syncAllMediaFromProvider(cloudProvider, /* retryOnFailure */ true);
+        synchronized (mLock) {
+            // If the cloud provider changed during the sync, the db facade keeps hiding cloud
+            // media until the new cloud provider is synced
+            if (Objects.equals(mCloudProviderInfo.authority, cloudProvider)) {
+                // Set the latest cloud provider on the facade
+                changed |= !Objects.equals(mDbFacade.getCloudProvider(), cloudProvider);
+                mDbFacade.setCloudProvider(cloudProvider);
+            }
+        }
 
-            // Reset the album_media table every time we sync all media
-            resetAlbumMedia();
+        return changed;
+    }
 
-            // Set the latest cloud provider on the facade
-            mDbFacade.setCloudProvider(cloudProvider);
+    private static boolean waitForLocalSync(Future<Boolean> localSync) {
+        try {
+            return localSync.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to sync local media", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while syncing local media", e);
         }
     }
 
@@ -172,24 +294,21 @@ public class PickerSyncController {
         if (isLocal) {
             syncAlbumMediaFromProvider(mLocalProvider, albumId);
         } else {
-            synchronized (mLock) {
-                syncAlbumMediaFromProvider(mCloudProviderInfo.authority, albumId);
+            synchronized (mCloudSyncLock) {
+                syncAlbumMediaFromProvider(getCloudProvider(), albumId);
             }
         }
     }
 
-    private void resetAlbumMedia() {
+    private void resetAlbumMedia(String cloudProvider) {
         executeSyncAlbumReset(mLocalProvider, /* albumId */ null);
-
-        synchronized (mLock) {
-            final String cloudProvider = mCloudProviderInfo.authority;
-            executeSyncAlbumReset(cloudProvider, /* albumId */ null);
-        }
+        executeSyncAlbumReset(cloudProvider, /* albumId */ null);
     }
 
-    private void resetAllMedia(String authority) {
-        executeSyncReset(authority);
+    private int resetAllMedia(String authority) {
+        final int writeCount = executeSyncReset(authority);
         resetCachedMediaCollectionInfo(authority);
+        return writeCount;
     }
 
     /**
@@ -257,6 +376,9 @@ public class PickerSyncController {
 
         final CloudProviderInfo newProviderInfo = getCloudProviderInfo(authority);
         if (authority == null || !newProviderInfo.isEmpty()) {
+            // A sync of the old cloud provider may still be running. It stops writing to the
+            // picker db and the sync prefs once the new cloud provider is set, see
+            // commitDbWrites and applySyncPrefs
             synchronized (mLock) {
                 final String oldAuthority = mCloudProviderInfo.authority;
                 persistCloudProviderInfo(newProviderInfo);
@@ -436,57 +558,91 @@ public class PickerSyncController {
         }
     }
 
-    private void syncAllMediaFromProvider(String authority, boolean retryOnFailure) {
+    /**
+     * Returns {@code true} if the sync might have changed the media of {@code authority} in the
+     * picker db, {@code false} otherwise
+     */
+    private boolean syncAllMediaFromProvider(String authority, boolean retryOnFailure) {
         try {
             final SyncRequestParams params = getSyncRequestParams(authority);
 
             switch (params.syncType) {
                 case SYNC_TYPE_MEDIA_RESET:
                     // Can only happen when |authority| has been set to null and we need to clean up
-                    resetAllMedia(authority);
-                    break;
+                    return resetAllMedia(authority) > 0;
                 case SYNC_TYPE_MEDIA_FULL:
                     resetAllMedia(authority);
 
-                    // Pass a mutable empty bundle intentionally because it might be populated with
-                    // the next page token as part of a query to a cloud provider supporting
-                    // pagination
-                    executeSyncAdd(authority, params.getMediaCollectionId(),
-                            /* isIncrementalSync */ false, /* queryArgs */ new Bundle());
-
-                    // Commit sync position
-                    cacheMediaCollectionInfo(authority, params.latestMediaCollectionInfo);
-                    break;
+                    executeSyncMedia(authority,
+                            SyncCheckpoint.forFullSync(params.latestMediaCollectionInfo));
+                    return true;
                 case SYNC_TYPE_MEDIA_INCREMENTAL:
-                    final Bundle queryArgs = new Bundle();
-                    queryArgs.putLong(EXTRA_SYNC_GENERATION, params.syncGeneration);
-
-                    executeSyncAdd(authority, params.getMediaCollectionId(),
-                            /* isIncrementalSync */ true, queryArgs);
-                    executeSyncRemove(authority, params.getMediaCollectionId(), queryArgs);
-
-                    // Commit sync position
-                    cacheMediaCollectionInfo(authority, params.latestMediaCollectionInfo);
-                    break;
+                    executeSyncMedia(authority, SyncCheckpoint.forIncrementalSync(
+                            params.syncGeneration, params.latestMediaCollectionInfo));
+                    return true;
+                case SYNC_TYPE_MEDIA_RESUME:
+                    executeSyncMedia(authority, params.checkpoint);
+                    return true;
                 case SYNC_TYPE_NONE:
-                    break;
+                    return false;
                 default:
                     throw new IllegalArgumentException("Unexpected sync type: " + params.syncType);
             }
+        } catch (CloudProviderChangedException e) {
+            // The new cloud provider is synced from scratch anyway
+            Log.i(TAG, "Stopped syncing all media of previous cloud provider: " + authority);
+            return false;
         } catch (RuntimeException e) {
-            // Reset all media for the cloud provider in case it never succeeds
-            resetAllMedia(authority);
-
-            // Attempt a full sync. If this fails, the db table would have been reset,
-            // flushing all old content and leaving the picker UI empty.
-            Log.e(TAG, "Failed to sync all media. Reset media and retry: " + retryOnFailure, e);
+            // Only report a change if media was actually reset or synced, so that a provider that
+            // keeps failing doesn't make the picker reload after every sync
+            boolean changed = false;
+
+            // A mismatched media collection id means the media synced so far is stale
+            if (!(e instanceof MediaCollectionIdMismatchException)
+                    && recordSyncFailure(authority)) {
+                // Keep the media synced so far and resume from the last page written to the db
+                Log.e(TAG, "Failed to sync all media. Resume sync and retry: " + retryOnFailure,
+                        e);
+            } else {
+                // Reset all media for the cloud provider in case it never succeeds
+                changed = resetAllMedia(authority) > 0;
+
+                // Attempt a full sync. If this fails, the db table would have been reset,
+                // flushing all old content and leaving the picker UI empty.
+                Log.e(TAG, "Failed to sync all media. Reset media and retry: " + retryOnFailure,
+                        e);
+            }
             if (retryOnFailure) {
-                syncAllMediaFromProvider(authority, /* retryOnFailure */ false);
+                changed |= syncAllMediaFromProvider(authority, /* retryOnFailure */ false);
             }
+            return changed;
         }
     }
 
-    private void executeSyncReset(String authority) {
+    /**
+     * Adds, then for incremental syncs removes, the media of {@code authority} starting at
+     * {@code checkpoint}. The sync position is persisted after every page written to the picker
+     * db, so that a failed sync can resume from there.
+     */
+    private void executeSyncMedia(String authority, SyncCheckpoint checkpoint) {
+        persistSyncCheckpoint(authority, checkpoint);
+
+        if (!checkpoint.isRemovingMedia) {
+            executeSyncAdd(authority, checkpoint);
+
+            checkpoint = checkpoint.forRemovingMedia();
+            persistSyncCheckpoint(authority, checkpoint);
+        }
+
+        if (checkpoint.isIncremental()) {
+            executeSyncRemove(authority, checkpoint);
+        }
+
+        // Commit sync position
+        cacheMediaCollectionInfo(authority, checkpoint.toMediaCollectionInfo());
+    }
+
+    private int executeSyncReset(String authority) {
         Log.i(TAG, "Executing SyncReset. authority: " + authority);
 
         try (PickerDbFacade.DbWriteOperation operation =
@@ -495,6 +651,7 @@ public class PickerSyncController {
             operation.setSuccess();
 
             Log.i(TAG, "SyncReset. Authority: " + authority +  ". Result count: " + writeCount);
+            return writeCount;
         }
     }
 
@@ -512,19 +669,19 @@ public class PickerSyncController {
         }
     }
 
-    private void executeSyncAdd(String authority, String expectedMediaCollectionId,
-            boolean isIncrementalSync, Bundle queryArgs) {
+    private void executeSyncAdd(String authority, SyncCheckpoint checkpoint) {
         final Uri uri = getMediaUri(authority);
         final List<String> expectedHonoredArgs = new ArrayList<>();
-        if (isIncrementalSync) {
+        if (checkpoint.isIncremental()) {
             expectedHonoredArgs.add(EXTRA_SYNC_GENERATION);
         }
 
-        Log.i(TAG, "Executing SyncAdd. authority: " + authority);
+        Log.i(TAG, "Executing SyncAdd. authority: " + authority + ". checkpoint: " + checkpoint);
         try (PickerDbFacade.DbWriteOperation operation =
                      mDbFacade.beginAddMediaOperation(authority)) {
-            executePagedSync(uri, expectedMediaCollectionId, expectedHonoredArgs, queryArgs,
-                    operation);
+            executePagedSync(authority, uri, checkpoint.mediaCollectionId, expectedHonoredArgs,
+                    checkpoint.getQueryArgs(), operation, pageToken -> persistSyncCheckpoint(
+                            authority, checkpoint.withPageToken(pageToken)));
         }
     }
 
@@ -537,19 +694,23 @@ public class PickerSyncController {
 
             // We don't need to validate the mediaCollectionId for album_media sync since it's
             // always a full sync
-            executePagedSync(uri, /* mediaCollectionId */ null, Arrays.asList(EXTRA_ALBUM_ID),
-                    queryArgs, operation);
+            executePagedSync(authority, uri, /* mediaCollectionId */ null,
+                    Arrays.asList(EXTRA_ALBUM_ID), queryArgs, operation,
+                    /* pageCommitCallback */ null);
         }
     }
 
-    private void executeSyncRemove(String authority, String mediaCollectionId, Bundle queryArgs) {
+    private void executeSyncRemove(String authority, SyncCheckpoint checkpoint) {
         final Uri uri = getDeletedMediaUri(authority);
 
-        Log.i(TAG, "Executing SyncRemove. authority: " + authority);
+        Log.i(TAG, "Executing SyncRemove. authority: " + authority + ". checkpoint: "
+                + checkpoint);
         try (PickerDbFacade.DbWriteOperation operation =
                      mDbFacade.beginRemoveMediaOperation(authority)) {
-            executePagedSync(uri, mediaCollectionId, Arrays.asList(EXTRA_SYNC_GENERATION),
-                    queryArgs, operation);
+            executePagedSync(authority, uri, checkpoint.mediaCollectionId,
+                    Arrays.asList(EXTRA_SYNC_GENERATION), checkpoint.getQueryArgs(), operation,
+                    pageToken -> persistSyncCheckpoint(authority,
+                            checkpoint.withPageToken(pageToken)));
         }
     }
 
@@ -607,7 +768,124 @@ public class PickerSyncController {
                     generation);
         }
 
-        editor.apply();
+        // The sync position moved, so any interrupted sync is obsolete
+        removeSyncCheckpoint(editor, authority);
+        applySyncPrefs(authority, editor);
+    }
+
+    /**
+     * Applies the sync prefs of {@code authority}, unless it's no longer the cloud provider: the
+     * cloud provider can change during a sync, which must not overwrite the sync prefs of the new
+     * cloud provider then.
+     */
+    private void applySyncPrefs(String authority, SharedPreferences.Editor editor) {
+        synchronized (mLock) {
+            if (!isLocal(authority) && !Objects.equals(mCloudProviderInfo.authority, authority)) {
+                Log.d(TAG, "Ignoring sync prefs of previous cloud provider: " + authority);
+                return;
+            }
+            editor.apply();
+        }
+    }
+
+    /**
+     * Commits the picker db writes of {@code operation} so far, like {@link #applySyncPrefs} only
+     * if {@code authority} is still the cloud provider. The check and the commit both happen under
+     * mLock, so the cloud provider can't change in between.
+     *
+     * @throws CloudProviderChangedException if {@code authority} is no longer the cloud provider,
+     *         the writes are then rolled back when {@code operation} is closed
+     */
+    private void commitDbWrites(String authority, PickerDbFacade.DbWriteOperation operation) {
+        synchronized (mLock) {
+            if (!isLocal(authority) && !Objects.equals(mCloudProviderInfo.authority, authority)) {
+                throw new CloudProviderChangedException(
+                        "Ignoring db writes of previous cloud provider: " + authority);
+            }
+            operation.commit();
+        }
+    }
+
+    private void persistSyncCheckpoint(String authority, SyncCheckpoint checkpoint) {
+        final SharedPreferences.Editor editor = mSyncPrefs.edit();
+
+        editor.putString(getPrefsKey(authority, PREFS_KEY_RESUME_AUTHORITY), authority);
+        editor.putString(getPrefsKey(authority, PREFS_KEY_RESUME_MEDIA_COLLECTION_ID),
+                checkpoint.mediaCollectionId);
+        editor.putLong(getPrefsKey(authority, PREFS_KEY_RESUME_LAST_MEDIA_SYNC_GENERATION),
+                checkpoint.lastMediaSyncGeneration);
+        editor.putLong(getPrefsKey(authority, PREFS_KEY_RESUME_SYNC_GENERATION),
+                checkpoint.syncGeneration);
+        editor.putBoolean(getPrefsKey(authority, PREFS_KEY_RESUME_IS_REMOVING_MEDIA),
+                checkpoint.isRemovingMedia);
+        editor.putString(getPrefsKey(authority, PREFS_KEY_RESUME_PAGE_TOKEN),
+                checkpoint.pageToken);
+        editor.putInt(getPrefsKey(authority, PREFS_KEY_RESUME_FAILURE_COUNT),
+                checkpoint.failureCount);
+
+        applySyncPrefs(authority, editor);
+    }
+
+    private void removeSyncCheckpoint(SharedPreferences.Editor editor, String authority) {
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_AUTHORITY));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_MEDIA_COLLECTION_ID));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_LAST_MEDIA_SYNC_GENERATION));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_SYNC_GENERATION));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_IS_REMOVING_MEDIA));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_PAGE_TOKEN));
+        editor.remove(getPrefsKey(authority, PREFS_KEY_RESUME_FAILURE_COUNT));
+    }
+
+    /** Returns the position of the interrupted sync of {@code authority}, if any. */
+    @Nullable
+    private SyncCheckpoint getSyncCheckpoint(String authority) {
+        if (authority == null || !authority.equals(mSyncPrefs.getString(
+                getPrefsKey(authority, PREFS_KEY_RESUME_AUTHORITY), /* default */ null))) {
+            return null;
+        }
+
+        return new SyncCheckpoint(
+                mSyncPrefs.getString(
+                        getPrefsKey(authority, PREFS_KEY_RESUME_MEDIA_COLLECTION_ID),
+                        /* default */ null),
+                mSyncPrefs.getLong(
+                        getPrefsKey(authority, PREFS_KEY_RESUME_LAST_MEDIA_SYNC_GENERATION),
+                        /* default */ -1),
+                mSyncPrefs.getLong(getPrefsKey(authority, PREFS_KEY_RESUME_SYNC_GENERATION),
+                        /* default */ -1),
+                mSyncPrefs.getBoolean(
+                        getPrefsKey(authority, PREFS_KEY_RESUME_IS_REMOVING_MEDIA),
+                        /* default */ false),
+                mSyncPrefs.getString(getPrefsKey(authority, PREFS_KEY_RESUME_PAGE_TOKEN),
+                        /* default */ null),
+                mSyncPrefs.getInt(getPrefsKey(authority, PREFS_KEY_RESUME_FAILURE_COUNT),
+                        /* default */ 0));
+    }
+
+    /**
+     * Records a failed sync of {@code authority}.
+     *
+     * @return {@code true} if the sync can resume from its checkpoint, {@code false} if there is
+     *         no checkpoint or the sync failed too many times and the checkpoint was removed
+     */
+    private boolean recordSyncFailure(String authority) {
+        final SyncCheckpoint checkpoint = getSyncCheckpoint(authority);
+        if (checkpoint == null) {
+            return false;
+        }
+
+        final int failureCount = checkpoint.failureCount + 1;
+        if (failureCount >= SYNC_RESUME_MAX_FAILURE_COUNT) {
+            Log.w(TAG, "Giving up on resuming sync. Authority: " + authority + ". Checkpoint: "
+                    + checkpoint);
+            final SharedPreferences.Editor editor = mSyncPrefs.edit();
+            removeSyncCheckpoint(editor, authority);
+            applySyncPrefs(authority, editor);
+            return false;
+        }
+
+        persistSyncCheckpoint(authority, checkpoint.withFailureCount(failureCount));
+        return true;
     }
 
     private void resetCachedMediaCollectionInfo(String authority) {
@@ -666,6 +944,17 @@ public class PickerSyncController {
                     + latestCollectionId + ". lastMediaSyncGeneration: " + latestGeneration);
         }
 
+        final SyncCheckpoint checkpoint = getSyncCheckpoint(authority);
+        if (checkpoint != null) {
+            // The media synced before the sync was interrupted is only valid if the media
+            // collection didn't change since. Otherwise the full sync below resets it
+            if (Objects.equals(latestCollectionId, checkpoint.mediaCollectionId)) {
+                Log.d(TAG, "SyncRequestParams. Authority: " + authority
+                        + ". Result: SYNC_TYPE_RESUME. Checkpoint: " + checkpoint);
+                return SyncRequestParams.forResume(checkpoint);
+            }
+        }
+
         if (!Objects.equals(latestCollectionId, cachedCollectionId)) {
             Log.d(TAG, "SyncRequestParams. Authority: " + authority + ". Result: SYNC_TYPE_FULL");
             return SyncRequestParams.forFullMedia(latestMediaCollectionInfo);
@@ -694,31 +983,45 @@ public class PickerSyncController {
                 /* cancellationSignal */ null);
     }
 
-    private void executePagedSync(Uri uri, String expectedMediaCollectionId,
+    /**
+     * Writes all the pages of {@code uri} with {@code dbWriteOperation}.
+     *
+     * @param pageCommitCallback if not {@code null}, every page followed by another one is
+     *                           committed to the picker db on its own and the token of the next
+     *                           page is then passed to this callback
+     */
+    private void executePagedSync(String authority, Uri uri, String expectedMediaCollectionId,
             List<String> expectedHonoredArgs, Bundle queryArgs,
-            PickerDbFacade.DbWriteOperation dbWriteOperation) {
+            PickerDbFacade.DbWriteOperation dbWriteOperation,
+            @Nullable Consumer<String> pageCommitCallback) {
         int cursorCount = 0;
         int totalRowcount = 0;
-        // Set to check the uniqueness of tokens across pages.
-        Set<String> tokens = new ArraySet<>();
-
-        String nextPageToken = null;
-        do {
-            if (nextPageToken != null) {
-                queryArgs.putString(EXTRA_PAGE_TOKEN, nextPageToken);
-            }
-
-            try (Cursor cursor = query(uri, queryArgs)) {
-                nextPageToken = validateCursor(cursor, expectedMediaCollectionId,
-                        expectedHonoredArgs, tokens);
-
-                int writeCount = dbWriteOperation.execute(cursor);
 
-                totalRowcount += writeCount;
-                cursorCount += cursor.getCount();
+        // Fetch the next pages from the provider while the current page is written to the db
+        final PagePrefetcher prefetcher = new PagePrefetcher(uri, expectedMediaCollectionId,
+                expectedHonoredArgs, queryArgs);
+        sPagedSyncFetchExecutor.execute(prefetcher);
+        try {
+            Cursor page;
+            while ((page = prefetcher.takePage()) != null) {
+                try (Cursor cursor = page) {
+                    int writeCount = dbWriteOperation.execute(cursor);
+
+                    totalRowcount += writeCount;
+                    cursorCount += cursor.getCount();
+
+                    final String nextPageToken = cursor.getExtras().getString(EXTRA_PAGE_TOKEN);
+                    if (pageCommitCallback != null && nextPageToken != null) {
+                        commitDbWrites(authority, dbWriteOperation);
+                        pageCommitCallback.accept(nextPageToken);
+                    }
+                }
             }
-        } while (nextPageToken != null);
+        } finally {
+            prefetcher.cancel();
+        }
 
+        commitDbWrites(authority, dbWriteOperation);
         dbWriteOperation.setSuccess();
         Log.i(TAG, "Paged sync successful. QueryArgs: " + queryArgs + ". Result count: "
                 + totalRowcount + ". Cursor count: " + cursorCount);
@@ -794,8 +1097,9 @@ public class PickerSyncController {
 
         if (expectedMediaCollectionId != null
                 && !expectedMediaCollectionId.equals(mediaCollectionId)) {
-            throw new IllegalStateException("Mismatched media collection id. Expected: "
-                    + expectedMediaCollectionId + ". Found: " + mediaCollectionId);
+            throw new MediaCollectionIdMismatchException(
+                    "Mismatched media collection id. Expected: " + expectedMediaCollectionId
+                            + ". Found: " + mediaCollectionId);
         }
 
         if (!honoredArgs.containsAll(expectedHonoredArgs)) {
@@ -813,6 +1117,136 @@ public class PickerSyncController {
         return pageToken;
     }
 
+    /**
+     * Fetches and validates the pages of a paged sync, up to
+     * {@link #PAGED_SYNC_PREFETCH_PAGE_COUNT} pages ahead of the page taken by the syncing thread.
+     * A failure to fetch or validate a page is rethrown by {@link #takePage()} once the pages
+     * before it are taken, so the sync fails just like a sync fetching one page at a time.
+     */
+    private final class PagePrefetcher implements Runnable {
+        private final Uri mUri;
+        private final String mExpectedMediaCollectionId;
+        private final List<String> mExpectedHonoredArgs;
+        private final Bundle mQueryArgs;
+        // Holds the fetched cursors, then either PAGED_SYNC_END_OF_PAGES or the failure
+        private final BlockingQueue<Object> mPages =
+                new ArrayBlockingQueue<>(PAGED_SYNC_PREFETCH_PAGE_COUNT);
+        private volatile boolean mCancelled;
+
+        PagePrefetcher(Uri uri, String expectedMediaCollectionId,
+                List<String> expectedHonoredArgs, Bundle queryArgs) {
+            mUri = uri;
+            mExpectedMediaCollectionId = expectedMediaCollectionId;
+            mExpectedHonoredArgs = expectedHonoredArgs;
+            // The page token is set on the prefetching thread, keep the args of the caller intact
+            mQueryArgs = new Bundle(queryArgs);
+        }
+
+        @Override
+        public void run() {
+            // Set to check the uniqueness of tokens across pages.
+            Set<String> tokens = new ArraySet<>();
+            // Handed off last so takePage() never waits for a page that won't come
+            Object end = new IllegalStateException("Stopped prefetching pages from " + mUri);
+
+            try {
+                String nextPageToken = null;
+                do {
+                    if (nextPageToken != null) {
+                        mQueryArgs.putString(EXTRA_PAGE_TOKEN, nextPageToken);
+                    }
+
+                    final Cursor cursor = query(mUri, mQueryArgs);
+                    try {
+                        nextPageToken = validateCursor(cursor, mExpectedMediaCollectionId,
+                                mExpectedHonoredArgs, tokens);
+
+                        // Fill the first window of the cursor here instead of on the syncing
+                        // thread, then rewind it for the DbWriteOperation
+                        cursor.moveToFirst();
+                        cursor.moveToPosition(-1);
+                    } catch (Throwable e) {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        throw e;
+                    }
+
+                    if (!put(cursor)) {
+                        cursor.close();
+                        return;
+                    }
+                } while (nextPageToken != null);
+
+                end = PAGED_SYNC_END_OF_PAGES;
+            } catch (Throwable e) {
+                end = e;
+            } finally {
+                put(end);
+            }
+        }
+
+        /**
+         * Returns the next page, or {@code null} once all the pages are taken.
+         *
+         * @throws RuntimeException the failure to fetch or validate the page
+         * @throws Error the error thrown while fetching the page
+         */
+        Cursor takePage() {
+            final Object page;
+            try {
+                page = mPages.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Interrupted while waiting for the next page", e);
+            }
+
+            if (page == PAGED_SYNC_END_OF_PAGES) {
+                return null;
+            } else if (page instanceof RuntimeException) {
+                throw (RuntimeException) page;
+            } else if (page instanceof Error) {
+                throw (Error) page;
+            } else if (page instanceof Throwable) {
+                throw new IllegalStateException("Failed to prefetch pages from " + mUri,
+                        (Throwable) page);
+            }
+            return (Cursor) page;
+        }
+
+        /** Stops fetching pages and closes the pages fetched but not taken. */
+        void cancel() {
+            mCancelled = true;
+            closePages();
+        }
+
+        private boolean put(Object page) {
+            try {
+                while (!mCancelled) {
+                    if (mPages.offer(page, PAGED_SYNC_PREFETCH_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                        // The syncing thread may have cancelled and closed the pages before the
+                        // offer, close this page too in that case
+                        if (mCancelled) {
+                            closePages();
+                        }
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while prefetching pages from " + mUri, e);
+            }
+            return false;
+        }
+
+        private void closePages() {
+            Object page;
+            while ((page = mPages.poll()) != null) {
+                if (page instanceof Cursor) {
+                    ((Cursor) page).close();
+                }
+            }
+        }
+    }
+
     @VisibleForTesting
     static class CloudProviderInfo {
         static final CloudProviderInfo EMPTY = new CloudProviderInfo();
@@ -872,6 +1306,8 @@ public class PickerSyncController {
         private final long syncGeneration;
         // Only valid for SYNC_TYPE_[INCREMENTAL|FULL]
         private final Bundle latestMediaCollectionInfo;
+        // Only valid for SYNC_TYPE_RESUME
+        private final SyncCheckpoint checkpoint;
 
         private SyncRequestParams(@SyncType int syncType) {
             this(syncType, /* syncGeneration */ 0, /* latestMediaCollectionInfo */ null);
@@ -879,13 +1315,15 @@ public class PickerSyncController {
 
         private SyncRequestParams(@SyncType int syncType, long syncGeneration,
                 Bundle latestMediaCollectionInfo) {
+            this(syncType, syncGeneration, latestMediaCollectionInfo, /* checkpoint */ null);
+        }
+
+        private SyncRequestParams(@SyncType int syncType, long syncGeneration,
+                Bundle latestMediaCollectionInfo, SyncCheckpoint checkpoint) {
             this.syncType = syncType;
             this.syncGeneration = syncGeneration;
             this.latestMediaCollectionInfo = latestMediaCollectionInfo;
-        }
-
-        String getMediaCollectionId() {
-            return latestMediaCollectionInfo.getString(MediaCollectionInfo.MEDIA_COLLECTION_ID);
+            this.checkpoint = checkpoint;
         }
 
         static SyncRequestParams forNone() {
@@ -905,5 +1343,119 @@ public class PickerSyncController {
             return new SyncRequestParams(SYNC_TYPE_MEDIA_INCREMENTAL, generation,
                     latestMediaCollectionInfo);
         }
+
+        static SyncRequestParams forResume(SyncCheckpoint checkpoint) {
+            return new SyncRequestParams(SYNC_TYPE_MEDIA_RESUME, /* generation */ 0,
+                    /* latestMediaCollectionInfo */ null, checkpoint);
+        }
+    }
+
+    private static class MediaCollectionIdMismatchException extends IllegalStateException {
+        MediaCollectionIdMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    private static class CloudProviderChangedException extends IllegalStateException {
+        CloudProviderChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Position of a full or incremental media sync. Persisted after every page written to the
+     * picker db, so that a failed sync resumes from the last written page instead of resetting
+     * all media. The position can lag behind the picker db if MediaProvider dies right after a
+     * page is written, in which case the page is written again, which is harmless.
+     */
+    private static class SyncCheckpoint {
+        private final String mediaCollectionId;
+        // Generation to commit as the sync position once the sync completes
+        private final long lastMediaSyncGeneration;
+        // Generation the incremental sync started from, -1 for a full sync
+        private final long syncGeneration;
+        // Whether the sync added all the media and is removing the deleted media
+        private final boolean isRemovingMedia;
+        // Token of the next page to sync, null to sync from the first page
+        private final String pageToken;
+        private final int failureCount;
+
+        private SyncCheckpoint(String mediaCollectionId, long lastMediaSyncGeneration,
+                long syncGeneration, boolean isRemovingMedia, String pageToken,
+                int failureCount) {
+            this.mediaCollectionId = mediaCollectionId;
+            this.lastMediaSyncGeneration = lastMediaSyncGeneration;
+            this.syncGeneration = syncGeneration;
+            this.isRemovingMedia = isRemovingMedia;
+            this.pageToken = pageToken;
+            this.failureCount = failureCount;
+        }
+
+        static SyncCheckpoint forFullSync(Bundle latestMediaCollectionInfo) {
+            return forIncrementalSync(/* generation */ -1, latestMediaCollectionInfo);
+        }
+
+        static SyncCheckpoint forIncrementalSync(long generation,
+                Bundle latestMediaCollectionInfo) {
+            return new SyncCheckpoint(
+                    latestMediaCollectionInfo.getString(MediaCollectionInfo.MEDIA_COLLECTION_ID),
+                    latestMediaCollectionInfo.getLong(
+                            MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION),
+                    generation, /* isRemovingMedia */ false, /* pageToken */ null,
+                    /* failureCount */ 0);
+        }
+
+        boolean isIncremental() {
+            return syncGeneration >= 0;
+        }
+
+        SyncCheckpoint withPageToken(String pageToken) {
+            // The sync made progress, so only count the failures from this page on
+            return new SyncCheckpoint(mediaCollectionId, lastMediaSyncGeneration, syncGeneration,
+                    isRemovingMedia, pageToken, /* failureCount */ 0);
+        }
+
+        SyncCheckpoint withFailureCount(int failureCount) {
+            return new SyncCheckpoint(mediaCollectionId, lastMediaSyncGeneration, syncGeneration,
+                    isRemovingMedia, pageToken, failureCount);
+        }
+
+        SyncCheckpoint forRemovingMedia() {
+            return new SyncCheckpoint(mediaCollectionId, lastMediaSyncGeneration, syncGeneration,
+                    /* isRemovingMedia */ true, /* pageToken */ null, failureCount);
+        }
+
+        /**
+         * Returns the query args to fetch the media from this position. The bundle is mutable
+         * since it's populated with the next page token as part of a paged sync.
+         */
+        Bundle getQueryArgs() {
+            final Bundle queryArgs = new Bundle();
+            if (isIncremental()) {
+                queryArgs.putLong(EXTRA_SYNC_GENERATION, syncGeneration);
+            }
+            if (pageToken != null) {
+                queryArgs.putString(EXTRA_PAGE_TOKEN, pageToken);
+            }
+            return queryArgs;
+        }
+
+        Bundle toMediaCollectionInfo() {
+            final Bundle bundle = new Bundle();
+            bundle.putString(MediaCollectionInfo.MEDIA_COLLECTION_ID, mediaCollectionId);
+            bundle.putLong(MediaCollectionInfo.LAST_MEDIA_SYNC_GENERATION,
+                    lastMediaSyncGeneration);
+            return bundle;
+        }
+
+        @Override
+        public String toString() {
+            return "SyncCheckpoint{mediaCollectionId=" + mediaCollectionId
+                    + ", lastMediaSyncGeneration=" + lastMediaSyncGeneration
+                    + ", syncGeneration=" + syncGeneration
+                    + ", isRemovingMedia=" + isRemovingMedia
+                    + ", pageToken=" + pageToken
+                    + ", failureCount=" + failureCount + "}";
+        }
     }
 }
@@ -29,12 +29,28 @@ import android.provider.MediaStore;
  * Represents the {@link CloudMediaProviderContract} extra filters from a {@link Bundle}.
  */
 public class CloudProviderQueryExtras {
+    /**
+     * Date taken of the last item of the previous page of media. Only media that sort after it,
+     * see {@link #QUERY_ARG_PICKER_ROW_ID}, are returned.
+     */
+    public static final String QUERY_ARG_DATE_TAKEN_BEFORE_MS =
+            "android:query-arg-picker-date-taken-before-ms";
+
+    /**
+     * {@link PickerDbFacade#PICKER_ROW_ID} of the last item of the previous page of media. Only
+     * media strictly older than {@link #QUERY_ARG_DATE_TAKEN_BEFORE_MS}, or as old with a smaller
+     * row id, are returned.
+     */
+    public static final String QUERY_ARG_PICKER_ROW_ID = "android:query-arg-picker-row-id";
+
     private final String mAlbumId;
     private final String mAlbumAuthority;
     private final String mMimeType;
     private final long mSizeBytes;
     private final long mGeneration;
     private final int mLimit;
+    private final long mDateTakenBeforeMs;
+    private final long mRowId;
     private final boolean mIsFavorite;
     private final boolean mIsVideo;
 
@@ -45,18 +61,23 @@ public class CloudProviderQueryExtras {
         mSizeBytes = LONG_DEFAULT;
         mGeneration = LONG_DEFAULT;
         mLimit = LIMIT_DEFAULT;
+        mDateTakenBeforeMs = LONG_DEFAULT;
+        mRowId = LONG_DEFAULT;
         mIsFavorite = BOOLEAN_DEFAULT;
         mIsVideo = BOOLEAN_DEFAULT;
     }
 
     private CloudProviderQueryExtras (String albumId, String albumAuthority, String mimeType,
-            long sizeBytes, long generation, int limit, boolean isFavorite, boolean isVideo) {
+            long sizeBytes, long generation, int limit, long dateTakenBeforeMs, long rowId,
+            boolean isFavorite, boolean isVideo) {
         mAlbumId = albumId;
         mAlbumAuthority = albumAuthority;
         mMimeType = mimeType;
         mSizeBytes = sizeBytes;
         mGeneration = generation;
         mLimit = limit;
+        mDateTakenBeforeMs = dateTakenBeforeMs;
+        mRowId = rowId;
         mIsFavorite = isFavorite;
         mIsVideo = isVideo;
     }
@@ -75,6 +96,9 @@ public class CloudProviderQueryExtras {
         final long sizeBytes = bundle.getLong(MediaStore.QUERY_ARG_SIZE_BYTES, LONG_DEFAULT);
         final long generation = LONG_DEFAULT;
         final int limit = bundle.getInt(MediaStore.QUERY_ARG_LIMIT, LIMIT_DEFAULT);
+        final long dateTakenBeforeMs = bundle.getLong(QUERY_ARG_DATE_TAKEN_BEFORE_MS,
+                LONG_DEFAULT);
+        final long rowId = bundle.getLong(QUERY_ARG_PICKER_ROW_ID, LONG_DEFAULT);
 
         final boolean isFavorite = localProvider.equals(albumAuthority)
                 && AlbumColumns.ALBUM_ID_FAVORITES.equals(albumId);
@@ -82,7 +106,7 @@ public class CloudProviderQueryExtras {
                 && AlbumColumns.ALBUM_ID_VIDEOS.equals(albumId);
 
         return new CloudProviderQueryExtras(albumId, albumAuthority, mimeType, sizeBytes,
-                generation, limit, isFavorite, isVideo);
+                generation, limit, dateTakenBeforeMs, rowId, isFavorite, isVideo);
     }
 
     public static CloudProviderQueryExtras fromCloudMediaBundle(Bundle bundle) {
@@ -100,16 +124,20 @@ public class CloudProviderQueryExtras {
         final long generation = bundle.getLong(CloudMediaProviderContract.EXTRA_SYNC_GENERATION,
                 LONG_DEFAULT);
         final int limit = LIMIT_DEFAULT;
+        final long dateTakenBeforeMs = LONG_DEFAULT;
+        final long rowId = LONG_DEFAULT;
 
         final boolean isFavorite = BOOLEAN_DEFAULT;
         final boolean isVideo = BOOLEAN_DEFAULT;
 
         return new CloudProviderQueryExtras(albumId, albumAuthority, mimeType, sizeBytes,
-                generation, limit, isFavorite, isVideo);
+                generation, limit, dateTakenBeforeMs, rowId, isFavorite, isVideo);
     }
 
     public PickerDbFacade.QueryFilter toQueryFilter() {
         PickerDbFacade.QueryFilterBuilder qfb = new PickerDbFacade.QueryFilterBuilder(mLimit);
+        qfb.setDateTakenBeforeMs(mDateTakenBeforeMs);
+        qfb.setId(mRowId);
         qfb.setSizeBytes(mSizeBytes);
         qfb.setMimeType(mMimeType);
         qfb.setIsFavorite(mIsFavorite);
@@ -147,6 +175,21 @@ public class CloudProviderQueryExtras {
         return mGeneration;
     }
 
+    public long getDateTakenBeforeMs() {
+        return mDateTakenBeforeMs;
+    }
+
+    public long getRowId() {
+        return mRowId;
+    }
+
+    /**
+     * Returns {@code true} if these extras query a page of media after the first one.
+     */
+    public boolean isNextPage() {
+        return mRowId >= 0;
+    }
+
     public boolean isFavorite() {
         return mIsFavorite;
     }
@@ -46,8 +46,11 @@ import android.provider.MediaStore;
 import android.provider.MediaStore.Files.FileColumns;
 import android.provider.MediaStore.MediaColumns;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
+import android.util.Pair;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.VisibleForTesting;
 
 import com.android.providers.media.DatabaseHelper;
@@ -134,6 +137,12 @@ public class ExternalDbFacade {
     private final DatabaseHelper mDatabaseHelper;
     private final VolumeCache mVolumeCache;
 
+    // Rows of #queryAlbums by mime type and volumes, along with the generation of the database
+    // they were read at. Every write transaction bumps the generation, so a cached entry is only
+    // used while the database is unchanged
+    @GuardedBy("mAlbumsCache")
+    private final ArrayMap<String, Pair<Long, List<String[]>>> mAlbumsCache = new ArrayMap<>();
+
     public ExternalDbFacade(Context context, DatabaseHelper databaseHelper,
             VolumeCache volumeCache) {
         mContext = context;
@@ -375,41 +384,64 @@ public class ExternalDbFacade {
      * If there are no media items under an albumId, the album is skipped from the results.
      */
     public Cursor queryAlbums(String mimeType) {
+        final String key = mimeType + ":" + TextUtils.join(":", getVolumeList());
+
+        // Only reads, so there's no need to hold up writers with a transaction
+        final List<String[]> rows = mDatabaseHelper.runWithoutTransaction(db -> {
+            // Read the generation first, so rows read after a concurrent write are never cached
+            // with the generation before it
+            final long generation = DatabaseHelper.getGeneration(db);
+            synchronized (mAlbumsCache) {
+                final Pair<Long, List<String[]>> cached = mAlbumsCache.get(key);
+                if (cached != null && cached.first == generation) {
+                    return cached.second;
+                }
+            }
+
+            final List<String[]> result = queryAlbumRows(db, mimeType);
+            synchronized (mAlbumsCache) {
+                mAlbumsCache.put(key, Pair.create(generation, result));
+            }
+            return result;
+        });
+
         final MatrixCursor c = new MatrixCursor(AlbumColumns.ALL_PROJECTION);
+        for (String[] row : rows) {
+            c.addRow(row);
+        }
+        return c;
+    }
 
+    private List<String[]> queryAlbumRows(SQLiteDatabase db, String mimeType) {
+        final List<String[]> rows = new ArrayList<>();
         for (String albumId: LOCAL_ALBUM_IDS) {
-            Cursor cursor = mDatabaseHelper.runWithTransaction(db -> {
-                final SQLiteQueryBuilder qb = createMediaQueryBuilder();
-                final List<String> selectionArgs = new ArrayList<>();
-                selectionArgs.addAll(appendWhere(qb, albumId, mimeType));
-
-                return qb.query(db, PROJECTION_ALBUM_DB, /* selection */ null,
-                        selectionArgs.toArray(new String[selectionArgs.size()]), /* groupBy */ null,
-                        /* having */ null, /* orderBy */ null);
-            });
+            final SQLiteQueryBuilder qb = createMediaQueryBuilder();
+            final List<String> selectionArgs = new ArrayList<>();
+            selectionArgs.addAll(appendWhere(qb, albumId, mimeType));
+
+            try (Cursor cursor = qb.query(db, PROJECTION_ALBUM_DB, /* selection */ null,
+                    selectionArgs.toArray(new String[selectionArgs.size()]), /* groupBy */ null,
+                    /* having */ null, /* orderBy */ null)) {
+                if (!cursor.moveToFirst()) {
+                    continue;
+                }
 
-            if (cursor == null || !cursor.moveToFirst()) {
-                continue;
-            }
+                long count = getCursorLong(cursor, AlbumColumns.MEDIA_COUNT);
+                if (count == 0) {
+                    continue;
+                }
 
-            long count = getCursorLong(cursor, CloudMediaProviderContract.AlbumColumns.MEDIA_COUNT);
-            if (count == 0) {
-                continue;
+                rows.add(new String[] {
+                    /* albumId */ albumId,
+                    getCursorString(cursor, AlbumColumns.DATE_TAKEN_MILLIS),
+                    /* displayName */ albumId,
+                    getCursorString(cursor, AlbumColumns.MEDIA_COVER_ID),
+                    String.valueOf(count),
+                    PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY
+                });
             }
-
-            final String[] projectionValue = new String[] {
-                /* albumId */ albumId,
-                getCursorString(cursor, AlbumColumns.DATE_TAKEN_MILLIS),
-                /* displayName */ albumId,
-                getCursorString(cursor, AlbumColumns.MEDIA_COVER_ID),
-                String.valueOf(count),
-                PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY
-            };
-
-            c.addRow(projectionValue);
         }
-
-        return c;
+        return rows;
     }
 
     private static Cursor query(SQLiteQueryBuilder qb, SQLiteDatabase db, String[] projection,
@@ -56,15 +56,21 @@ public class ItemsProvider {
     }
 
     /**
-     * Returns a {@link Cursor} to all images/videos based on the param passed for
-     * {@code categoryType}, {@code offset}, {@code limit}, {@code mimeType} and {@code userId}.
+     * Returns a {@link Cursor} to a page of images/videos based on the param passed for
+     * {@code categoryType}, {@code dateTakenBeforeMs}, {@code rowId}, {@code limit},
+     * {@code mimeType} and {@code userId}.
      *
      * <p>
-     * By default the returned {@link Cursor} sorts by latest date taken.
+     * By default the returned {@link Cursor} sorts by latest date taken, then by
+     * {@link PickerDbFacade#PICKER_ROW_ID}. The next page is queried by passing the date taken and
+     * the row id of the last item of the previous page.
      *
      * @param category the category of items to return. May be cloud, local or merged albums like
      * favorites or videos.
-     * @param offset the offset after which to return items.
+     * @param dateTakenBeforeMs the date taken of the last item of the previous page, or {@code -1}
+     *                          to query the first page.
+     * @param rowId the {@link PickerDbFacade#PICKER_ROW_ID} of the last item of the previous page,
+     *              or {@code -1} to query the first page.
      * @param limit the limit of number of items to return.
      * @param mimeType the mime type of item. {@code null} returns all images/videos that are
      *                 scanned by {@link MediaStore}.
@@ -76,14 +82,14 @@ public class ItemsProvider {
      * if there are no such images/videos. The Cursor for each item contains {@link ItemColumns}
      */
     @Nullable
-    public Cursor getItems(Category category, int offset,
+    public Cursor getItems(Category category, long dateTakenBeforeMs, long rowId,
             int limit, @Nullable String mimeType, @Nullable UserId userId) throws
             IllegalArgumentException {
         if (userId == null) {
             userId = UserId.CURRENT_USER;
         }
 
-        return queryMedia(limit, mimeType, category, userId);
+        return queryMedia(dateTakenBeforeMs, rowId, limit, mimeType, category, userId);
     }
 
     /**
@@ -115,7 +121,8 @@ public class ItemsProvider {
         return queryAlbums(mimeType, userId);
     }
 
-    private Cursor queryMedia(int limit, @Nullable String mimeType,
+    private Cursor queryMedia(long dateTakenBeforeMs, long rowId, int limit,
+            @Nullable String mimeType,
             @NonNull Category category, @NonNull UserId userId)
             throws IllegalStateException {
         final Bundle extras = new Bundle();
@@ -127,6 +134,11 @@ public class ItemsProvider {
                 return null;
             }
             extras.putInt(MediaStore.QUERY_ARG_LIMIT, limit);
+            if (rowId >= 0) {
+                extras.putLong(CloudProviderQueryExtras.QUERY_ARG_DATE_TAKEN_BEFORE_MS,
+                        dateTakenBeforeMs);
+                extras.putLong(CloudProviderQueryExtras.QUERY_ARG_PICKER_ROW_ID, rowId);
+            }
             extras.putString(MediaStore.QUERY_ARG_MIME_TYPE, mimeType);
             extras.putString(MediaStore.QUERY_ARG_ALBUM_ID, category.getId());
             extras.putString(MediaStore.QUERY_ARG_ALBUM_AUTHORITY, category.getAuthority());
@@ -16,6 +16,9 @@
 
 package com.android.providers.media.photopicker.data;
 
+import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_FAVORITES;
+import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_VIDEOS;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
@@ -37,7 +40,7 @@ public class PickerDatabaseHelper extends SQLiteOpenHelper {
     @VisibleForTesting
     static final String PICKER_DATABASE_NAME = "picker.db";
 
-    private static final int VERSION_T = 7;
+    private static final int VERSION_T = 9;
     private static final int VERSION_LATEST = VERSION_T;
 
     final Context mContext;
@@ -139,6 +142,90 @@ public class PickerDatabaseHelper extends SQLiteOpenHelper {
                 + "OR (local_id IS NOT NULL AND cloud_id IS NULL)),"
                 + "UNIQUE(local_id,  album_id),"
                 + "UNIQUE(cloud_id, album_id))");
+
+        // Media count, newest date taken and cover of the visible media of every merged album
+        // and mime type, kept up to date by the triggers below
+        db.execSQL("CREATE TABLE album_summary (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "album_id TEXT NOT NULL,"
+                + "mime_type TEXT NOT NULL,"
+                + "media_count INTEGER NOT NULL,"
+                + "date_taken_ms INTEGER,"
+                + "cover_media_id INTEGER,"
+                + "UNIQUE(album_id, mime_type))");
+
+        createAlbumSummaryTriggers(db);
+    }
+
+    /**
+     * Creates the triggers maintaining the album_summary table. An update of the media is handled
+     * as removing the old media, then adding the new one. The cover of an album is its newest
+     * media, the oldest row of the newest media on ties.
+     */
+    private static void createAlbumSummaryTriggers(SQLiteDatabase db) {
+        final String[] albumIds = {ALBUM_ID_FAVORITES, ALBUM_ID_VIDEOS};
+
+        final StringBuilder add = new StringBuilder();
+        final StringBuilder remove = new StringBuilder();
+        for (String albumId : albumIds) {
+            add.append(getAddToAlbumSummarySql(albumId));
+            remove.append(getRemoveFromAlbumSummarySql(albumId));
+        }
+        remove.append("DELETE FROM album_summary WHERE media_count <= 0;");
+        for (String albumId : albumIds) {
+            remove.append(getUpdateAlbumSummaryCoverSql(albumId));
+        }
+
+        db.execSQL("CREATE TRIGGER media_insert_album_summary AFTER INSERT ON media"
+                + " BEGIN " + add + " END");
+        db.execSQL("CREATE TRIGGER media_delete_album_summary AFTER DELETE ON media"
+                + " BEGIN " + remove + " END");
+        db.execSQL("CREATE TRIGGER media_update_album_summary"
+                + " AFTER UPDATE OF is_visible, date_taken_ms, mime_type, is_favorite ON media"
+                + " WHEN old.is_visible IS NOT new.is_visible"
+                + " OR old.date_taken_ms IS NOT new.date_taken_ms"
+                + " OR old.mime_type IS NOT new.mime_type"
+                + " OR old.is_favorite IS NOT new.is_favorite"
+                + " BEGIN " + remove + add + " END");
+    }
+
+    private static String getAddToAlbumSummarySql(String albumId) {
+        return "INSERT INTO album_summary"
+                + " (album_id, mime_type, media_count, date_taken_ms, cover_media_id)"
+                + " SELECT '" + albumId + "', new.mime_type, 1, new.date_taken_ms, new._id"
+                + " WHERE new.is_visible = 1 AND " + getAlbumMediaWhere(albumId, "new")
+                + " ON CONFLICT(album_id, mime_type) DO UPDATE SET"
+                + " media_count = media_count + 1,"
+                + " cover_media_id = CASE WHEN excluded.date_taken_ms > date_taken_ms"
+                + " OR (excluded.date_taken_ms = date_taken_ms"
+                + " AND excluded.cover_media_id < cover_media_id)"
+                + " THEN excluded.cover_media_id ELSE cover_media_id END,"
+                + " date_taken_ms = MAX(date_taken_ms, excluded.date_taken_ms);";
+    }
+
+    private static String getRemoveFromAlbumSummarySql(String albumId) {
+        return "UPDATE album_summary SET media_count = media_count - 1"
+                + " WHERE album_id = '" + albumId + "' AND mime_type = old.mime_type"
+                + " AND old.is_visible = 1 AND " + getAlbumMediaWhere(albumId, "old") + ";";
+    }
+
+    private static String getUpdateAlbumSummaryCoverSql(String albumId) {
+        return "UPDATE album_summary SET (date_taken_ms, cover_media_id) ="
+                + " (SELECT media.date_taken_ms, media._id FROM media"
+                + " WHERE media.is_visible = 1 AND media.mime_type = album_summary.mime_type"
+                + " AND " + getAlbumMediaWhere(albumId, "media")
+                + " ORDER BY media.date_taken_ms DESC, media._id LIMIT 1)"
+                + " WHERE album_id = '" + albumId + "' AND cover_media_id = old._id;";
+    }
+
+    private static String getAlbumMediaWhere(String albumId, String media) {
+        switch (albumId) {
+            case ALBUM_ID_FAVORITES:
+                return media + ".is_favorite = 1";
+            case ALBUM_ID_VIDEOS:
+                return media + ".mime_type LIKE 'video/%'";
+            default:
+                throw new IllegalArgumentException("Unexpected merged album: " + albumId);
+        }
     }
 
     private static void createLatestIndexes(SQLiteDatabase db) {
@@ -146,17 +233,17 @@ public class PickerDatabaseHelper extends SQLiteOpenHelper {
 
         db.execSQL("CREATE INDEX local_id_index on media(local_id)");
         db.execSQL("CREATE INDEX cloud_id_index on media(cloud_id)");
-        db.execSQL("CREATE INDEX is_visible_index on media(is_visible)");
-        db.execSQL("CREATE INDEX date_taken_index on media(date_taken_ms)");
-        db.execSQL("CREATE INDEX size_index on media(size_bytes)");
-        db.execSQL("CREATE INDEX mime_type_index on media(mime_type)");
-        db.execSQL("CREATE INDEX is_favorite_index on media(is_favorite)");
+        // Serves the visible media queries of the UI: the leading columns match their order by
+        // date_taken_ms DESC, _id DESC, and every filtered column is included so rows are only
+        // read from the table once they match
+        db.execSQL("CREATE INDEX visible_media_index on media(is_visible, date_taken_ms, _id,"
+                + " cloud_id, size_bytes, mime_type, is_favorite)");
 
         db.execSQL("CREATE INDEX local_id_album_index on album_media(local_id)");
         db.execSQL("CREATE INDEX cloud_id_album_index on album_media(cloud_id)");
-        db.execSQL("CREATE INDEX date_taken_album_index on album_media(date_taken_ms)");
-        db.execSQL("CREATE INDEX size_album_index on album_media(size_bytes)");
-        db.execSQL("CREATE INDEX mime_type_album_index on album_media(mime_type)");
+        // Same as visible_media_index, for the album media queries of the UI
+        db.execSQL("CREATE INDEX album_media_index on album_media(album_id, date_taken_ms, _id,"
+                + " local_id, cloud_id, size_bytes, mime_type)");
     }
 
     private static void clearPickerPrefs(Context context) {
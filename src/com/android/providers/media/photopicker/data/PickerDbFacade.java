@@ -36,12 +36,14 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.SystemProperties;
 import android.provider.DeviceConfig;
 import android.provider.CloudMediaProviderContract;
 import android.provider.MediaStore;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -51,6 +53,7 @@ import androidx.annotation.VisibleForTesting;
 import com.android.providers.media.photopicker.PickerSyncController;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
@@ -66,6 +69,7 @@ public class PickerDbFacade {
     private final Context mContext;
     private final SQLiteDatabase mDatabase;
     private final String mLocalProvider;
+    private final PickerThumbnailCache mThumbnailCache;
     private String mCloudProvider;
 
     public PickerDbFacade(Context context) {
@@ -82,6 +86,7 @@ public class PickerDbFacade {
         mContext = context;
         mLocalProvider = localProvider;
         mDatabase = dbHelper.getWritableDatabase();
+        mThumbnailCache = new PickerThumbnailCache(context);
     }
 
     private static final String TAG = "PickerDbFacade";
@@ -96,6 +101,9 @@ public class PickerDbFacade {
     // not required for picker paths sent across users
     private static final String PICKER_PATH = "/sdcard/" + getPickerRelativePath();
     private static final String TABLE_ALBUM_MEDIA = "album_media";
+    // Media count, latest date taken and cover of the merged albums per mime type, maintained by
+    // triggers on the media table, see PickerDatabaseHelper
+    private static final String TABLE_ALBUM_SUMMARY = "album_summary";
 
     @VisibleForTesting
     public static final String KEY_ID = "_id";
@@ -121,6 +129,17 @@ public class PickerDbFacade {
     public static final String KEY_IS_FAVORITE = "is_favorite";
     @VisibleForTesting
     public static final String KEY_ALBUM_ID = "album_id";
+    @VisibleForTesting
+    public static final String KEY_MEDIA_COUNT = "media_count";
+    @VisibleForTesting
+    public static final String KEY_COVER_MEDIA_ID = "cover_media_id";
+
+    /**
+     * Column with the picker db row id of the media returned by {@link #queryMediaForUi} and
+     * {@link #queryAlbumMediaForUi}. Together with the date taken of the last media returned, it
+     * marks where the next page of media starts, see {@link QueryFilterBuilder#setId}.
+     */
+    public static final String PICKER_ROW_ID = "picker_row_id";
 
     @VisibleForTesting
     public static final String IMAGE_FILE_EXTENSION = ".jpg";
@@ -131,30 +150,34 @@ public class PickerDbFacade {
     private static final String WHERE_LOCAL_ID = KEY_LOCAL_ID + " = ?";
     private static final String WHERE_CLOUD_ID = KEY_CLOUD_ID + " = ?";
     private static final String WHERE_NULL_CLOUD_ID = KEY_CLOUD_ID + " IS NULL";
+    // The unary + keeps SQLite from searching the cloud_id index for the NULLs, which would need
+    // a sort of all local media. The term is evaluated on the UI query indexes instead
+    private static final String WHERE_NULL_CLOUD_ID_UNINDEXED = "+" + WHERE_NULL_CLOUD_ID;
     private static final String WHERE_NOT_NULL_CLOUD_ID = KEY_CLOUD_ID + " IS NOT NULL";
     private static final String WHERE_NOT_NULL_LOCAL_ID = KEY_LOCAL_ID + " IS NOT NULL";
     private static final String WHERE_IS_VISIBLE = KEY_IS_VISIBLE + " = 1";
     private static final String WHERE_MIME_TYPE = KEY_MIME_TYPE + " LIKE ? ";
     private static final String WHERE_IS_FAVORITE = KEY_IS_FAVORITE + " = 1";
     private static final String WHERE_SIZE_BYTES = KEY_SIZE_BYTES + " <= ?";
+    // Written as a range on date_taken_ms, so the page can be found with an index search
     private static final String WHERE_DATE_TAKEN_MS_AFTER =
-            String.format("%s > ? OR (%s = ? AND %s > ?)",
+            String.format("%s >= ? AND (%s > ? OR %s > ?)",
                     KEY_DATE_TAKEN_MS, KEY_DATE_TAKEN_MS, KEY_ID);
     private static final String WHERE_DATE_TAKEN_MS_BEFORE =
-            String.format("%s < ? OR (%s = ? AND %s < ?)",
+            String.format("%s <= ? AND (%s < ? OR %s < ?)",
                     KEY_DATE_TAKEN_MS, KEY_DATE_TAKEN_MS, KEY_ID);
     private static final String WHERE_ALBUM_ID = KEY_ALBUM_ID  + " = ?";
 
-    private static final String[] PROJECTION_ALBUM_DB = new String[] {
-        "COUNT(" + KEY_ID + ") AS " + CloudMediaProviderContract.AlbumColumns.MEDIA_COUNT,
-        "MAX(" + KEY_DATE_TAKEN_MS + ") AS "
-        + CloudMediaProviderContract.AlbumColumns.DATE_TAKEN_MILLIS,
-        String.format("IFNULL(%s, %s) AS %s", KEY_CLOUD_ID,
-                KEY_LOCAL_ID, CloudMediaProviderContract.AlbumColumns.MEDIA_COVER_ID)
+    private static final String[] PROJECTION_ALBUM_SUMMARY = new String[] {
+        TABLE_ALBUM_SUMMARY + "." + KEY_ALBUM_ID,
+        KEY_MEDIA_COUNT + " AS " + AlbumColumns.MEDIA_COUNT,
+        TABLE_ALBUM_SUMMARY + "." + KEY_DATE_TAKEN_MS + " AS " + AlbumColumns.DATE_TAKEN_MILLIS,
+        String.format("IFNULL(%s.%s, %s.%s) AS %s", TABLE_MEDIA, KEY_CLOUD_ID, TABLE_MEDIA,
+                KEY_LOCAL_ID, AlbumColumns.MEDIA_COVER_ID)
     };
+    private static final String ORDER_BY_ALBUM_SUMMARY = TABLE_ALBUM_SUMMARY + "."
+            + KEY_DATE_TAKEN_MS + " DESC," + TABLE_ALBUM_SUMMARY + "." + KEY_COVER_MEDIA_ID;
 
-    // Matches all media including cloud+local, cloud-only and local-only
-    private static final SQLiteQueryBuilder QB_MATCH_ALL = createMediaQueryBuilder();
     // Matches media with id
     private static final SQLiteQueryBuilder QB_MATCH_ID = createIdMediaQueryBuilder();
     // Matches media with local_id including cloud+local and local-only
@@ -163,19 +186,14 @@ public class PickerDbFacade {
     private static final SQLiteQueryBuilder QB_MATCH_CLOUD = createCloudMediaQueryBuilder();
     // Matches all visible media including cloud+local, cloud-only and local-only
     private static final SQLiteQueryBuilder QB_MATCH_VISIBLE = createVisibleMediaQueryBuilder();
-    // Matches visible media with local_id including cloud+local and local-only
-    private static final SQLiteQueryBuilder QB_MATCH_VISIBLE_LOCAL =
-            createVisibleLocalMediaQueryBuilder();
     // Matches stricly local-only media
     private static final SQLiteQueryBuilder QB_MATCH_LOCAL_ONLY =
             createLocalOnlyMediaQueryBuilder();
 
     private static final ContentValues CONTENT_VALUE_VISIBLE = new ContentValues();
-    private static final ContentValues CONTENT_VALUE_HIDDEN = new ContentValues();
 
     static {
         CONTENT_VALUE_VISIBLE.put(KEY_IS_VISIBLE, 1);
-        CONTENT_VALUE_HIDDEN.putNull(KEY_IS_VISIBLE);
     }
 
     /**
@@ -202,6 +220,14 @@ public class PickerDbFacade {
         return mLocalProvider;
     }
 
+    /**
+     * Returns the cache of cloud media thumbnails, invalidated as the media is removed from the
+     * picker db.
+     */
+    public PickerThumbnailCache getThumbnailCache() {
+        return mThumbnailCache;
+    }
+
     /**
      * Returns {@link DbWriteOperation} to add media belonging to {@code authority} into the picker
      * db.
@@ -223,7 +249,8 @@ public class PickerDbFacade {
      * picker db.
      */
     public DbWriteOperation beginRemoveMediaOperation(String authority) {
-        return new RemoveMediaOperation(mDatabase, isLocal(authority));
+        return new RemoveMediaOperation(mDatabase, isLocal(authority), authority,
+                mThumbnailCache);
     }
 
     /**
@@ -233,7 +260,7 @@ public class PickerDbFacade {
      * @param authority to determine whether local or cloud media should be cleared
      */
     public DbWriteOperation beginResetMediaOperation(String authority) {
-        return new ResetMediaOperation(mDatabase, isLocal(authority));
+        return new ResetMediaOperation(mDatabase, isLocal(authority), mThumbnailCache);
     }
 
     /**
@@ -291,6 +318,21 @@ public class PickerDbFacade {
             mIsSuccess = true;
         }
 
+        /**
+         * Commits the writes executed so far and begins a new transaction for the next ones, so
+         * that a later failure of the operation doesn't roll them back.
+         *
+         * @throws {@link IllegalStateException} if no DB transaction is active
+         */
+        public void commit() {
+            if (!mDatabase.inTransaction()) {
+                throw new IllegalStateException("No ongoing DB transaction.");
+            }
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+            mDatabase.beginTransaction();
+        }
+
         @Override
         public void close() {
             if (mDatabase.inTransaction()) {
@@ -349,6 +391,17 @@ public class PickerDbFacade {
     }
 
     private static final class AddMediaOperation extends DbWriteOperation {
+        // Hides the visible cloud media with a given local_id, so that local media can take its
+        // place. No-op if the visible media with the local_id is local-only
+        private static final String SQL_DEMOTE_CLOUD_MEDIA = "UPDATE " + TABLE_MEDIA
+                + " SET " + KEY_IS_VISIBLE + " = NULL WHERE " + KEY_LOCAL_ID + " = ?1 AND "
+                + KEY_CLOUD_ID + " IS NOT NULL AND " + KEY_IS_VISIBLE + " = 1";
+
+        // Statements compiled for the columns of the last cursor, reused for the next pages of
+        // the sync since those have the same columns
+        private String[] mColumnNames;
+        private MediaUpsert mUpsert;
+        private SQLiteStatement mDemoteStatement;
 
         private AddMediaOperation(SQLiteDatabase database, boolean isLocal) {
             super(database, isLocal);
@@ -357,87 +410,289 @@ public class PickerDbFacade {
         @Override
         int executeInternal(@Nullable Cursor cursor) {
             final boolean isLocal = isLocal();
-            final SQLiteQueryBuilder qb = isLocal ? QB_MATCH_LOCAL_ONLY : QB_MATCH_CLOUD;
+            final MediaUpsert upsert = getUpsert(cursor);
             int counter = 0;
 
             while (cursor.moveToNext()) {
-                ContentValues values = cursorToContentValue(cursor, isLocal);
+                final String localId = upsert.bind(cursor);
 
-                String[] upsertArgs = {values.getAsString(isLocal ?
-                        KEY_LOCAL_ID : KEY_CLOUD_ID)};
-                if (upsertMedia(qb, values, upsertArgs) == SUCCESS) {
-                    counter++;
-                    continue;
-                }
+                try {
+                    // We want to prioritize visible local media over visible cloud media. For
+                    // local syncs, we hide the visible cloud media first, for cloud syncs the
+                    // upsert only makes the cloud media visible if no other media is
+                    if (isLocal) {
+                        demoteCloudMediaToHidden(localId);
+                    }
 
-                // Because we want to prioritize visible local media over visible cloud media,
-                // we do the following if the upsert above failed
-                if (isLocal) {
-                    // For local syncs, we attempt hiding the visible cloud media
-                    String cloudId = getVisibleCloudIdFromDb(values.getAsString(KEY_LOCAL_ID));
-                    demoteCloudMediaToHidden(cloudId);
-                } else {
-                    // For cloud syncs, we prepare an upsert as hidden cloud media
-                    values.putNull(KEY_IS_VISIBLE);
+                    if (upsert.execute() > 0) {
+                        counter++;
+                    }
+                } catch (SQLiteConstraintException e) {
+                    // The media itself is invalid, e.g. it has a negative size
+                    Log.d(TAG, "Failed to upsert picker db media with id: "
+                            + upsert.getId(cursor), e);
                 }
+            }
+            return counter;
+        }
 
-                // Now attempt upsert again, this should succeed
-                if (upsertMedia(qb, values, upsertArgs) == SUCCESS) {
-                    counter++;
+        @Override
+        public void close() {
+            if (mUpsert != null) {
+                mUpsert.close();
+            }
+            if (mDemoteStatement != null) {
+                mDemoteStatement.close();
+            }
+            super.close();
+        }
+
+        private MediaUpsert getUpsert(Cursor cursor) {
+            final String[] columnNames = cursor.getColumnNames();
+            if (mUpsert == null || !Arrays.equals(mColumnNames, columnNames)) {
+                if (mUpsert != null) {
+                    mUpsert.close();
                 }
+                mUpsert = new MediaUpsert(getDatabase(), columnNames, isLocal());
+                mColumnNames = columnNames;
             }
-            return counter;
+            return mUpsert;
         }
 
-        private int insertMedia(ContentValues values) {
-            try {
-                if (QB_MATCH_ALL.insert(getDatabase(), values) > 0) {
-                    return SUCCESS;
-                } else {
-                    Log.d(TAG, "Failed to insert picker db media. ContentValues: " + values);
-                    return FAIL;
+        private void demoteCloudMediaToHidden(@Nullable String localId) {
+            if (localId == null) {
+                return;
+            }
+
+            if (mDemoteStatement == null) {
+                mDemoteStatement = getDatabase().compileStatement(SQL_DEMOTE_CLOUD_MEDIA);
+            }
+            mDemoteStatement.bindString(1, localId);
+            if (mDemoteStatement.executeUpdateDelete() > 0) {
+                Log.d(TAG, "Demoted picker db media item to hidden. LocalId: " + localId);
+            }
+        }
+    }
+
+    /**
+     * Inserts a row of a {@link CloudMediaProviderContract} media cursor into the media table, or
+     * updates the media with the same local_id (local media) or cloud_id (cloud media) in a single
+     * {@code INSERT ... ON CONFLICT DO UPDATE} statement, compiled once for the columns of the
+     * cursor. The values are bound straight from the cursor.
+     *
+     * <p>Local media is always visible. Cloud media is only visible if no other media with the
+     * same local_id is visible, which the statement resolves with a subquery.
+     */
+    private static final class MediaUpsert implements AutoCloseable {
+        // Bind indexes of the columns that are bound more than once
+        private static final int BIND_INDEX_ID = 1;
+        private static final int BIND_INDEX_LOCAL_ID = 2;
+
+        private final boolean mIsLocal;
+        private final SQLiteStatement mStatement;
+        private final int mIdIndex;
+        // Index in the cursor of the media store uri, only used for cloud media
+        private final int mMediaStoreUriIndex;
+        // Cursor index and bind index of each of the other columns in the cursor
+        private final int[] mCursorIndexes;
+        private final String[] mKeys;
+
+        MediaUpsert(SQLiteDatabase database, String[] columnNames, boolean isLocal) {
+            mIsLocal = isLocal;
+
+            int idIndex = -1;
+            int mediaStoreUriIndex = -1;
+            final List<Integer> cursorIndexes = new ArrayList<>();
+            final List<String> keys = new ArrayList<>();
+            for (int index = 0; index < columnNames.length; index++) {
+                final String key = columnNames[index];
+                switch (key) {
+                    case CloudMediaProviderContract.MediaColumns.ID:
+                        idIndex = index;
+                        break;
+                    case CloudMediaProviderContract.MediaColumns.MEDIA_STORE_URI:
+                        mediaStoreUriIndex = index;
+                        break;
+                    case CloudMediaProviderContract.MediaColumns.DATE_TAKEN_MILLIS:
+                    case CloudMediaProviderContract.MediaColumns.SYNC_GENERATION:
+                    case CloudMediaProviderContract.MediaColumns.SIZE_BYTES:
+                    case CloudMediaProviderContract.MediaColumns.MIME_TYPE:
+                    case CloudMediaProviderContract.MediaColumns.STANDARD_MIME_TYPE_EXTENSION:
+                    case CloudMediaProviderContract.MediaColumns.DURATION_MILLIS:
+                    case CloudMediaProviderContract.MediaColumns.IS_FAVORITE:
+                        cursorIndexes.add(index);
+                        keys.add(key);
+                        break;
+                    default:
+                        Log.w(TAG, "Unexpected cursor key: " + key);
                 }
-            } catch (SQLiteConstraintException e) {
-                Log.d(TAG, "Failed to insert picker db media. ContentValues: " + values, e);
-                return RETRY;
             }
+
+            mIdIndex = idIndex;
+            mMediaStoreUriIndex = isLocal ? -1 : mediaStoreUriIndex;
+            mCursorIndexes = cursorIndexes.stream().mapToInt(Integer::intValue).toArray();
+            mKeys = keys.toArray(new String[0]);
+            mStatement = database.compileStatement(buildSql());
         }
 
-        private int upsertMedia(SQLiteQueryBuilder qb,
-                ContentValues values, String[] selectionArgs) {
-            int res = insertMedia(values);
-            if (res == RETRY) {
-                // Attempt equivalent of CONFLICT_REPLACE resolution
-                Log.d(TAG, "Retrying failed insert as update. ContentValues: " + values);
-                res = updateMedia(qb, values, selectionArgs);
+        private String buildSql() {
+            final boolean hasLocalId = mIsLocal || mMediaStoreUriIndex >= 0;
+            final StringBuilder columns = new StringBuilder();
+            final StringBuilder values = new StringBuilder();
+            final StringBuilder updates = new StringBuilder();
+
+            columns.append(mIsLocal ? KEY_LOCAL_ID : KEY_CLOUD_ID);
+            values.append('?').append(BIND_INDEX_ID);
+            if (!mIsLocal && hasLocalId) {
+                appendColumn(columns, values, updates, KEY_LOCAL_ID, BIND_INDEX_LOCAL_ID);
+            }
+            for (int i = 0; i < mKeys.length; i++) {
+                appendColumn(columns, values, updates, getDbKey(mKeys[i]), getBindIndex(i));
             }
 
-            return res;
+            columns.append(',').append(KEY_IS_VISIBLE);
+            if (mIsLocal || !hasLocalId) {
+                values.append(",1");
+            } else {
+                // Hidden if another media with the same local_id is visible
+                values.append(",CASE WHEN EXISTS (SELECT 1 FROM ").append(TABLE_MEDIA)
+                        .append(" WHERE ").append(KEY_LOCAL_ID).append(" = ?")
+                        .append(BIND_INDEX_LOCAL_ID).append(" AND ").append(KEY_IS_VISIBLE)
+                        .append(" = 1 AND ").append(KEY_CLOUD_ID).append(" IS NOT ?")
+                        .append(BIND_INDEX_ID).append(") THEN NULL ELSE 1 END");
+            }
+            if (!mIsLocal) {
+                appendUpdate(updates, KEY_IS_VISIBLE);
+            }
+            if (updates.length() == 0) {
+                appendUpdate(updates, KEY_IS_VISIBLE);
+            }
+
+            final String conflictTarget = mIsLocal ? KEY_LOCAL_ID + "," + KEY_IS_VISIBLE
+                    : KEY_CLOUD_ID;
+            return "INSERT INTO " + TABLE_MEDIA + " (" + columns + ") VALUES (" + values
+                    + ") ON CONFLICT(" + conflictTarget + ") DO UPDATE SET " + updates;
         }
 
-        private void demoteCloudMediaToHidden(@Nullable String cloudId) {
-            if (cloudId == null) {
-                return;
+        private static void appendColumn(StringBuilder columns, StringBuilder values,
+                StringBuilder updates, String key, int bindIndex) {
+            columns.append(',').append(key);
+            values.append(",?").append(bindIndex);
+            appendUpdate(updates, key);
+        }
+
+        private static void appendUpdate(StringBuilder updates, String key) {
+            if (updates.length() > 0) {
+                updates.append(',');
+            }
+            updates.append(key).append(" = excluded.").append(key);
+        }
+
+        private static int getBindIndex(int keyIndex) {
+            return BIND_INDEX_LOCAL_ID + 1 + keyIndex;
+        }
+
+        private static String getDbKey(String key) {
+            switch (key) {
+                case CloudMediaProviderContract.MediaColumns.DATE_TAKEN_MILLIS:
+                    return KEY_DATE_TAKEN_MS;
+                case CloudMediaProviderContract.MediaColumns.SYNC_GENERATION:
+                    return KEY_SYNC_GENERATION;
+                case CloudMediaProviderContract.MediaColumns.SIZE_BYTES:
+                    return KEY_SIZE_BYTES;
+                case CloudMediaProviderContract.MediaColumns.MIME_TYPE:
+                    return KEY_MIME_TYPE;
+                case CloudMediaProviderContract.MediaColumns.STANDARD_MIME_TYPE_EXTENSION:
+                    return KEY_STANDARD_MIME_TYPE_EXTENSION;
+                case CloudMediaProviderContract.MediaColumns.DURATION_MILLIS:
+                    return KEY_DURATION_MS;
+                case CloudMediaProviderContract.MediaColumns.IS_FAVORITE:
+                    return KEY_IS_FAVORITE;
+                default:
+                    throw new IllegalArgumentException("Unexpected cursor key: " + key);
+            }
+        }
+
+        /**
+         * Binds the current row of {@code cursor} to the statement.
+         *
+         * @return the local_id of the media, or {@code null} if it has none
+         */
+        @Nullable
+        String bind(Cursor cursor) {
+            mStatement.clearBindings();
+
+            final String id = getId(cursor);
+            bindStringOrNull(BIND_INDEX_ID, id);
+
+            String localId = mIsLocal ? id : null;
+            if (mMediaStoreUriIndex >= 0) {
+                final String uriString = cursor.getString(mMediaStoreUriIndex);
+                if (uriString != null) {
+                    localId = String.valueOf(ContentUris.parseId(Uri.parse(uriString)));
+                }
+                bindStringOrNull(BIND_INDEX_LOCAL_ID, localId);
             }
 
-            final String[] updateArgs = new String[] {cloudId};
-            if (updateMedia(QB_MATCH_CLOUD, CONTENT_VALUE_HIDDEN, updateArgs) == SUCCESS) {
-                Log.d(TAG, "Demoted picker db media item to hidden. CloudId: " + cloudId);
+            for (int i = 0; i < mKeys.length; i++) {
+                final int index = mCursorIndexes[i];
+                final int bindIndex = getBindIndex(i);
+                switch (mKeys[i]) {
+                    case CloudMediaProviderContract.MediaColumns.MIME_TYPE:
+                        bindStringOrNull(bindIndex, cursor.getString(index));
+                        break;
+                    case CloudMediaProviderContract.MediaColumns.STANDARD_MIME_TYPE_EXTENSION:
+                        final int standardMimeTypeExtension = cursor.getInt(index);
+                        if (!isValidStandardMimeTypeExtension(standardMimeTypeExtension)) {
+                            throw new IllegalArgumentException(
+                                    "Invalid standard mime type extension");
+                        }
+                        mStatement.bindLong(bindIndex, standardMimeTypeExtension);
+                        break;
+                    case CloudMediaProviderContract.MediaColumns.IS_FAVORITE:
+                        mStatement.bindLong(bindIndex, cursor.getInt(index));
+                        break;
+                    default:
+                        mStatement.bindLong(bindIndex, cursor.getLong(index));
+                }
             }
+
+            return localId;
         }
 
-        private String getVisibleCloudIdFromDb(String localId) {
-            final String[] cloudIdProjection = new String[] {KEY_CLOUD_ID};
-            final String[] queryArgs = new String[] {localId};
-            return querySingleMedia(QB_MATCH_VISIBLE_LOCAL, cloudIdProjection, queryArgs,
-                    /* columnIndex */ 0);
+        /** Executes the statement with the bound row and returns the number of rows written. */
+        int execute() {
+            return mStatement.executeUpdateDelete();
+        }
+
+        @Nullable
+        String getId(Cursor cursor) {
+            return mIdIndex >= 0 ? cursor.getString(mIdIndex) : null;
+        }
+
+        @Override
+        public void close() {
+            mStatement.close();
+        }
+
+        private void bindStringOrNull(int index, @Nullable String value) {
+            if (value == null) {
+                mStatement.bindNull(index);
+            } else {
+                mStatement.bindString(index, value);
+            }
         }
     }
 
     private static final class RemoveMediaOperation extends DbWriteOperation {
+        private final String mAuthority;
+        private final PickerThumbnailCache mThumbnailCache;
 
-        private RemoveMediaOperation(SQLiteDatabase database, boolean isLocal) {
+        private RemoveMediaOperation(SQLiteDatabase database, boolean isLocal, String authority,
+                PickerThumbnailCache thumbnailCache) {
             super(database, isLocal);
+            mAuthority = authority;
+            mThumbnailCache = thumbnailCache;
         }
 
         @Override
@@ -460,6 +715,9 @@ public class PickerDbFacade {
                 if (qb.delete(getDatabase(), /* selection */ null, deleteArgs) > 0) {
                     counter++;
                 }
+                if (!isLocal) {
+                    mThumbnailCache.invalidate(mAuthority, deleteArgs[0]);
+                }
 
                 promoteCloudMediaToVisible(localId);
             }
@@ -506,9 +764,12 @@ public class PickerDbFacade {
     }
 
     private static final class ResetMediaOperation extends DbWriteOperation {
+        private final PickerThumbnailCache mThumbnailCache;
 
-        private ResetMediaOperation(SQLiteDatabase database, boolean isLocal) {
+        private ResetMediaOperation(SQLiteDatabase database, boolean isLocal,
+                PickerThumbnailCache thumbnailCache) {
             super(database, isLocal);
+            mThumbnailCache = thumbnailCache;
         }
 
         @Override
@@ -531,6 +792,9 @@ public class PickerDbFacade {
                 // same local_id. Promoting either is fine.
                 database.updateWithOnConflict(TABLE_MEDIA, CONTENT_VALUE_VISIBLE, /* where */ null,
                         /* whereClause */ null, SQLiteDatabase.CONFLICT_IGNORE);
+            } else {
+                // Only cloud thumbnails are cached
+                mThumbnailCache.clear();
             }
 
             return counter;
@@ -726,44 +990,46 @@ public class PickerDbFacade {
      * query}
      */
     public Cursor getMergedAlbums(QueryFilter query) {
-        final MatrixCursor c = new MatrixCursor(AlbumColumns.ALL_PROJECTION);
-        List<String> mergedAlbums = List.of(ALBUM_ID_FAVORITES, ALBUM_ID_VIDEOS);
-        for (String albumId : mergedAlbums) {
-            List<String> selectionArgs = new ArrayList<>();
-            final SQLiteQueryBuilder qb = createVisibleMediaQueryBuilder();
-            if (albumId.equals(ALBUM_ID_FAVORITES)) {
-                qb.appendWhereStandalone(WHERE_IS_FAVORITE);
-            } else if (albumId.equals(ALBUM_ID_VIDEOS)) {
-                qb.appendWhereStandalone(WHERE_MIME_TYPE);
-                selectionArgs.add("video/%");
-            }
-            if (query.mMimeType != null) {
-                qb.appendWhereStandalone(WHERE_MIME_TYPE);
-                selectionArgs.add(query.mMimeType.replace('*', '%'));
-            }
-
-            Cursor cursor = qb.query(mDatabase, PROJECTION_ALBUM_DB, /* selection */ null,
-                    selectionArgs.toArray(new String[0]), /* groupBy */ null, /* having */ null,
-                    /* orderBy */ null, /* limit */ null);
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(TABLE_ALBUM_SUMMARY + " JOIN " + TABLE_MEDIA + " ON " + TABLE_MEDIA + "."
+                + KEY_ID + " = " + TABLE_ALBUM_SUMMARY + "." + KEY_COVER_MEDIA_ID);
+        String[] selectionArgs = null;
+        if (query.mMimeType != null) {
+            qb.appendWhereStandalone(TABLE_ALBUM_SUMMARY + "." + WHERE_MIME_TYPE);
+            selectionArgs = new String[] {query.mMimeType.replace('*', '%')};
+        }
 
-            if (cursor == null || !cursor.moveToFirst()) {
-                continue;
+        // The summary rows are per album and mime type, so the rows of an album are merged here.
+        // The first row of an album has its latest media, which is the cover of the album
+        final ArrayMap<String, String[]> albums = new ArrayMap<>();
+        try (Cursor cursor = qb.query(mDatabase, PROJECTION_ALBUM_SUMMARY, /* selection */ null,
+                selectionArgs, /* groupBy */ null, /* having */ null, ORDER_BY_ALBUM_SUMMARY,
+                /* limit */ null)) {
+            while (cursor.moveToNext()) {
+                final String albumId = getCursorString(cursor, KEY_ALBUM_ID);
+                final long count = getCursorLong(cursor, AlbumColumns.MEDIA_COUNT);
+                final String[] album = albums.get(albumId);
+                if (album == null) {
+                    albums.put(albumId, new String[] {
+                            /* albumId */ albumId,
+                            getCursorString(cursor, AlbumColumns.DATE_TAKEN_MILLIS),
+                            /* displayName */ albumId,
+                            getCursorString(cursor, AlbumColumns.MEDIA_COVER_ID),
+                            String.valueOf(count),
+                            mLocalProvider,
+                    });
+                } else {
+                    album[4] = String.valueOf(Long.parseLong(album[4]) + count);
+                }
             }
+        }
 
-            long count = getCursorLong(cursor, CloudMediaProviderContract.AlbumColumns.MEDIA_COUNT);
-            if (count == 0) {
-                continue;
+        final MatrixCursor c = new MatrixCursor(AlbumColumns.ALL_PROJECTION);
+        for (String albumId : List.of(ALBUM_ID_FAVORITES, ALBUM_ID_VIDEOS)) {
+            final String[] album = albums.get(albumId);
+            if (album != null) {
+                c.addRow(album);
             }
-
-            final String[] projectionValue = new String[]{
-                    /* albumId */ albumId,
-                    getCursorString(cursor, AlbumColumns.DATE_TAKEN_MILLIS),
-                    /* displayName */ albumId,
-                    getCursorString(cursor, AlbumColumns.MEDIA_COVER_ID),
-                    String.valueOf(count),
-                    mLocalProvider,
-            };
-            c.addRow(projectionValue);
         }
         return c;
     }
@@ -772,8 +1038,45 @@ public class PickerDbFacade {
         return mLocalProvider.equals(authority);
     }
 
+    /**
+     * Returns the {@code EXPLAIN QUERY PLAN} rows of {@link #queryMediaForUi(QueryFilter)}, so
+     * tests can check that every filter combination is served by an index.
+     */
+    @VisibleForTesting
+    Cursor explainQueryMediaForUi(QueryFilter query) {
+        final SQLiteQueryBuilder qb = createVisibleMediaQueryBuilder();
+        final String[] selectionArgs = buildSelectionArgs(qb, query);
+
+        final String cloudProvider;
+        synchronized (mLock) {
+            cloudProvider = mCloudProvider;
+        }
+
+        return queryMediaForUi(qb, selectionArgs, query.mLimit, TABLE_MEDIA, cloudProvider,
+                /* explain */ true);
+    }
+
+    /**
+     * Returns the {@code EXPLAIN QUERY PLAN} rows of {@link #queryAlbumMediaForUi}, so tests can
+     * check that every filter combination is served by an index.
+     */
+    @VisibleForTesting
+    Cursor explainQueryAlbumMediaForUi(QueryFilter query, String authority) {
+        final SQLiteQueryBuilder qb = createAlbumMediaQueryBuilder(isLocal(authority));
+        final String[] selectionArgs = buildSelectionArgs(qb, query);
+
+        return queryMediaForUi(qb, selectionArgs, query.mLimit, TABLE_ALBUM_MEDIA, authority,
+                /* explain */ true);
+    }
+
     private Cursor queryMediaForUi(SQLiteQueryBuilder qb, String[] selectionArgs,
             int limit, String tableName, String authority) {
+        return queryMediaForUi(qb, selectionArgs, limit, tableName, authority,
+                /* explain */ false);
+    }
+
+    private Cursor queryMediaForUi(SQLiteQueryBuilder qb, String[] selectionArgs,
+            int limit, String tableName, String authority, boolean explain) {
         // Use the <table>.<column> form to order _id to avoid ordering against the projection '_id'
         final String orderBy = getOrderClause(tableName);
         final String limitStr = String.valueOf(limit);
@@ -785,7 +1088,14 @@ public class PickerDbFacade {
             if (mCloudProvider == null || !Objects.equals(mCloudProvider, authority)) {
                 // If cloud provider is null or has changed from what we received from the UI,
                 // skip all cloud items in the picker db
-                qb.appendWhereStandalone(WHERE_NULL_CLOUD_ID);
+                qb.appendWhereStandalone(WHERE_NULL_CLOUD_ID_UNINDEXED);
+            }
+
+            if (explain) {
+                final String sql = qb.buildQuery(getCloudMediaProjectionLocked(),
+                        /* selection */ null, /* groupBy */ null, /* having */ null, orderBy,
+                        limitStr);
+                return mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
             }
 
             return qb.query(mDatabase, getCloudMediaProjectionLocked(), /* selection */ null,
@@ -809,6 +1119,7 @@ public class PickerDbFacade {
             getProjectionSimple(KEY_MIME_TYPE, MediaColumns.MIME_TYPE),
             getProjectionSimple(KEY_STANDARD_MIME_TYPE_EXTENSION,
                     MediaColumns.STANDARD_MIME_TYPE_EXTENSION),
+            getProjectionSimple(KEY_ID, PICKER_ROW_ID),
         };
     }
 
@@ -901,10 +1212,6 @@ public class PickerDbFacade {
         return mediaId + "||" + fileExtension;
     }
 
-    private static ContentValues cursorToContentValue(Cursor cursor, boolean isLocal) {
-        return cursorToContentValue(cursor, isLocal, "");
-    }
-
     private static ContentValues cursorToContentValue(Cursor cursor, boolean isLocal,
             String albumId) {
         final ContentValues values = new ContentValues();
@@ -1080,13 +1387,6 @@ public class PickerDbFacade {
         return qb;
     }
 
-    private static SQLiteQueryBuilder createVisibleLocalMediaQueryBuilder() {
-        SQLiteQueryBuilder qb = createVisibleMediaQueryBuilder();
-        qb.appendWhereStandalone(WHERE_LOCAL_ID);
-
-        return qb;
-    }
-
     private static final class ResetAlbumOperation extends DbWriteOperation {
         /**
          * Resets the given cloud or local album_media identified by {@code isLocal} and
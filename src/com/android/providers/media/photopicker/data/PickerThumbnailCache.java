@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.photopicker.data;
+
+import android.content.Context;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.providers.media.util.FileUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size bounded on-disk cache of the preview thumbnails of cloud media, so that opening the picker
+ * again doesn't fetch them from the cloud provider again.
+ *
+ * <p>Entries are keyed by authority, media id and size bucket, and the least recently used ones
+ * are evicted once the cache grows over its maximum size. The last modified time of the files
+ * keeps their recency across restarts.
+ */
+public class PickerThumbnailCache {
+    private static final String TAG = "PickerThumbnailCache";
+
+    private static final String DIRECTORY_NAME = "picker_thumbnails";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    @VisibleForTesting
+    static final long MAX_SIZE_BYTES = 64 * 1024 * 1024;
+
+    // Requested sizes are rounded up to one of these, so one entry serves all sizes up to it
+    @VisibleForTesting
+    static final int[] SIZE_BUCKETS = {128, 256, 512, 1024, 2048};
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+
+    private final Object mLock = new Object();
+    // Size of every entry, least recently used first
+    @GuardedBy("mLock")
+    private final LinkedHashMap<File, Long> mEntries = new LinkedHashMap<>(
+            /* initialCapacity */ 16, /* loadFactor */ 0.75f, /* accessOrder */ true);
+    @GuardedBy("mLock")
+    private long mSizeBytes;
+    @GuardedBy("mLock")
+    private boolean mIsLoaded;
+    // Bumped by every invalidation, so thumbnails fetched before it aren't cached after it
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    public PickerThumbnailCache(@NonNull Context context) {
+        this(new File(context.getCacheDir(), DIRECTORY_NAME), MAX_SIZE_BYTES);
+    }
+
+    @VisibleForTesting
+    PickerThumbnailCache(@NonNull File directory, long maxSizeBytes) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /** Returns the smallest size bucket that fits thumbnails of the requested {@code size}. */
+    public static int getSizeBucket(@Nullable Point size) {
+        final int requested = size == null ? 0 : Math.max(size.x, size.y);
+        for (int bucket : SIZE_BUCKETS) {
+            if (requested <= bucket) {
+                return bucket;
+            }
+        }
+        return SIZE_BUCKETS[SIZE_BUCKETS.length - 1];
+    }
+
+    /**
+     * Returns the generation to pass to {@link #put}. Take it before fetching the thumbnail from
+     * the provider.
+     */
+    public long getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Returns the cached thumbnail of {@code mediaId} of {@code authority} opened for reading, or
+     * {@code null} if it isn't cached.
+     */
+    @Nullable
+    public ParcelFileDescriptor get(@NonNull String authority, @NonNull String mediaId,
+            int sizeBucket) {
+        final File file = getFile(authority, mediaId, sizeBucket);
+        synchronized (mLock) {
+            loadLocked();
+            if (mEntries.get(file) == null) {
+                return null;
+            }
+        }
+
+        try {
+            final ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+            file.setLastModified(System.currentTimeMillis());
+            return pfd;
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "Cached thumbnail is gone: " + file);
+            synchronized (mLock) {
+                removeLocked(file);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Caches the thumbnail of {@code mediaId} of {@code authority} read from {@code in} and
+     * returns it opened for reading.
+     *
+     * <p>If the cache was invalidated since {@code generation}, the thumbnail may be stale and
+     * is returned without being cached.
+     */
+    @NonNull
+    public ParcelFileDescriptor put(@NonNull String authority, @NonNull String mediaId,
+            int sizeBucket, @NonNull InputStream in, long generation) throws IOException {
+        final File file = getFile(authority, mediaId, sizeBucket);
+        final File tempFile = new File(file.getParentFile(), file.getName() + TEMP_FILE_SUFFIX
+                + Thread.currentThread().getId());
+        file.getParentFile().mkdirs();
+
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            FileUtils.copy(in, out);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        // Open it before it can be evicted, the open file stays readable after that
+        final ParcelFileDescriptor pfd = ParcelFileDescriptor.open(tempFile,
+                ParcelFileDescriptor.MODE_READ_ONLY);
+        synchronized (mLock) {
+            loadLocked();
+            if (generation != mGeneration || !tempFile.renameTo(file)) {
+                tempFile.delete();
+                return pfd;
+            }
+
+            removeLocked(file);
+            final long size = file.length();
+            mEntries.put(file, size);
+            mSizeBytes += size;
+            trimLocked();
+        }
+        return pfd;
+    }
+
+    /** Removes the thumbnails of {@code mediaId} of {@code authority} in all sizes. */
+    public void invalidate(@NonNull String authority, @NonNull String mediaId) {
+        synchronized (mLock) {
+            mGeneration++;
+            if (!mIsLoaded) {
+                // Only the files on disk need to go, without the cost of loading them all
+                for (int sizeBucket : SIZE_BUCKETS) {
+                    getFile(authority, mediaId, sizeBucket).delete();
+                }
+                return;
+            }
+
+            for (int sizeBucket : SIZE_BUCKETS) {
+                final File file = getFile(authority, mediaId, sizeBucket);
+                if (removeLocked(file)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /** Removes all the cached thumbnails. */
+    public void clear() {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries.clear();
+            mSizeBytes = 0;
+            FileUtils.walkFileTreeContents(mDirectory.toPath(), path -> path.toFile().delete());
+        }
+    }
+
+    @VisibleForTesting
+    long getSizeBytes() {
+        synchronized (mLock) {
+            loadLocked();
+            return mSizeBytes;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void loadLocked() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+
+        final List<File> files = new ArrayList<>();
+        final File[] authorityDirectories = mDirectory.listFiles();
+        if (authorityDirectories != null) {
+            for (File authorityDirectory : authorityDirectories) {
+                final File[] authorityFiles = authorityDirectory.listFiles();
+                if (authorityFiles != null) {
+                    files.addAll(Arrays.asList(authorityFiles));
+                }
+            }
+        }
+
+        files.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().contains(TEMP_FILE_SUFFIX)) {
+                // Left over from a put that didn't finish
+                file.delete();
+                continue;
+            }
+            final long size = file.length();
+            mEntries.put(file, size);
+            mSizeBytes += size;
+        }
+        trimLocked();
+    }
+
+    @GuardedBy("mLock")
+    private void trimLocked() {
+        final Iterator<Map.Entry<File, Long>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && it.hasNext()) {
+            final Map.Entry<File, Long> entry = it.next();
+            entry.getKey().delete();
+            mSizeBytes -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean removeLocked(File file) {
+        final Long size = mEntries.remove(file);
+        if (size == null) {
+            return false;
+        }
+        mSizeBytes -= size;
+        return true;
+    }
+
+    private File getAuthorityDirectory(String authority) {
+        return new File(mDirectory, encodeFileName(authority));
+    }
+
+    private File getFile(String authority, String mediaId, int sizeBucket) {
+        return new File(getAuthorityDirectory(authority),
+                encodeFileName(mediaId) + "_" + sizeBucket);
+    }
+
+    private static String encodeFileName(String name) {
+        // Also encode the dots, so that names like ".." can't escape the cache directory
+        return Uri.encode(name).replace(".", "%2E");
+    }
+}
@@ -16,15 +16,21 @@
 
 package com.android.providers.media.photopicker.data.glide;
 
+import static com.android.providers.media.photopicker.PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY;
+
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
 import android.provider.CloudMediaProviderContract;
 
+import com.android.providers.media.PickerUriResolver;
+
 import com.bumptech.glide.Priority;
 import com.bumptech.glide.load.DataSource;
 import com.bumptech.glide.load.data.DataFetcher;
@@ -43,6 +49,8 @@ public class PickerThumbnailFetcher implements DataFetcher<ParcelFileDescriptor>
     private final int mWidth;
     private final int mHeight;
     private final boolean mIsThumbRequest;
+    // Passed to the provider, so it can stop generating a thumbnail that's no longer needed
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
 
     PickerThumbnailFetcher(Context context, Uri model, int width, int height,
             boolean isThumbRequest) {
@@ -64,19 +72,31 @@ public class PickerThumbnailFetcher implements DataFetcher<ParcelFileDescriptor>
             opts.putBoolean(CloudMediaProviderContract.EXTRA_MEDIASTORE_THUMB, true);
         }
 
-        try (AssetFileDescriptor afd = contentResolver.openTypedAssetFileDescriptor(mModel,
-                /* mimeType */ "image/*", opts, /* cancellationSignal */ null)) {
+        try (AssetFileDescriptor afd = contentResolver.openTypedAssetFileDescriptor(
+                getThumbnailUri(), /* mimeType */ "image/*", opts, mCancellationSignal)) {
             if (afd == null) {
                 final String err = "Failed to load data for " + mModel;
                 callback.onLoadFailed(new FileNotFoundException(err));
                 return;
             }
             callback.onDataReady(afd.getParcelFileDescriptor());
-        } catch (IOException e) {
+        } catch (IOException | OperationCanceledException e) {
             callback.onLoadFailed(e);
         }
     }
 
+    /**
+     * Returns the uri to open the thumbnail from. Cloud thumbnails of the current user are opened
+     * through their picker uri, so that they are served from the picker thumbnail cache.
+     */
+    private Uri getThumbnailUri() {
+        if (!mIsThumbRequest || mModel.getUserInfo() != null
+                || LOCAL_PICKER_PROVIDER_AUTHORITY.equals(mModel.getAuthority())) {
+            return mModel;
+        }
+        return PickerUriResolver.wrapProviderUri(mModel, mContext.getUser().getIdentifier());
+    }
+
     @Override
     public void cleanup() {
         // Intentionally empty only because we're not opening an InputStream or another I/O
@@ -85,7 +105,8 @@ public class PickerThumbnailFetcher implements DataFetcher<ParcelFileDescriptor>
 
     @Override
     public void cancel() {
-        // Intentionally empty.
+        // Called when the cell was recycled or the prefetch was dropped before the load finished
+        mCancellationSignal.cancel();
     }
 
     @Override
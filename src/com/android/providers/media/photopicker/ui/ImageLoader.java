@@ -17,6 +17,7 @@
 package com.android.providers.media.photopicker.ui;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.ImageDecoder;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -31,8 +32,11 @@ import com.android.providers.media.photopicker.data.model.Category;
 import com.android.providers.media.photopicker.data.model.Item;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.RequestBuilder;
 import com.bumptech.glide.load.Option;
 import com.bumptech.glide.request.RequestOptions;
+import com.bumptech.glide.request.target.Target;
 import com.bumptech.glide.signature.ObjectKey;
 
 /**
@@ -74,16 +78,43 @@ public class ImageLoader {
      * @param imageView the imageView shows the thumbnail
      */
     public void loadPhotoThumbnail(@NonNull Item item, @NonNull ImageView imageView) {
+        getPhotoThumbnailRequest(item).into(imageView);
+    }
+
+    /**
+     * Loads the thumbnail of the photo item {@code item} into the memory cache, ahead of its cell
+     * being shown. The load runs after the loads of the visible cells, and can be cancelled by
+     * passing the returned target to {@link #cancelPrefetch}.
+     *
+     * @param item   the photo item
+     * @param width  the width of the thumbnail view, without padding
+     * @param height the height of the thumbnail view, without padding
+     */
+    @NonNull
+    public Target<Bitmap> prefetchPhotoThumbnail(@NonNull Item item, int width, int height) {
+        // The thumbnail views use centerCrop, which Glide applies as an optional center crop. It
+        // needs to be applied here too, so that the prefetched bitmap has the same cache key
+        return getPhotoThumbnailRequest(item)
+                .optionalCenterCrop()
+                .priority(Priority.LOW)
+                .preload(width, height);
+    }
+
+    /** Cancels the prefetch of {@code target} if it's still loading. */
+    public void cancelPrefetch(@NonNull Target<Bitmap> target) {
+        Glide.with(mContext).clear(target);
+    }
+
+    private RequestBuilder<Bitmap> getPhotoThumbnailRequest(@NonNull Item item) {
         Uri uri = item.getContentUri();
         // Always show all thumbnails as bitmap images instead of drawables
         // This is to ensure that we do not animate any thumbnail (for eg GIF)
         // TODO(b/194285082): Use drawable instead of bitmap, as it saves memory.
-        Glide.with(mContext)
+        return Glide.with(mContext)
                 .asBitmap()
                 .load(uri)
                 .signature(getGlideSignature(item, /* prefix */ ""))
-                .apply(RequestOptions.option(THUMBNAIL_REQUEST, true))
-                .into(imageView);
+                .apply(RequestOptions.option(THUMBNAIL_REQUEST, true));
     }
 
     /**
@@ -112,8 +112,27 @@ public class PhotosTabAdapter extends RecyclerView.Adapter<BaseViewHolder> {
     }
 
     public void updateItemList(@NonNull List<Item> itemList) {
+        final List<Item> oldItemList = mItemList;
         mItemList = itemList;
-        notifyDataSetChanged();
+
+        final int oldSize = oldItemList.size();
+        if (isAppendedTo(oldItemList, itemList)) {
+            notifyItemRangeInserted(oldSize, itemList.size() - oldSize);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code itemList} is {@code oldItemList} with a new page of items
+     * appended to it. A reload creates new {@link Item}s, so the same instance at the end of the
+     * old list means nothing before it changed either.
+     */
+    private static boolean isAppendedTo(@NonNull List<Item> oldItemList,
+            @NonNull List<Item> itemList) {
+        final int oldSize = oldItemList.size();
+        return oldSize > 0 && itemList.size() > oldSize
+                && itemList.get(oldSize - 1) == oldItemList.get(oldSize - 1);
     }
 
     @NonNull
@@ -28,6 +28,7 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import androidx.fragment.app.FragmentTransaction;
 import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.providers.media.R;
 
@@ -48,6 +49,9 @@ import java.util.Locale;
 public class PhotosTabFragment extends TabFragment {
 
     private static final int MINIMUM_SPAN_COUNT = 3;
+    // Load the next page of items once the user scrolls within this many items of the end, so the
+    // page is usually loaded by the time the user gets there
+    private static final int PREFETCH_ITEM_COUNT = 120;
     private static final String FRAGMENT_TAG = "PhotosTabFragment";
 
     private Category mCategory = Category.DEFAULT;
@@ -107,6 +111,29 @@ public class PhotosTabFragment extends TabFragment {
         mRecyclerView.setLayoutManager(layoutManager);
         mRecyclerView.setAdapter(adapter);
         mRecyclerView.addItemDecoration(itemDecoration);
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy <= 0) {
+                    return;
+                }
+
+                final int lastVisiblePosition = layoutManager.findLastVisibleItemPosition();
+                if (lastVisiblePosition >= adapter.getItemCount() - PREFETCH_ITEM_COUNT) {
+                    loadMoreItems();
+                }
+            }
+        });
+        mRecyclerView.addOnScrollListener(
+                new ThumbnailPrefetcher(mImageLoader, adapter, layoutManager));
+    }
+
+    private void loadMoreItems() {
+        if (mCategory.isDefault()) {
+            mPickerViewModel.loadMoreItems();
+        } else {
+            mPickerViewModel.loadMoreCategoryItems();
+        }
     }
 
     /**
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.photopicker.ui;
+
+import static com.android.providers.media.photopicker.ui.PhotosTabAdapter.ITEM_TYPE_DATE_HEADER;
+
+import android.graphics.Bitmap;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.providers.media.R;
+import com.android.providers.media.photopicker.data.model.Item;
+
+import com.bumptech.glide.request.target.Target;
+
+import java.util.ArrayDeque;
+
+/**
+ * Prefetches the thumbnails of the photos the user is scrolling towards, so they are usually in
+ * the memory cache by the time their cells are bound.
+ *
+ * <p>The prefetch looks ahead as many rows as the user scrolls through in
+ * {@link #PREFETCH_FRAME_COUNT} frames. While flinging fast nothing is prefetched, since those
+ * cells are scrolled past before their thumbnails would be shown, and the pending prefetches are
+ * cancelled along with the ones behind the user whenever the scroll direction changes.
+ */
+final class ThumbnailPrefetcher extends RecyclerView.OnScrollListener {
+    // Number of frames of scrolling at the current speed to prefetch ahead for
+    private static final int PREFETCH_FRAME_COUNT = 30;
+    private static final int MIN_PREFETCH_ROW_COUNT = 1;
+    private static final int MAX_PREFETCH_ROW_COUNT = 4;
+    // Scrolling faster than this, in rows per frame, is a fling that skips prefetching
+    private static final float FLING_ROWS_PER_FRAME = 0.5f;
+
+    private final ImageLoader mImageLoader;
+    private final PhotosTabAdapter mAdapter;
+    private final GridLayoutManager mLayoutManager;
+
+    // Pending and finished prefetches, oldest first. Clearing a finished one is a no-op
+    private final ArrayDeque<Target<Bitmap>> mTargets = new ArrayDeque<>();
+    // Adapter positions [mPrefetchStart, mPrefetchEnd) have been prefetched for the current
+    // direction, so they are not requested again
+    private int mPrefetchStart = RecyclerView.NO_POSITION;
+    private int mPrefetchEnd = RecyclerView.NO_POSITION;
+    private boolean mIsScrollingDown = true;
+
+    ThumbnailPrefetcher(@NonNull ImageLoader imageLoader, @NonNull PhotosTabAdapter adapter,
+            @NonNull GridLayoutManager layoutManager) {
+        mImageLoader = imageLoader;
+        mAdapter = adapter;
+        mLayoutManager = layoutManager;
+    }
+
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0) {
+            return;
+        }
+
+        final boolean isScrollingDown = dy > 0;
+        if (isScrollingDown != mIsScrollingDown) {
+            mIsScrollingDown = isScrollingDown;
+            cancelAll();
+        }
+
+        final View thumbnail = findThumbnailView();
+        if (thumbnail == null || thumbnail.getHeight() == 0) {
+            return;
+        }
+
+        final float rowsPerFrame = Math.abs(dy) / (float) thumbnail.getHeight();
+        if (rowsPerFrame > FLING_ROWS_PER_FRAME) {
+            cancelAll();
+            return;
+        }
+
+        final int rowCount = Math.max(MIN_PREFETCH_ROW_COUNT, Math.min(MAX_PREFETCH_ROW_COUNT,
+                (int) Math.ceil(rowsPerFrame * PREFETCH_FRAME_COUNT)));
+        final int itemCount = rowCount * mLayoutManager.getSpanCount();
+        if (isScrollingDown) {
+            final int start = mLayoutManager.findLastVisibleItemPosition() + 1;
+            prefetch(start, Math.min(start + itemCount, mAdapter.getItemCount()), thumbnail);
+        } else {
+            final int end = mLayoutManager.findFirstVisibleItemPosition();
+            prefetch(Math.max(end - itemCount, 0), end, thumbnail);
+        }
+    }
+
+    private void prefetch(int start, int end, @NonNull View thumbnail) {
+        if (start >= end) {
+            return;
+        }
+
+        final int width = thumbnail.getWidth() - thumbnail.getPaddingLeft()
+                - thumbnail.getPaddingRight();
+        final int height = thumbnail.getHeight() - thumbnail.getPaddingTop()
+                - thumbnail.getPaddingBottom();
+        for (int position = start; position < end; position++) {
+            if (position >= mPrefetchStart && position < mPrefetchEnd) {
+                continue;
+            }
+            if (mAdapter.getItemViewType(position) == ITEM_TYPE_DATE_HEADER) {
+                continue;
+            }
+
+            final Item item = mAdapter.getItem(position);
+            mTargets.addLast(mImageLoader.prefetchPhotoThumbnail(item, width, height));
+        }
+        mPrefetchStart = start;
+        mPrefetchEnd = end;
+
+        // Only keep the prefetches of the furthest look ahead, the older ones are either done or
+        // for cells the user scrolled past
+        final int maxTargetCount = MAX_PREFETCH_ROW_COUNT * mLayoutManager.getSpanCount();
+        while (mTargets.size() > maxTargetCount) {
+            mImageLoader.cancelPrefetch(mTargets.removeFirst());
+        }
+    }
+
+    private void cancelAll() {
+        while (!mTargets.isEmpty()) {
+            mImageLoader.cancelPrefetch(mTargets.removeFirst());
+        }
+        mPrefetchStart = RecyclerView.NO_POSITION;
+        mPrefetchEnd = RecyclerView.NO_POSITION;
+    }
+
+    /** Returns the thumbnail view of a bound photo cell, to prefetch with its size. */
+    private View findThumbnailView() {
+        for (int i = 0; i < mLayoutManager.getChildCount(); i++) {
+            final View thumbnail = mLayoutManager.getChildAt(i).findViewById(R.id.icon_thumbnail);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+        return null;
+    }
+}
@@ -16,14 +16,20 @@
 
 package com.android.providers.media.photopicker.viewmodel;
 
+import static com.android.providers.media.photopicker.util.CursorUtils.getCursorLong;
 import static com.android.providers.media.util.MimeUtils.isImageMimeType;
 import static com.android.providers.media.util.MimeUtils.isVideoMimeType;
 
 import android.app.Application;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
@@ -37,8 +43,10 @@ import androidx.lifecycle.MutableLiveData;
 
 import com.android.internal.logging.InstanceId;
 import com.android.internal.logging.InstanceIdSequence;
+import com.android.providers.media.PickerUriResolver;
 import com.android.providers.media.photopicker.data.ItemsProvider;
 import com.android.providers.media.photopicker.data.MuteStatus;
+import com.android.providers.media.photopicker.data.PickerDbFacade;
 import com.android.providers.media.photopicker.data.Selection;
 import com.android.providers.media.photopicker.data.UserIdManager;
 import com.android.providers.media.photopicker.data.model.Category;
@@ -48,8 +56,12 @@ import com.android.providers.media.photopicker.metrics.PhotoPickerUiEventLogger;
 import com.android.providers.media.photopicker.util.DateTimeUtils;
 import com.android.providers.media.util.ForegroundThread;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * PickerViewModel to store and handle data for PhotoPickerActivity.
@@ -59,6 +71,10 @@ public class PickerViewModel extends AndroidViewModel {
 
     private static final int RECENT_MINIMUM_COUNT = 12;
 
+    // Number of items loaded at a time while the user scrolls through the photos
+    @VisibleForTesting
+    static final int ITEMS_PAGE_SIZE = 600;
+
     private static final int INSTANCE_ID_MAX = 1 << 15;
 
     private final Selection mSelection;
@@ -73,6 +89,10 @@ public class PickerViewModel extends AndroidViewModel {
     // The list of categories.
     private MutableLiveData<List<Category>> mCategoryList;
 
+    // Load the pages of mItemList and mCategoryItemList
+    private ItemPager mItemPager;
+    private ItemPager mCategoryItemPager;
+
     private ItemsProvider mItemsProvider;
     private UserIdManager mUserIdManager;
 
@@ -84,6 +104,17 @@ public class PickerViewModel extends AndroidViewModel {
 
     private Category mCurrentCategory;
 
+    // Reloads the loaded lists when the picker db changes, e.g. after a background sync
+    private final ContentObserver mPickerDbObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onPickerDbChanged();
+                }
+            };
+    private ContentResolver mObservedContentResolver;
+    private UserId mObservedUserId;
+
     public PickerViewModel(@NonNull Application application) {
         super(application);
         final Context context = application.getApplicationContext();
@@ -95,6 +126,11 @@ public class PickerViewModel extends AndroidViewModel {
         mLogger = new PhotoPickerUiEventLogger();
     }
 
+    @Override
+    protected void onCleared() {
+        stopObservingPickerDb();
+    }
+
     @VisibleForTesting
     public void setItemsProvider(@NonNull ItemsProvider itemsProvider) {
         mItemsProvider = itemsProvider;
@@ -150,60 +186,15 @@ public class PickerViewModel extends AndroidViewModel {
         return mItemList;
     }
 
-    private List<Item> loadItems(Category category, UserId userId) {
-        final List<Item> items = new ArrayList<>();
-
-        try (Cursor cursor = mItemsProvider.getItems(category, /* offset */ 0,
-                /* limit */ -1, mMimeTypeFilter, userId)) {
-            if (cursor == null || cursor.getCount() == 0) {
-                Log.d(TAG, "Didn't receive any items for " + category
-                        + ", either cursor is null or cursor count is zero");
-                return items;
-            }
-
-            // We only add the RECENT header on the PhotosTabFragment with CATEGORY_DEFAULT. In this
-            // case, we call this method {loadItems} with null category. When the category is not
-            // empty, we don't show the RECENT header.
-            final boolean showRecent = category.isDefault();
-
-            int recentSize = 0;
-            long currentDateTaken = 0;
-
-            if (showRecent) {
-                // add Recent date header
-                items.add(Item.createDateItem(0));
-            }
-            while (cursor.moveToNext()) {
-                // TODO(b/188394433): Return userId in the cursor so that we do not need to pass it
-                // here again.
-                final Item item = Item.fromCursor(cursor, userId);
-                final long dateTaken = item.getDateTaken();
-                // the minimum count of items in recent is not reached
-                if (showRecent && recentSize < RECENT_MINIMUM_COUNT) {
-                    recentSize++;
-                    currentDateTaken = dateTaken;
-                }
-
-                // The date taken of these two images are not on the
-                // same day, add the new date header.
-                if (!DateTimeUtils.isSameDate(currentDateTaken, dateTaken)) {
-                    items.add(Item.createDateItem(dateTaken));
-                    currentDateTaken = dateTaken;
-                }
-                items.add(item);
-            }
-        }
-
-        Log.d(TAG, "Loaded " + items.size() + " items in " + category + " for user "
-                + userId.toString());
-        return items;
+    private void loadItemsAsync() {
+        loadItemsAsync(ITEMS_PAGE_SIZE);
     }
 
-    private void loadItemsAsync() {
+    private void loadItemsAsync(int minItemCount) {
         final UserId userId = mUserIdManager.getCurrentUserProfileId();
-        ForegroundThread.getExecutor().execute(() -> {
-                    mItemList.postValue(loadItems(Category.DEFAULT, userId));
-        });
+        observePickerDb(userId);
+        mItemPager = new ItemPager(Category.DEFAULT, userId, mItemList);
+        mItemPager.loadNextPageAsync(minItemCount);
     }
 
     /**
@@ -216,6 +207,16 @@ public class PickerViewModel extends AndroidViewModel {
         loadItemsAsync();
     }
 
+    /**
+     * Load the next page of {@link #mItemList}, e.g. when the user scrolls close to the end of the
+     * items loaded so far. Does nothing if all the items are loaded or a page is already loading.
+     */
+    public void loadMoreItems() {
+        if (mItemPager != null) {
+            mItemPager.loadNextPageAsync(ITEMS_PAGE_SIZE);
+        }
+    }
+
     /**
      * Get the list of all photos and videos with the specific {@code category} on the device.
      *
@@ -238,10 +239,14 @@ public class PickerViewModel extends AndroidViewModel {
     }
 
     private void loadCategoryItemsAsync() {
+        loadCategoryItemsAsync(ITEMS_PAGE_SIZE);
+    }
+
+    private void loadCategoryItemsAsync(int minItemCount) {
         final UserId userId = mUserIdManager.getCurrentUserProfileId();
-        ForegroundThread.getExecutor().execute(() -> {
-            mCategoryItemList.postValue(loadItems(mCurrentCategory, userId));
-        });
+        observePickerDb(userId);
+        mCategoryItemPager = new ItemPager(mCurrentCategory, userId, mCategoryItemList);
+        mCategoryItemPager.loadNextPageAsync(minItemCount);
     }
 
     /**
@@ -259,6 +264,17 @@ public class PickerViewModel extends AndroidViewModel {
         loadCategoryItemsAsync();
     }
 
+    /**
+     * Load the next page of {@link #mCategoryItemList}, e.g. when the user scrolls close to the end
+     * of the items loaded so far. Does nothing if all the items are loaded or a page is already
+     * loading.
+     */
+    public void loadMoreCategoryItems() {
+        if (mCategoryItemPager != null) {
+            mCategoryItemPager.loadNextPageAsync(ITEMS_PAGE_SIZE);
+        }
+    }
+
     /**
      * @return the list of Categories {@link #mCategoryList}
      */
@@ -291,6 +307,7 @@ public class PickerViewModel extends AndroidViewModel {
 
     private void loadCategoriesAsync() {
         final UserId userId = mUserIdManager.getCurrentUserProfileId();
+        observePickerDb(userId);
         ForegroundThread.getExecutor().execute(() -> {
             mCategoryList.postValue(loadCategories(userId));
         });
@@ -306,6 +323,49 @@ public class PickerViewModel extends AndroidViewModel {
         loadCategoriesAsync();
     }
 
+    private void observePickerDb(UserId userId) {
+        if (userId.equals(mObservedUserId)) {
+            return;
+        }
+
+        stopObservingPickerDb();
+        try {
+            final ContentResolver resolver = userId.getContentResolver(getApplication());
+            resolver.registerContentObserver(PickerUriResolver.PICKER_INTERNAL_URI,
+                    /* notifyForDescendants */ true, mPickerDbObserver);
+            mObservedContentResolver = resolver;
+            mObservedUserId = userId;
+        } catch (NameNotFoundException e) {
+            Log.w(TAG, "Unable to observe the picker db of user " + userId, e);
+        }
+    }
+
+    private void stopObservingPickerDb() {
+        if (mObservedContentResolver != null) {
+            mObservedContentResolver.unregisterContentObserver(mPickerDbObserver);
+            mObservedContentResolver = null;
+            mObservedUserId = null;
+        }
+    }
+
+    private void onPickerDbChanged() {
+        // Reload at least as many items as were loaded, so the lists don't shrink under the user
+        if (mItemList != null) {
+            loadItemsAsync(getReloadItemCount(mItemPager));
+        }
+        if (mCategoryList != null) {
+            loadCategoriesAsync();
+        }
+        if (mCategoryItemList != null && mCurrentCategory != null) {
+            loadCategoryItemsAsync(getReloadItemCount(mCategoryItemPager));
+        }
+    }
+
+    private static int getReloadItemCount(@Nullable ItemPager pager) {
+        return pager == null ? ITEMS_PAGE_SIZE
+                : Math.max(ITEMS_PAGE_SIZE, pager.getLoadedItemCount());
+    }
+
     /**
      * Return whether the {@link #mMimeTypeFilter} is {@code null} or not
      */
@@ -360,4 +420,179 @@ public class PickerViewModel extends AndroidViewModel {
     public void setInstanceId(InstanceId parcelable) {
         mInstanceId = parcelable;
     }
+
+    /**
+     * Loads the items of a category page by page, keyed on the date taken and picker db row id of
+     * the last item loaded, and posts all the items loaded so far to a {@link LiveData} after
+     * every page, as a {@link PageList} that shares the pages loaded before. The date headers are
+     * added as each page is loaded, carrying over the state of the previous page. Pages are loaded
+     * on the {@link ForegroundThread}.
+     */
+    private final class ItemPager {
+        private final Category mCategory;
+        private final UserId mUserId;
+        private final MutableLiveData<List<Item>> mLiveData;
+        // We only add the RECENT header on the PhotosTabFragment with CATEGORY_DEFAULT. When the
+        // category is not empty, we don't show the RECENT header.
+        private final boolean mShowRecent;
+        private final AtomicBoolean mIsLoading = new AtomicBoolean();
+
+        // Only accessed on the ForegroundThread
+        private PageList mItems = new PageList();
+        private int mRecentSize = 0;
+        private long mCurrentDateTaken = 0;
+        private long mLastDateTakenMs = -1;
+        private long mLastRowId = -1;
+
+        private volatile boolean mHasMore = true;
+        private volatile int mLoadedItemCount = 0;
+
+        ItemPager(@NonNull Category category, @NonNull UserId userId,
+                @NonNull MutableLiveData<List<Item>> liveData) {
+            mCategory = category;
+            mUserId = userId;
+            mLiveData = liveData;
+            mShowRecent = category.isDefault();
+        }
+
+        int getLoadedItemCount() {
+            return mLoadedItemCount;
+        }
+
+        /**
+         * Loads the next page of up to {@code limit} items, unless all the items are loaded or a
+         * page is already loading.
+         */
+        void loadNextPageAsync(int limit) {
+            if (!mHasMore || !mIsLoading.compareAndSet(false, true)) {
+                return;
+            }
+
+            ForegroundThread.getExecutor().execute(() -> {
+                try {
+                    loadNextPage(limit);
+                } finally {
+                    mIsLoading.set(false);
+                }
+            });
+        }
+
+        private void loadNextPage(int limit) {
+            final boolean isFirstPage = mLastRowId < 0;
+            final List<Item> page = new ArrayList<>();
+            int count = 0;
+
+            try (Cursor cursor = mItemsProvider.getItems(mCategory, mLastDateTakenMs, mLastRowId,
+                    limit, mMimeTypeFilter, mUserId)) {
+                if (cursor == null || cursor.getCount() == 0) {
+                    Log.d(TAG, "Didn't receive any items for " + mCategory
+                            + ", either cursor is null or cursor count is zero");
+                    mHasMore = false;
+                    if (isFirstPage) {
+                        mLiveData.postValue(new ArrayList<>());
+                    }
+                    return;
+                }
+
+                if (isFirstPage && mShowRecent) {
+                    // add Recent date header
+                    page.add(Item.createDateItem(0));
+                }
+                while (cursor.moveToNext()) {
+                    // TODO(b/188394433): Return userId in the cursor so that we do not need to pass
+                    // it here again.
+                    final Item item = Item.fromCursor(cursor, mUserId);
+                    addItem(page, item);
+                    mLastDateTakenMs = item.getDateTaken();
+                    mLastRowId = getCursorLong(cursor, PickerDbFacade.PICKER_ROW_ID);
+                }
+                count = cursor.getCount();
+            }
+
+            // Without a row id there is no key to continue from
+            mHasMore = count >= limit && mLastRowId >= 0;
+            mItems = mItems.append(page);
+            mLoadedItemCount = mItems.size();
+            mLiveData.postValue(mItems);
+
+            Log.d(TAG, "Loaded " + count + " items in " + mCategory + " for user "
+                    + mUserId.toString() + ", " + mItems.size() + " items in total");
+        }
+
+        private void addItem(@NonNull List<Item> page, @NonNull Item item) {
+            final long dateTaken = item.getDateTaken();
+            // the minimum count of items in recent is not reached
+            if (mShowRecent && mRecentSize < RECENT_MINIMUM_COUNT) {
+                mRecentSize++;
+                mCurrentDateTaken = dateTaken;
+            }
+
+            // The date taken of these two images are not on the
+            // same day, add the new date header.
+            if (!DateTimeUtils.isSameDate(mCurrentDateTaken, dateTaken)) {
+                page.add(Item.createDateItem(dateTaken));
+                mCurrentDateTaken = dateTaken;
+            }
+            page.add(item);
+        }
+    }
+
+    /**
+     * Read-only list of the pages of items loaded so far. Appending a page shares the pages
+     * before it instead of copying their items, so loading a page costs the same no matter how
+     * many items were loaded before.
+     */
+    @VisibleForTesting
+    static final class PageList extends AbstractList<Item> {
+        private final List<List<Item>> mPages;
+        // Index of the first item of each page
+        private final int[] mOffsets;
+        private final int mSize;
+
+        PageList() {
+            this(Collections.emptyList());
+        }
+
+        private PageList(@NonNull List<List<Item>> pages) {
+            mPages = pages;
+            mOffsets = new int[pages.size()];
+            int size = 0;
+            for (int i = 0; i < pages.size(); i++) {
+                mOffsets[i] = size;
+                size += pages.get(i).size();
+            }
+            mSize = size;
+        }
+
+        /** Returns this list with {@code page} appended, which must not be modified anymore. */
+        @NonNull
+        PageList append(@NonNull List<Item> page) {
+            if (page.isEmpty()) {
+                // Pages are never empty, so every page starts at a different offset
+                return this;
+            }
+            final List<List<Item>> pages = new ArrayList<>(mPages.size() + 1);
+            pages.addAll(mPages);
+            pages.add(page);
+            return new PageList(pages);
+        }
+
+        @Override
+        public Item get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Index " + index + " of " + mSize);
+            }
+            int page = Arrays.binarySearch(mOffsets, index);
+            if (page < 0) {
+                // Not the first item of a page, so it's on the page before the insertion point
+                page = -page - 2;
+            }
+            return mPages.get(page).get(index - mOffsets[page]);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
 }
@@ -121,6 +121,17 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Opens the file that {@code pfd} refers to again for reading, without resolving its path.
+     * Unlike {@link ParcelFileDescriptor#dup()}, the returned descriptor has its own file offset,
+     * so it can be handed to another reader.
+     */
+    public static @NonNull ParcelFileDescriptor reopenReadOnly(@NonNull ParcelFileDescriptor pfd)
+            throws FileNotFoundException {
+        return ParcelFileDescriptor.open(new File("/proc/self/fd/" + pfd.getFd()),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
     public static void closeQuietly(@Nullable AutoCloseable closeable) {
         android.os.FileUtils.closeQuietly(closeable);
     }
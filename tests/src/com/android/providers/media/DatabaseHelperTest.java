@@ -222,6 +222,28 @@ public class DatabaseHelperTest {
         }
     }
 
+    @Test
+    public void testDeleteRecordsPendingThumbnailDeletion() throws Exception {
+        try (DatabaseHelper helper = new DatabaseHelperT(sIsolatedContext, TEST_CLEAN_DB)) {
+            SQLiteDatabase db = helper.getWritableDatabaseForTest();
+            final ContentValues values = new ContentValues();
+            values.put(FileColumns.MEDIA_TYPE, FileColumns.MEDIA_TYPE_IMAGE);
+            values.put(FileColumns.VOLUME_NAME, VOLUME_EXTERNAL_PRIMARY);
+            values.put(FileColumns.DATA, "/storage/emulated/0/DCIM/image.jpg");
+            final long imageId = db.insert("files", FileColumns.DATA, values);
+            values.put(FileColumns.MEDIA_TYPE, FileColumns.MEDIA_TYPE_NONE);
+            values.put(FileColumns.DATA, "/storage/emulated/0/Documents/file.txt");
+            db.insert("files", FileColumns.DATA, values);
+
+            db.delete("files", null, null);
+
+            assertThat(queryValues(helper, "pending_thumbnail_deletions", "_id"))
+                    .containsExactly(String.valueOf(imageId));
+            assertThat(queryValues(helper, "pending_thumbnail_deletions", "volume_name"))
+                    .containsExactly(VOLUME_EXTERNAL_PRIMARY);
+        }
+    }
+
     @Test
     public void testTransactions() throws Exception {
         try (DatabaseHelper helper = new DatabaseHelperR(sIsolatedContext, TEST_CLEAN_DB)) {
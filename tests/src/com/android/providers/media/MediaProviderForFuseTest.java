@@ -137,6 +137,31 @@ public class MediaProviderForFuseTest {
                 sTestDir.getPath(), sTestUid))).doesNotContain(renamed.getName());
     }
 
+    @Test
+    public void testBatchedInsertAndDelete() throws Exception {
+        final File first = new File(sTestDir, "first" + System.nanoTime() + ".jpg");
+        final File second = new File(sTestDir, "second" + System.nanoTime() + ".jpg");
+
+        // The second insert of the same path fails, without affecting the other inserts
+        final String[] paths = {first.getPath(), second.getPath(), first.getPath()};
+        final int[] uids = {sTestUid, sTestUid, sTestUid};
+        Truth.assertThat(sMediaProvider.insertFilesIfNecessaryForFuse(paths, uids))
+                .isEqualTo(new int[] {0, 0, OsConstants.EEXIST});
+        Truth.assertThat(Arrays.asList(sMediaProvider.getFilesInDirectoryForFuse(
+                sTestDir.getPath(), sTestUid))).containsAtLeast(first.getName(), second.getName());
+
+        first.createNewFile();
+        second.createNewFile();
+
+        // Deleting an already deleted file fails, without affecting the other deletes
+        Truth.assertThat(sMediaProvider.deleteFilesForFuse(paths, uids))
+                .isEqualTo(new int[] {0, 0, OsConstants.ENOENT});
+        Truth.assertThat(Arrays.asList(sMediaProvider.getFilesInDirectoryForFuse(
+                sTestDir.getPath(), sTestUid))).containsNoneOf(first.getName(), second.getName());
+        Truth.assertThat(first.exists()).isFalse();
+        Truth.assertThat(second.exists()).isFalse();
+    }
+
     @Test
     public void testRenameDirectory() throws Exception {
         File file = createSubdirWithOneFile(sTestDir);
@@ -157,6 +182,49 @@ public class MediaProviderForFuseTest {
         }
     }
 
+    @Test
+    public void testRenameDirectory_WithNestedDirectories() throws Exception {
+        final File oldDir = new File(sTestDir, "parent" + System.nanoTime());
+        oldDir.mkdirs();
+        final File topFile = new File(oldDir, "test" + System.nanoTime() + ".jpg");
+        Truth.assertThat(sMediaProvider.insertFileIfNecessaryForFuse(
+                topFile.getPath(), sTestUid)).isEqualTo(0);
+        Truth.assertThat(topFile.createNewFile()).isTrue();
+        final File nestedFile = createSubdirWithOneFile(oldDir);
+        final String nestedDirName = nestedFile.getParentFile().getName();
+
+        final File renamedDir = new File(sTestDir, "renamed" + System.nanoTime());
+        Truth.assertThat(sMediaProvider.renameForFuse(
+                oldDir.getPath(), renamedDir.getPath(), sTestUid)).isEqualTo(0);
+
+        // Every file should carry relative path and bucket of its new parent directory
+        final Bundle queryArgs = queryArgsForDirContents(renamedDir);
+        final String[] projection = new String[] {
+                MediaStore.MediaColumns.DATA,
+                MediaStore.MediaColumns.RELATIVE_PATH,
+                MediaStore.MediaColumns.BUCKET_DISPLAY_NAME
+        };
+        try (Cursor cursor = sIsolatedResolver
+                .query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, queryArgs,
+                        null)) {
+            Truth.assertThat(cursor.getCount()).isEqualTo(2);
+            while (cursor.moveToNext()) {
+                final File file = new File(cursor.getString(0));
+                final String relativePath = cursor.getString(1);
+                final String bucketDisplayName = cursor.getString(2);
+                if (file.getName().equals(topFile.getName())) {
+                    Truth.assertThat(relativePath).endsWith("/" + renamedDir.getName() + "/");
+                    Truth.assertThat(bucketDisplayName).isEqualTo(renamedDir.getName());
+                } else {
+                    Truth.assertThat(file.getName()).isEqualTo(nestedFile.getName());
+                    Truth.assertThat(relativePath).endsWith(
+                            "/" + renamedDir.getName() + "/" + nestedDirName + "/");
+                    Truth.assertThat(bucketDisplayName).isEqualTo(nestedDirName);
+                }
+            }
+        }
+    }
+
     @Test
     public void testRenameDirectory_WhenParentDirectoryIsHidden() throws Exception {
         // Create parent dir with nomedia file
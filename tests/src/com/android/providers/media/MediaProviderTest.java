@@ -48,6 +48,8 @@ import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.graphics.Point;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -64,6 +66,7 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.Size;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SdkSuppress;
@@ -89,6 +92,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -251,6 +255,34 @@ public class MediaProviderTest {
         }
     }
 
+    @Test
+    public void testEnsureThumbnail_cachesGeneratedDescriptor() throws Exception {
+        // Start from an empty thumbnail descriptor cache
+        resetIsolatedContext();
+
+        final File dir = Environment
+                .getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        final File file = stage(R.raw.lg_g4_iso_800_jpg,
+                new File(dir, "test" + System.nanoTime() + ".jpg"));
+        try {
+            final Uri uri = MediaStore.scanFile(sIsolatedResolver, file);
+
+            // Generated by the first load, served from the descriptor cache by the second one
+            sIsolatedResolver.loadThumbnail(uri, new Size(96, 96), null).recycle();
+            sIsolatedResolver.loadThumbnail(uri, new Size(96, 96), null).recycle();
+
+            final StringWriter dump = new StringWriter();
+            try (ContentProviderClient cpc = sIsolatedResolver
+                    .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+                cpc.getLocalContentProvider().dump(null,
+                        new PrintWriter(dump, /* autoFlush */ true), null);
+            }
+            assertThat(dump.toString()).contains("thumbnailFdCache: size=1 hits=1 ");
+        } finally {
+            file.delete();
+        }
+    }
+
     /**
      * We already have solid coverage of this logic in
      * {@code CtsProviderTestCases}, but the coverage system currently doesn't
@@ -477,6 +509,66 @@ public class MediaProviderTest {
         assertNotNull(MediaProvider.getRedactionRanges(file));
     }
 
+    @Test
+    public void testGetThumbnailFileName() {
+        final Size fullSize = new Size(512, 512);
+        assertEquals("42.jpg",
+                MediaProvider.getThumbnailFileName(42, fullSize, fullSize, ".jpg"));
+        assertEquals("42_96.jpg",
+                MediaProvider.getThumbnailFileName(42, new Size(96, 96), fullSize, ".jpg"));
+        assertEquals("42_256.webp",
+                MediaProvider.getThumbnailFileName(42, new Size(256, 256), fullSize, ".webp"));
+    }
+
+    @Test
+    public void testGetThumbnailSizes() {
+        assertEquals(Arrays.asList(new Size(96, 96), new Size(256, 256), new Size(512, 512)),
+                MediaProvider.getThumbnailSizes(new Size(512, 512)));
+        // Tiers that aren't smaller than the full size are skipped
+        assertEquals(Arrays.asList(new Size(96, 96), new Size(256, 256)),
+                MediaProvider.getThumbnailSizes(new Size(256, 256)));
+        assertEquals(Arrays.asList(new Size(64, 64)),
+                MediaProvider.getThumbnailSizes(new Size(64, 64)));
+    }
+
+    @Test
+    public void testGetThumbnailSize() {
+        final Size fullSize = new Size(512, 512);
+        assertEquals(fullSize, MediaProvider.getThumbnailSize(null, fullSize));
+        assertEquals(new Size(96, 96),
+                MediaProvider.getThumbnailSize(new Point(96, 50), fullSize));
+        assertEquals(new Size(256, 256),
+                MediaProvider.getThumbnailSize(new Point(50, 97), fullSize));
+        assertEquals(fullSize, MediaProvider.getThumbnailSize(new Point(257, 257), fullSize));
+        assertEquals(fullSize, MediaProvider.getThumbnailSize(new Point(1024, 768), fullSize));
+    }
+
+    @Test
+    public void testGetThumbnailTierSize() {
+        final Size tier = new Size(96, 96);
+        // The short side of a 4:3 thumbnail covers the tier, whichever its orientation
+        assertEquals(new Size(128, 96), MediaProvider.getThumbnailTierSize(512, 384, tier));
+        assertEquals(new Size(96, 128), MediaProvider.getThumbnailTierSize(384, 512, tier));
+        assertEquals(tier, MediaProvider.getThumbnailTierSize(512, 512, tier));
+        // Thumbnails are never scaled up
+        assertEquals(new Size(512, 64), MediaProvider.getThumbnailTierSize(512, 64, tier));
+    }
+
+    @Test
+    public void testThumbnailFormat() {
+        final Bitmap.CompressFormat webp = MediaProvider.parseThumbnailFormat("WebP");
+        assertEquals(Bitmap.CompressFormat.WEBP_LOSSY, webp);
+        assertEquals(".webp", MediaProvider.getThumbnailExtension(webp));
+        assertEquals(80, MediaProvider.getThumbnailQuality(webp));
+
+        for (String format : new String[] { "jpeg", "", "png" }) {
+            final Bitmap.CompressFormat jpeg = MediaProvider.parseThumbnailFormat(format);
+            assertEquals(Bitmap.CompressFormat.JPEG, jpeg);
+            assertEquals(".jpg", MediaProvider.getThumbnailExtension(jpeg));
+            assertEquals(90, MediaProvider.getThumbnailQuality(jpeg));
+        }
+    }
+
     @Test
     public void testComputeCommonPrefix_Single() {
         assertEquals(Uri.parse("content://authority/1/2/3"),
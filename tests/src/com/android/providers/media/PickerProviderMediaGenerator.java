@@ -19,6 +19,7 @@ package com.android.providers.media;
 import static android.provider.CloudMediaProviderContract.AlbumColumns;
 import static android.provider.CloudMediaProviderContract.EXTRA_ALBUM_ID;
 import static android.provider.CloudMediaProviderContract.EXTRA_MEDIA_COLLECTION_ID;
+import static android.provider.CloudMediaProviderContract.EXTRA_PAGE_TOKEN;
 import static android.provider.CloudMediaProviderContract.EXTRA_SYNC_GENERATION;
 import static android.provider.CloudMediaProviderContract.MediaCollectionInfo;
 import static android.provider.CloudMediaProviderContract.MediaColumns;
@@ -94,9 +95,18 @@ public class PickerProviderMediaGenerator {
         private Intent mAccountConfigurationIntent;
         private int mCursorExtraQueryCount;
         private Bundle mCursorExtra;
+        // Number of media per page, or 0 to return all media in one page
+        private int mPageSize;
+        // Token of the next page to return without the sync generation honored arg
+        private String mFailingPageToken;
+        private int mMediaQueryCount;
 
-        // TODO(b/214592293): Add pagination support for testing purposes.
         public Cursor getMedia(long generation, String albumId, String mimeType, long sizeBytes) {
+            return getMedia(generation, albumId, mimeType, sizeBytes, /* pageToken */ null);
+        }
+
+        public Cursor getMedia(long generation, String albumId, String mimeType, long sizeBytes,
+                String pageToken) {
             final Cursor cursor = getCursor(mMedia, generation, albumId, mimeType, sizeBytes,
                     /* isDeleted */ false);
 
@@ -109,7 +119,14 @@ public class PickerProviderMediaGenerator {
             if (--mCursorExtraQueryCount == 0) {
                 clearCursorExtras();
             }
-            return cursor;
+
+            if (pageToken != null && pageToken.equals(mFailingPageToken)) {
+                cursor.setExtras(buildCursorExtras(mCollectionId, /* honoredSyncGeneration */ false,
+                        albumId != null));
+                mFailingPageToken = null;
+            }
+            mMediaQueryCount++;
+            return getPage(cursor, pageToken);
         }
 
         public Cursor getAlbums(String mimeType, long sizeBytes, boolean isLocal) {
@@ -218,12 +235,31 @@ public class PickerProviderMediaGenerator {
         }
 
         public void resetAll() {
+            mPageSize = 0;
+            mFailingPageToken = null;
+            mMediaQueryCount = 0;
             mMedia.clear();
             mDeletedMedia.clear();
             mAlbums.clear();
             clearCursorExtras();
         }
 
+        /**
+         * Splits the media returned by {@link #getMedia} into pages of {@code pageSize} media, or
+         * returns all media in one page if {@code pageSize} is 0.
+         */
+        public void setPageSize(int pageSize) {
+            mPageSize = pageSize;
+        }
+
+        public void setFailingPageToken(String pageToken) {
+            mFailingPageToken = pageToken;
+        }
+
+        public int getMediaQueryCount() {
+            return mMediaQueryCount;
+        }
+
         public void setMediaCollectionId(String id) {
             mCollectionId = id;
         }
@@ -259,6 +295,33 @@ public class PickerProviderMediaGenerator {
             return new TestMedia(localId, cloudId, 0);
         }
 
+        private Cursor getPage(Cursor cursor, String pageToken) {
+            if (mPageSize <= 0) {
+                return cursor;
+            }
+
+            // The page token is the position of the first media of the page
+            final int start = pageToken == null ? 0 : Integer.parseInt(pageToken);
+            final int end = Math.min(start + mPageSize, cursor.getCount());
+            final MatrixCursor page = new MatrixCursor(cursor.getColumnNames());
+            for (int position = start; position < end; position++) {
+                cursor.moveToPosition(position);
+                final String[] row = new String[cursor.getColumnCount()];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = cursor.getString(i);
+                }
+                page.addRow(row);
+            }
+
+            final Bundle extras = new Bundle(cursor.getExtras());
+            if (end < cursor.getCount()) {
+                extras.putString(EXTRA_PAGE_TOKEN, String.valueOf(end));
+            }
+            page.setExtras(extras);
+            cursor.close();
+            return page;
+        }
+
         private static Cursor getCursor(List<TestMedia> mediaList, long generation,
                 String albumId, String mimeType, long sizeBytes, boolean isDeleted) {
             final MatrixCursor matrix;
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailCacheTest {
+    private static final int FILE_SIZE = 1000;
+
+    private final List<File> mEvictedFiles = new ArrayList<>();
+    // Volume listings started by the cache, run by the test
+    private final List<Runnable> mLoads = new ArrayList<>();
+
+    private File mDirectory;
+    private File mVolume1;
+    private File mVolume2;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "thumbnail_cache_test");
+        mVolume1 = new File(mDirectory, "volume1");
+        mVolume2 = new File(mDirectory, "volume2");
+        getThumbnailDirectory(mVolume1).mkdirs();
+        getThumbnailDirectory(mVolume2).mkdirs();
+        FileUtils.deleteContents(getThumbnailDirectory(mVolume1));
+        FileUtils.deleteContents(getThumbnailDirectory(mVolume2));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDirectory);
+    }
+
+    @Test
+    public void testLoad_skipsDatabaseUuidAndTempFiles() throws Exception {
+        createFile(mVolume1, "1.jpg", /* ageMs */ 0);
+        createFile(mVolume1, ".database_uuid", /* ageMs */ 0);
+        createFile(mVolume1, "thumb123.tmp", /* ageMs */ 0);
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(FILE_SIZE);
+        assertThat(cache.getSizeBytes(mVolume2)).isEqualTo(0);
+    }
+
+    @Test
+    public void testOnGenerated_enforcesVolumeBudget() throws Exception {
+        final File file1 = createFile(mVolume1, "1.jpg", /* ageMs */ 2000);
+        final File file2 = createFile(mVolume1, "2.jpg", /* ageMs */ 1000);
+        final File other = createFile(mVolume2, "1.jpg", /* ageMs */ 3000);
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 2 * FILE_SIZE);
+        cache.getSizeBytes(mVolume1);
+        cache.getSizeBytes(mVolume2);
+
+        final File file3 = createFile(mVolume1, "3.jpg", /* ageMs */ 0);
+        cache.onGenerated(mVolume1, file3, "Pictures", /* durationMs */ 10);
+
+        assertThat(mEvictedFiles).containsExactly(file1);
+        assertThat(file1.exists()).isFalse();
+        assertThat(file2.exists()).isTrue();
+        assertThat(file3.exists()).isTrue();
+        assertThat(other.exists()).isTrue();
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(2 * FILE_SIZE);
+    }
+
+    @Test
+    public void testOnGenerated_listsNewVolumeInBackground() throws Exception {
+        final File file1 = createFile(mVolume1, "1.jpg", /* ageMs */ 2000);
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+
+        final File file2 = createFile(mVolume1, "2.jpg", /* ageMs */ 0);
+        cache.onGenerated(mVolume1, file2, "Pictures", /* durationMs */ 10);
+        assertThat(mLoads).hasSize(1);
+        runLoads();
+
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(2 * FILE_SIZE);
+        assertThat(cache.free(FILE_SIZE, Collections.singletonList(mVolume1)))
+                .isEqualTo(FILE_SIZE);
+        assertThat(mEvictedFiles).containsExactly(file1);
+    }
+
+    @Test
+    public void testOnGenerated_keepsFilesGeneratedWhileListing() throws Exception {
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+        final File file1 = createFile(mVolume1, "1.jpg", /* ageMs */ 0);
+        cache.onGenerated(mVolume1, file1, "Pictures", /* durationMs */ 10);
+
+        // Generated again while the volume is being listed, which must not make it look older
+        file1.setLastModified(System.currentTimeMillis() - 5000);
+        final File file2 = createFile(mVolume1, "2.jpg", /* ageMs */ 1000);
+        cache.onGenerated(mVolume1, file1, "Pictures", /* durationMs */ 10);
+        runLoads();
+
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(2 * FILE_SIZE);
+        assertThat(cache.free(FILE_SIZE, Collections.singletonList(mVolume1)))
+                .isEqualTo(FILE_SIZE);
+        assertThat(mEvictedFiles).containsExactly(file2);
+    }
+
+    @Test
+    public void testOnVolumeDetached() throws Exception {
+        createFile(mVolume1, "1.jpg", /* ageMs */ 0);
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(FILE_SIZE);
+        final File file2 = createFile(mVolume2, "2.jpg", /* ageMs */ 0);
+        cache.onGenerated(mVolume2, file2, "Pictures", /* durationMs */ 10);
+
+        cache.onVolumeDetached(mVolume1);
+        cache.onVolumeDetached(mVolume2);
+        runLoads();
+
+        final StringWriter dump = new StringWriter();
+        cache.dump(new PrintWriter(dump, /* autoFlush */ true));
+        assertThat(dump.toString()).doesNotContain(mVolume1.getPath());
+        assertThat(dump.toString()).doesNotContain(mVolume2.getPath());
+    }
+
+    @Test
+    public void testFree_evictsLeastRecentlyUsedAcrossVolumes() throws Exception {
+        final File file1 = createFile(mVolume1, "1.jpg", /* ageMs */ 3000);
+        final File file2 = createFile(mVolume1, "2.jpg", /* ageMs */ 1000);
+        final File file3 = createFile(mVolume2, "3.jpg", /* ageMs */ 2000);
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+
+        assertThat(cache.free(2 * FILE_SIZE, Arrays.asList(mVolume1, mVolume2)))
+                .isEqualTo(2 * FILE_SIZE);
+
+        assertThat(mEvictedFiles).containsExactly(file1, file3).inOrder();
+        assertThat(file2.exists()).isTrue();
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(FILE_SIZE);
+        assertThat(cache.getSizeBytes(mVolume2)).isEqualTo(0);
+    }
+
+    @Test
+    public void testOnHit_movesToMostRecentlyUsed() throws Exception {
+        final File file1 = createFile(mVolume1, "1.jpg",
+                /* ageMs */ ThumbnailCache.TOUCH_INTERVAL_MS + 1000);
+        final File file2 = createFile(mVolume1, "2.jpg", /* ageMs */ 1000);
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+        cache.getSizeBytes(mVolume1);
+
+        cache.onHit(mVolume1, file1);
+
+        assertThat(file1.lastModified()).isGreaterThan(file2.lastModified());
+        assertThat(cache.free(FILE_SIZE, Collections.singletonList(mVolume1)))
+                .isEqualTo(FILE_SIZE);
+        assertThat(mEvictedFiles).containsExactly(file2);
+        assertThat(file1.exists()).isTrue();
+    }
+
+    @Test
+    public void testOnDeleted() throws Exception {
+        final File file1 = createFile(mVolume1, "1.jpg", /* ageMs */ 0);
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(FILE_SIZE);
+
+        file1.delete();
+        cache.onDeleted(file1);
+
+        assertThat(cache.getSizeBytes(mVolume1)).isEqualTo(0);
+        assertThat(mEvictedFiles).isEmpty();
+    }
+
+    @Test
+    public void testDump() throws Exception {
+        final ThumbnailCache cache = createCache(/* maxVolumeSizeBytes */ 10 * FILE_SIZE);
+        final File file1 = createFile(mVolume1, "1.jpg", /* ageMs */ 0);
+        cache.onMiss();
+        cache.onGenerated(mVolume1, file1, "Pictures", /* durationMs */ 30);
+        cache.onHit(mVolume1, file1);
+
+        final StringWriter dump = new StringWriter();
+        cache.dump(new PrintWriter(dump, /* autoFlush */ true));
+
+        assertThat(dump.toString()).contains("hits=1 misses=1");
+        assertThat(dump.toString()).contains("generate Pictures: count=1 avgMs=30 maxMs=30");
+    }
+
+    private ThumbnailCache createCache(long maxVolumeSizeBytes) {
+        return new ThumbnailCache(maxVolumeSizeBytes,
+                volumePath -> Collections.singletonList(getThumbnailDirectory(volumePath)),
+                file -> {
+                    mEvictedFiles.add(file);
+                    file.delete();
+                },
+                mLoads::add);
+    }
+
+    private void runLoads() {
+        final List<Runnable> loads = new ArrayList<>(mLoads);
+        mLoads.clear();
+        for (Runnable load : loads) {
+            load.run();
+        }
+    }
+
+    private static File getThumbnailDirectory(File volumePath) {
+        return new File(volumePath, "Pictures/.thumbnails");
+    }
+
+    /** Creates a thumbnail last used {@code ageMs} ago. */
+    private static File createFile(File volumePath, String name, long ageMs) throws IOException {
+        final File file = new File(getThumbnailDirectory(volumePath), name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[FILE_SIZE]);
+        }
+        file.setLastModified(System.currentTimeMillis() - ageMs);
+        return file;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.ParcelFileDescriptor;
+import android.system.Os;
+import android.system.OsConstants;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailFdCacheTest {
+    private static final int FILE_SIZE = 16;
+
+    private final ThumbnailFdCache mCache = new ThumbnailFdCache();
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "thumbnail_fd_cache_test");
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[FILE_SIZE]);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mCache.invalidateAll();
+        mFile.delete();
+    }
+
+    @Test
+    public void testOpen_servesFromCacheAfterDelete() throws Exception {
+        assertThat(mCache.get(mFile)).isNull();
+        mCache.open(mFile).close();
+
+        // Only the cached descriptor is still open on the file
+        mFile.delete();
+
+        try (ParcelFileDescriptor pfd = mCache.get(mFile)) {
+            assertThat(pfd).isNotNull();
+            assertThat(pfd.getStatSize()).isEqualTo(FILE_SIZE);
+        }
+    }
+
+    @Test
+    public void testGet_independentOffsets() throws Exception {
+        mCache.open(mFile).close();
+
+        try (ParcelFileDescriptor first = mCache.get(mFile);
+                ParcelFileDescriptor second = mCache.get(mFile)) {
+            Os.lseek(first.getFileDescriptor(), FILE_SIZE, OsConstants.SEEK_SET);
+            assertThat(Os.lseek(second.getFileDescriptor(), 0, OsConstants.SEEK_CUR))
+                    .isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        mCache.open(mFile).close();
+
+        mCache.invalidate(mFile);
+
+        assertThat(mCache.get(mFile)).isNull();
+    }
+
+    @Test
+    public void testPut_skippedAfterInvalidate() throws Exception {
+        final ThumbnailFdCache.PendingOpen pending = mCache.startOpen(mFile);
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(mFile,
+                ParcelFileDescriptor.MODE_READ_ONLY)) {
+            // The file was deleted and invalidated while it was being opened
+            mCache.invalidate(mFile);
+            mCache.put(pending, pfd);
+            mCache.finishOpen(pending);
+
+            assertThat(mCache.get(mFile)).isNull();
+
+            final ThumbnailFdCache.PendingOpen next = mCache.startOpen(mFile);
+            mCache.put(next, pfd);
+            mCache.finishOpen(next);
+        }
+
+        try (ParcelFileDescriptor pfd = mCache.get(mFile)) {
+            assertThat(pfd).isNotNull();
+        }
+    }
+
+    @Test
+    public void testPut_keptAfterInvalidatingOtherFile() throws Exception {
+        final ThumbnailFdCache.PendingOpen pending = mCache.startOpen(mFile);
+        try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(mFile,
+                ParcelFileDescriptor.MODE_READ_ONLY)) {
+            mCache.invalidate(new File(mFile.getParentFile(), "other"));
+            mCache.put(pending, pfd);
+            mCache.finishOpen(pending);
+        }
+
+        try (ParcelFileDescriptor pfd = mCache.get(mFile)) {
+            assertThat(pfd).isNotNull();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.fail;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailGeneratorTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final ThumbnailGenerator mGenerator = new ThumbnailGenerator(/* threadCount */ 1);
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "thumbnail_generator_test");
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[16]);
+        }
+    }
+
+    @Test
+    public void testGenerate_sharesJobForSameKey() throws Exception {
+        final AtomicInteger runCount = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ThumbnailGenerator.Task task = signal -> {
+            runCount.incrementAndGet();
+            await(release);
+            return open();
+        };
+
+        final List<Thread> threads = new ArrayList<>();
+        final List<ParcelFileDescriptor> results =
+                Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 3; i++) {
+            threads.add(startGenerate("key", /* isForeground */ false, null, task, results));
+        }
+        waitForThreads();
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(runCount.get()).isEqualTo(1);
+        assertThat(results).hasSize(3);
+        for (ParcelFileDescriptor pfd : results) {
+            assertThat(pfd.getStatSize()).isEqualTo(16);
+            pfd.close();
+        }
+    }
+
+    @Test
+    public void testGenerate_cancelledWhenAllWaitersCancel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final ThumbnailGenerator.Task task = signal -> {
+            signal.setOnCancelListener(cancelled::countDown);
+            started.countDown();
+            await(cancelled);
+            signal.throwIfCanceled();
+            return open();
+        };
+
+        final CancellationSignal signal = new CancellationSignal();
+        final Thread thread = new Thread(() -> {
+            try {
+                mGenerator.generate("key", /* isForeground */ false, signal, task).close();
+                fail("Expected OperationCanceledException");
+            } catch (OperationCanceledException expected) {
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        await(started);
+
+        signal.cancel();
+
+        assertThat(cancelled.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        thread.join();
+    }
+
+    @Test
+    public void testGenerate_foregroundFirst() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final List<ParcelFileDescriptor> results =
+                Collections.synchronizedList(new ArrayList<>());
+
+        // Occupy the only worker so the other jobs queue up behind it
+        final Thread blocker = startGenerate("blocker", /* isForeground */ false, null,
+                signal -> {
+                    await(release);
+                    return open();
+                }, results);
+        waitForThreads();
+        final Thread background = startGenerate("background", /* isForeground */ false, null,
+                recordingTask(order, "background"), results);
+        waitForThreads();
+        final Thread foreground = startGenerate("foreground", /* isForeground */ true, null,
+                recordingTask(order, "foreground"), results);
+        waitForThreads();
+
+        release.countDown();
+        blocker.join();
+        background.join();
+        foreground.join();
+
+        assertThat(order).containsExactly("foreground", "background").inOrder();
+        for (ParcelFileDescriptor pfd : results) {
+            pfd.close();
+        }
+    }
+
+    private ThumbnailGenerator.Task recordingTask(List<String> order, String name) {
+        return signal -> {
+            order.add(name);
+            return open();
+        };
+    }
+
+    private Thread startGenerate(String key, boolean isForeground, CancellationSignal signal,
+            ThumbnailGenerator.Task task, List<ParcelFileDescriptor> results) {
+        final Thread thread = new Thread(() -> {
+            try {
+                results.add(mGenerator.generate(key, isForeground, signal, task));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private ParcelFileDescriptor open() throws IOException {
+        return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Gives the threads started so far time to reach the generator */
+    private static void waitForThreads() {
+        SystemClock.sleep(200);
+    }
+}
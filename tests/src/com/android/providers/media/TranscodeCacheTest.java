@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class TranscodeCacheTest {
+    // A multiple of the block size, so the size on disk matches the length
+    private static final int FILE_SIZE = 4096;
+
+    private final List<Long> mEvictedRowIds = new ArrayList<>();
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "transcode_cache_test");
+        mDirectory.mkdirs();
+        FileUtils.deleteContents(mDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDirectory);
+    }
+
+    @Test
+    public void testFree_evictsLeastRecentlyUsedFirst() throws Exception {
+        createIdleFile(1, /* ageMs */ 3000);
+        createIdleFile(2, /* ageMs */ 1000);
+        createIdleFile(3, /* ageMs */ 2000);
+        final TranscodeCache cache = createCache(/* maxSizeBytes */ 10 * FILE_SIZE);
+
+        assertThat(cache.free(2 * FILE_SIZE)).isEqualTo(2 * FILE_SIZE);
+
+        assertThat(mEvictedRowIds).containsExactly(1L, 3L).inOrder();
+        assertThat(getFile(1).exists()).isFalse();
+        assertThat(getFile(2).exists()).isTrue();
+        assertThat(getFile(3).exists()).isFalse();
+        assertThat(cache.getSizeBytes()).isEqualTo(FILE_SIZE);
+    }
+
+    @Test
+    public void testFree_skipsPinnedAndRecentlyUsed() throws Exception {
+        createIdleFile(1, /* ageMs */ 2000);
+        createIdleFile(2, /* ageMs */ 1000);
+        createFile(3);
+        final TranscodeCache cache = createCache(/* maxSizeBytes */ 10 * FILE_SIZE);
+        cache.pin(1);
+
+        assertThat(cache.free(3 * FILE_SIZE)).isEqualTo(FILE_SIZE);
+
+        assertThat(mEvictedRowIds).containsExactly(2L);
+        assertThat(getFile(1).exists()).isTrue();
+        assertThat(getFile(3).exists()).isTrue();
+
+        cache.unpin(1);
+        assertThat(cache.free(FILE_SIZE)).isEqualTo(FILE_SIZE);
+        assertThat(getFile(1).exists()).isFalse();
+    }
+
+    @Test
+    public void testOnHit_movesToMostRecentlyUsed() throws Exception {
+        createIdleFile(1, /* ageMs */ 2000);
+        createIdleFile(2, /* ageMs */ 1000);
+        final TranscodeCache cache = createCache(/* maxSizeBytes */ 10 * FILE_SIZE);
+
+        cache.onHit(1);
+
+        assertThat(cache.free(2 * FILE_SIZE)).isEqualTo(FILE_SIZE);
+        assertThat(mEvictedRowIds).containsExactly(2L);
+        assertThat(getFile(1).exists()).isTrue();
+    }
+
+    @Test
+    public void testOnTranscoded_enforcesBudget() throws Exception {
+        createIdleFile(1, /* ageMs */ 2000);
+        createIdleFile(2, /* ageMs */ 1000);
+        final TranscodeCache cache = createCache(/* maxSizeBytes */ 2 * FILE_SIZE);
+        assertThat(cache.getSizeBytes()).isEqualTo(2 * FILE_SIZE);
+
+        createFile(3);
+        cache.onTranscoded(3);
+
+        assertThat(mEvictedRowIds).containsExactly(1L);
+        assertThat(getFile(1).exists()).isFalse();
+        assertThat(getFile(3).exists()).isTrue();
+        assertThat(cache.getSizeBytes()).isEqualTo(2 * FILE_SIZE);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        createIdleFile(1, /* ageMs */ 1000);
+        final TranscodeCache cache = createCache(/* maxSizeBytes */ 10 * FILE_SIZE);
+        assertThat(cache.getSizeBytes()).isEqualTo(FILE_SIZE);
+
+        assertThat(cache.remove(1)).isTrue();
+
+        assertThat(getFile(1).exists()).isFalse();
+        assertThat(cache.getSizeBytes()).isEqualTo(0);
+        assertThat(mEvictedRowIds).isEmpty();
+    }
+
+    private TranscodeCache createCache(long maxSizeBytes) {
+        return new TranscodeCache(mDirectory, maxSizeBytes, mEvictedRowIds::addAll);
+    }
+
+    private File getFile(long rowId) {
+        return new File(mDirectory, String.valueOf(rowId));
+    }
+
+    private void createFile(long rowId) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(getFile(rowId))) {
+            out.write(new byte[FILE_SIZE]);
+        }
+    }
+
+    /** Creates a file last used {@code ageMs} before it could be evicted. */
+    private void createIdleFile(long rowId, long ageMs) throws IOException {
+        createFile(rowId);
+        getFile(rowId).setLastModified(
+                System.currentTimeMillis() - TranscodeCache.MIN_IDLE_MS - ageMs);
+    }
+}
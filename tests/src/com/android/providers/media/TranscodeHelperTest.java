@@ -25,6 +25,7 @@ import android.os.Environment;
 import android.os.Process;
 import android.provider.DeviceConfig.OnPropertiesChangedListener;
 import android.provider.MediaStore;
+import android.util.Pair;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SdkSuppress;
@@ -33,15 +34,23 @@ import androidx.test.runner.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(AndroidJUnit4.class)
 @SdkSuppress(minSdkVersion = 31, codeName = "S")
 public class TranscodeHelperTest {
     private static final String SOME_VALID_FILE_PATH =
             "/storage/emulated/0/" + Environment.DIRECTORY_DCIM + "/Camera/some_filename.mp4";
+    private static final String TRANSCODE_COMPAT_MANIFEST_KEY = "transcode_compat_manifest";
+    private static final String NOT_INSTALLED_PACKAGE_NAME =
+            "com.android.providers.media.tests.not_installed";
 
     private final MediaProvider mDefaultMediaProvider = new MediaProvider() {
         @Override
@@ -165,4 +174,208 @@ public class TranscodeHelperTest {
         assertThat(transcodeReason).isEqualTo(
                 MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__APP_EXTRA);
     }
+
+    @Test
+    public void testGetSpeculativeTranscodePackage() {
+        final String packageName = InstrumentationRegistry.getTargetContext().getPackageName();
+        final TranscodeHelperImpl underTest = createTranscodeHelper(packageName + ",0");
+
+        assertThat(underTest.getSpeculativeTranscodePackage(TranscodeHelperImpl.FLAG_HEVC,
+                /* durationMs */ 1000)).isEqualTo(packageName);
+    }
+
+    @Test
+    public void testGetSpeculativeTranscodePackage_notForUnsupportedFiles() {
+        final String packageName = InstrumentationRegistry.getTargetContext().getPackageName();
+        final TranscodeHelperImpl underTest = createTranscodeHelper(packageName + ",0");
+
+        // Nothing to transcode
+        assertThat(underTest.getSpeculativeTranscodePackage(/* fileFlags */ 0,
+                /* durationMs */ 1000)).isNull();
+        // Too long to transcode
+        assertThat(underTest.getSpeculativeTranscodePackage(TranscodeHelperImpl.FLAG_HEVC,
+                TimeUnit.MINUTES.toMillis(2))).isNull();
+    }
+
+    @Test
+    public void testGetSpeculativeTranscodePackage_notForSupportingPackages() {
+        final String packageName = InstrumentationRegistry.getTargetContext().getPackageName();
+        final TranscodeHelperImpl underTest = createTranscodeHelper(
+                packageName + "," + TranscodeHelperImpl.FLAG_HEVC);
+
+        assertThat(underTest.getSpeculativeTranscodePackage(TranscodeHelperImpl.FLAG_HEVC,
+                /* durationMs */ 1000)).isNull();
+    }
+
+    @Test
+    public void testGetSpeculativeTranscodePackage_notForUninstalledPackages() {
+        final TranscodeHelperImpl underTest = createTranscodeHelper(
+                NOT_INSTALLED_PACKAGE_NAME + ",0");
+
+        assertThat(underTest.getSpeculativeTranscodePackage(TranscodeHelperImpl.FLAG_HEVC,
+                /* durationMs */ 1000)).isNull();
+    }
+
+    @Test
+    public void testTryAddPendingSpeculativeTranscode_bounded() {
+        for (int i = 0; i < TranscodeHelperImpl.MAX_PENDING_SPECULATIVE_TRANSCODE_COUNT; i++) {
+            assertThat(mUnderTest.tryAddPendingSpeculativeTranscode()).isTrue();
+        }
+        assertThat(mUnderTest.tryAddPendingSpeculativeTranscode()).isFalse();
+
+        mUnderTest.removePendingSpeculativeTranscode();
+        assertThat(mUnderTest.tryAddPendingSpeculativeTranscode()).isTrue();
+        assertThat(mUnderTest.tryAddPendingSpeculativeTranscode()).isFalse();
+    }
+
+    @Test
+    public void testGetManifestTranscodeDecision_cached() {
+        final String packageName = InstrumentationRegistry.getTargetContext().getPackageName();
+        final TestMediaProvider mediaProvider = new TestMediaProvider(packageName + ",0");
+        final TranscodeHelperImpl underTest = new TranscodeHelperImpl(
+                InstrumentationRegistry.getTargetContext(), mediaProvider);
+
+        assertThat(underTest.getManifestTranscodeDecision(Process.myUid(),
+                TranscodeHelperImpl.FLAG_HEVC)).isEqualTo(
+                MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__SYSTEM_CONFIG);
+        assertThat(underTest.getManifestTranscodeDecision(Process.myUid(),
+                TranscodeHelperImpl.FLAG_HEVC)).isEqualTo(
+                MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__SYSTEM_CONFIG);
+        assertThat(mediaProvider.mCallingIdentityLookupCount).isEqualTo(1);
+
+        // Decisions are cached per file flags
+        underTest.getManifestTranscodeDecision(Process.myUid(),
+                TranscodeHelperImpl.FLAG_HEVC | TranscodeHelperImpl.FLAG_SLOW_MOTION);
+        assertThat(mediaProvider.mCallingIdentityLookupCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetManifestTranscodeDecision_invalidatedOnPackageChange() {
+        final String packageName = InstrumentationRegistry.getTargetContext().getPackageName();
+        final TestMediaProvider mediaProvider = new TestMediaProvider(packageName + ",0");
+        final TranscodeHelperImpl underTest = new TranscodeHelperImpl(
+                InstrumentationRegistry.getTargetContext(), mediaProvider);
+        underTest.getManifestTranscodeDecision(Process.myUid(), TranscodeHelperImpl.FLAG_HEVC);
+
+        underTest.onPackageChanged(packageName);
+
+        assertThat(underTest.getManifestTranscodeDecision(Process.myUid(),
+                TranscodeHelperImpl.FLAG_HEVC)).isEqualTo(
+                MediaProviderStatsLog.TRANSCODING_DATA__ACCESS_REASON__SYSTEM_CONFIG);
+        assertThat(mediaProvider.mCallingIdentityLookupCount).isEqualTo(2);
+    }
+
+    @Test
+    public void testGetFileFlagsAndDurationMs_cachedUntilFileChanges() throws Exception {
+        final File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "transcode_helper_test.mp4");
+        writeBytes(file, /* append */ false);
+        final AtomicInteger queryCount = new AtomicInteger();
+        final TranscodeHelperImpl underTest = createTranscodeHelper(queryCount,
+                Pair.create(TranscodeHelperImpl.FLAG_HEVC, 1000L));
+
+        try {
+            assertThat(underTest.getFileFlagsAndDurationMs(file.getPath()).first)
+                    .isEqualTo(TranscodeHelperImpl.FLAG_HEVC);
+            assertThat(underTest.getFileFlagsAndDurationMs(file.getPath()).second)
+                    .isEqualTo(1000L);
+            assertThat(queryCount.get()).isEqualTo(1);
+
+            writeBytes(file, /* append */ true);
+
+            underTest.getFileFlagsAndDurationMs(file.getPath());
+            assertThat(queryCount.get()).isEqualTo(2);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGetFileFlagsAndDurationMs_notCachedWithoutFileOrRow() throws Exception {
+        final File file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "transcode_helper_test.mp4");
+        file.delete();
+        final AtomicInteger queryCount = new AtomicInteger();
+        final TranscodeHelperImpl missingFile = createTranscodeHelper(queryCount,
+                Pair.create(TranscodeHelperImpl.FLAG_HEVC, 1000L));
+
+        missingFile.getFileFlagsAndDurationMs(file.getPath());
+        missingFile.getFileFlagsAndDurationMs(file.getPath());
+        assertThat(queryCount.get()).isEqualTo(2);
+
+        writeBytes(file, /* append */ false);
+        queryCount.set(0);
+        final TranscodeHelperImpl missingRow = createTranscodeHelper(queryCount,
+                /* flagsAndDurationMs */ null);
+        try {
+            assertThat(missingRow.getFileFlagsAndDurationMs(file.getPath()).first).isEqualTo(0);
+            missingRow.getFileFlagsAndDurationMs(file.getPath());
+            assertThat(queryCount.get()).isEqualTo(2);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Creates a {@link TranscodeHelperImpl} which finds {@code flagsAndDurationMs} in the database
+     * for every file, counting the queries in {@code queryCount}.
+     */
+    private static TranscodeHelperImpl createTranscodeHelper(AtomicInteger queryCount,
+            Pair<Integer, Long> flagsAndDurationMs) {
+        return new TranscodeHelperImpl(InstrumentationRegistry.getTargetContext(),
+                new TestMediaProvider(/* manifest */ "")) {
+            @Override
+            Pair<Integer, Long> queryFileFlagsAndDurationMs(String path) {
+                queryCount.incrementAndGet();
+                return flagsAndDurationMs;
+            }
+        };
+    }
+
+    private static void writeBytes(File file, boolean append) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, append)) {
+            out.write(new byte[100]);
+        }
+    }
+
+    /** Creates a {@link TranscodeHelperImpl} with the transcode compat {@code manifest}. */
+    private static TranscodeHelperImpl createTranscodeHelper(String manifest) {
+        return new TranscodeHelperImpl(InstrumentationRegistry.getTargetContext(),
+                new TestMediaProvider(manifest));
+    }
+
+    private static class TestMediaProvider extends MediaProvider {
+        private final String mManifest;
+        int mCallingIdentityLookupCount;
+
+        TestMediaProvider(String manifest) {
+            mManifest = manifest;
+        }
+
+        @Override
+        public String getStringDeviceConfig(String key, String defaultValue) {
+            return TRANSCODE_COMPAT_MANIFEST_KEY.equals(key) ? mManifest : defaultValue;
+        }
+
+        @Override
+        public boolean getBooleanDeviceConfig(String key, boolean defaultValue) {
+            return defaultValue;
+        }
+
+        @Override
+        public int getIntDeviceConfig(String key, int defaultValue) {
+            return defaultValue;
+        }
+
+        @Override
+        public void addOnPropertiesChangedListener(OnPropertiesChangedListener listener) {
+            // Ignore
+        }
+
+        @Override
+        LocalCallingIdentity getCachedCallingIdentityForTranscoding(int uid) {
+            mCallingIdentityLookupCount++;
+            return LocalCallingIdentity.fromSelf(InstrumentationRegistry.getTargetContext());
+        }
+    }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class TranscodeSchedulerTest {
+    private static final int UID1 = 10001;
+    private static final int UID2 = 10002;
+    private static final int UID_FOREGROUND = 10003;
+    private static final int UID3 = 10004;
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final List<Integer> mStartedUids = Collections.synchronizedList(new ArrayList<>());
+    private final TranscodeScheduler mScheduler = new TranscodeScheduler(/* maxConcurrency */ 1,
+            uid -> uid == UID_FOREGROUND);
+
+    @Test
+    public void testAcquire_timesOutAtCapacity() throws Exception {
+        final TranscodeScheduler.Slot slot = mScheduler.acquire(UID1, TIMEOUT_MS);
+        assertThat(slot).isNotNull();
+
+        assertThat(mScheduler.acquire(UID2, /* timeoutMs */ 100)).isNull();
+        assertThat(mScheduler.getWaiterCount()).isEqualTo(0);
+
+        mScheduler.release(slot);
+        assertThat(mScheduler.acquire(UID2, /* timeoutMs */ 100)).isNotNull();
+    }
+
+    @Test
+    public void testAcquire_setMaxConcurrencyStartsWaiters() throws Exception {
+        assertThat(mScheduler.acquire(UID1, TIMEOUT_MS)).isNotNull();
+        final CountDownLatch started = new CountDownLatch(1);
+        final Thread thread = startWaiter(UID2, started);
+        awaitWaiterCount(1);
+
+        mScheduler.setMaxConcurrency(2);
+
+        assertThat(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        thread.join();
+    }
+
+    @Test
+    public void testAcquire_alternatesBetweenUids() throws Exception {
+        final TranscodeScheduler.Slot slot = mScheduler.acquire(UID1, TIMEOUT_MS);
+        final List<Thread> threads = new ArrayList<>();
+        // UID1 queues up first, but already started a session so UID2 goes first
+        threads.add(startReleasingWaiter(UID1));
+        awaitWaiterCount(1);
+        threads.add(startReleasingWaiter(UID1));
+        awaitWaiterCount(2);
+        threads.add(startReleasingWaiter(UID2));
+        awaitWaiterCount(3);
+
+        mScheduler.release(slot);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(mStartedUids).containsExactly(UID2, UID1, UID1).inOrder();
+    }
+
+    @Test
+    public void testAcquire_fewestRunningSessionsFirst() throws Exception {
+        mScheduler.setMaxConcurrency(2);
+        final TranscodeScheduler.Slot uid1Slot = mScheduler.acquire(UID1, TIMEOUT_MS);
+        mScheduler.release(mScheduler.acquire(UID2, TIMEOUT_MS));
+        final TranscodeScheduler.Slot uid3Slot = mScheduler.acquire(UID3, TIMEOUT_MS);
+        final List<Thread> threads = new ArrayList<>();
+        // UID1 started a session before UID2, but UID2 has none running so it goes first
+        threads.add(startReleasingWaiter(UID1));
+        awaitWaiterCount(1);
+        threads.add(startReleasingWaiter(UID2));
+        awaitWaiterCount(2);
+
+        mScheduler.release(uid3Slot);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        mScheduler.release(uid1Slot);
+
+        assertThat(mStartedUids).containsExactly(UID2, UID1).inOrder();
+    }
+
+    @Test
+    public void testAcquire_foregroundFirst() throws Exception {
+        final TranscodeScheduler.Slot slot = mScheduler.acquire(UID1, TIMEOUT_MS);
+        final List<Thread> threads = new ArrayList<>();
+        threads.add(startReleasingWaiter(UID2));
+        awaitWaiterCount(1);
+        threads.add(startReleasingWaiter(UID_FOREGROUND));
+        awaitWaiterCount(2);
+
+        mScheduler.release(slot);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(mStartedUids).containsExactly(UID_FOREGROUND, UID2).inOrder();
+    }
+
+    /** Starts a thread that waits for a slot for {@code uid} and keeps it. */
+    private Thread startWaiter(int uid, CountDownLatch started) {
+        final Thread thread = new Thread(() -> {
+            try {
+                if (mScheduler.acquire(uid, TIMEOUT_MS) != null) {
+                    started.countDown();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /** Starts a thread that waits for a slot for {@code uid}, records it and releases it. */
+    private Thread startReleasingWaiter(int uid) {
+        final Thread thread = new Thread(() -> {
+            try {
+                final TranscodeScheduler.Slot slot = mScheduler.acquire(uid, TIMEOUT_MS);
+                if (slot != null) {
+                    mStartedUids.add(uid);
+                    mScheduler.release(slot);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void awaitWaiterCount(int count) {
+        final long deadlineMs = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (mScheduler.getWaiterCount() < count
+                && SystemClock.elapsedRealtime() < deadlineMs) {
+            SystemClock.sleep(10);
+        }
+        assertThat(mScheduler.getWaiterCount()).isEqualTo(count);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.metrics;
+
+import static com.android.providers.media.metrics.FuseAccessLog.RING_CAPACITY;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class FuseAccessLogTest {
+    private final List<String> mAccesses = new ArrayList<>();
+    private final List<Runnable> mScheduledDrains = new ArrayList<>();
+
+    private final FuseAccessLog mLog = new FuseAccessLog(mScheduledDrains::add,
+            (uid, path) -> mAccesses.add(uid + ":" + path));
+
+    @Test
+    public void testDrain_inOrder() {
+        mLog.append(1, "/storage/emulated/0/a.jpg");
+        mLog.append(2, "/storage/emulated/0/b.mp4");
+        assertThat(mAccesses).isEmpty();
+
+        mLog.drain();
+        assertThat(mAccesses).containsExactly(
+                "1:/storage/emulated/0/a.jpg", "2:/storage/emulated/0/b.mp4").inOrder();
+
+        mLog.drain();
+        assertThat(mAccesses).hasSize(2);
+    }
+
+    @Test
+    public void testAppend_schedulesDrainOnceWhenHalfFull() {
+        for (int i = 0; i < RING_CAPACITY / 2 - 1; i++) {
+            mLog.append(1, "/storage/emulated/0/" + i);
+        }
+        assertThat(mScheduledDrains).isEmpty();
+
+        mLog.append(1, "/storage/emulated/0/half");
+        mLog.append(1, "/storage/emulated/0/more");
+        assertThat(mScheduledDrains).hasSize(1);
+
+        mScheduledDrains.get(0).run();
+        assertThat(mAccesses).hasSize(RING_CAPACITY / 2 + 1);
+    }
+
+    @Test
+    public void testAppend_dropsWhenFull() {
+        for (int i = 0; i < RING_CAPACITY + 10; i++) {
+            mLog.append(1, "/storage/emulated/0/" + i);
+        }
+
+        mLog.drain();
+        assertThat(mAccesses).hasSize(RING_CAPACITY);
+        assertThat(mAccesses.get(0)).isEqualTo("1:/storage/emulated/0/0");
+    }
+
+    @Test
+    public void testDrain_removesRingsOfFinishedThreads() throws Exception {
+        final Thread thread = new Thread(() -> mLog.append(3, "/storage/emulated/0/c.png"));
+        thread.start();
+        thread.join();
+        assertThat(mLog.getRingCount()).isEqualTo(1);
+
+        mLog.drain();
+        assertThat(mAccesses).containsExactly("3:/storage/emulated/0/c.png");
+        assertThat(mLog.getRingCount()).isEqualTo(0);
+    }
+}
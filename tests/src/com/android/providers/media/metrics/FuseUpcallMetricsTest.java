@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.metrics;
+
+import static com.android.providers.media.metrics.FuseUpcallMetrics.LATENCY_BUCKET_COUNT;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_COUNT;
+import static com.android.providers.media.metrics.FuseUpcallMetrics.UPCALL_RENAME;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class FuseUpcallMetricsTest {
+    private static final int HISTOGRAM_SIZE = LATENCY_BUCKET_COUNT + 1;
+
+    @Test
+    public void testGetBucket() {
+        assertThat(FuseUpcallMetrics.getBucket(0)).isEqualTo(0);
+        assertThat(FuseUpcallMetrics.getBucket(1)).isEqualTo(0);
+        assertThat(FuseUpcallMetrics.getBucket(2)).isEqualTo(1);
+        assertThat(FuseUpcallMetrics.getBucket(3)).isEqualTo(1);
+        assertThat(FuseUpcallMetrics.getBucket(4)).isEqualTo(2);
+        assertThat(FuseUpcallMetrics.getBucket(1000)).isEqualTo(9);
+        assertThat(FuseUpcallMetrics.getBucket(Long.MAX_VALUE))
+                .isEqualTo(LATENCY_BUCKET_COUNT - 1);
+    }
+
+    @Test
+    public void testRecordJavaLatency() {
+        final int offset = UPCALL_RENAME * HISTOGRAM_SIZE;
+        final long[] before = FuseUpcallMetrics.getJavaHistograms();
+        assertThat(before.length).isEqualTo(UPCALL_COUNT * HISTOGRAM_SIZE);
+
+        FuseUpcallMetrics.recordJavaLatency(UPCALL_RENAME, 5);
+        FuseUpcallMetrics.recordJavaLatency(UPCALL_RENAME, 1000);
+
+        final long[] after = FuseUpcallMetrics.getJavaHistograms();
+        assertThat(after[offset + 2] - before[offset + 2]).isEqualTo(1);
+        assertThat(after[offset + 9] - before[offset + 9]).isEqualTo(1);
+        assertThat(after[offset + LATENCY_BUCKET_COUNT] - before[offset + LATENCY_BUCKET_COUNT])
+                .isEqualTo(1005);
+    }
+
+    @Test
+    public void testGetPercentileUpperBoundMicros() {
+        final long[] histogram = new long[HISTOGRAM_SIZE];
+        // 90 upcalls below 2us and 10 upcalls in [1024, 2048) us
+        histogram[0] = 90;
+        histogram[10] = 10;
+
+        assertThat(FuseUpcallMetrics.getPercentileUpperBoundMicros(histogram, 0, 50))
+                .isEqualTo(2);
+        assertThat(FuseUpcallMetrics.getPercentileUpperBoundMicros(histogram, 0, 90))
+                .isEqualTo(2);
+        assertThat(FuseUpcallMetrics.getPercentileUpperBoundMicros(histogram, 0, 99))
+                .isEqualTo(2048);
+    }
+}
@@ -46,6 +46,7 @@ import android.provider.MediaStore;
 import androidx.test.InstrumentationRegistry;
 
 import com.android.providers.media.photopicker.data.ItemsProvider;
+import com.android.providers.media.photopicker.data.PickerDbFacade;
 import com.android.providers.media.photopicker.data.model.Category;
 import com.android.providers.media.photopicker.data.model.UserId;
 import com.android.providers.media.scan.MediaScannerTest.IsolatedContext;
@@ -374,19 +375,20 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link ItemsProvider#getItems(String, int, int, String, UserId)} to return all
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} to return all
      * images and videos.
      */
     @Test
     public void testGetItems() throws Exception {
         // Create 1 image and 1 video file to test
-        // {@link ItemsProvider#getItems(String, int, int, String, UserId)}.
+        // {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)}.
         // Both files should be returned.
         File imageFile = assertCreateNewImage();
         File videoFile = assertCreateNewVideo();
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ null, /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ null, /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(2);
 
@@ -421,8 +423,9 @@ public class ItemsProviderTest {
             uris.add(videoFileDateNowUri);
             uris.add(imageFileDateNowUri);
 
-            try (Cursor cursor = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ null, /* userId */ null)) {
+            try (Cursor cursor = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ null, /* userId */ null)) {
                 assertThat(cursor).isNotNull();
 
                 final int expectedCount = uris.size();
@@ -446,20 +449,66 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link {@link ItemsProvider#getItems(String, int, int, String, UserId)}} does not
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} to continue
+     * after the date taken and row id of the last item of the previous page.
+     */
+    @Test
+    public void testGetItems_nextPage() throws Exception {
+        try {
+            final long timeNow = System.nanoTime() / 1000;
+            final Uri imageFileDateNowPlus1Uri = prepareFileAndGetUri(
+                    new File(getDownloadsDir(),  "latest_" + IMAGE_FILE_NAME), timeNow + 1000);
+            final Uri imageFileDateNowUri
+                    = prepareFileAndGetUri(new File(getDcimDir(), IMAGE_FILE_NAME), timeNow);
+            final Uri videoFileDateNowUri
+                    = prepareFileAndGetUri(new File(getCameraDir(), VIDEO_FILE_NAME), timeNow);
+
+            final long dateTakenMs;
+            final long rowId;
+            try (Cursor cursor = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ 2,
+                    /* mimeType */ null, /* userId */ null)) {
+                assertThat(cursor).isNotNull();
+                assertThat(cursor.getCount()).isEqualTo(2);
+                assertThat(cursor.moveToFirst()).isTrue();
+                assertThat(getId(cursor)).isEqualTo(imageFileDateNowPlus1Uri.getLastPathSegment());
+                assertThat(cursor.moveToLast()).isTrue();
+                assertThat(getId(cursor)).isEqualTo(videoFileDateNowUri.getLastPathSegment());
+
+                dateTakenMs = cursor.getLong(
+                        cursor.getColumnIndexOrThrow(MediaColumns.DATE_TAKEN_MILLIS));
+                rowId = cursor.getLong(cursor.getColumnIndexOrThrow(PickerDbFacade.PICKER_ROW_ID));
+            }
+
+            // The video and the older image have the same date taken, the row id breaks the tie
+            try (Cursor cursor = mItemsProvider.getItems(Category.DEFAULT, dateTakenMs, rowId,
+                    /* limit */ 2, /* mimeType */ null, /* userId */ null)) {
+                assertThat(cursor).isNotNull();
+                assertThat(cursor.getCount()).isEqualTo(1);
+                assertThat(cursor.moveToFirst()).isTrue();
+                assertThat(getId(cursor)).isEqualTo(imageFileDateNowUri.getLastPathSegment());
+            }
+        } finally {
+            deleteAllFilesNoThrow();
+        }
+    }
+
+    /**
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} does not
      * return hidden images/videos.
      */
     @Test
     public void testGetItems_nonMedia() throws Exception {
         // Create 1 image and 1 video file in a hidden dir to test
-        // {@link ItemsProvider#getItems(String, int, int, String, UserId)}.
+        // {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)}.
         // Both should not be returned.
         File hiddenDir = createHiddenDir();
         File imageFileHidden = assertCreateNewImage(hiddenDir);
         File videoFileHidden = assertCreateNewVideo(hiddenDir);
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ null, /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ null, /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(0);
         } finally {
@@ -470,19 +519,20 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link ItemsProvider#getItems(String, int, int, String, UserId)} to return all
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} to return all
      * images and videos based on the mimeType. Image mimeType should only return images.
      */
     @Test
     public void testGetItemsImages() throws Exception {
         // Create 1 image and 1 video file to test
-        // {@link ItemsProvider#getItems(String, int, int, String, UserId)}.
+        // {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)}.
         // Only 1 should be returned.
         File imageFile = assertCreateNewImage();
         File videoFile = assertCreateNewVideo();
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ "image/*", /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ "image/*", /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(1);
 
@@ -495,7 +545,7 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link ItemsProvider#getItems(String, int, int, String, UserId)} to return all
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} to return all
      * images and videos based on the mimeType. Image mimeType should only return images.
      */
     @Test
@@ -503,8 +553,9 @@ public class ItemsProviderTest {
         // Create a jpg file image. Tests negative use case, this should not be returned below.
         File imageFile = assertCreateNewImage();
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ "image/png", /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ "image/png", /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(0);
         } finally {
@@ -513,20 +564,21 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link ItemsProvider#getItems(String, int, int, String, UserId)} does not return
-     * hidden images/videos.
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} does not
+     * return hidden images/videos.
      */
     @Test
     public void testGetItemsImages_nonMedia() throws Exception {
         // Create 1 image and 1 video file in a hidden dir to test
-        // {@link ItemsProvider#getItems(String, int, int, String)}.
+        // {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)}.
         // Both should not be returned.
         File hiddenDir = createHiddenDir();
         File imageFileHidden = assertCreateNewImage(hiddenDir);
         File videoFileHidden = assertCreateNewVideo(hiddenDir);
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ "image/*", /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ "image/*", /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(0);
         } finally {
@@ -537,19 +589,20 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link ItemsProvider#getItems(String, int, int, String, UserId)} to return all
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} to return all
      * images and videos based on the mimeType. Video mimeType should only return videos.
      */
     @Test
     public void testGetItemsVideos() throws Exception {
         // Create 1 image and 1 video file to test
-        // {@link ItemsProvider#getItems(String, int, int, String)}.
+        // {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)}.
         // Only 1 should be returned.
         File imageFile = assertCreateNewImage();
         File videoFile = assertCreateNewVideo();
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ "video/*", /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ "video/*", /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(1);
 
@@ -562,7 +615,7 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link ItemsProvider#getItems(String, int, int, String, UserId)} to return all
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} to return all
      * images and videos based on the mimeType. Image mimeType should only return images.
      */
     @Test
@@ -570,8 +623,9 @@ public class ItemsProviderTest {
         // Create a mp4 video file. Tests positive use case, this should be returned below.
         File videoFile = assertCreateNewVideo();
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ "video/mp4", /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ "video/mp4", /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(1);
         } finally {
@@ -580,8 +634,8 @@ public class ItemsProviderTest {
     }
 
     /**
-     * Tests {@link ItemsProvider#getItems(String, int, int, String, UserId)} does not return
-     * hidden images/videos.
+     * Tests {@link ItemsProvider#getItems(Category, long, long, int, String, UserId)} does not
+     * return hidden images/videos.
      */
     @Test
     public void testGetItemsVideos_nonMedia() throws Exception {
@@ -591,8 +645,9 @@ public class ItemsProviderTest {
         File imageFileHidden = assertCreateNewImage(hiddenDir);
         File videoFileHidden = assertCreateNewVideo(hiddenDir);
         try {
-            final Cursor res = mItemsProvider.getItems(Category.DEFAULT, /* offset */ 0,
-                    /* limit */ -1, /* mimeType */ "video/*", /* userId */ null);
+            final Cursor res = mItemsProvider.getItems(Category.DEFAULT,
+                    /* dateTakenBeforeMs */ -1, /* rowId */ -1, /* limit */ -1,
+                    /* mimeType */ "video/*", /* userId */ null);
             assertThat(res).isNotNull();
             assertThat(res.getCount()).isEqualTo(0);
         } finally {
@@ -769,6 +824,10 @@ public class ItemsProviderTest {
         return file;
     }
 
+    private static String getId(Cursor cursor) {
+        return String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(MediaColumns.ID)));
+    }
+
     private Uri prepareFileAndGetUri(File file, long lastModifiedTime) throws IOException {
         ensureParentExists(file.getParentFile());
 
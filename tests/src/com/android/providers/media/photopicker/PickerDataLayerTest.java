@@ -40,9 +40,11 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.modules.utils.BackgroundThread;
 import com.android.providers.media.PickerProviderMediaGenerator;
+import com.android.providers.media.photopicker.data.CloudProviderQueryExtras;
 import com.android.providers.media.photopicker.data.PickerDatabaseHelper;
 import com.android.providers.media.photopicker.data.PickerDbFacade;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -129,6 +131,41 @@ public class PickerDataLayerTest {
         mFacade.setCloudProvider(null);
     }
 
+    @After
+    public void tearDown() {
+        // Wait for the background syncs requested by the test
+        waitForIdle();
+    }
+
+    @Test
+    public void testFetchMediaDoesNotWaitForSync() throws Exception {
+        addMedia(mLocalMediaGenerator, LOCAL_ONLY_1);
+
+        // Hold the background thread so the requested sync can't finish before the fetch
+        final CountDownLatch latch = new CountDownLatch(1);
+        BackgroundThread.getExecutor().execute(() -> {
+            try {
+                latch.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        try (Cursor cr = mDataLayer.fetchMedia(buildDefaultQueryArgs())) {
+            assertThat(cr.getCount()).isEqualTo(0);
+        } finally {
+            latch.countDown();
+        }
+
+        waitForIdle();
+
+        try (Cursor cr = mDataLayer.fetchMedia(buildDefaultQueryArgs())) {
+            assertThat(cr.getCount()).isEqualTo(1);
+
+            assertCursor(cr, LOCAL_ID_1, LOCAL_PROVIDER_AUTHORITY);
+        }
+    }
+
     @Test
     public void testFetchMediaNoFilter() {
         mController.setCloudProvider(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
@@ -136,6 +173,8 @@ public class PickerDataLayerTest {
         addMedia(mLocalMediaGenerator, LOCAL_ONLY_1);
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1);
 
+        mController.syncAllMedia();
+
         try (Cursor cr = mDataLayer.fetchMedia(buildDefaultQueryArgs())) {
             assertThat(cr.getCount()).isEqualTo(2);
 
@@ -144,6 +183,42 @@ public class PickerDataLayerTest {
         }
     }
 
+    @Test
+    public void testFetchMediaNextPage() {
+        mController.setCloudProvider(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+
+        addMedia(mLocalMediaGenerator, LOCAL_ONLY_1);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1);
+
+        mController.syncAllMedia();
+
+        final Bundle queryArgs = buildDefaultQueryArgs();
+        queryArgs.putInt(MediaStore.QUERY_ARG_LIMIT, 1);
+        try (Cursor cr = mDataLayer.fetchMedia(queryArgs)) {
+            assertThat(cr.getCount()).isEqualTo(1);
+
+            assertCursor(cr, CLOUD_ID_1, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+            queryArgs.putLong(CloudProviderQueryExtras.QUERY_ARG_DATE_TAKEN_BEFORE_MS,
+                    cr.getLong(cr.getColumnIndex(MediaColumns.DATE_TAKEN_MILLIS)));
+            queryArgs.putLong(CloudProviderQueryExtras.QUERY_ARG_PICKER_ROW_ID,
+                    cr.getLong(cr.getColumnIndex(PickerDbFacade.PICKER_ROW_ID)));
+        }
+
+        try (Cursor cr = mDataLayer.fetchMedia(queryArgs)) {
+            assertThat(cr.getCount()).isEqualTo(1);
+
+            assertCursor(cr, LOCAL_ID_1, LOCAL_PROVIDER_AUTHORITY);
+            queryArgs.putLong(CloudProviderQueryExtras.QUERY_ARG_DATE_TAKEN_BEFORE_MS,
+                    cr.getLong(cr.getColumnIndex(MediaColumns.DATE_TAKEN_MILLIS)));
+            queryArgs.putLong(CloudProviderQueryExtras.QUERY_ARG_PICKER_ROW_ID,
+                    cr.getLong(cr.getColumnIndex(PickerDbFacade.PICKER_ROW_ID)));
+        }
+
+        try (Cursor cr = mDataLayer.fetchMedia(queryArgs)) {
+            assertThat(cr.getCount()).isEqualTo(0);
+        }
+    }
+
     @Test
     public void testFetchMediaFavorites() {
         mController.setCloudProvider(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
@@ -158,6 +233,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, /* albumId */ null, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle defaultQueryArgs = buildDefaultQueryArgs();
 
         try (Cursor cr = mDataLayer.fetchMedia(defaultQueryArgs)) {
@@ -189,6 +266,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, /* albumId */ null, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle defaultQueryArgs = buildDefaultQueryArgs();
 
         try (Cursor cr = mDataLayer.fetchMedia(defaultQueryArgs)) {
@@ -219,6 +298,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, /* albumId */ null, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle defaultQueryArgs = buildDefaultQueryArgs();
 
         try (Cursor cr = mDataLayer.fetchMedia(defaultQueryArgs)) {
@@ -249,6 +330,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, /* albumId */ null, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle defaultQueryArgs = buildDefaultQueryArgs();
 
         try (Cursor cr = mDataLayer.fetchMedia(defaultQueryArgs)) {
@@ -272,6 +355,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1, /* albumId */ null, VIDEO_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle queryArgs = buildQueryArgs(IMAGE_MIME_TYPE, SIZE_BYTES_DEFAULT);
 
         try (Cursor cr = mDataLayer.fetchMedia(queryArgs)) {
@@ -291,6 +376,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1, /* albumId */ null, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle queryArgs = buildQueryArgs(IMAGE_MIME_TYPE, SIZE_BYTES - 1);
 
         try (Cursor cr = mDataLayer.fetchMedia(queryArgs)) {
@@ -313,6 +400,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, /* albumId */ null, VIDEO_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle queryArgs = buildQueryArgs(VIDEO_MIME_TYPE, SIZE_BYTES - 1);
 
         try (Cursor cr = mDataLayer.fetchMedia(queryArgs)) {
@@ -338,6 +427,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, /* albumdId */ null, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ true);
 
+        mController.syncAllMedia();
+
         final Bundle defaultQueryArgs = buildDefaultQueryArgs();
 
         try (Cursor cr = mDataLayer.fetchAlbums(defaultQueryArgs)) {
@@ -403,6 +494,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, ALBUM_ID_2, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle mimeTypeQueryArgs = buildQueryArgs(IMAGE_MIME_TYPE, SIZE_BYTES_DEFAULT);
 
         try (Cursor cr = mDataLayer.fetchAlbums(mimeTypeQueryArgs)) {
@@ -449,6 +542,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, ALBUM_ID_2, IMAGE_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle sizeQueryArgs = buildQueryArgs(MIME_TYPE_DEFAULT, SIZE_BYTES - 1);
 
         try (Cursor cr = mDataLayer.fetchAlbums(sizeQueryArgs)) {
@@ -496,6 +591,8 @@ public class PickerDataLayerTest {
         addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2, ALBUM_ID_2, VIDEO_MIME_TYPE,
                 MediaColumns.STANDARD_MIME_TYPE_EXTENSION_NONE, SIZE_BYTES, /* isFavorite */ false);
 
+        mController.syncAllMedia();
+
         final Bundle mimeTypeAndSizeQueryArgs = buildQueryArgs(VIDEO_MIME_TYPE, SIZE_BYTES -1);
 
         final Bundle cloudAlbumAndMimeTypeQueryArgs = buildQueryArgs(ALBUM_ID_2,
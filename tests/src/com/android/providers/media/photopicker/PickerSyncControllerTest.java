@@ -276,6 +276,50 @@ public class PickerSyncControllerTest {
         assertEmptyCursorFromMediaQuery();
     }
 
+    @Test
+    public void testSyncAllMediaCloudOnly_multiplePages() {
+        mCloudPrimaryMediaGenerator.setPageSize(1);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_3);
+
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(3);
+
+            assertCursor(cr, CLOUD_ID_3, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+            assertCursor(cr, CLOUD_ID_2, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+            assertCursor(cr, CLOUD_ID_1, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        }
+    }
+
+    @Test
+    public void testSyncAllMediaCloudOnly_resumesFromLastPage() {
+        mCloudPrimaryMediaGenerator.setPageSize(1);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1);
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+
+        // Fail the second page of the incremental sync once
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_2);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_3);
+        mCloudPrimaryMediaGenerator.setFailingPageToken("1");
+        final int queryCount = mCloudPrimaryMediaGenerator.getMediaQueryCount();
+
+        mController.syncAllMedia();
+        try (Cursor cr = queryMedia()) {
+            assertThat(cr.getCount()).isEqualTo(3);
+
+            assertCursor(cr, CLOUD_ID_3, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+            assertCursor(cr, CLOUD_ID_2, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+            assertCursor(cr, CLOUD_ID_1, CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+        }
+
+        // The first page, the failed second page and the second page again, instead of a full
+        // sync after resetting the media
+        assertThat(mCloudPrimaryMediaGenerator.getMediaQueryCount() - queryCount).isEqualTo(3);
+    }
+
     @Test
     public void testSyncAllMediaResetsAlbumMedia() {
         // 1. Set primary cloud provider
@@ -871,6 +915,21 @@ public class PickerSyncControllerTest {
         assertEmptyCursorFromMediaQuery();
     }
 
+    @Test
+    public void testAllMediaSyncValidationFailure_reportsNoChange() {
+        // 1. Set cloud provider
+        setCloudProviderAndSyncAllMedia(CLOUD_PRIMARY_PROVIDER_AUTHORITY);
+
+        // 2. Force the next 2 syncs (including retry) to have incorrect extra_media_collection_id
+        mCloudPrimaryMediaGenerator.setNextCursorExtras(2, COLLECTION_2,
+                /* honoredSyncGeneration */ true, /* honoredAlbumId */ false);
+        addMedia(mCloudPrimaryMediaGenerator, CLOUD_ONLY_1);
+
+        // 3. Sync and verify that the failed sync, which reset no media, reports no change
+        assertThat(mController.syncAllMedia(/* resetAlbumMedia */ false)).isFalse();
+        assertEmptyCursorFromMediaQuery();
+    }
+
     @Test
     public void testAllMediaSyncValidationRecovery_missingSyncGenerationHonoredArg() {
         // 1. Set cloud provider
@@ -782,6 +782,33 @@ public class ExternalDbFacadeTest {
         }
     }
 
+    @Test
+    public void testQueryAlbumsAfterInsert() throws Exception {
+        try (DatabaseHelper helper = new TestDatabaseHelper(sIsolatedContext)) {
+            ExternalDbFacade facade = new ExternalDbFacade(sIsolatedContext, helper,
+                    mock(VolumeCache.class));
+
+            initMediaInAllAlbums(helper);
+
+            try (Cursor cursor = facade.queryAlbums(/* mimeType */ null)) {
+                assertThat(cursor.getCount()).isEqualTo(3);
+                cursor.moveToNext();
+                assertAlbumColumns(facade, cursor, ALBUM_ID_CAMERA, DATE_TAKEN_MS1, /* count */ 1);
+            }
+
+            // Insert newer image in camera album
+            ContentValues cv = getContentValues(DATE_TAKEN_MS4, GENERATION_MODIFIED4);
+            cv.put(MediaColumns.RELATIVE_PATH, ExternalDbFacade.RELATIVE_PATH_CAMERA);
+            helper.runWithTransaction(db -> db.insert(TABLE_FILES, null, cv));
+
+            try (Cursor cursor = facade.queryAlbums(/* mimeType */ null)) {
+                assertThat(cursor.getCount()).isEqualTo(3);
+                cursor.moveToNext();
+                assertAlbumColumns(facade, cursor, ALBUM_ID_CAMERA, DATE_TAKEN_MS4, /* count */ 2);
+            }
+        }
+    }
+
     @Test
     public void testOrderOfLocalAlbumIds() {
         // Camera, ScreenShots, Downloads
@@ -20,12 +20,14 @@ import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_
 import static android.provider.CloudMediaProviderContract.AlbumColumns.ALBUM_ID_VIDEOS;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
 
 import static org.junit.Assert.assertThrows;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.provider.CloudMediaProviderContract.AlbumColumns;
 import android.provider.CloudMediaProviderContract.MediaColumns;
 import android.provider.MediaStore.PickerMediaColumns;
@@ -38,6 +40,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 @RunWith(AndroidJUnit4.class)
 public class PickerDbFacadeTest {
@@ -970,6 +974,95 @@ public class PickerDbFacadeTest {
         }
     }
 
+    @Test
+    public void testGetFavoritesAlbumAfterRemove() throws Exception {
+        Cursor localCursor = getMediaCursor(LOCAL_ID + "1", DATE_TAKEN_MS - 1,
+                GENERATION_MODIFIED, /* mediaStoreUri */ null, SIZE_BYTES, VIDEO_MIME_TYPE,
+                STANDARD_MIME_TYPE_EXTENSION, /* isFavorite */ true);
+        Cursor cloudCursor1 = getMediaCursor(CLOUD_ID + "1", DATE_TAKEN_MS, GENERATION_MODIFIED,
+                /* mediaStoreUri */ null, SIZE_BYTES, IMAGE_MIME_TYPE,
+                STANDARD_MIME_TYPE_EXTENSION, /* isFavorite */ true);
+        Cursor cloudCursor2 = getMediaCursor(CLOUD_ID + "2", DATE_TAKEN_MS + 1,
+                GENERATION_MODIFIED, /* mediaStoreUri */ null, SIZE_BYTES, IMAGE_MIME_TYPE,
+                STANDARD_MIME_TYPE_EXTENSION, /* isFavorite */ true);
+
+        assertAddMediaOperation(LOCAL_PROVIDER, localCursor, 1);
+        try (PickerDbFacade.DbWriteOperation operation =
+                     mFacade.beginAddMediaOperation(CLOUD_PROVIDER)) {
+            assertWriteOperation(operation, cloudCursor1, 1);
+            assertWriteOperation(operation, cloudCursor2, 1);
+            operation.setSuccess();
+        }
+
+        PickerDbFacade.QueryFilterBuilder qfb =
+                new PickerDbFacade.QueryFilterBuilder(/* limit */ 1000);
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToFirst();
+            assertCloudAlbumCursor(cr, ALBUM_ID_FAVORITES, ALBUM_ID_FAVORITES, CLOUD_ID + "2",
+                    DATE_TAKEN_MS + 1, /* count */ 3);
+            cr.moveToNext();
+            assertCloudAlbumCursor(cr, ALBUM_ID_VIDEOS, ALBUM_ID_VIDEOS, LOCAL_ID + "1",
+                    DATE_TAKEN_MS - 1, /* count */ 1);
+        }
+
+        // Removing the cover falls back to the next latest media
+        assertRemoveMediaOperation(CLOUD_PROVIDER, getDeletedMediaCursor(CLOUD_ID + "2"), 1);
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToFirst();
+            assertCloudAlbumCursor(cr, ALBUM_ID_FAVORITES, ALBUM_ID_FAVORITES, CLOUD_ID + "1",
+                    DATE_TAKEN_MS, /* count */ 2);
+        }
+
+        assertRemoveMediaOperation(CLOUD_PROVIDER, getDeletedMediaCursor(CLOUD_ID + "1"), 1);
+        qfb.setMimeType(IMAGE_MIME_TYPE);
+        try (Cursor cr = mFacade.getMergedAlbums(qfb.build())) {
+            assertThat(cr.getCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testQueryMediaForUi_usesIndex() throws Exception {
+        for (String cloudProvider : new String[] {CLOUD_PROVIDER, null}) {
+            mFacade.setCloudProvider(cloudProvider);
+            for (PickerDbFacade.QueryFilterBuilder qfb : getQueryFilterCombinations()) {
+                try (Cursor cr = mFacade.explainQueryMediaForUi(qfb.build())) {
+                    assertQueryPlanUsesIndex(cr);
+                }
+
+                qfb.setIsVideo(true);
+                try (Cursor cr = mFacade.explainQueryMediaForUi(qfb.build())) {
+                    assertQueryPlanUsesIndex(cr);
+                }
+
+                qfb.setIsVideo(false);
+                qfb.setIsFavorite(true);
+                try (Cursor cr = mFacade.explainQueryMediaForUi(qfb.build())) {
+                    assertQueryPlanUsesIndex(cr);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQueryAlbumMediaForUi_usesIndex() throws Exception {
+        for (String cloudProvider : new String[] {CLOUD_PROVIDER, null}) {
+            mFacade.setCloudProvider(cloudProvider);
+            for (PickerDbFacade.QueryFilterBuilder qfb : getQueryFilterCombinations()) {
+                qfb.setAlbumId(ALBUM_ID);
+                try (Cursor cr = mFacade.explainQueryAlbumMediaForUi(qfb.build(),
+                        LOCAL_PROVIDER)) {
+                    assertQueryPlanUsesIndex(cr);
+                }
+                try (Cursor cr = mFacade.explainQueryAlbumMediaForUi(qfb.build(),
+                        CLOUD_PROVIDER)) {
+                    assertQueryPlanUsesIndex(cr);
+                }
+            }
+        }
+    }
+
     @Test
     public void testDataColumn() throws Exception {
         Cursor imageCursor = getMediaCursor(LOCAL_ID, DATE_TAKEN_MS, GENERATION_MODIFIED,
@@ -1004,6 +1097,25 @@ public class PickerDbFacadeTest {
         }
     }
 
+    @Test
+    public void testAddMedia_skipsInvalidRows() throws Exception {
+        Cursor cursor = new MergeCursor(new Cursor[] {
+                getCloudMediaCursor(CLOUD_ID + "1", null, /* dateTakenMs */ -1),
+                getCloudMediaCursor(CLOUD_ID + "2", null, DATE_TAKEN_MS),
+                getCloudMediaCursor(CLOUD_ID + "3", LOCAL_ID, DATE_TAKEN_MS + 1)
+        });
+
+        assertAddMediaOperation(CLOUD_PROVIDER, cursor, 2);
+
+        try (Cursor cr = queryMediaAll()) {
+            assertThat(cr.getCount()).isEqualTo(2);
+            cr.moveToFirst();
+            assertCloudMediaCursor(cr, CLOUD_ID + "3", DATE_TAKEN_MS + 1);
+            cr.moveToNext();
+            assertCloudMediaCursor(cr, CLOUD_ID + "2", DATE_TAKEN_MS);
+        }
+    }
+
     @Test
     public void testRemoveMediaFailure() throws Exception {
         try (PickerDbFacade.DbWriteOperation operation =
@@ -1178,6 +1290,46 @@ public class PickerDbFacadeTest {
                 + displayName;
     }
 
+    /**
+     * Returns builders for every combination of the paging, size and mime type filters of the UI
+     * queries.
+     */
+    private static List<PickerDbFacade.QueryFilterBuilder> getQueryFilterCombinations() {
+        final List<PickerDbFacade.QueryFilterBuilder> result = new ArrayList<>();
+        for (int paging = 0; paging < 3; paging++) {
+            for (boolean filterSize : new boolean[] {false, true}) {
+                for (boolean filterMimeType : new boolean[] {false, true}) {
+                    final PickerDbFacade.QueryFilterBuilder qfb =
+                            new PickerDbFacade.QueryFilterBuilder(/* limit */ 1000);
+                    if (paging == 1) {
+                        qfb.setDateTakenBeforeMs(DATE_TAKEN_MS).setId(5);
+                    } else if (paging == 2) {
+                        qfb.setDateTakenAfterMs(DATE_TAKEN_MS).setId(5);
+                    }
+                    if (filterSize) {
+                        qfb.setSizeBytes(SIZE_BYTES);
+                    }
+                    if (filterMimeType) {
+                        qfb.setMimeType(IMAGE_MIME_TYPE);
+                    }
+                    result.add(qfb);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void assertQueryPlanUsesIndex(Cursor cursor) {
+        final int detailIndex = cursor.getColumnIndexOrThrow("detail");
+        assertThat(cursor.getCount()).isGreaterThan(0);
+        while (cursor.moveToNext()) {
+            final String detail = cursor.getString(detailIndex);
+            assertWithMessage("Query plan step: " + detail).that(detail).doesNotMatch("^SCAN.*");
+            assertWithMessage("Query plan step: " + detail).that(detail)
+                    .doesNotContain("TEMP B-TREE");
+        }
+    }
+
     private static void assertCloudAlbumCursor(Cursor cursor, String albumId, String displayName,
             String mediaCoverId, long dateTakenMs, long mediaCount) {
         assertThat(cursor.getString(cursor.getColumnIndex(AlbumColumns.ID)))
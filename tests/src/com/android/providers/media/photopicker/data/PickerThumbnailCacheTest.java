@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.media.photopicker.data;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.graphics.Point;
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.providers.media.util.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+@RunWith(AndroidJUnit4.class)
+public class PickerThumbnailCacheTest {
+    private static final String AUTHORITY = "com.example.cloud";
+    private static final String MEDIA_ID1 = "id1";
+    private static final String MEDIA_ID2 = "id2";
+    private static final String MEDIA_ID3 = "id3";
+    private static final int SIZE_BUCKET = 256;
+    private static final int THUMBNAIL_SIZE = 100;
+
+    private File mDirectory;
+    private PickerThumbnailCache mCache;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mDirectory = new File(context.getCacheDir(), "picker_thumbnail_cache_test");
+        FileUtils.deleteContents(mDirectory);
+        mCache = new PickerThumbnailCache(mDirectory, 2 * THUMBNAIL_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDirectory);
+    }
+
+    @Test
+    public void testGetSizeBucket() {
+        assertThat(PickerThumbnailCache.getSizeBucket(null)).isEqualTo(128);
+        assertThat(PickerThumbnailCache.getSizeBucket(new Point(128, 100))).isEqualTo(128);
+        assertThat(PickerThumbnailCache.getSizeBucket(new Point(100, 300))).isEqualTo(512);
+        assertThat(PickerThumbnailCache.getSizeBucket(new Point(4000, 4000))).isEqualTo(2048);
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        assertThat(mCache.get(AUTHORITY, MEDIA_ID1, SIZE_BUCKET)).isNull();
+
+        put(MEDIA_ID1).close();
+
+        assertCached(MEDIA_ID1);
+        assertThat(mCache.get(AUTHORITY, MEDIA_ID1, SIZE_BUCKET * 2)).isNull();
+        assertThat(mCache.getSizeBytes()).isEqualTo(THUMBNAIL_SIZE);
+    }
+
+    @Test
+    public void testPut_evictsLeastRecentlyUsed() throws Exception {
+        put(MEDIA_ID1).close();
+        put(MEDIA_ID2).close();
+        assertCached(MEDIA_ID1);
+
+        put(MEDIA_ID3).close();
+
+        assertCached(MEDIA_ID1);
+        assertThat(mCache.get(AUTHORITY, MEDIA_ID2, SIZE_BUCKET)).isNull();
+        assertCached(MEDIA_ID3);
+        assertThat(mCache.getSizeBytes()).isEqualTo(2 * THUMBNAIL_SIZE);
+    }
+
+    @Test
+    public void testPut_afterInvalidate_notCached() throws Exception {
+        final long generation = mCache.getGeneration();
+        mCache.invalidate(AUTHORITY, MEDIA_ID2);
+
+        try (ParcelFileDescriptor pfd = put(MEDIA_ID1, generation)) {
+            assertThat(pfd.getStatSize()).isEqualTo(THUMBNAIL_SIZE);
+        }
+        assertThat(mCache.get(AUTHORITY, MEDIA_ID1, SIZE_BUCKET)).isNull();
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        put(MEDIA_ID1).close();
+        put(MEDIA_ID2).close();
+
+        mCache.invalidate(AUTHORITY, MEDIA_ID1);
+
+        assertThat(mCache.get(AUTHORITY, MEDIA_ID1, SIZE_BUCKET)).isNull();
+        assertCached(MEDIA_ID2);
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        put(MEDIA_ID1).close();
+
+        mCache.clear();
+
+        assertThat(mCache.get(AUTHORITY, MEDIA_ID1, SIZE_BUCKET)).isNull();
+        assertThat(mCache.getSizeBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLoad_keepsEntriesAcrossInstances() throws Exception {
+        put(MEDIA_ID1).close();
+
+        final PickerThumbnailCache cache = new PickerThumbnailCache(mDirectory,
+                2 * THUMBNAIL_SIZE);
+
+        try (ParcelFileDescriptor pfd = cache.get(AUTHORITY, MEDIA_ID1, SIZE_BUCKET)) {
+            assertThat(pfd).isNotNull();
+        }
+        assertThat(cache.getSizeBytes()).isEqualTo(THUMBNAIL_SIZE);
+    }
+
+    private ParcelFileDescriptor put(String mediaId) throws IOException {
+        return put(mediaId, mCache.getGeneration());
+    }
+
+    private ParcelFileDescriptor put(String mediaId, long generation) throws IOException {
+        return mCache.put(AUTHORITY, mediaId, SIZE_BUCKET,
+                new ByteArrayInputStream(new byte[THUMBNAIL_SIZE]), generation);
+    }
+
+    private void assertCached(String mediaId) throws IOException {
+        try (ParcelFileDescriptor pfd = mCache.get(AUTHORITY, mediaId, SIZE_BUCKET)) {
+            assertThat(pfd).isNotNull();
+            assertThat(pfd.getStatSize()).isEqualTo(THUMBNAIL_SIZE);
+        }
+    }
+}
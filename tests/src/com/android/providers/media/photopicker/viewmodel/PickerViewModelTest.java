@@ -41,6 +41,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.providers.media.photopicker.PickerSyncController;
 import com.android.providers.media.photopicker.data.ItemsProvider;
+import com.android.providers.media.photopicker.data.PickerDbFacade;
 import com.android.providers.media.photopicker.data.UserIdManager;
 import com.android.providers.media.photopicker.data.model.Category;
 import com.android.providers.media.photopicker.data.model.Item;
@@ -56,6 +57,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 @RunWith(AndroidJUnit4.class)
@@ -184,6 +186,50 @@ public class PickerViewModelTest {
         assertThat(itemList.get(0).getDateTaken()).isEqualTo(0);
     }
 
+    @Test
+    public void testGetItems_loadsMoreItemsByPage() throws Exception {
+        final int itemCount = PickerViewModel.ITEMS_PAGE_SIZE + 5;
+        mItemsProvider.setItems(generateFakeImageItemList(itemCount));
+        mPickerViewModel.updateItems();
+        ForegroundThread.waitForIdle();
+
+        final List<Item> firstPage = mPickerViewModel.getItems().getValue();
+        assertThat(countPhotoItems(firstPage)).isEqualTo(PickerViewModel.ITEMS_PAGE_SIZE);
+
+        mPickerViewModel.loadMoreItems();
+        ForegroundThread.waitForIdle();
+
+        final List<Item> itemList = mPickerViewModel.getItems().getValue();
+        assertThat(countPhotoItems(itemList)).isEqualTo(itemCount);
+        // The first page is kept as is and the new page is appended to it
+        assertThat(itemList.subList(0, firstPage.size())).isEqualTo(firstPage);
+        // Every item is on a different day, so the next page continues with a date header
+        assertThat(itemList.get(firstPage.size()).isDate()).isTrue();
+
+        // All the items are loaded
+        mPickerViewModel.loadMoreItems();
+        ForegroundThread.waitForIdle();
+        assertThat(mPickerViewModel.getItems().getValue()).isSameInstanceAs(itemList);
+    }
+
+    @Test
+    public void testPageList_appendSharesPreviousPages() {
+        final Item first = Item.createDateItem(1);
+        final Item second = Item.createDateItem(2);
+        final Item third = Item.createDateItem(3);
+        final PickerViewModel.PageList empty = new PickerViewModel.PageList();
+
+        final PickerViewModel.PageList onePage = empty.append(Arrays.asList(first, second));
+        final PickerViewModel.PageList twoPages = onePage.append(Arrays.asList(third));
+
+        assertThat(empty).isEmpty();
+        assertThat(onePage).containsExactly(first, second).inOrder();
+        assertThat(twoPages).containsExactly(first, second, third).inOrder();
+        assertThat(twoPages.get(2)).isSameInstanceAs(third);
+        // Empty pages are not kept
+        assertThat(twoPages.append(new ArrayList<>())).isSameInstanceAs(twoPages);
+    }
+
     @Test
     public void testGetCategoryItems() throws Exception {
         final int itemCount = 3;
@@ -290,6 +336,16 @@ public class PickerViewModelTest {
                 /* duration= */ 1000L);
     }
 
+    private static int countPhotoItems(List<Item> itemList) {
+        int count = 0;
+        for (Item item : itemList) {
+            if (!item.isDate()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private static List<Item> generateFakeImageItemList(int num) {
         final List<Item> itemList = new ArrayList<>();
         for (int i = 0; i < num; i++) {
@@ -324,12 +380,21 @@ public class PickerViewModelTest {
         }
 
         @Override
-        public Cursor getItems(Category category, int offset,
+        public Cursor getItems(Category category, long dateTakenBeforeMs, long rowId,
                 int limit, @Nullable String mimeType, @Nullable UserId userId) throws
                 IllegalArgumentException, IllegalStateException {
-            final MatrixCursor c = new MatrixCursor(MediaColumns.ALL_PROJECTION);
-
-            for (Item item : mItemList) {
+            final String[] projection = Arrays.copyOf(MediaColumns.ALL_PROJECTION,
+                    MediaColumns.ALL_PROJECTION.length + 1);
+            projection[projection.length - 1] = PickerDbFacade.PICKER_ROW_ID;
+            final MatrixCursor c = new MatrixCursor(projection);
+
+            // The fake row id of an item is its index in the list, so a page continues after the
+            // row id of the last item of the previous page
+            final int start = (int) (rowId + 1);
+            final int end = limit < 0 ? mItemList.size()
+                    : Math.min(mItemList.size(), start + limit);
+            for (int i = start; i < end; i++) {
+                final Item item = mItemList.get(i);
                 c.addRow(new String[] {
                         item.getId(),
                         String.valueOf(item.getDateTaken()),
@@ -341,7 +406,8 @@ public class PickerViewModelTest {
                         String.valueOf(item.getDuration()),
                         "0", // is_favorite
                         "/storage/emulated/0/foo",
-                        PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY
+                        PickerSyncController.LOCAL_PICKER_PROVIDER_AUTHORITY,
+                        String.valueOf(i)
                 });
             }
 